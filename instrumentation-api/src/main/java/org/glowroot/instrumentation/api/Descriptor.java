@@ -102,6 +102,12 @@ public @interface Descriptor {
 
         boolean spanCaptureSelfNested() default false;
 
+        // by default, span message template values are only rendered to strings immediately if
+        // they are mutable (immutable values like String, boxed primitives and enums are rendered
+        // lazily, only if the span is retained), set this to render all values immediately, e.g.
+        // for enums whose toString() depends on mutable state, or to avoid retaining large values
+        boolean spanMessageSnapshotEagerly() default false;
+
         String timerName() default "";
 
         String enabledProperty() default "";
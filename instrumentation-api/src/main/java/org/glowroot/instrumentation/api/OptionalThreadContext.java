@@ -27,6 +27,11 @@ public interface OptionalThreadContext extends ThreadContext {
 
     void captureLoggerSpan(MessageSupplier messageSupplier, @Nullable Throwable throwable);
 
+    // returns false when captureLoggerSpan() would do nothing (no transaction, and the agent does
+    // not capture logger spans outside of transactions), so that the log message does not need to
+    // be built
+    boolean isCapturingLoggerSpans();
+
     enum AlreadyInTransactionBehavior {
         CAPTURE_LOCAL_SPAN, CAPTURE_NEW_TRANSACTION, DO_NOTHING
     }
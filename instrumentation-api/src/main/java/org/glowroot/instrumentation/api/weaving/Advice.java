@@ -127,6 +127,16 @@ public class Advice {
         // on
         // same method but with lower order
         String suppressionKey() default "";
+
+        // if true, then the advice is treated as disabled (as if @Advice.IsEnabled returned false)
+        // when there is no active transaction on the current thread, which is checked inline in the
+        // woven bytecode, so that @Advice.OnMethodBefore does not construct message suppliers, etc.
+        // only to have them discarded by a no-op span
+        //
+        // this is already the behavior for advice that binds ThreadContext (but not
+        // OptionalThreadContext), so this is only needed for advice that does not bind
+        // ThreadContext
+        boolean requiresTransaction() default false;
     }
 
     /**
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.instrumentation.engine.util.IterableWithSelfRemovableEntries;
+import org.glowroot.instrumentation.engine.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
+
+// measures the active weaving tracking that Weaver.weave() performs for every class that is
+// loaded, with one thread per core, so that running with -t 1, -t 2, etc. shows how throughput
+// scales with cores (see AnalyzedWorldContentionBenchmark for the full weaving path)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(Threads.MAX)
+@State(Scope.Benchmark)
+public class ActiveWeavingTrackingBenchmark {
+
+    private final IterableWithSelfRemovableEntries<Object> activeWeavings =
+            new IterableWithSelfRemovableEntries<Object>();
+
+    @Benchmark
+    public Object addAndRemove() {
+        Object activeWeaving = new Object();
+        SelfRemovableEntry entry = activeWeavings.add(activeWeaving);
+        entry.remove();
+        return activeWeaving;
+    }
+
+    @Benchmark
+    public Object addAndRemoveNested() {
+        // class loading during weaving leads to nested weaving on the same thread
+        Object outerActiveWeaving = new Object();
+        SelfRemovableEntry outerEntry = activeWeavings.add(outerActiveWeaving);
+        Object innerActiveWeaving = new Object();
+        SelfRemovableEntry innerEntry = activeWeavings.add(innerActiveWeaving);
+        innerEntry.remove();
+        outerEntry.remove();
+        return outerActiveWeaving;
+    }
+}
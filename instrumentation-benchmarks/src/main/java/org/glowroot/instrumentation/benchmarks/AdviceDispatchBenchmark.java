@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// measures the per-call overhead of woven advice on an otherwise trivial method, outside of any
+// transaction, which is the most common case for instrumented library code
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class AdviceDispatchBenchmark {
+
+    @Param({"none", "empty", "timer", "nestingGroup", "suppressionKey", "optionalContext",
+            "requiresTransaction"})
+    private String advice;
+
+    private BenchmarkApp app;
+
+    @Setup
+    public void setup() throws Exception {
+        app = BenchmarkAgent.newWovenApp(getAppClass(advice));
+        app.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        app.tearDown();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        app.execute();
+    }
+
+    private static Class<? extends BenchmarkApp> getAppClass(String advice) {
+        if (advice.equals("none")) {
+            return NoAdviceApp.class;
+        } else if (advice.equals("empty")) {
+            return EmptyAdviceApp.class;
+        } else if (advice.equals("timer")) {
+            return TimerAdviceApp.class;
+        } else if (advice.equals("nestingGroup")) {
+            return NestingGroupAdviceApp.class;
+        } else if (advice.equals("suppressionKey")) {
+            return SuppressionKeyAdviceApp.class;
+        } else if (advice.equals("optionalContext")) {
+            return OptionalContextAdviceApp.class;
+        } else if (advice.equals("requiresTransaction")) {
+            return RequiresTransactionAdviceApp.class;
+        } else {
+            throw new IllegalStateException("Unexpected advice: " + advice);
+        }
+    }
+
+    public abstract static class CountingApp implements BenchmarkApp {
+
+        private int count;
+
+        @Override
+        public void setUp() {}
+
+        @Override
+        public void execute() {
+            count++;
+        }
+
+        @Override
+        public void tearDown() {
+            if (count == 0) {
+                throw new IllegalStateException("Benchmark method was never executed");
+            }
+        }
+    }
+
+    // each subclass overrides execute() so that the pointcut matches a method declared directly on
+    // the target class (and so that the baseline has the same call depth)
+    public static class NoAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+
+    public static class EmptyAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+
+    public static class TimerAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+
+    public static class NestingGroupAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+
+    public static class SuppressionKeyAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+
+    public static class OptionalContextAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+
+    public static class RequiresTransactionAdviceApp extends CountingApp {
+        @Override
+        public void execute() {
+            super.execute();
+        }
+    }
+}
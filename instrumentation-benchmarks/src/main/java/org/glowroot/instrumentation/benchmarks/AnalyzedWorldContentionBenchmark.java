@@ -0,0 +1,127 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.instrumentation.engine.init.EngineModule;
+import org.glowroot.instrumentation.engine.weaving.WeavingClassFileTransformer;
+
+// measures WeavingClassFileTransformer.transform() with 32 threads each loading classes through
+// its own class loader, which is dominated by the per-class-loader lookups into AnalyzedWorld
+// (this simulates parallel class loading in OSGi containers and app servers with many webapps)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(32)
+public class AnalyzedWorldContentionBenchmark {
+
+    private static final int MAX_CLASSES = 500;
+
+    @State(Scope.Benchmark)
+    public static class SharedState {
+
+        private final List<String> classNames = new ArrayList<String>();
+        private final List<byte[]> classBytes = new ArrayList<byte[]>();
+
+        private URL corpusUrl;
+        private ProtectionDomain protectionDomain;
+        private WeavingClassFileTransformer transformer;
+
+        @Setup
+        public void setup() throws Exception {
+            // the jmh jar (or the shaded benchmarks jar) is used as the corpus
+            CodeSource codeSource = Benchmark.class.getProtectionDomain().getCodeSource();
+            corpusUrl = codeSource.getLocation();
+            readClasses(new File(corpusUrl.toURI()));
+            protectionDomain = new ProtectionDomain(
+                    new CodeSource(corpusUrl, (Certificate[]) null), null);
+            File tmpDir = Files.createTempDirectory("instrumentation-benchmarks").toFile();
+            EngineModule engineModule = EngineModule.createWithSomeDefaults(null, tmpDir,
+                    new ThreadContextThreadLocal(), new WeavingBenchmark.NopAgentSPI(), null);
+            transformer = new WeavingClassFileTransformer(engineModule.getWeaver(),
+                    WeavingBenchmark.newUnsupportedInstrumentation(),
+                    Collections.<String>emptyList());
+        }
+
+        private void readClasses(File jarFile) throws IOException {
+            JarFile jar = new JarFile(jarFile);
+            try {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements() && classNames.size() < MAX_CLASSES) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if (!name.startsWith("org/openjdk/jmh/") || !name.endsWith(".class")) {
+                        continue;
+                    }
+                    classNames.add(name.substring(0, name.length() - ".class".length()));
+                    classBytes.add(WeavingBenchmark.toByteArray(jar.getInputStream(entry)));
+                }
+            } finally {
+                jar.close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+
+        private ClassLoader loader;
+        private int next;
+
+        // a fresh class loader per thread and per iteration, so that the analyzed world keeps
+        // growing new class loader entries while the threads are looking up existing ones
+        @Setup(Level.Iteration)
+        public void setupIteration(SharedState sharedState) {
+            loader = new URLClassLoader(new URL[] {sharedState.corpusUrl}, null);
+        }
+    }
+
+    @Benchmark
+    public byte /*@Nullable*/ [] transform(SharedState sharedState, ThreadState threadState) {
+        int i = threadState.next++;
+        if (threadState.next == sharedState.classNames.size()) {
+            threadState.next = 0;
+        }
+        return sharedState.transformer.transform(threadState.loader,
+                sharedState.classNames.get(i), null, sharedState.protectionDomain,
+                sharedState.classBytes.get(i));
+    }
+}
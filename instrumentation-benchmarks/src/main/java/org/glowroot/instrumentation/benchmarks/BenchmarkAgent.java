@@ -0,0 +1,62 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+
+import org.glowroot.instrumentation.engine.weaving.IsolatedWeavingClassLoader;
+import org.glowroot.instrumentation.test.harness.agent.MainEntryPoint;
+
+// starts the engine (with the test harness agent) in the same way as the test harness
+// LocalContainer, so that end-to-end benchmarks run through real weaving and real instrumentation
+public class BenchmarkAgent {
+
+    private static @MonotonicNonNull IsolatedWeavingClassLoader isolatedWeavingClassLoader;
+
+    private BenchmarkAgent() {}
+
+    public static BenchmarkApp newWovenApp(Class<? extends BenchmarkApp> appClass)
+            throws Exception {
+        return getIsolatedWeavingClassLoader().newInstance(appClass, BenchmarkApp.class);
+    }
+
+    private static synchronized IsolatedWeavingClassLoader getIsolatedWeavingClassLoader()
+            throws Exception {
+        if (isolatedWeavingClassLoader == null) {
+            isolatedWeavingClassLoader = start();
+        }
+        return isolatedWeavingClassLoader;
+    }
+
+    private static IsolatedWeavingClassLoader start() throws Exception {
+        DiscardingTraceCollector traceCollector = new DiscardingTraceCollector();
+        traceCollector.start();
+        File tmpDir = Files.createTempDirectory("instrumentation-benchmarks").toFile();
+        IsolatedWeavingClassLoader loader = new IsolatedWeavingClassLoader(BenchmarkApp.class);
+        ClassLoader previousContextClassLoader = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(loader);
+        try {
+            MainEntryPoint.start(null, tmpDir, traceCollector.getPort());
+        } finally {
+            Thread.currentThread().setContextClassLoader(previousContextClassLoader);
+        }
+        MainEntryPoint.resetInstrumentationProperties();
+        return loader;
+    }
+}
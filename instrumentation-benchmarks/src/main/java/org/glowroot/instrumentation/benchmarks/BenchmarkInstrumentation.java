@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import org.glowroot.instrumentation.api.Agent;
+import org.glowroot.instrumentation.api.MessageSupplier;
+import org.glowroot.instrumentation.api.OptionalThreadContext;
+import org.glowroot.instrumentation.api.Span;
+import org.glowroot.instrumentation.api.ThreadContext;
+import org.glowroot.instrumentation.api.Timer;
+import org.glowroot.instrumentation.api.TimerName;
+import org.glowroot.instrumentation.api.weaving.Advice;
+import org.glowroot.instrumentation.api.weaving.Bind;
+
+// advice bodies are intentionally minimal so that the benchmarks measure the cost of the woven
+// dispatch (and of the engine checks that surround it) rather than the cost of the advice itself
+public class BenchmarkInstrumentation {
+
+    private static final TimerName TIMER_NAME = Agent.getTimerName("benchmark");
+
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.benchmarks.AdviceDispatchBenchmark$EmptyAdviceApp",
+                     methodName = "execute",
+                     methodParameterTypes = {})
+    public static class EmptyAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+            return true;
+        }
+
+        @Advice.OnMethodBefore
+        public static void onBefore() {}
+
+        @Advice.OnMethodReturn
+        public static void onReturn() {}
+    }
+
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.benchmarks.AdviceDispatchBenchmark$TimerAdviceApp",
+                     methodName = "execute",
+                     methodParameterTypes = {})
+    public static class TimerAdvice {
+
+        @Advice.OnMethodBefore
+        public static Timer onBefore(ThreadContext context) {
+            return context.startTimer(TIMER_NAME);
+        }
+
+        @Advice.OnMethodAfter
+        public static void onAfter(@Bind.Enter Timer timer) {
+            timer.stop();
+        }
+    }
+
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.benchmarks.AdviceDispatchBenchmark$NestingGroupAdviceApp",
+                     methodName = "execute",
+                     methodParameterTypes = {},
+                     nestingGroup = "benchmark")
+    public static class NestingGroupAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore() {}
+
+        @Advice.OnMethodReturn
+        public static void onReturn() {}
+    }
+
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.benchmarks.AdviceDispatchBenchmark$SuppressionKeyAdviceApp",
+                     methodName = "execute",
+                     methodParameterTypes = {},
+                     suppressionKey = "benchmark")
+    public static class SuppressionKeyAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore() {}
+
+        @Advice.OnMethodReturn
+        public static void onReturn() {}
+    }
+
+    // builds a message supplier and starts a (no-op) span even though there is no transaction
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.benchmarks.AdviceDispatchBenchmark$OptionalContextAdviceApp",
+                     methodName = "execute",
+                     methodParameterTypes = {})
+    public static class OptionalContextAdvice {
+
+        @Advice.OnMethodBefore
+        public static Span onBefore(OptionalThreadContext context, @Bind.This Object app) {
+            return context.startLocalSpan(MessageSupplier.create("benchmark: {}", app.toString()),
+                    TIMER_NAME);
+        }
+
+        @Advice.OnMethodAfter
+        public static void onAfter(@Bind.Enter Span span) {
+            span.end();
+        }
+    }
+
+    // same as OptionalContextAdvice, but skipped inline when there is no transaction
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.benchmarks.AdviceDispatchBenchmark$RequiresTransactionAdviceApp",
+                     methodName = "execute",
+                     methodParameterTypes = {},
+                     requiresTransaction = true)
+    public static class RequiresTransactionAdvice {
+
+        @Advice.OnMethodBefore
+        public static Span onBefore(OptionalThreadContext context, @Bind.This Object app) {
+            return context.startLocalSpan(MessageSupplier.create("benchmark: {}", app.toString()),
+                    TIMER_NAME);
+        }
+
+        @Advice.OnMethodAfter
+        public static void onAfter(@Bind.Enter Span span) {
+            span.end();
+        }
+    }
+}
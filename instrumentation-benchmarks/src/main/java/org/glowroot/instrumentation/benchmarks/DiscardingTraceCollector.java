@@ -0,0 +1,85 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.glowroot.instrumentation.test.harness.agent.TraceWireFormat;
+
+// same wire protocol as the test harness TraceCollector, but discards everything it receives so
+// that long benchmark runs do not accumulate traces in memory
+class DiscardingTraceCollector {
+
+    private final ServerSocket serverSocket;
+
+    DiscardingTraceCollector() throws IOException {
+        serverSocket = new ServerSocket(0);
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    void start() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Socket socket = serverSocket.accept();
+                    DataInputStream in =
+                            new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    while (true) {
+                        int length = in.readInt();
+                        if (length == TraceWireFormat.FLUSH_MARKER) {
+                            out.writeInt(in.readInt());
+                            out.flush();
+                        } else {
+                            // skip the encoded trace without decoding it
+                            skipFully(in, length);
+                        }
+                    }
+                } catch (Exception e) {
+                    // benchmark JVM is exiting
+                }
+            }
+        });
+        thread.setName("Benchmark-Trace-Collector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // DataInputStream.skipBytes() can skip fewer bytes than requested (e.g. when only part of the
+    // encoded trace has been buffered so far), which would leave the stream out of sync
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int skipped = in.skipBytes(remaining);
+            if (skipped == 0) {
+                // skipBytes() does not distinguish end of stream from no progress, so read a byte
+                // which blocks until progress can be made and throws EOFException at end of stream
+                in.readByte();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
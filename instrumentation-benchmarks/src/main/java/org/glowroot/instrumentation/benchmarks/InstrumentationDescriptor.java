@@ -0,0 +1,11 @@
+package org.glowroot.instrumentation.benchmarks;
+
+import org.glowroot.instrumentation.api.Descriptor;
+
+@Descriptor(
+            id = "benchmark",
+            name = "Benchmark",
+            classes = {
+                    BenchmarkInstrumentation.class
+            })
+public class InstrumentationDescriptor {}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.instrumentation.engine.weaving.GenericMessageSupplier;
+import org.glowroot.instrumentation.engine.weaving.MessageTemplateImpl;
+import org.glowroot.instrumentation.engine.weaving.MethodInfoImpl;
+
+// measures message template path evaluation (as done on every span creation for config-based
+// instrumentation), comparing the reflective accessors with the generated accessors
+//
+// the reflective accessors are used when the instrumented method's class loader is null, since the
+// generated accessors are not defined in the bootstrap class loader
+//
+// the create benchmark measures only the work done on the instrumented thread for spans whose
+// message is never rendered (e.g. spans below the trace threshold), comparing lazy rendering of
+// immutable path values with eager rendering of all path values (run with -prof gc to compare
+// allocation rates)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MessageTemplateBenchmark {
+
+    @Param({"reflective", "generated"})
+    private String accessors;
+
+    @Param({"lazy", "eager"})
+    private String snapshot;
+
+    private MessageTemplateImpl template;
+
+    private Receiver receiver;
+    private Order order;
+
+    @Setup
+    public void setup() throws Exception {
+        ClassLoader loader;
+        if (accessors.equals("reflective")) {
+            loader = null;
+        } else if (accessors.equals("generated")) {
+            loader = MessageTemplateBenchmark.class.getClassLoader();
+        } else {
+            throw new IllegalStateException("Unexpected accessors: " + accessors);
+        }
+        boolean snapshotEagerly;
+        if (snapshot.equals("lazy")) {
+            snapshotEagerly = false;
+        } else if (snapshot.equals("eager")) {
+            snapshotEagerly = true;
+        } else {
+            throw new IllegalStateException("Unexpected snapshot: " + snapshot);
+        }
+        template = MessageTemplateImpl.create(
+                "order {{0.id}} for {{0.customer.name}} ({{0.customer.address.city}})",
+                new MethodInfoImpl("execute", void.class,
+                        Collections.<Class<?>>singletonList(Order.class),
+                        Receiver.class.getName(), loader),
+                snapshotEagerly);
+        receiver = new Receiver();
+        order = new Order();
+    }
+
+    @Benchmark
+    public GenericMessageSupplier create() {
+        return GenericMessageSupplier.create(template, receiver, "execute", order);
+    }
+
+    @Benchmark
+    public String evaluate() {
+        return GenericMessageSupplier.create(template, receiver, "execute", order)
+                .getMessageText();
+    }
+
+    public static class Receiver {
+
+        public void execute(Order order) {}
+    }
+
+    public static class Order {
+
+        private final Customer customer = new Customer();
+
+        public long getId() {
+            return 12345;
+        }
+
+        public Customer getCustomer() {
+            return customer;
+        }
+    }
+
+    public static class Customer {
+
+        private final Address address = new Address();
+
+        public String getName() {
+            return "Jane Doe";
+        }
+
+        public Address getAddress() {
+            return address;
+        }
+    }
+
+    public static class Address {
+
+        public String getCity() {
+            return "Springfield";
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.instrumentation.engine.weaving.PreloadSomeSuperTypesCache;
+
+// measures the startup cost of PreloadSomeSuperTypesCache, comparing the previous text format
+// (which is parsed up front, and is still read when migrating) with the memory-mapped binary format
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class PreloadSomeSuperTypesCacheBenchmark {
+
+    private static final int MAX_SIZE = 50000;
+
+    @Param({"text", "binary"})
+    public String format;
+
+    @Param({"50000"})
+    public int entries;
+
+    private File file;
+    private File legacyTextFile;
+
+    @Setup
+    public void setup() throws IOException {
+        File tmpDir = Files.createTempDirectory("instrumentation-benchmarks").toFile();
+        file = new File(tmpDir, "preload-some-super-types-cache.bin");
+        legacyTextFile = new File(tmpDir, "preload-some-super-types-cache");
+        BufferedWriter out =
+                Files.newBufferedWriter(legacyTextFile.toPath(), StandardCharsets.UTF_8);
+        try {
+            for (int i = 0; i < entries; i++) {
+                out.write("com.example.app.module" + (i % 100) + ".SomeType" + i
+                        + ",com.example.framework.SomeSuperType" + (i % 500)
+                        + ",com.example.framework.SomeInterface" + (i % 50) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+        if (format.equals("binary")) {
+            // migrates the text file to the binary file (and deletes the text file)
+            new PreloadSomeSuperTypesCache(file, legacyTextFile, MAX_SIZE).writeToFile();
+        }
+    }
+
+    @Benchmark
+    public PreloadSomeSuperTypesCache startup() {
+        return new PreloadSomeSuperTypesCache(file, legacyTextFile, MAX_SIZE);
+    }
+}
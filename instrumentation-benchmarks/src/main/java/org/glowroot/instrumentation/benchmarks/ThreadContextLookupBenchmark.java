@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal.Holder;
+
+// cost of the thread context lookup that woven code performs on entry to instrumented methods, for
+// each thread context storage, both on a long-lived thread and on a new thread per operation (which
+// is the common case for virtual threads, and requires Java 21+ when thread=virtual)
+//
+// run with -prof gc to see the allocation per lookup (gc.alloc.rate.norm), which is zero for both
+// storages, including THREAD_KEYED_MAP lookups from a thread that does not have a registered
+// holder (e.g. lookup, which runs outside of a transaction)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ThreadContextLookupBenchmark {
+
+    private static final int LOOKUPS_PER_THREAD = 10;
+
+    @Benchmark
+    public @Nullable Object lookup(StorageState storageState) {
+        return storageState.threadContextThreadLocal.getHolder().get();
+    }
+
+    @Benchmark
+    public @Nullable Object lookupInTransaction(StorageState storageState,
+            InTransactionState inTransactionState) {
+        return storageState.threadContextThreadLocal.getHolder().get();
+    }
+
+    @Benchmark
+    public int lookupOnNewThread(StorageState storageState, NewThreadState newThreadState)
+            throws InterruptedException {
+        LookupTask task = new LookupTask(storageState.threadContextThreadLocal,
+                newThreadState.withContext ? storageState.threadContext : null);
+        Thread thread = newThreadState.threadFactory.newThread(task);
+        thread.start();
+        thread.join();
+        return task.found;
+    }
+
+    @State(Scope.Benchmark)
+    public static class StorageState {
+
+        @Param({"THREAD_LOCAL", "THREAD_KEYED_MAP"})
+        private String storage;
+
+        private ThreadContextThreadLocal threadContextThreadLocal;
+        private ThreadContextPlus threadContext;
+
+        @Setup
+        public void setup() {
+            threadContextThreadLocal =
+                    new ThreadContextThreadLocal(ThreadContextThreadLocal.Storage.valueOf(storage));
+            threadContext = (ThreadContextPlus) Proxy.newProxyInstance(
+                    ThreadContextPlus.class.getClassLoader(),
+                    new Class<?>[] {ThreadContextPlus.class}, new InvocationHandler() {
+                        @Override
+                        public @Nullable Object invoke(Object proxy, Method method,
+                                Object[] args) {
+                            return null;
+                        }
+                    });
+        }
+    }
+
+    // registers a holder for the benchmark thread for the duration of the trial
+    @State(Scope.Thread)
+    public static class InTransactionState {
+
+        private ThreadContextThreadLocal threadContextThreadLocal;
+
+        @Setup
+        public void setup(StorageState storageState) {
+            threadContextThreadLocal = storageState.threadContextThreadLocal;
+            threadContextThreadLocal.set(storageState.threadContext);
+        }
+
+        @TearDown
+        public void tearDown() {
+            threadContextThreadLocal.set(null);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class NewThreadState {
+
+        @Param({"platform", "virtual"})
+        private String thread;
+
+        // whether the new thread sets (and then clears) a thread context, e.g. when it runs a task
+        // that was submitted under a transaction
+        @Param({"false", "true"})
+        private boolean withContext;
+
+        private ThreadFactory threadFactory;
+
+        @Setup
+        public void setup() throws Exception {
+            if (thread.equals("platform")) {
+                threadFactory = Executors.defaultThreadFactory();
+            } else if (thread.equals("virtual")) {
+                // Thread.ofVirtual().factory(), via reflection since this is compiled for Java 8
+                Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                Method factoryMethod =
+                        Class.forName("java.lang.Thread$Builder").getMethod("factory");
+                threadFactory = (ThreadFactory) factoryMethod.invoke(builder);
+            } else {
+                throw new IllegalStateException("Unexpected thread: " + thread);
+            }
+        }
+    }
+
+    private static class LookupTask implements Runnable {
+
+        private final ThreadContextThreadLocal threadContextThreadLocal;
+        private final @Nullable ThreadContextPlus threadContext;
+
+        private int found;
+
+        private LookupTask(ThreadContextThreadLocal threadContextThreadLocal,
+                @Nullable ThreadContextPlus threadContext) {
+            this.threadContextThreadLocal = threadContextThreadLocal;
+            this.threadContext = threadContext;
+        }
+
+        @Override
+        public void run() {
+            Holder outerHolder = threadContextThreadLocal.getHolder();
+            if (threadContext != null) {
+                outerHolder.set(threadContext);
+            }
+            for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                if (threadContextThreadLocal.getHolder().get() != null) {
+                    found++;
+                }
+            }
+            if (threadContext != null) {
+                outerHolder.set(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.api.MessageSupplier;
+import org.glowroot.instrumentation.api.Span;
+import org.glowroot.instrumentation.api.TimerName;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.instrumentation.engine.init.EngineModule;
+import org.glowroot.instrumentation.engine.spi.AgentSPI;
+import org.glowroot.instrumentation.engine.weaving.WeavingClassFileTransformer;
+
+// measures WeavingClassFileTransformer.transform() over a corpus of real class files, which covers
+// the thin class visitor, class analysis (including super type analysis) and the weaving itself
+//
+// the corpus defaults to the jars on the class path, and can be overridden with
+// -Dglowroot.benchmark.corpus=<jar>[:<jar>...]
+//
+// the fastReject parameter compares with and without the fast-reject prefilter (see
+// FastRejectFilter), which is read once when EngineModule is initialized, so this relies on JMH
+// running each parameter value in its own fork
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class WeavingBenchmark {
+
+    @Param({"true", "false"})
+    public boolean fastReject;
+
+    private final List<String> classNames = new ArrayList<String>();
+    private final List<byte[]> classBytes = new ArrayList<byte[]>();
+
+    private URL[] corpusUrls;
+    private WeavingClassFileTransformer transformer;
+    private ClassLoader corpusLoader;
+    private ProtectionDomain protectionDomain;
+
+    private int next;
+
+    @Setup
+    public void setup() throws Exception {
+        System.setProperty("glowroot.weaving.fastRejectDisabled", Boolean.toString(!fastReject));
+        List<File> jarFiles = getCorpusJarFiles();
+        List<URL> urls = new ArrayList<URL>();
+        for (File jarFile : jarFiles) {
+            urls.add(jarFile.toURI().toURL());
+            readClasses(jarFile);
+        }
+        if (classNames.isEmpty()) {
+            throw new IllegalStateException("No classes found in corpus: " + jarFiles);
+        }
+        corpusUrls = urls.toArray(new URL[urls.size()]);
+        protectionDomain = new ProtectionDomain(
+                new CodeSource(urls.get(0), (Certificate[]) null), null);
+        File tmpDir = Files.createTempDirectory("instrumentation-benchmarks").toFile();
+        EngineModule engineModule = EngineModule.createWithSomeDefaults(null, tmpDir,
+                new ThreadContextThreadLocal(), new NopAgentSPI(), null);
+        transformer = new WeavingClassFileTransformer(engineModule.getWeaver(),
+                newUnsupportedInstrumentation(), Collections.<String>emptyList());
+    }
+
+    // start over with a fresh class loader each iteration so that the cost of super type analysis
+    // is included (otherwise after the first pass everything is served from AnalyzedWorld)
+    @Setup(Level.Iteration)
+    public void setupIteration() throws Exception {
+        corpusLoader = new URLClassLoader(corpusUrls, null);
+    }
+
+    @Benchmark
+    public byte /*@Nullable*/ [] transform() {
+        int i = next++;
+        if (next == classNames.size()) {
+            next = 0;
+        }
+        return transformer.transform(corpusLoader, classNames.get(i), null, protectionDomain,
+                classBytes.get(i));
+    }
+
+    private void readClasses(File jarFile) throws IOException {
+        JarFile jar = new JarFile(jarFile);
+        try {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.endsWith("module-info.class")
+                        || name.startsWith("META-INF/")) {
+                    continue;
+                }
+                classNames.add(name.substring(0, name.length() - ".class".length()));
+                classBytes.add(toByteArray(jar.getInputStream(entry)));
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
+    private static List<File> getCorpusJarFiles() {
+        String corpus = System.getProperty("glowroot.benchmark.corpus");
+        if (corpus == null) {
+            corpus = System.getProperty("java.class.path");
+        }
+        List<File> jarFiles = new ArrayList<File>();
+        for (String path : corpus.split(File.pathSeparator)) {
+            if (path.endsWith(".jar")) {
+                jarFiles.add(new File(path));
+            }
+        }
+        return jarFiles;
+    }
+
+    static byte[] toByteArray(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // the Instrumentation instance is only used by the transformer for granting module access
+    // under Java 9+, which does not apply when calling transform() directly
+    static Instrumentation newUnsupportedInstrumentation() {
+        return (Instrumentation) Proxy.newProxyInstance(Instrumentation.class.getClassLoader(),
+                new Class<?>[] {Instrumentation.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        throw new UnsupportedOperationException();
+                    }
+                });
+    }
+
+    static class NopAgentSPI implements AgentSPI {
+
+        @Override
+        public <C> @Nullable Span startIncomingSpan(String transactionType,
+                String transactionName, Getter<C> getter, C carrier,
+                MessageSupplier messageSupplier, TimerName timerName,
+                ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
+                int rootSuppressionKeyId) {
+            return null;
+        }
+
+        @Override
+        public void captureLoggerSpan(MessageSupplier messageSupplier,
+                @Nullable Throwable throwable) {}
+
+        @Override
+        public boolean isCapturingLoggerSpans() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks.executor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.instrumentation.benchmarks.BenchmarkAgent;
+import org.glowroot.instrumentation.benchmarks.BenchmarkApp;
+import org.glowroot.instrumentation.test.harness.TransactionMarker;
+
+// task submission throughput through the executor instrumentation, for both tasks that pick up the
+// RunnableEtcMixin (anonymous classes) and tasks that need to be wrapped (lambdas)
+//
+// the executor runs each task inline so that only the submission side is measured (starting the
+// auxiliary thread context on the submitting thread short circuits since it has the same parent
+// span), and tasks are submitted in batches so that in "transaction" mode the cost of starting the
+// transaction is amortized
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class ExecutorSubmitBenchmark {
+
+    private static final int TASKS_PER_INVOCATION = 100;
+
+    @Param({"uninstrumented", "noTransaction", "transaction"})
+    private String mode;
+
+    @Param({"anonymous", "lambda"})
+    private String task;
+
+    private BenchmarkApp app;
+
+    @Setup
+    public void setup() throws Exception {
+        Class<? extends BenchmarkApp> appClass;
+        if (task.equals("anonymous")) {
+            appClass = mode.equals("transaction") ? SubmitAnonymousInTransactionApp.class
+                    : SubmitAnonymousApp.class;
+        } else if (task.equals("lambda")) {
+            appClass = mode.equals("transaction") ? SubmitLambdaInTransactionApp.class
+                    : SubmitLambdaApp.class;
+        } else {
+            throw new IllegalStateException("Unexpected task: " + task);
+        }
+        if (mode.equals("uninstrumented")) {
+            app = appClass.newInstance();
+        } else if (mode.equals("noTransaction") || mode.equals("transaction")) {
+            app = BenchmarkAgent.newWovenApp(appClass);
+        } else {
+            throw new IllegalStateException("Unexpected mode: " + mode);
+        }
+        app.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        app.tearDown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TASKS_PER_INVOCATION)
+    public void submit() throws Exception {
+        app.execute();
+    }
+
+    public static class InlineExecutor implements Executor {
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+    public static class SubmitAnonymousApp implements BenchmarkApp {
+
+        private final Executor executor = new InlineExecutor();
+
+        private int count;
+
+        @Override
+        public void setUp() {}
+
+        @Override
+        public void execute() throws Exception {
+            for (int i = 0; i < TASKS_PER_INVOCATION; i++) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        count++;
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void tearDown() {}
+    }
+
+    public static class SubmitAnonymousInTransactionApp extends SubmitAnonymousApp
+            implements TransactionMarker {
+
+        @Override
+        public void execute() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            super.execute();
+        }
+    }
+
+    public static class SubmitLambdaApp implements BenchmarkApp {
+
+        private final Executor executor = new InlineExecutor();
+
+        private int count;
+
+        @Override
+        public void setUp() {}
+
+        @Override
+        public void execute() throws Exception {
+            for (int i = 0; i < TASKS_PER_INVOCATION; i++) {
+                executor.execute(() -> count++);
+            }
+        }
+
+        @Override
+        public void tearDown() {}
+    }
+
+    public static class SubmitLambdaInTransactionApp extends SubmitLambdaApp
+            implements TransactionMarker {
+
+        @Override
+        public void execute() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            super.execute();
+        }
+    }
+}
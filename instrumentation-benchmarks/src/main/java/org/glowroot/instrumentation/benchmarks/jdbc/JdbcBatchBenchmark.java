@@ -0,0 +1,128 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.instrumentation.benchmarks.BenchmarkAgent;
+import org.glowroot.instrumentation.benchmarks.BenchmarkApp;
+import org.glowroot.instrumentation.test.harness.TransactionMarker;
+
+// overhead of the jdbc instrumentation on a PreparedStatement batch insert of primitive bind
+// parameters, run with -prof gc to see the allocation per executeBatch (gc.alloc.rate.norm)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class JdbcBatchBenchmark {
+
+    private static final int ROWS = 1000;
+
+    @Param({"uninstrumented", "noTransaction", "transaction"})
+    private String mode;
+
+    private BenchmarkApp app;
+
+    @Setup
+    public void setup() throws Exception {
+        if (mode.equals("uninstrumented")) {
+            app = new PreparedStatementBatchApp();
+        } else if (mode.equals("noTransaction")) {
+            app = BenchmarkAgent.newWovenApp(PreparedStatementBatchApp.class);
+        } else if (mode.equals("transaction")) {
+            app = BenchmarkAgent.newWovenApp(PreparedStatementBatchInTransactionApp.class);
+        } else {
+            throw new IllegalStateException("Unexpected mode: " + mode);
+        }
+        app.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        app.tearDown();
+    }
+
+    @Benchmark
+    public void executeBatch() throws Exception {
+        app.execute();
+    }
+
+    public static class PreparedStatementBatchApp implements BenchmarkApp {
+
+        private Connection connection;
+        private PreparedStatement preparedStatement;
+
+        @Override
+        public void setUp() throws Exception {
+            connection =
+                    new org.h2.Driver().connect("jdbc:h2:mem:batchbenchmark", new Properties());
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("create table measurement (id bigint primary key, sensor int,"
+                        + " value double)");
+            } finally {
+                statement.close();
+            }
+            // merge (instead of insert) keeps the table from growing across benchmark iterations
+            preparedStatement = connection.prepareStatement(
+                    "merge into measurement (id, sensor, value) key (id) values (?, ?, ?)");
+        }
+
+        @Override
+        public void execute() throws Exception {
+            for (int i = 0; i < ROWS; i++) {
+                preparedStatement.setLong(1, i);
+                preparedStatement.setInt(2, 1000 + i);
+                preparedStatement.setDouble(3, i * 1.5);
+                preparedStatement.addBatch();
+            }
+            preparedStatement.executeBatch();
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            preparedStatement.close();
+            connection.close();
+        }
+    }
+
+    public static class PreparedStatementBatchInTransactionApp extends PreparedStatementBatchApp
+            implements TransactionMarker {
+
+        @Override
+        public void execute() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            super.execute();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.instrumentation.benchmarks.BenchmarkAgent;
+import org.glowroot.instrumentation.benchmarks.BenchmarkApp;
+import org.glowroot.instrumentation.test.harness.TransactionMarker;
+import org.glowroot.instrumentation.test.harness.agent.MainEntryPoint;
+
+// overhead of the jdbc instrumentation on navigating a large result set, comparing timing every
+// ResultSet.next() ("perRow") against resultSetNavigateSampleInterval ("sampled")
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class JdbcResultSetBenchmark {
+
+    private static final int ROWS = 10000;
+
+    private static final String SAMPLE_INTERVAL = "100";
+
+    @Param({"uninstrumented", "perRow", "sampled"})
+    private String mode;
+
+    private BenchmarkApp app;
+
+    @Setup
+    public void setup() throws Exception {
+        if (mode.equals("uninstrumented")) {
+            app = new ResultSetNavigateApp();
+        } else if (mode.equals("perRow")) {
+            app = BenchmarkAgent.newWovenApp(ResultSetNavigateInTransactionApp.class);
+            MainEntryPoint.setInstrumentationProperty("jdbc", "resultSetNavigateSampleInterval",
+                    "1");
+        } else if (mode.equals("sampled")) {
+            app = BenchmarkAgent.newWovenApp(ResultSetNavigateInTransactionApp.class);
+            MainEntryPoint.setInstrumentationProperty("jdbc", "resultSetNavigateSampleInterval",
+                    SAMPLE_INTERVAL);
+        } else {
+            throw new IllegalStateException("Unexpected mode: " + mode);
+        }
+        app.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        app.tearDown();
+    }
+
+    @Benchmark
+    public void navigate() throws Exception {
+        app.execute();
+    }
+
+    public static class ResultSetNavigateApp implements BenchmarkApp {
+
+        private Connection connection;
+        private PreparedStatement preparedStatement;
+
+        @Override
+        public void setUp() throws Exception {
+            connection =
+                    new org.h2.Driver().connect("jdbc:h2:mem:resultsetbenchmark", new Properties());
+            Statement statement = connection.createStatement();
+            try {
+                statement.execute("create table item (id bigint primary key, name varchar(100))");
+            } finally {
+                statement.close();
+            }
+            PreparedStatement insert =
+                    connection.prepareStatement("insert into item (id, name) values (?, ?)");
+            try {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setLong(1, i);
+                    insert.setString(2, "item" + i);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            } finally {
+                insert.close();
+            }
+            preparedStatement = connection.prepareStatement("select id, name from item");
+        }
+
+        @Override
+        public void execute() throws Exception {
+            ResultSet rs = preparedStatement.executeQuery();
+            try {
+                while (rs.next()) {
+                    rs.getLong(1);
+                }
+            } finally {
+                rs.close();
+            }
+        }
+
+        @Override
+        public void tearDown() throws Exception {
+            preparedStatement.close();
+            connection.close();
+        }
+    }
+
+    public static class ResultSetNavigateInTransactionApp extends ResultSetNavigateApp
+            implements TransactionMarker {
+
+        @Override
+        public void execute() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            super.execute();
+        }
+    }
+}
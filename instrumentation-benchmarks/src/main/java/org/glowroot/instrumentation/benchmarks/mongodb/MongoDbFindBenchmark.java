@@ -0,0 +1,152 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks.mongodb;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.instrumentation.benchmarks.BenchmarkAgent;
+import org.glowroot.instrumentation.benchmarks.BenchmarkApp;
+import org.glowroot.instrumentation.test.harness.TransactionMarker;
+
+// find-heavy workload through the mongodb command listener, both inside and outside of a
+// transaction
+//
+// instead of a real server, the command listeners are picked up from MongoClientSettings (which is
+// where the instrumentation adds its listener) and are driven directly with the same started and
+// succeeded events that the driver would send, so that only the instrumentation overhead is
+// measured
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class MongoDbFindBenchmark {
+
+    private static final int FINDS_PER_INVOCATION = 100;
+
+    @Param({"uninstrumented", "noTransaction", "transaction"})
+    private String mode;
+
+    private BenchmarkApp app;
+
+    @Setup
+    public void setup() throws Exception {
+        Class<? extends BenchmarkApp> appClass =
+                mode.equals("transaction") ? FindInTransactionApp.class : FindApp.class;
+        if (mode.equals("uninstrumented")) {
+            app = appClass.newInstance();
+        } else if (mode.equals("noTransaction") || mode.equals("transaction")) {
+            app = BenchmarkAgent.newWovenApp(appClass);
+        } else {
+            throw new IllegalStateException("Unexpected mode: " + mode);
+        }
+        app.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        app.tearDown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FINDS_PER_INVOCATION)
+    public void find() throws Exception {
+        app.execute();
+    }
+
+    public static class FindApp implements BenchmarkApp {
+
+        private List<CommandListener> commandListeners;
+
+        private ConnectionDescription connectionDescription;
+
+        private BsonDocument response;
+
+        private int requestId;
+
+        @Override
+        public void setUp() {
+            commandListeners = MongoClientSettings.builder().build().getCommandListeners();
+            connectionDescription = new ConnectionDescription(
+                    new ServerId(new ClusterId(), new ServerAddress("localhost", 27017)));
+            response = new BsonDocument("ok", new BsonInt32(1));
+        }
+
+        @Override
+        public void execute() throws Exception {
+            for (int i = 0; i < FINDS_PER_INVOCATION; i++) {
+                // a new filter each time with the same shape but different values, the same as an
+                // application would typically send
+                BsonDocument filter = new BsonDocument("status", new BsonString("active"))
+                        .append("age", new BsonDocument("$gt", new BsonInt32(i)))
+                        .append("tags", new BsonDocument("$in", new BsonArray(Arrays.asList(
+                                new BsonString("a" + i), new BsonString("b")))));
+                BsonDocument command = new BsonDocument("find", new BsonString("test"))
+                        .append("filter", filter);
+                int id = requestId++;
+                CommandStartedEvent startedEvent = new CommandStartedEvent(id,
+                        connectionDescription, "testdb", "find", command);
+                for (CommandListener commandListener : commandListeners) {
+                    commandListener.commandStarted(startedEvent);
+                }
+                CommandSucceededEvent succeededEvent = new CommandSucceededEvent(id,
+                        connectionDescription, "find", response, 1000);
+                for (CommandListener commandListener : commandListeners) {
+                    commandListener.commandSucceeded(succeededEvent);
+                }
+            }
+        }
+
+        @Override
+        public void tearDown() {}
+    }
+
+    public static class FindInTransactionApp extends FindApp implements TransactionMarker {
+
+        @Override
+        public void execute() throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            super.execute();
+        }
+    }
+}
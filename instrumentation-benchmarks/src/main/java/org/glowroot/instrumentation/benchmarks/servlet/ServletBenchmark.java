@@ -0,0 +1,98 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.benchmarks.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import org.glowroot.instrumentation.benchmarks.BenchmarkAgent;
+import org.glowroot.instrumentation.benchmarks.BenchmarkApp;
+
+// end-to-end overhead of the servlet instrumentation, which starts (and reports) a transaction
+// for every request
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ServletBenchmark {
+
+    @Param({"uninstrumented", "instrumented"})
+    private String mode;
+
+    private BenchmarkApp app;
+
+    @Setup
+    public void setup() throws Exception {
+        if (mode.equals("uninstrumented")) {
+            app = new ServletServiceApp();
+        } else if (mode.equals("instrumented")) {
+            app = BenchmarkAgent.newWovenApp(ServletServiceApp.class);
+        } else {
+            throw new IllegalStateException("Unexpected mode: " + mode);
+        }
+        app.setUp();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        app.tearDown();
+    }
+
+    @Benchmark
+    public void execute() throws Exception {
+        app.execute();
+    }
+
+    @SuppressWarnings("serial")
+    public static class ServletServiceApp extends HttpServlet implements BenchmarkApp {
+
+        @Override
+        public void setUp() {}
+
+        @Override
+        public void execute() throws Exception {
+            MockHttpServletRequest request = new MockHttpServletRequest("GET", "/benchmark");
+            request.addHeader("User-Agent", "benchmark");
+            MockHttpServletResponse response = new MockHttpServletResponse();
+            service((HttpServletRequest) request, (HttpServletResponse) response);
+        }
+
+        @Override
+        public void tearDown() {}
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException {
+            response.setStatus(200);
+        }
+    }
+}
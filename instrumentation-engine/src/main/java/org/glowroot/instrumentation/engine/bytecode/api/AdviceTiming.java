@@ -0,0 +1,216 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.bytecode.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// sampled timing of advice method invocations
+//
+// when enabled, calls to start() and end() are woven around every advice method invocation (see
+// WeavingMethodVisitor), and every Nth invocation of each advice class (per thread) is timed using
+// System.nanoTime()
+public class AdviceTiming {
+
+    private static final Object lock = new Object();
+
+    private static final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>();
+
+    private static final AtomicInteger nextStripe = new AtomicInteger();
+
+    // guarded by lock
+    private static final Map<String, Integer> slotIndexes = new HashMap<String, Integer>();
+
+    private static volatile Slot[] slots = new Slot[0];
+
+    // zero means disabled
+    private static volatile int sampleInterval;
+
+    private AdviceTiming() {}
+
+    // this must be called prior to weaving any classes, since only classes woven afterwards will
+    // have the timing woven in
+    public static void setSampleInterval(int sampleInterval) {
+        AdviceTiming.sampleInterval = sampleInterval;
+    }
+
+    public static boolean isEnabled() {
+        return sampleInterval > 0;
+    }
+
+    // this is called during weaving, and the returned slot is then passed to start() and end() by
+    // the woven bytecode
+    public static int getSlot(@Nullable String instrumentationId, String adviceClassName) {
+        String key = instrumentationId + ":" + adviceClassName;
+        synchronized (lock) {
+            Integer slotIndex = slotIndexes.get(key);
+            if (slotIndex != null) {
+                return slotIndex;
+            }
+            int newSlotIndex = slots.length;
+            Slot[] newSlots = Arrays.copyOf(slots, newSlotIndex + 1);
+            newSlots[newSlotIndex] =
+                    new Slot(instrumentationId, adviceClassName, Math.max(sampleInterval, 1));
+            slots = newSlots;
+            slotIndexes.put(key, newSlotIndex);
+            return newSlotIndex;
+        }
+    }
+
+    public static List<Slot> getSlots() {
+        return new ArrayList<Slot>(Arrays.asList(slots));
+    }
+
+    // returns zero if this invocation is not sampled
+    public static long start(int slotIndex) {
+        Slot slot = slots[slotIndex];
+        ThreadState threadState = threadStates.get();
+        if (threadState == null) {
+            threadState = new ThreadState(nextStripe.getAndIncrement());
+            threadStates.set(threadState);
+        }
+        slot.invocationCount.increment(threadState.stripe);
+        // the sampling decision is made from a per-thread counter, so that it is exact (and does not
+        // need any synchronization) even when the same advice is invoked from many threads at once
+        long[] invocationCounts = threadState.invocationCounts;
+        if (slotIndex >= invocationCounts.length) {
+            invocationCounts = threadState.grow(slots.length);
+        }
+        if (++invocationCounts[slotIndex] % slot.sampleInterval != 0) {
+            return 0;
+        }
+        return System.nanoTime();
+    }
+
+    public static void end(int slotIndex, long startTick) {
+        if (startTick == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - startTick;
+        Slot slot = slots[slotIndex];
+        slot.sampledCount.incrementAndGet();
+        slot.sampledNanos.addAndGet(nanos);
+    }
+
+    public static class Slot {
+
+        private final @Nullable String instrumentationId;
+        private final String adviceClassName;
+        private final int sampleInterval;
+
+        // striped in order to avoid adding a contended atomic operation to every advice invocation
+        private final StripedCounter invocationCount = new StripedCounter();
+
+        private final AtomicLong sampledCount = new AtomicLong();
+        private final AtomicLong sampledNanos = new AtomicLong();
+
+        private Slot(@Nullable String instrumentationId, String adviceClassName,
+                int sampleInterval) {
+            this.instrumentationId = instrumentationId;
+            this.adviceClassName = adviceClassName;
+            this.sampleInterval = sampleInterval;
+        }
+
+        public @Nullable String getInstrumentationId() {
+            return instrumentationId;
+        }
+
+        public String getAdviceClassName() {
+            return adviceClassName;
+        }
+
+        public long getInvocationCount() {
+            return invocationCount.sum();
+        }
+
+        public long getSampledCount() {
+            return sampledCount.get();
+        }
+
+        public long getSampledNanos() {
+            return sampledNanos.get();
+        }
+
+        // extrapolated from the sampled invocations
+        public long getEstimatedNanos() {
+            long sampledCount = this.sampledCount.get();
+            if (sampledCount == 0) {
+                return 0;
+            }
+            return (long) (sampledNanos.get() / (double) sampledCount * invocationCount.sum());
+        }
+    }
+
+    private static class ThreadState {
+
+        private final int stripe;
+
+        // indexed by slot index, only accessed by the owning thread
+        private long[] invocationCounts = new long[0];
+
+        private ThreadState(int stripe) {
+            this.stripe = stripe;
+        }
+
+        private long[] grow(int length) {
+            invocationCounts = Arrays.copyOf(invocationCounts, length);
+            return invocationCounts;
+        }
+    }
+
+    // similar to java.util.concurrent.atomic.LongAdder (which is not available in Java 6), with a
+    // fixed number of cells, each thread is assigned to a cell (see ThreadState.stripe) so that
+    // threads on different cores rarely contend on the same cell
+    private static class StripedCounter {
+
+        private static final int STRIPE_COUNT;
+
+        // each cell is padded out to its own cache line (assuming 64 byte cache lines) to avoid
+        // false sharing between neighboring cells
+        private static final int PADDING = 8;
+
+        static {
+            int stripeCount = 1;
+            int limit = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+            while (stripeCount < limit) {
+                stripeCount <<= 1;
+            }
+            STRIPE_COUNT = stripeCount;
+        }
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPE_COUNT * PADDING);
+
+        private void increment(int stripe) {
+            cells.incrementAndGet((stripe & (STRIPE_COUNT - 1)) * PADDING);
+        }
+
+        private long sum() {
+            long sum = 0;
+            for (int i = 0; i < STRIPE_COUNT; i++) {
+                sum += cells.get(i * PADDING);
+            }
+            return sum;
+        }
+    }
+}
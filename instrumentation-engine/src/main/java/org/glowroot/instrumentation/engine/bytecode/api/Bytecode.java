@@ -59,6 +59,10 @@ public class Bytecode {
                 currentSuppressionKeyId);
     }
 
+    public static void exitingAdviceFrame(@Nullable ThreadContextPlus threadContext) {
+        service.exitingAdviceFrame(threadContext);
+    }
+
     public static Object getClassMeta(int index) throws Exception {
         return service.getClassMeta(index);
     }
@@ -71,6 +75,11 @@ public class Bytecode {
         return service.createMessageTemplate(template, methodInfo);
     }
 
+    public static MessageTemplate createMessageTemplate(String template, MethodInfo methodInfo,
+            boolean snapshotEagerly) {
+        return service.createMessageTemplate(template, methodInfo, snapshotEagerly);
+    }
+
     public static MessageSupplier createMessageSupplier(MessageTemplate template,
             Object receiver, String methodName, @Nullable Object... args) {
         return service.createMessageSupplier(template, receiver, methodName, args);
@@ -41,12 +41,17 @@ public interface BytecodeService {
             ThreadContextThreadLocal.Holder threadContextHolder, int currentNestingGroupId,
             int currentSuppressionKeyId);
 
+    void exitingAdviceFrame(@Nullable ThreadContextPlus threadContext);
+
     Object getClassMeta(int index) throws Exception;
 
     Object getMethodMeta(int index) throws Exception;
 
     MessageTemplate createMessageTemplate(String template, MethodInfo methodInfo);
 
+    MessageTemplate createMessageTemplate(String template, MethodInfo methodInfo,
+            boolean snapshotEagerly);
+
     MessageSupplier createMessageSupplier(MessageTemplate template, Object receiver,
             String methodName, @Nullable Object... args);
 
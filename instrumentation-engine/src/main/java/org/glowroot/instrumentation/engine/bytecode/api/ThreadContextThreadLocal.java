@@ -15,6 +15,10 @@
  */
 package org.glowroot.instrumentation.engine.bytecode.api;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
@@ -26,36 +30,102 @@ import org.checkerframework.checker.nullness.qual.Nullable;
  * slot and avoid the slow path ThreadLocalMap.getEntryAfterMiss().
  * 
  * Important: this thread local will live in ThreadLocalMap forever, so use with care.
+ * 
+ * Alternatively, holders can be stored in a map keyed by thread (see {@link Storage}), which is
+ * better suited to large numbers of short-lived threads (e.g. virtual threads), since a holder is
+ * only registered while it has a value (or is marked unsampled), a thread that never has a value
+ * never allocates a ThreadLocalMap or a holder, and the map only holds threads weakly.
  */
 // NOTE this is same as org.glowroot.instrumentation.api.util.FastThreadLocal, but not
 // genericized
 // in order to help with stack frame maps
 public class ThreadContextThreadLocal {
 
+    private final @Nullable ThreadLocal<Holder> threadLocal;
+
+    private final @Nullable ThreadKeyedHolderMap threadKeyedHolders;
+
+    // returned by getHolder() to threads that do not have a registered holder
+    private final @Nullable Holder unregisteredHolder;
+
+    public ThreadContextThreadLocal() {
+        this(Storage.THREAD_LOCAL);
+    }
+
     @SuppressWarnings("nullness:type.argument.type.incompatible")
-    private final ThreadLocal<Holder> threadLocal = new ThreadLocal<Holder>() {
-        @Override
-        protected Holder initialValue() {
-            return new Holder();
+    public ThreadContextThreadLocal(Storage storage) {
+        if (storage == Storage.THREAD_KEYED_MAP) {
+            threadLocal = null;
+            threadKeyedHolders = new ThreadKeyedHolderMap();
+            unregisteredHolder = new UnregisteredHolder(threadKeyedHolders);
+        } else {
+            threadLocal = new ThreadLocal<Holder>() {
+                @Override
+                protected Holder initialValue() {
+                    return new Holder();
+                }
+            };
+            threadKeyedHolders = null;
+            unregisteredHolder = null;
         }
-    };
+    }
 
     public @Nullable ThreadContextPlus get() {
-        return threadLocal.get().value;
+        ThreadLocal<Holder> threadLocal = this.threadLocal;
+        if (threadLocal != null) {
+            return threadLocal.get().value;
+        }
+        Holder holder = getThreadKeyedHolders().get(Thread.currentThread());
+        return holder == null ? null : holder.value;
     }
 
     public void set(@Nullable ThreadContextPlus value) {
-        threadLocal.get().value = value;
+        getHolder().set(value);
     }
 
     public Holder getHolder() {
-        return threadLocal.get();
+        ThreadLocal<Holder> threadLocal = this.threadLocal;
+        if (threadLocal != null) {
+            return threadLocal.get();
+        }
+        Holder holder = getThreadKeyedHolders().get(Thread.currentThread());
+        if (holder == null) {
+            // not registered until it is given a value
+            return getUnregisteredHolder();
+        }
+        return holder;
+    }
+
+    @SuppressWarnings("nullness:return.type.incompatible")
+    private ThreadKeyedHolderMap getThreadKeyedHolders() {
+        // non-null whenever threadLocal is null
+        return threadKeyedHolders;
+    }
+
+    @SuppressWarnings("nullness:return.type.incompatible")
+    private Holder getUnregisteredHolder() {
+        // non-null whenever threadLocal is null
+        return unregisteredHolder;
+    }
+
+    public enum Storage {
+        // holder per thread that lives in the thread's ThreadLocalMap forever, fastest lookup for
+        // long-lived (e.g. pooled platform) threads
+        THREAD_LOCAL,
+        // holder registered in a map weakly keyed by thread only while it has a value, which avoids
+        // per thread allocations, for large numbers of short-lived (e.g. virtual) threads
+        THREAD_KEYED_MAP
     }
 
     public static class Holder {
 
         private @Nullable ThreadContextPlus value;
 
+        // true while inside the advised method of an incoming span that was not sampled, so that
+        // nested incoming spans do not ask the sampler again (only set and cleared on the owning
+        // thread, by the advice frame that made the sampling decision)
+        private boolean unsampled;
+
         private Holder() {}
 
         public @Nullable ThreadContextPlus get() {
@@ -65,5 +135,256 @@ public class ThreadContextThreadLocal {
         public void set(@Nullable ThreadContextPlus value) {
             this.value = value;
         }
+
+        public boolean isUnsampled() {
+            return unsampled;
+        }
+
+        public void setUnsampled(boolean unsampled) {
+            this.unsampled = unsampled;
+        }
+    }
+
+    // only ever accessed from the thread that it is keyed by, so the map is only used to look it
+    // up (and it does not reference its thread, since the map only holds threads weakly)
+    //
+    // a holder that is not registered acts as a view of the thread's registered holder (if any),
+    // since a frame that obtained its holder before an inner call registered a different holder
+    // (e.g. by starting a transaction) must still see that transaction, and so that there is at
+    // most one registered holder per thread
+    private static class ThreadKeyedHolder extends Holder {
+
+        private final ThreadKeyedHolderMap threadKeyedHolders;
+
+        private boolean registered;
+
+        private ThreadKeyedHolder(ThreadKeyedHolderMap threadKeyedHolders) {
+            this.threadKeyedHolders = threadKeyedHolders;
+        }
+
+        @Override
+        public @Nullable ThreadContextPlus get() {
+            Holder holder = resolve();
+            return holder == this ? super.get() : holder.get();
+        }
+
+        @Override
+        public void set(@Nullable ThreadContextPlus value) {
+            Holder holder = resolve();
+            if (holder == this) {
+                super.set(value);
+                updateRegistration();
+            } else {
+                holder.set(value);
+            }
+        }
+
+        @Override
+        public boolean isUnsampled() {
+            Holder holder = resolve();
+            return holder == this ? super.isUnsampled() : holder.isUnsampled();
+        }
+
+        @Override
+        public void setUnsampled(boolean unsampled) {
+            Holder holder = resolve();
+            if (holder == this) {
+                super.setUnsampled(unsampled);
+                updateRegistration();
+            } else {
+                holder.setUnsampled(unsampled);
+            }
+        }
+
+        private Holder resolve() {
+            if (registered) {
+                return this;
+            }
+            Holder holder = threadKeyedHolders.get(Thread.currentThread());
+            return holder == null ? this : holder;
+        }
+
+        private void updateRegistration() {
+            if (super.get() == null && !super.isUnsampled()) {
+                if (registered) {
+                    threadKeyedHolders.remove(Thread.currentThread(), this);
+                    registered = false;
+                }
+            } else if (!registered) {
+                threadKeyedHolders.put(Thread.currentThread(), this);
+                registered = true;
+            }
+        }
+    }
+
+    // shared by all threads, so that looking up the holder of a thread that does not have one
+    // registered does not allocate, each access resolves the calling thread's registered holder,
+    // and a new holder is only registered once a value is set
+    private static class UnregisteredHolder extends Holder {
+
+        private final ThreadKeyedHolderMap threadKeyedHolders;
+
+        private UnregisteredHolder(ThreadKeyedHolderMap threadKeyedHolders) {
+            this.threadKeyedHolders = threadKeyedHolders;
+        }
+
+        @Override
+        public @Nullable ThreadContextPlus get() {
+            Holder holder = threadKeyedHolders.get(Thread.currentThread());
+            return holder == null ? null : holder.get();
+        }
+
+        @Override
+        public void set(@Nullable ThreadContextPlus value) {
+            Holder holder = threadKeyedHolders.get(Thread.currentThread());
+            if (holder != null) {
+                holder.set(value);
+            } else if (value != null) {
+                new ThreadKeyedHolder(threadKeyedHolders).set(value);
+            }
+        }
+
+        @Override
+        public boolean isUnsampled() {
+            Holder holder = threadKeyedHolders.get(Thread.currentThread());
+            return holder != null && holder.isUnsampled();
+        }
+
+        @Override
+        public void setUnsampled(boolean unsampled) {
+            Holder holder = threadKeyedHolders.get(Thread.currentThread());
+            if (holder != null) {
+                holder.setUnsampled(unsampled);
+            } else if (unsampled) {
+                new ThreadKeyedHolder(threadKeyedHolders).setUnsampled(true);
+            }
+        }
+    }
+
+    // map from thread (by identity) to its registered holder, which only holds the thread weakly so
+    // that a thread that exits while its holder is still registered (e.g. exits inside of a
+    // transaction) does not leak, and whose lookups neither lock nor allocate
+    //
+    // each thread only ever puts and removes its own entry, but threads share buckets so updates
+    // are synchronized, and buckets are immutable chains so that lookups see a consistent chain
+    private static class ThreadKeyedHolderMap {
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final ReferenceQueue<Thread> queue = new ReferenceQueue<Thread>();
+
+        private volatile AtomicReferenceArray<Entry> table =
+                new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+
+        // guarded by this
+        private int size;
+
+        private @Nullable Holder get(Thread thread) {
+            AtomicReferenceArray<Entry> table = this.table;
+            Entry entry = table.get(indexFor(System.identityHashCode(thread), table.length()));
+            while (entry != null) {
+                if (entry.get() == thread) {
+                    return entry.holder;
+                }
+                entry = entry.next;
+            }
+            return null;
+        }
+
+        private synchronized void put(Thread thread, Holder holder) {
+            expungeStaleEntries();
+            if (size >= table.length() * 3 / 4) {
+                resize();
+            }
+            int hash = System.identityHashCode(thread);
+            int index = indexFor(hash, table.length());
+            table.set(index, new Entry(thread, hash, holder, table.get(index), queue));
+            size++;
+        }
+
+        private synchronized void remove(Thread thread, Holder holder) {
+            expungeStaleEntries();
+            int index = indexFor(System.identityHashCode(thread), table.length());
+            for (Entry entry = table.get(index); entry != null; entry = entry.next) {
+                if (entry.get() == thread && entry.holder == holder) {
+                    removeEntry(index, entry);
+                    return;
+                }
+            }
+        }
+
+        // guarded by this
+        private void expungeStaleEntries() {
+            Entry entry;
+            while ((entry = (Entry) queue.poll()) != null) {
+                int index = indexFor(entry.hash, table.length());
+                for (Entry e = table.get(index); e != null; e = e.next) {
+                    // entries that were copied by resize() or removeEntry() are no longer in the
+                    // table, only their copies are, which are enqueued separately
+                    if (e == entry) {
+                        removeEntry(index, entry);
+                        break;
+                    }
+                }
+            }
+        }
+
+        // guarded by this
+        private void removeEntry(int index, Entry entry) {
+            // entries after the removed entry are reused, entries before it are copied (and
+            // dropped if their thread has already been collected)
+            Entry head = entry.next;
+            int removed = 1;
+            for (Entry e = table.get(index); e != entry; e = e.next) {
+                Thread thread = e.get();
+                if (thread == null) {
+                    removed++;
+                } else {
+                    head = new Entry(thread, e.hash, e.holder, head, queue);
+                }
+            }
+            table.set(index, head);
+            size -= removed;
+        }
+
+        // guarded by this
+        private void resize() {
+            AtomicReferenceArray<Entry> oldTable = table;
+            AtomicReferenceArray<Entry> newTable =
+                    new AtomicReferenceArray<Entry>(oldTable.length() * 2);
+            int newSize = 0;
+            for (int i = 0; i < oldTable.length(); i++) {
+                for (Entry e = oldTable.get(i); e != null; e = e.next) {
+                    Thread thread = e.get();
+                    if (thread != null) {
+                        int index = indexFor(e.hash, newTable.length());
+                        newTable.set(index,
+                                new Entry(thread, e.hash, e.holder, newTable.get(index), queue));
+                        newSize++;
+                    }
+                }
+            }
+            table = newTable;
+            size = newSize;
+        }
+
+        private static int indexFor(int hash, int length) {
+            return hash & (length - 1);
+        }
+    }
+
+    private static class Entry extends WeakReference<Thread> {
+
+        private final int hash;
+        private final Holder holder;
+        private final @Nullable Entry next;
+
+        private Entry(Thread thread, int hash, Holder holder, @Nullable Entry next,
+                ReferenceQueue<Thread> queue) {
+            super(thread, queue);
+            this.hash = hash;
+            this.holder = holder;
+            this.next = next;
+        }
     }
 }
@@ -142,6 +142,11 @@ public abstract class AdviceConfig {
         return false;
     }
 
+    @Value.Default
+    public boolean spanMessageSnapshotEagerly() {
+        return false;
+    }
+
     @Value.Default
     public String timerName() {
         return "";
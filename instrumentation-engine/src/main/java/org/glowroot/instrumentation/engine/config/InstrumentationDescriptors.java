@@ -101,6 +101,7 @@ public class InstrumentationDescriptors {
                     .spanMessageTemplate(advice.spanMessageTemplate())
                     .spanStackThresholdMillis(toNullableInteger(advice.spanStackThresholdMillis()))
                     .spanCaptureSelfNested(advice.spanCaptureSelfNested())
+                    .spanMessageSnapshotEagerly(advice.spanMessageSnapshotEagerly())
                     .timerName(advice.timerName())
                     .enabledProperty(advice.enabledProperty())
                     .localSpanEnabledProperty(advice.localSpanEnabledProperty())
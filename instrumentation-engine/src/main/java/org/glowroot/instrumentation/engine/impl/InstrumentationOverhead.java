@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.impl;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming;
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming.Slot;
+import org.glowroot.instrumentation.engine.weaving.InstrumentationWeavingStats;
+
+public class InstrumentationOverhead implements InstrumentationOverheadMXBean {
+
+    private final String instrumentationId;
+    private final int adviceSampleInterval;
+    private final InstrumentationWeavingStats weavingStats;
+
+    public InstrumentationOverhead(String instrumentationId, int adviceSampleInterval,
+            InstrumentationWeavingStats weavingStats) {
+        this.instrumentationId = instrumentationId;
+        this.adviceSampleInterval = adviceSampleInterval;
+        this.weavingStats = weavingStats;
+    }
+
+    @Override
+    public long getWovenClassCount() {
+        return weavingStats.getWovenClassCount(instrumentationId);
+    }
+
+    @Override
+    public long getWeavingNanos() {
+        return weavingStats.getWeavingNanos(instrumentationId);
+    }
+
+    @Override
+    public int getAdviceSampleInterval() {
+        return adviceSampleInterval;
+    }
+
+    @Override
+    public long getAdviceInvocationCount() {
+        long invocationCount = 0;
+        for (Slot slot : getSlots()) {
+            invocationCount += slot.getInvocationCount();
+        }
+        return invocationCount;
+    }
+
+    @Override
+    public long getAdviceSampledCount() {
+        long sampledCount = 0;
+        for (Slot slot : getSlots()) {
+            sampledCount += slot.getSampledCount();
+        }
+        return sampledCount;
+    }
+
+    @Override
+    public long getAdviceEstimatedNanos() {
+        long estimatedNanos = 0;
+        for (Slot slot : getSlots()) {
+            estimatedNanos += slot.getEstimatedNanos();
+        }
+        return estimatedNanos;
+    }
+
+    @Override
+    public Map<String, Long> getAdviceInvocationCountByClass() {
+        Map<String, Long> invocationCounts = Maps.newTreeMap();
+        for (Slot slot : getSlots()) {
+            invocationCounts.put(slot.getAdviceClassName(), slot.getInvocationCount());
+        }
+        return invocationCounts;
+    }
+
+    @Override
+    public Map<String, Long> getAdviceEstimatedNanosByClass() {
+        Map<String, Long> estimatedNanos = Maps.newTreeMap();
+        for (Slot slot : getSlots()) {
+            estimatedNanos.put(slot.getAdviceClassName(), slot.getEstimatedNanos());
+        }
+        return estimatedNanos;
+    }
+
+    private List<Slot> getSlots() {
+        List<Slot> slots = Lists.newArrayList();
+        for (Slot slot : AdviceTiming.getSlots()) {
+            if (instrumentationId.equals(slot.getInstrumentationId())) {
+                slots.add(slot);
+            }
+        }
+        return slots;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.impl;
+
+import java.util.Map;
+
+public interface InstrumentationOverheadMXBean {
+
+    long getWovenClassCount();
+
+    long getWeavingNanos();
+
+    int getAdviceSampleInterval();
+
+    // the invocation counts and nanos below are for all of the instrumentation's advice method
+    // invocations (e.g. @Advice.OnMethodBefore and @Advice.OnMethodReturn are counted separately)
+
+    long getAdviceInvocationCount();
+
+    long getAdviceSampledCount();
+
+    // extrapolated from the sampled invocations
+    long getAdviceEstimatedNanos();
+
+    Map<String, Long> getAdviceInvocationCountByClass();
+
+    Map<String, Long> getAdviceEstimatedNanosByClass();
+}
@@ -36,6 +36,7 @@ import org.glowroot.instrumentation.api.TimerName;
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextPlus;
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.instrumentation.engine.spi.AgentSPI;
+import org.glowroot.instrumentation.engine.spi.Sampler;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -49,17 +50,32 @@ public class OptionalThreadContextImpl implements ThreadContextPlus {
     private @MonotonicNonNull ThreadContextPlus threadContext;
 
     private final AgentSPI agentSPI;
+    private final @Nullable Sampler sampler;
     private final ThreadContextThreadLocal.Holder threadContextHolder;
 
-    public OptionalThreadContextImpl(AgentSPI agentSPI,
+    // true if this (advice frame's) context is the one that marked the thread unsampled
+    private boolean markedUnsampled;
+
+    public OptionalThreadContextImpl(AgentSPI agentSPI, @Nullable Sampler sampler,
             ThreadContextThreadLocal.Holder threadContextHolder, int rootNestingGroupId,
             int rootSuppressionKeyId) {
         this.agentSPI = agentSPI;
+        this.sampler = sampler;
         this.threadContextHolder = threadContextHolder;
         this.rootNestingGroupId = rootNestingGroupId;
         this.rootSuppressionKeyId = rootSuppressionKeyId;
     }
 
+    // called from woven bytecode when the advised method exits, the unsampled decision is scoped to
+    // that advice frame (and not to the incoming span, which can end later on a different thread
+    // when it is async, or never)
+    public void exitingAdviceFrame() {
+        if (markedUnsampled) {
+            threadContextHolder.setUnsampled(false);
+            markedUnsampled = false;
+        }
+    }
+
     @Override
     public boolean isInTransaction() {
         return threadContext != null;
@@ -86,6 +102,19 @@ public class OptionalThreadContextImpl implements ThreadContextPlus {
             return NopTransactionService.LOCAL_SPAN;
         }
         if (threadContext == null) {
+            if (threadContextHolder.isUnsampled()) {
+                // nested inside an incoming span that was not sampled, the decision is remembered
+                // until that outer span's advised method exits so that the sampler is only asked
+                // once per request
+                return NopTransactionService.LOCAL_SPAN;
+            }
+            if (sampler != null
+                    && !sampler.isSampled(operationType, transactionName, getter, carrier)) {
+                // not starting a transaction means that all nested advice short-circuits
+                threadContextHolder.setUnsampled(true);
+                markedUnsampled = true;
+                return NopTransactionService.LOCAL_SPAN;
+            }
             Span span = agentSPI.startIncomingSpan(operationType, transactionName, getter, carrier,
                     messageSupplier, timerName, threadContextHolder, rootNestingGroupId,
                     rootSuppressionKeyId);
@@ -166,6 +195,11 @@ public class OptionalThreadContextImpl implements ThreadContextPlus {
         }
     }
 
+    @Override
+    public boolean isCapturingLoggerSpans() {
+        return threadContext != null || agentSPI.isCapturingLoggerSpans();
+    }
+
     @Override
     public Timer startTimer(TimerName timerName) {
         if (threadContext == null) {
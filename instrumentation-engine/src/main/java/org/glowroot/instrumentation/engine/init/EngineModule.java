@@ -34,17 +34,24 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.instrumentation.api.internal.InstrumentationServiceHolder;
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming;
 import org.glowroot.instrumentation.engine.bytecode.api.BytecodeServiceHolder;
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.instrumentation.engine.config.AdviceConfig;
 import org.glowroot.instrumentation.engine.config.InstrumentationDescriptor;
 import org.glowroot.instrumentation.engine.config.InstrumentationDescriptors;
+import org.glowroot.instrumentation.engine.impl.InstrumentationOverhead;
 import org.glowroot.instrumentation.engine.impl.InstrumentationServiceImpl;
 import org.glowroot.instrumentation.engine.impl.InstrumentationServiceImpl.ConfigServiceFactory;
 import org.glowroot.instrumentation.engine.impl.SimpleConfigServiceFactory;
 import org.glowroot.instrumentation.engine.impl.TimerNameCache;
 import org.glowroot.instrumentation.engine.init.PreCheckLoadedClasses.PreCheckClassFileTransformer;
+import org.glowroot.instrumentation.engine.sampling.AdaptiveSampler;
+import org.glowroot.instrumentation.engine.sampling.ProbabilisticSampler;
+import org.glowroot.instrumentation.engine.sampling.PropagationAwareSampler;
+import org.glowroot.instrumentation.engine.sampling.RateLimitingSampler;
 import org.glowroot.instrumentation.engine.spi.AgentSPI;
+import org.glowroot.instrumentation.engine.spi.Sampler;
 import org.glowroot.instrumentation.engine.util.JavaVersion;
 import org.glowroot.instrumentation.engine.util.LazyPlatformMBeanServer;
 import org.glowroot.instrumentation.engine.weaving.AdviceCache;
@@ -53,8 +60,10 @@ import org.glowroot.instrumentation.engine.weaving.BytecodeServiceImpl;
 import org.glowroot.instrumentation.engine.weaving.BytecodeServiceImpl.OnEnteringMain;
 import org.glowroot.instrumentation.engine.weaving.Java9;
 import org.glowroot.instrumentation.engine.weaving.PreloadSomeSuperTypesCache;
+import org.glowroot.instrumentation.engine.weaving.SpeculativeAnalyzer;
 import org.glowroot.instrumentation.engine.weaving.Weaver;
 import org.glowroot.instrumentation.engine.weaving.WeavingClassFileTransformer;
+import org.glowroot.instrumentation.engine.weaving.WovenClassCache;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -66,9 +75,44 @@ public class EngineModule {
     private static final Logger startupLogger =
             LoggerFactory.getLogger("org.glowroot.instrumentation");
 
+    // opt-in, number of background threads to use for speculative class analysis
+    // (see SpeculativeAnalyzer)
+    private static final int SPECULATIVE_ANALYSIS_THREADS =
+            Integer.getInteger("glowroot.weaving.speculativeAnalysisThreads", 0);
+
+    // opt-in, maximum size in megabytes of the persistent woven class cache (see WovenClassCache)
+    private static final int WOVEN_CLASS_CACHE_MAX_SIZE_MB =
+            Integer.getInteger("glowroot.weaving.wovenClassCacheMaxSizeMb", 0);
+
+    // opt-out, in case the fast-reject prefilter is suspected of skipping a class that should have
+    // been woven (see FastRejectFilter)
+    private static final boolean FAST_REJECT_DISABLED =
+            Boolean.getBoolean("glowroot.weaving.fastRejectDisabled");
+
+    // opt-in, sample interval for timing advice invocations, which is reported per instrumentation
+    // via JMX (see AdviceTiming and InstrumentationOverhead)
+    private static final int ADVICE_TIMING_SAMPLE_INTERVAL =
+            Integer.getInteger("glowroot.adviceTiming.sampleInterval", 0);
+
+    // opt-in, sampling of incoming spans (see PropagationAwareSampler), a custom sampler can also
+    // be plugged in via setSampler()
+    private static final double SAMPLING_PROBABILITY =
+            getDoubleProperty("glowroot.sampling.probability", 1);
+    private static final double SAMPLING_MAX_PER_SECOND =
+            getDoubleProperty("glowroot.sampling.maxPerSecond", 0);
+    private static final double SAMPLING_MAX_PER_SECOND_PER_TRANSACTION_NAME =
+            getDoubleProperty("glowroot.sampling.maxPerSecondPerTransactionName", 0);
+
+    // opt-in, "threadKeyedMap" stores thread contexts in a map keyed by thread instead of in a
+    // thread local, which is better suited to large numbers of short-lived (e.g. virtual) threads
+    // (see ThreadContextThreadLocal.Storage)
+    private static final String THREAD_CONTEXT_STORAGE =
+            System.getProperty("glowroot.threadContextStorage", "threadLocal");
+
     private final AdviceCache adviceCache;
     private final PreloadSomeSuperTypesCache preloadSomeSuperTypesCache;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable SpeculativeAnalyzer speculativeAnalyzer;
     private final Weaver weaver;
     private final BytecodeServiceImpl bytecodeService;
 
@@ -99,6 +143,20 @@ public class EngineModule {
                 null, new Class<?>[0], agentJarFile);
     }
 
+    // the thread context thread local is created by the agent before the engine is created, so
+    // agents should use this in order to honor the glowroot.threadContextStorage system property
+    public static ThreadContextThreadLocal createThreadContextThreadLocal() {
+        if (THREAD_CONTEXT_STORAGE.equals("threadKeyedMap")) {
+            startupLogger.info("storing thread contexts in a map keyed by thread");
+            return new ThreadContextThreadLocal(ThreadContextThreadLocal.Storage.THREAD_KEYED_MAP);
+        }
+        if (!THREAD_CONTEXT_STORAGE.equals("threadLocal")) {
+            startupLogger.warn("invalid value for system property {}: {}",
+                    "glowroot.threadContextStorage", THREAD_CONTEXT_STORAGE);
+        }
+        return new ThreadContextThreadLocal(ThreadContextThreadLocal.Storage.THREAD_LOCAL);
+    }
+
     public EngineModule(@Nullable Instrumentation instrumentation, File tmpDir, Ticker ticker,
             List<InstrumentationDescriptor> instrumentationDescriptors,
             List<AdviceConfig> reweavableAdviceConfigs,
@@ -146,13 +204,40 @@ public class EngineModule {
             adviceCache = new AdviceCache(instrumentationDescriptors, reweavableAdviceConfigs,
                     instrumentation, doNotWeavePrefixes, tmpDir);
             preloadSomeSuperTypesCache = new PreloadSomeSuperTypesCache(
+                    new File(tmpDir, "preload-some-super-types-cache.bin"),
                     new File(tmpDir, "preload-some-super-types-cache"), 50000);
             analyzedWorld = new AnalyzedWorld(adviceCache.getAdvisorsSupplier(),
                     adviceCache.getShimTypes(), adviceCache.getMixinTypes(),
                     useInstrumentationAnnotations, instrumentation, preloadSomeSuperTypesCache);
 
+            if (SPECULATIVE_ANALYSIS_THREADS > 0 && instrumentation != null) {
+                speculativeAnalyzer = new SpeculativeAnalyzer(analyzedWorld,
+                        adviceCache.getAdvisorsSupplier(), ticker, SPECULATIVE_ANALYSIS_THREADS);
+                startupLogger.info("speculative class analysis enabled using {} threads",
+                        SPECULATIVE_ANALYSIS_THREADS);
+            } else {
+                speculativeAnalyzer = null;
+            }
+            if (ADVICE_TIMING_SAMPLE_INTERVAL > 0) {
+                AdviceTiming.setSampleInterval(ADVICE_TIMING_SAMPLE_INTERVAL);
+                startupLogger.info("advice timing enabled with sample interval of {}",
+                        ADVICE_TIMING_SAMPLE_INTERVAL);
+            }
+            WovenClassCache wovenClassCache = null;
+            // the woven advice timing refers to slots that are only valid for the current jvm
+            if (WOVEN_CLASS_CACHE_MAX_SIZE_MB > 0 && instrumentation != null
+                    && ADVICE_TIMING_SAMPLE_INTERVAL == 0) {
+                wovenClassCache = WovenClassCache.create(new File(tmpDir, "woven-class-cache"),
+                        adviceCache, WOVEN_CLASS_CACHE_MAX_SIZE_MB);
+                if (wovenClassCache != null) {
+                    startupLogger.info("woven class cache enabled with maximum size of {} MB",
+                            WOVEN_CLASS_CACHE_MAX_SIZE_MB);
+                }
+            }
             weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                    adviceCache.getMixinTypes(), analyzedWorld, ticker);
+                    adviceCache.getMixinTypes(), analyzedWorld, ticker, speculativeAnalyzer,
+                    wovenClassCache,
+                    FAST_REJECT_DISABLED ? null : adviceCache.getFastRejectFilterSupplier());
 
             // need to initialize instrumentation-api and BytecodeService before enabling
             // instrumentation
@@ -162,13 +247,24 @@ public class EngineModule {
 
             bytecodeService = new BytecodeServiceImpl(threadContextThreadLocal, agentSPI,
                     tryToLoadInBootstrapClassLoader, preloadSomeSuperTypesCache);
+            bytecodeService.setSampler(createSampler(ticker));
             BytecodeServiceHolder.set(bytecodeService);
 
+            final List<InstrumentationDescriptor> finalInstrumentationDescriptors =
+                    instrumentationDescriptors;
             bytecodeService.addOnEnteringMain(new OnEnteringMain() {
                 @Override
                 public void run(@Nullable String mainClass) throws Exception {
                     weaver.setNoLongerNeedToWeaveMainMethods();
+                    if (speculativeAnalyzer != null) {
+                        speculativeAnalyzer.logSummary("on entering main");
+                    }
+                    weaver.getWeavingStats().logSummary("on entering main");
                     lazyPlatformMBeanServer = LazyPlatformMBeanServer.create(mainClass);
+                    if (ADVICE_TIMING_SAMPLE_INTERVAL > 0) {
+                        registerInstrumentationOverheadMBeans(finalInstrumentationDescriptors,
+                                lazyPlatformMBeanServer);
+                    }
                     bytecodeService.setOnExitingGetPlatformMBeanServer(new Runnable() {
                         @Override
                         public void run() {
@@ -236,6 +332,11 @@ public class EngineModule {
         bytecodeService.addOnEnteringMain(onEnteringMain);
     }
 
+    // null means that all incoming spans are sampled
+    public void setSampler(@Nullable Sampler sampler) {
+        bytecodeService.setSampler(sampler);
+    }
+
     public AdviceCache getAdviceCache() {
         return adviceCache;
     }
@@ -259,6 +360,56 @@ public class EngineModule {
         return lazyPlatformMBeanServer;
     }
 
+    private void registerInstrumentationOverheadMBeans(
+            List<InstrumentationDescriptor> instrumentationDescriptors,
+            LazyPlatformMBeanServer lazyPlatformMBeanServer) {
+        for (InstrumentationDescriptor descriptor : instrumentationDescriptors) {
+            lazyPlatformMBeanServer.lazyRegisterMBean(
+                    new InstrumentationOverhead(descriptor.id(), ADVICE_TIMING_SAMPLE_INTERVAL,
+                            weaver.getInstrumentationWeavingStats()),
+                    "org.glowroot.instrumentation:type=InstrumentationOverhead,name="
+                            + descriptor.id());
+        }
+    }
+
+    private static @Nullable Sampler createSampler(Ticker ticker) {
+        // cheapest first, and global rate limit last so that its tokens are only consumed by
+        // transactions that would otherwise be sampled
+        List<Sampler> samplers = Lists.newArrayList();
+        if (SAMPLING_PROBABILITY < 1) {
+            samplers.add(new ProbabilisticSampler(SAMPLING_PROBABILITY));
+            startupLogger.info("sampling incoming spans with probability {}",
+                    SAMPLING_PROBABILITY);
+        }
+        if (SAMPLING_MAX_PER_SECOND_PER_TRANSACTION_NAME > 0) {
+            samplers.add(new AdaptiveSampler(SAMPLING_MAX_PER_SECOND_PER_TRANSACTION_NAME, ticker));
+            startupLogger.info("sampling at most {} incoming spans per second per transaction name",
+                    SAMPLING_MAX_PER_SECOND_PER_TRANSACTION_NAME);
+        }
+        if (SAMPLING_MAX_PER_SECOND > 0) {
+            samplers.add(new RateLimitingSampler(SAMPLING_MAX_PER_SECOND, ticker));
+            startupLogger.info("sampling at most {} incoming spans per second",
+                    SAMPLING_MAX_PER_SECOND);
+        }
+        if (samplers.isEmpty()) {
+            return null;
+        }
+        return new PropagationAwareSampler(samplers);
+    }
+
+    private static double getDoubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            startupLogger.warn("invalid value for system property {}: {}", name, value);
+            return defaultValue;
+        }
+    }
+
     private static void logPreCheckInfo(Class<?>[] allPreCheckLoadedClasses,
             @Nullable File agentJarFile,
             PreCheckClassFileTransformer preCheckClassFileTransformer) {
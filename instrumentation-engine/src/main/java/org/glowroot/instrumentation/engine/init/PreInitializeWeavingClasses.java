@@ -282,6 +282,10 @@ class PreInitializeWeavingClasses {
 
     private static List<String> getEngineUsedTypes() {
         List<String> types = Lists.newArrayList();
+        types.add("org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming");
+        types.add("org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming$Slot");
+        types.add("org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming$StripedCounter");
+        types.add("org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming$ThreadState");
         types.add("org.glowroot.instrumentation.engine.bytecode.api.Bytecode");
         types.add("org.glowroot.instrumentation.engine.bytecode.api.BytecodeService");
         types.add("org.glowroot.instrumentation.engine.bytecode.api.BytecodeServiceHolder");
@@ -293,6 +297,12 @@ class PreInitializeWeavingClasses {
         types.add("org.glowroot.instrumentation.engine.config.ImmutableAdviceConfig$Builder");
         types.add("org.glowroot.instrumentation.engine.config.ImmutableAdviceConfig$InitShim");
         types.add("org.glowroot.instrumentation.engine.config.AdviceConfig");
+        types.add("org.glowroot.instrumentation.engine.util.ConcurrentWeakIdentityMap");
+        types.add("org.glowroot.instrumentation.engine.util.ConcurrentWeakIdentityMap$LookupKey");
+        types.add("org.glowroot.instrumentation.engine.util.ConcurrentWeakIdentityMap$WeakKey");
+        types.add("org.glowroot.instrumentation.engine.util.ConcurrentWeakInterner");
+        types.add("org.glowroot.instrumentation.engine.util.ConcurrentWeakInterner$LookupKey");
+        types.add("org.glowroot.instrumentation.engine.util.ConcurrentWeakInterner$WeakKey");
         types.add("org.glowroot.instrumentation.engine.util.IterableWithSelfRemovableEntries");
         types.add("org.glowroot.instrumentation.engine.util.IterableWithSelfRemovableEntries"
                 + "$ElementIterator");
@@ -309,8 +319,11 @@ class PreInitializeWeavingClasses {
         types.add("org.glowroot.instrumentation.engine.weaving.AdviceBuilder");
         types.add("org.glowroot.instrumentation.engine.weaving.AdviceBuilder"
                 + "$AdviceConstructionException");
+        types.add("org.glowroot.instrumentation.engine.weaving.AdviceCache");
+        types.add("org.glowroot.instrumentation.engine.weaving.AdviceCache$AdvisorsFingerprint");
         types.add("org.glowroot.instrumentation.engine.weaving.AdviceMatcher");
         types.add("org.glowroot.instrumentation.engine.weaving.AnalyzedClass");
+        types.add("org.glowroot.instrumentation.engine.weaving.AnalyzedClassInterner");
         types.add("org.glowroot.instrumentation.engine.weaving.AnalyzedMethod");
         types.add("org.glowroot.instrumentation.engine.weaving.AnalyzedWorld");
         types.add(
@@ -334,6 +347,9 @@ class PreInitializeWeavingClasses {
         types.add("org.glowroot.instrumentation.engine.weaving.ClassLoaders");
         types.add("org.glowroot.instrumentation.engine.weaving.ClassLoaders$LazyDefinedClass");
         types.add("org.glowroot.instrumentation.engine.weaving.ClassNames");
+        types.add("org.glowroot.instrumentation.engine.weaving.FastRejectFilter");
+        types.add("org.glowroot.instrumentation.engine.weaving.FastRejectFilter$KeywordMatcher");
+        types.add("org.glowroot.instrumentation.engine.weaving.FastRejectFilter$SuperType");
         types.add("org.glowroot.instrumentation.engine.weaving.FrameDeduppingMethodVisitor");
         types.add("org.glowroot.instrumentation.engine.weaving.MethodInfoImpl");
         types.add("org.glowroot.instrumentation.engine.weaving.Weaver$ActiveWeaving");
@@ -420,11 +436,21 @@ class PreInitializeWeavingClasses {
                 + "$PointcutAnnotationVisitor$1");
         types.add("org.glowroot.instrumentation.engine.weaving.InstrumentationDetailBuilder"
                 + "$StringArrayAnnotationVisitor");
+        types.add("org.glowroot.instrumentation.engine.weaving.InstrumentationWeavingStats");
+        types.add(
+                "org.glowroot.instrumentation.engine.weaving.InstrumentationWeavingStats$Stats");
         types.add("org.glowroot.instrumentation.engine.weaving.PreloadSomeSuperTypesCache");
         types.add("org.glowroot.instrumentation.engine.weaving.PreloadSomeSuperTypesCache"
                 + "$CacheValue");
+        types.add("org.glowroot.instrumentation.engine.weaving.PreloadSomeSuperTypesCache"
+                + "$MappedFile");
         types.add("org.glowroot.instrumentation.engine.weaving.PublicFinalMethod");
         types.add("org.glowroot.instrumentation.engine.weaving.ShimType");
+        types.add("org.glowroot.instrumentation.engine.weaving.SpeculativeAnalyzer");
+        types.add("org.glowroot.instrumentation.engine.weaving.SpeculativeAnalyzer"
+                + "$AnalyzeCodeSource");
+        types.add("org.glowroot.instrumentation.engine.weaving.SpeculativeAnalyzer$LoaderState");
+        types.add("org.glowroot.instrumentation.engine.weaving.SpeculativeAnalyzer$Verdict");
         types.add("org.glowroot.instrumentation.engine.weaving.ThinClassVisitor");
         types.add("org.glowroot.instrumentation.engine.weaving.ThinClassVisitor"
                 + "$AnnotationCaptureMethodVisitor");
@@ -442,6 +468,13 @@ class PreInitializeWeavingClasses {
                 "org.glowroot.instrumentation.engine.weaving.WeavingClassVisitor$MethodMetaGroup");
         types.add("org.glowroot.instrumentation.engine.weaving.WeavingMethodVisitor");
         types.add("org.glowroot.instrumentation.engine.weaving.WeavingMethodVisitor$CatchHandler");
+        types.add("org.glowroot.instrumentation.engine.weaving.WeavingStats");
+        types.add("org.glowroot.instrumentation.engine.weaving.WeavingStats$SlowClass");
+        types.add("org.glowroot.instrumentation.engine.weaving.WovenClassCache");
+        types.add("org.glowroot.instrumentation.engine.weaving.WovenClassCache$CacheKey");
+        types.add("org.glowroot.instrumentation.engine.weaving.WovenClassCache$Digest");
+        types.add("org.glowroot.instrumentation.engine.weaving.WovenClassCache$Location");
+        types.add("org.glowroot.instrumentation.engine.weaving.WovenClassCache$Segment");
         return types;
     }
 
@@ -619,7 +652,9 @@ class PreInitializeWeavingClasses {
         types.add("org.glowroot.instrumentation.engine.weaving.WeavingClassVisitor$1");
         types.add("org.glowroot.instrumentation.engine.weaving.AdviceMatcher$1");
         types.add("org.glowroot.instrumentation.engine.weaving.WeavingMethodVisitor$1");
+        types.add("org.glowroot.instrumentation.engine.weaving.WeavingStats$1");
         types.add("org.glowroot.instrumentation.engine.weaving.PreloadSomeSuperTypesCache$1");
+        types.add("org.glowroot.instrumentation.engine.weaving.SpeculativeAnalyzer$1");
         types.add("org.glowroot.instrumentation.api.config.ConfigListener");
         return types;
     }
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.sampling;
+
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.engine.spi.Sampler;
+
+// samples at most a fixed number of transactions per second per transaction name, so that high
+// volume transaction names are sampled down while low volume transaction names are still captured
+public class AdaptiveSampler implements Sampler {
+
+    // bound on the number of transaction names tracked, in case of unbounded transaction names
+    // (e.g. due to ids in urls), after which all other transaction names share a single bucket
+    private static final int MAX_TRANSACTION_NAMES = 1000;
+
+    private final double maxPerSecondPerTransactionName;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<String, TokenBucket> tokenBuckets = Maps.newConcurrentMap();
+
+    private final TokenBucket overflowTokenBucket;
+
+    public AdaptiveSampler(double maxPerSecondPerTransactionName, Ticker ticker) {
+        this.maxPerSecondPerTransactionName = maxPerSecondPerTransactionName;
+        this.ticker = ticker;
+        overflowTokenBucket = new TokenBucket(maxPerSecondPerTransactionName, ticker);
+    }
+
+    @Override
+    public <C> boolean isSampled(String transactionType, String transactionName,
+            Getter<C> getter, C carrier) {
+        return getTokenBucket(transactionType + ':' + transactionName).tryAcquire();
+    }
+
+    private TokenBucket getTokenBucket(String key) {
+        TokenBucket tokenBucket = tokenBuckets.get(key);
+        if (tokenBucket != null) {
+            return tokenBucket;
+        }
+        if (tokenBuckets.size() >= MAX_TRANSACTION_NAMES) {
+            return overflowTokenBucket;
+        }
+        tokenBucket = new TokenBucket(maxPerSecondPerTransactionName, ticker);
+        TokenBucket existingTokenBucket = tokenBuckets.putIfAbsent(key, tokenBucket);
+        return existingTokenBucket == null ? tokenBucket : existingTokenBucket;
+    }
+}
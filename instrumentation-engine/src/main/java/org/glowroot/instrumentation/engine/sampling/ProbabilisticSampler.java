@@ -0,0 +1,45 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.sampling;
+
+import java.util.Random;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.engine.spi.Sampler;
+
+// samples a fixed fraction of transactions
+public class ProbabilisticSampler implements Sampler {
+
+    private final double probability;
+
+    // thread local to avoid contention on a shared Random
+    private final ThreadLocal<Random> randoms = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    public ProbabilisticSampler(double probability) {
+        this.probability = probability;
+    }
+
+    @Override
+    public <C> boolean isSampled(String transactionType, String transactionName,
+            Getter<C> getter, C carrier) {
+        return randoms.get().nextDouble() < probability;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.sampling;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.engine.spi.Sampler;
+
+// honors a sampling decision propagated from upstream (via w3c trace context or b3 headers), and
+// otherwise samples only if all of the delegate samplers agree
+public class PropagationAwareSampler implements Sampler {
+
+    private static final Logger logger = LoggerFactory.getLogger(PropagationAwareSampler.class);
+
+    private final ImmutableList<Sampler> samplers;
+
+    // the samplers are consulted in order, and the remaining samplers are skipped once one of them
+    // declines, so cheaper samplers and samplers that consume less state should be listed first
+    public PropagationAwareSampler(List<Sampler> samplers) {
+        this.samplers = ImmutableList.copyOf(samplers);
+    }
+
+    @Override
+    public <C> boolean isSampled(String transactionType, String transactionName,
+            Getter<C> getter, C carrier) {
+        Boolean propagated = getPropagatedSamplingDecision(getter, carrier);
+        if (propagated != null) {
+            return propagated;
+        }
+        for (Sampler sampler : samplers) {
+            if (!sampler.isSampled(transactionType, transactionName, getter, carrier)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Nullable
+    static <C> Boolean getPropagatedSamplingDecision(Getter<C> getter, C carrier) {
+        try {
+            String traceparent = getter.get(carrier, "traceparent");
+            if (traceparent != null) {
+                return getTraceparentSamplingDecision(traceparent);
+            }
+            String b3 = getter.get(carrier, "b3");
+            if (b3 != null) {
+                return getB3SamplingDecision(b3);
+            }
+            String b3Flags = getter.get(carrier, "X-B3-Flags");
+            if ("1".equals(b3Flags)) {
+                // debug
+                return true;
+            }
+            return getB3SampledHeaderDecision(getter.get(carrier, "X-B3-Sampled"));
+        } catch (Throwable t) {
+            // the getter is supplied by the instrumentation
+            logger.debug(t.getMessage(), t);
+            return null;
+        }
+    }
+
+    // version-traceid-parentid-flags, e.g. 00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01
+    private static @Nullable Boolean getTraceparentSamplingDecision(String traceparent) {
+        if (traceparent.length() < 55 || traceparent.charAt(52) != '-') {
+            return null;
+        }
+        int flags = Character.digit(traceparent.charAt(54), 16);
+        if (flags == -1) {
+            return null;
+        }
+        return (flags & 1) == 1;
+    }
+
+    // traceid-spanid-samplingstate-parentspanid (the last two being optional), or only the
+    // samplingstate
+    private static @Nullable Boolean getB3SamplingDecision(String b3) {
+        String samplingState;
+        int index = b3.indexOf('-');
+        if (index == -1) {
+            samplingState = b3;
+        } else {
+            int samplingStateIndex = b3.indexOf('-', index + 1);
+            if (samplingStateIndex == -1) {
+                // no sampling state, which defers the decision
+                return null;
+            }
+            int endIndex = b3.indexOf('-', samplingStateIndex + 1);
+            samplingState = endIndex == -1 ? b3.substring(samplingStateIndex + 1)
+                    : b3.substring(samplingStateIndex + 1, endIndex);
+        }
+        if (samplingState.equals("1") || samplingState.equals("d")) {
+            return true;
+        } else if (samplingState.equals("0")) {
+            return false;
+        } else {
+            return null;
+        }
+    }
+
+    private static @Nullable Boolean getB3SampledHeaderDecision(@Nullable String sampled) {
+        if (sampled == null) {
+            return null;
+        } else if (sampled.equals("1") || sampled.equalsIgnoreCase("true")) {
+            return true;
+        } else if (sampled.equals("0") || sampled.equalsIgnoreCase("false")) {
+            return false;
+        } else {
+            return null;
+        }
+    }
+}
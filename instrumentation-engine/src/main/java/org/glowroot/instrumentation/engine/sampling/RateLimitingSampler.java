@@ -0,0 +1,37 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.sampling;
+
+import com.google.common.base.Ticker;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.engine.spi.Sampler;
+
+// samples at most a fixed number of transactions per second across all transaction names
+public class RateLimitingSampler implements Sampler {
+
+    private final TokenBucket tokenBucket;
+
+    public RateLimitingSampler(double maxPerSecond, Ticker ticker) {
+        tokenBucket = new TokenBucket(maxPerSecond, ticker);
+    }
+
+    @Override
+    public <C> boolean isSampled(String transactionType, String transactionName,
+            Getter<C> getter, C carrier) {
+        return tokenBucket.tryAcquire();
+    }
+}
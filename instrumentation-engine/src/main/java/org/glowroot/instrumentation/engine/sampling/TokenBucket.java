@@ -0,0 +1,55 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.sampling;
+
+import com.google.common.base.Ticker;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// token bucket which allows bursts of up to one second worth of tokens
+class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = SECONDS.toNanos(1);
+
+    private final double maxPerSecond;
+    private final double maxTokens;
+    private final Ticker ticker;
+
+    // guarded by this
+    private double tokens;
+    // guarded by this
+    private long lastRefillTick;
+
+    TokenBucket(double maxPerSecond, Ticker ticker) {
+        this.maxPerSecond = maxPerSecond;
+        this.ticker = ticker;
+        maxTokens = Math.max(1, maxPerSecond);
+        tokens = maxTokens;
+        lastRefillTick = ticker.read();
+    }
+
+    synchronized boolean tryAcquire() {
+        long currTick = ticker.read();
+        tokens = Math.min(maxTokens,
+                tokens + (currTick - lastRefillTick) * maxPerSecond / NANOS_PER_SECOND);
+        lastRefillTick = currTick;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+}
@@ -35,4 +35,8 @@ public interface AgentSPI {
             int rootSuppressionKeyId);
 
     void captureLoggerSpan(MessageSupplier messageSupplier, @Nullable Throwable throwable);
+
+    // whether captureLoggerSpan() does anything, this is checked on every log event that occurs
+    // outside of a transaction so it needs to be cheap
+    boolean isCapturingLoggerSpans();
 }
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.spi;
+
+import org.glowroot.instrumentation.api.Getter;
+
+public interface Sampler {
+
+    // this is called before AgentSPI.startIncomingSpan() when there is no transaction already
+    // active on the current thread, and if this returns false then a no-op span is returned
+    // instead, so that all nested advice short-circuits on isInTransaction()
+    //
+    // the getter and carrier are the same ones passed to startIncomingSpan(), so they can be used
+    // to honor a sampling decision that was propagated from upstream
+    <C> boolean isSampled(String transactionType, String transactionName, Getter<C> getter,
+            C carrier);
+}
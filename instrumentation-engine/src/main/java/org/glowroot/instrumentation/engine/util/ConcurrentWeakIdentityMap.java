@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// concurrent map with weak keys that are compared by identity (like WeakHashMap, but without a
+// global lock, and without relying on the key's equals/hashCode, e.g. for class loaders)
+//
+// reads are lock-free, and writes are striped by the underlying ConcurrentHashMap
+//
+// not using guava's MapMaker/CacheBuilder weakKeys() since they use many additional classes that
+// must then be pre-initialized when this is used from inside ClassFileTransformer.transform()
+// (see PreInitializeWeavingClasses)
+public class ConcurrentWeakIdentityMap<K, V> {
+
+    private final ConcurrentMap<Object, V> map = new ConcurrentHashMap<Object, V>();
+
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+
+    private ConcurrentWeakIdentityMap() {}
+
+    public static <K, V> ConcurrentWeakIdentityMap<K, V> create() {
+        return new ConcurrentWeakIdentityMap<K, V>();
+    }
+
+    public @Nullable V get(K key) {
+        return map.get(new LookupKey<K>(key));
+    }
+
+    // returns the existing value if there was one, otherwise null
+    public @Nullable V putIfAbsent(K key, V value) {
+        expungeStaleEntries();
+        return map.putIfAbsent(new WeakKey<K>(key, queue), value);
+    }
+
+    public List<K> keys() {
+        expungeStaleEntries();
+        List<K> keys = new ArrayList<K>();
+        for (Object weakKey : map.keySet()) {
+            @SuppressWarnings("unchecked")
+            K key = ((WeakKey<K>) weakKey).get();
+            if (key != null) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    public List<V> values() {
+        expungeStaleEntries();
+        List<V> values = new ArrayList<V>();
+        for (Map.Entry<Object, V> entry : map.entrySet()) {
+            if (((WeakKey<?>) entry.getKey()).get() != null) {
+                values.add(entry.getValue());
+            }
+        }
+        return values;
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends K> ref;
+        while ((ref = queue.poll()) != null) {
+            map.remove(ref);
+        }
+    }
+
+    private static class WeakKey<K> extends WeakReference<K> {
+
+        private final int hashCode;
+
+        private WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            hashCode = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            K key = get();
+            if (key == null) {
+                // cleared keys are only equal to themselves
+                return false;
+            }
+            if (obj instanceof WeakKey) {
+                return ((WeakKey<?>) obj).get() == key;
+            }
+            if (obj instanceof LookupKey) {
+                return ((LookupKey<?>) obj).key == key;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // strong key used for lookups, to avoid creating (and later clearing) a weak reference
+    private static class LookupKey<K> {
+
+        private final K key;
+
+        private LookupKey(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj instanceof WeakKey) {
+                return ((WeakKey<?>) obj).get() == key;
+            }
+            if (obj instanceof LookupKey) {
+                return ((LookupKey<?>) obj).key == key;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+    }
+}
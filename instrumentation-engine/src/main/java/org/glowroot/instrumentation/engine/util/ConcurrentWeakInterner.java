@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+// concurrent interner that holds the interned instances weakly, so that they are released once they
+// are no longer referenced from anywhere else (e.g. once the class loaders whose analyzed classes
+// referenced them have been collected)
+//
+// not using guava's Interners.newWeakInterner() since it uses many additional classes that must
+// then be pre-initialized when this is used from inside ClassFileTransformer.transform() (see
+// PreInitializeWeavingClasses)
+public class ConcurrentWeakInterner<T> {
+
+    private final ConcurrentMap<Object, WeakKey<T>> map =
+            new ConcurrentHashMap<Object, WeakKey<T>>();
+
+    private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
+    private ConcurrentWeakInterner() {}
+
+    public static <T> ConcurrentWeakInterner<T> create() {
+        return new ConcurrentWeakInterner<T>();
+    }
+
+    public T intern(T value) {
+        WeakKey<T> existing = map.get(new LookupKey<T>(value));
+        if (existing != null) {
+            T existingValue = existing.get();
+            if (existingValue != null) {
+                return existingValue;
+            }
+        }
+        expungeStaleEntries();
+        WeakKey<T> weakKey = new WeakKey<T>(value, queue);
+        while (true) {
+            existing = map.putIfAbsent(weakKey, weakKey);
+            if (existing == null) {
+                return value;
+            }
+            T existingValue = existing.get();
+            if (existingValue != null) {
+                return existingValue;
+            }
+            // cleared after it was matched, but before it was expunged
+            map.remove(existing, existing);
+        }
+    }
+
+    public int size() {
+        expungeStaleEntries();
+        return map.size();
+    }
+
+    private void expungeStaleEntries() {
+        Reference<? extends T> ref;
+        while ((ref = queue.poll()) != null) {
+            map.remove(ref);
+        }
+    }
+
+    private static class WeakKey<T> extends WeakReference<T> {
+
+        private final int hashCode;
+
+        private WeakKey(T value, ReferenceQueue<T> queue) {
+            super(value, queue);
+            hashCode = value.hashCode();
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            T value = get();
+            if (value == null) {
+                // cleared keys are only equal to themselves
+                return false;
+            }
+            if (obj instanceof WeakKey) {
+                return value.equals(((WeakKey<?>) obj).get());
+            }
+            if (obj instanceof LookupKey) {
+                return value.equals(((LookupKey<?>) obj).value);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    // strong key used for lookups, to avoid creating (and later clearing) a weak reference
+    private static class LookupKey<T> {
+
+        private final T value;
+
+        private LookupKey(T value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (obj instanceof WeakKey) {
+                return value.equals(((WeakKey<?>) obj).get());
+            }
+            if (obj instanceof LookupKey) {
+                return value.equals(((LookupKey<?>) obj).value);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
+    }
+}
@@ -15,66 +15,50 @@
  */
 package org.glowroot.instrumentation.engine.util;
 
-import java.lang.ref.Reference;
-import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.checkerframework.checker.nullness.qual.Nullable;
 
-import static com.google.common.base.Preconditions.checkNotNull;
-
+// this is lock free since add() and remove() are called by Weaver.weave() for every class that is
+// loaded, and so any lock here becomes a serialization point under parallel class loading
+//
+// new entries are pushed onto the head of a singly linked list, and removed entries (including
+// entries whose element has been garbage collected) are only marked as removed and then unlinked
+// lazily, by add() for removed entries at the head of the list (which under the typical usage of
+// removing entries shortly after adding them is where they accumulate), and by the iterator for
+// all others
+//
+// unlinking never loses live entries since the next pointer of an entry is only ever changed (via
+// compare and set) to skip over a single removed entry, or (in the case of the head entry) to push
+// a new entry
 public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
 
-    private final ReferenceQueue<E> queue = new ReferenceQueue<E>();
-
-    private final Entry headEntry = new Entry(null, queue);
-
-    // tail is non-volatile since only accessed under lock
-    private Entry tailEntry = headEntry;
-
-    // all structural changes are made under lock for simplicity
-    // TODO implement lock free structure
-    private final Object lock = new Object();
+    private final Entry<E> headEntry = new Entry<E>(null);
 
     public SelfRemovableEntry add(E e) {
-        Entry newTailEntry = new Entry(e, queue);
-        synchronized (lock) {
-            expungeStaleEntries();
-            tailEntry.nextEntry = newTailEntry;
-            newTailEntry.prevEntry = tailEntry;
-            tailEntry = newTailEntry;
+        Entry<E> newEntry = new Entry<E>(e);
+        while (true) {
+            Entry<E> firstEntry = headEntry.nextEntry;
+            Entry<E> firstLiveEntry = firstEntry;
+            while (firstLiveEntry != null && firstLiveEntry.getElement() == null) {
+                firstLiveEntry = firstLiveEntry.nextEntry;
+            }
+            newEntry.nextEntry = firstLiveEntry;
+            if (headEntry.compareAndSetNextEntry(firstEntry, newEntry)) {
+                return newEntry;
+            }
         }
-        return newTailEntry;
     }
 
+    // iteration order is not defined
     @Override
     public Iterator<E> iterator() {
-        synchronized (lock) {
-            expungeStaleEntries();
-        }
         return new ElementIterator();
     }
 
-    // requires lock
-    private void expungeStaleEntries() {
-        Reference<? extends E> ref = queue.poll();
-        if (ref == null) {
-            return;
-        }
-        // drain the queue, since going to loop over and clean up everything anyways
-        while (queue.poll() != null) {
-        }
-        Entry currEntry = headEntry.nextEntry;
-        while (currEntry != null) {
-            if (currEntry.getElement() == null) {
-                currEntry.remove();
-            }
-            currEntry = currEntry.nextEntry;
-        }
-    }
-
     public interface SelfRemovableEntry {
 
         void remove();
@@ -82,12 +66,12 @@ public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
 
     private class ElementIterator implements Iterator<E> {
 
-        private @Nullable Entry nextEntry;
+        private Entry<E> prevEntry;
         private @Nullable E nextElement;
 
         @SuppressWarnings("method.invocation.invalid")
         private ElementIterator() {
-            nextEntry = headEntry;
+            prevEntry = headEntry;
             advance();
         }
 
@@ -112,58 +96,57 @@ public class IterableWithSelfRemovableEntries<E> implements Iterable<E> {
         }
 
         private void advance() {
-            advanceOne();
-            while (nextElement == null && nextEntry != null) {
-                advanceOne();
+            Entry<E> entry = prevEntry.nextEntry;
+            while (entry != null) {
+                E element = entry.getElement();
+                if (element != null) {
+                    prevEntry = entry;
+                    nextElement = element;
+                    return;
+                }
+                Entry<E> nextEntry = entry.nextEntry;
+                // failure is ok, the removed entry will be unlinked by a later add() or iteration
+                prevEntry.compareAndSetNextEntry(entry, nextEntry);
+                entry = nextEntry;
             }
-        }
-
-        private void advanceOne() {
-            checkNotNull(nextEntry);
-            nextEntry = nextEntry.nextEntry;
-            nextElement = nextEntry == null ? null : nextEntry.getElement();
+            nextElement = null;
         }
     }
 
-    private class Entry implements SelfRemovableEntry {
+    private static class Entry<E> implements SelfRemovableEntry {
+
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Entry, Entry> nextEntryUpdater =
+                AtomicReferenceFieldUpdater.newUpdater(Entry.class, Entry.class, "nextEntry");
 
         private final @Nullable WeakReference<E> ref; // only null for head
 
-        // prev is non-volatile since only accessed under lock
-        private @Nullable Entry prevEntry; // only null for head and removed
+        private volatile boolean removed;
 
-        // next is volatile since accessed by iterator outside of lock
-        private volatile @Nullable Entry nextEntry;
+        private volatile @Nullable Entry<E> nextEntry;
 
-        private Entry(@Nullable E e, ReferenceQueue<E> queue) {
+        private Entry(@Nullable E e) {
             if (e == null) {
                 ref = null;
             } else {
-                ref = new WeakReference<E>(e, queue);
+                ref = new WeakReference<E>(e);
             }
         }
 
         @Override
         public void remove() {
-            synchronized (lock) {
-                if (prevEntry == null) {
-                    // already removed
-                    return;
-                }
-                Entry localPrevEntry = checkNotNull(prevEntry);
-                localPrevEntry.nextEntry = nextEntry;
-                if (nextEntry != null) {
-                    nextEntry.prevEntry = localPrevEntry;
-                }
-                if (this == tailEntry) {
-                    tailEntry = localPrevEntry;
-                }
-                prevEntry = null;
-            }
+            removed = true;
+        }
+
+        private boolean compareAndSetNextEntry(@Nullable Entry<E> expect,
+                @Nullable Entry<E> update) {
+            return nextEntryUpdater.compareAndSet(this, expect, update);
         }
 
+        // returns null for head, removed entries and entries whose element has been garbage
+        // collected
         private @Nullable E getElement() {
-            if (ref == null) {
+            if (ref == null || removed) {
                 return null;
             }
             return ref.get();
@@ -41,6 +41,9 @@ abstract class Advice {
 
     abstract Type adviceType();
 
+    // null for advice that does not come from an instrumentation descriptor (e.g. user config)
+    abstract @Nullable String instrumentationId();
+
     abstract @Nullable Pattern pointcutClassNamePattern();
 
     abstract @Nullable Pattern pointcutClassAnnotationPattern();
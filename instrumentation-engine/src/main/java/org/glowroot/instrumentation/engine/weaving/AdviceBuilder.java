@@ -118,14 +118,21 @@ class AdviceBuilder {
     private boolean hasOnAfterAdvice;
 
     AdviceBuilder(PointcutClass adviceClass) {
+        this(adviceClass, null);
+    }
+
+    AdviceBuilder(PointcutClass adviceClass, @Nullable String instrumentationId) {
         this.adviceClass = adviceClass;
         this.lazyAdviceClass = null;
+        builder.instrumentationId(instrumentationId);
         builder.reweavable(false);
     }
 
-    AdviceBuilder(LazyDefinedClass lazyAdviceClass, boolean reweavable) {
+    AdviceBuilder(LazyDefinedClass lazyAdviceClass, @Nullable String instrumentationId,
+            boolean reweavable) {
         this.adviceClass = null;
         this.lazyAdviceClass = lazyAdviceClass;
+        builder.instrumentationId(instrumentationId);
         builder.reweavable(reweavable);
     }
 
@@ -204,8 +211,7 @@ class AdviceBuilder {
             if (hasOnBeforeAdvice) {
                 boolean needsSpecial = hasIsEnabledAdvice || !pointcut.nestingGroup().isEmpty()
                         || !pointcut.suppressibleUsingKey().isEmpty()
-                        || (advice.hasBindThreadContext()
-                                && !advice.hasBindOptionalThreadContext());
+                        || WeavingMethodVisitor.requiresThreadContext(advice);
                 boolean hasSpecial = false;
                 for (AdviceParameter parameter : advice.onBeforeParameters()) {
                     if (parameter.kind() == ParameterKind.SPECIAL) {
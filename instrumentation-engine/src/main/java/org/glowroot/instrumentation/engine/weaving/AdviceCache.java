@@ -17,6 +17,7 @@ package org.glowroot.instrumentation.engine.weaving;
 
 import java.io.File;
 import java.lang.instrument.Instrumentation;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -31,16 +32,24 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.Method;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.instrumentation.api.weaving.Advice.MethodModifier;
+import org.glowroot.instrumentation.api.weaving.Advice.Pointcut;
 import org.glowroot.instrumentation.engine.config.AdviceConfig;
 import org.glowroot.instrumentation.engine.config.InstrumentationDescriptor;
+import org.glowroot.instrumentation.engine.weaving.Advice.AdviceParameter;
 import org.glowroot.instrumentation.engine.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.instrumentation.engine.weaving.InstrumentationDetail.PointcutClass;
 import org.glowroot.instrumentation.engine.weaving.Reweaving.PointcutClassName;
 
+import static com.google.common.base.Charsets.UTF_8;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 public class AdviceCache {
@@ -59,6 +68,13 @@ public class AdviceCache {
 
     private volatile ImmutableList<Advice> allAdvisors;
 
+    // identifies allAdvisors (together with shim and mixin types) in the woven class cache, and is
+    // recomputed whenever allAdvisors changes so that bytes woven with prior advisors are not used
+    private volatile AdvisorsFingerprint advisorsFingerprint;
+
+    // also recomputed whenever allAdvisors changes
+    private volatile FastRejectFilter fastRejectFilter;
+
     public AdviceCache(List<InstrumentationDescriptor> instrumentationDescriptors,
             List<AdviceConfig> reweavableAdviceConfigs, @Nullable Instrumentation instrumentation,
             List<String> doNotWeavePrefixes, File tmpDir) throws Exception {
@@ -71,7 +87,7 @@ public class AdviceCache {
             InstrumentationDetailBuilder builder = new InstrumentationDetailBuilder(descriptor);
             InstrumentationDetail detail = builder.build();
 
-            nonReweavableAdvisors.addAll(getAdvisors(detail.pointcutClasses()));
+            nonReweavableAdvisors.addAll(getAdvisors(detail.pointcutClasses(), descriptor.id()));
             mixinTypes.addAll(detail.mixinTypes());
             shimTypes.addAll(detail.shimTypes());
 
@@ -107,6 +123,9 @@ public class AdviceCache {
                 createReweavableAdvisors(reweavableAdviceConfigs, instrumentation, tmpDir, true);
         allAdvisors = ImmutableList
                 .copyOf(Iterables.concat(nonReweavableAdvisors, reweavableAdvisors));
+        advisorsFingerprint = new AdvisorsFingerprint(allAdvisors,
+                getFingerprint(allAdvisors, this.shimTypes, this.mixinTypes));
+        fastRejectFilter = FastRejectFilter.create(allAdvisors, this.shimTypes, this.mixinTypes);
     }
 
     public Supplier<List<Advice>> getAdvisorsSupplier() {
@@ -118,6 +137,15 @@ public class AdviceCache {
         };
     }
 
+    public Supplier<FastRejectFilter> getFastRejectFilterSupplier() {
+        return new Supplier<FastRejectFilter>() {
+            @Override
+            public FastRejectFilter get() {
+                return fastRejectFilter;
+            }
+        };
+    }
+
     @VisibleForTesting
     public List<ShimType> getShimTypes() {
         return shimTypes;
@@ -155,6 +183,21 @@ public class AdviceCache {
         this.reweavableAdviceConfigs = ImmutableSet.copyOf(reweavableConfigs);
         allAdvisors = ImmutableList
                 .copyOf(Iterables.concat(nonReweavableAdvisors, reweavableAdvisors));
+        advisorsFingerprint = new AdvisorsFingerprint(allAdvisors,
+                getFingerprint(allAdvisors, this.shimTypes, this.mixinTypes));
+        fastRejectFilter = FastRejectFilter.create(allAdvisors, shimTypes, mixinTypes);
+    }
+
+    // returns null if the advisors are not the current advisors (e.g. the advisors have been merged
+    // with @Instrumentation annotations from the class being woven, or updateAdvisors() has been
+    // called since they were retrieved)
+    byte /*@Nullable*/ [] getAdvisorsFingerprint(List<Advice> advisors) {
+        AdvisorsFingerprint advisorsFingerprint = this.advisorsFingerprint;
+        if (advisorsFingerprint.advisors == advisors) {
+            return advisorsFingerprint.fingerprint;
+        } else {
+            return null;
+        }
     }
 
     public boolean isOutOfSync(List<AdviceConfig> reweavableAdviceConfigs) {
@@ -162,12 +205,14 @@ public class AdviceCache {
                 .equals(ImmutableSet.copyOf(reweavableAdviceConfigs));
     }
 
-    private static List<Advice> getAdvisors(List<PointcutClass> adviceClasses) {
+    private static List<Advice> getAdvisors(List<PointcutClass> adviceClasses,
+            String instrumentationId) {
         List<Advice> advisors = Lists.newArrayList();
         Map<String, LazyDefinedClass> collocatedClassCache = Maps.newHashMap();
         for (PointcutClass adviceClass : adviceClasses) {
             try {
-                advisors.add(new AdviceBuilder(adviceClass).build(collocatedClassCache));
+                advisors.add(new AdviceBuilder(adviceClass, instrumentationId)
+                        .build(collocatedClassCache));
             } catch (Throwable t) {
                 logger.error("error creating advice: {}", adviceClass.type().getClassName(), t);
             }
@@ -223,4 +268,111 @@ public class AdviceCache {
         }
         return null;
     }
+
+    private static byte[] getFingerprint(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        // advisors are fingerprinted individually and then sorted since their order is not stable
+        // across JVM restarts (e.g. see lazyAdvisors map in the constructor)
+        List<String> adviceFingerprints = Lists.newArrayList();
+        for (Advice advice : advisors) {
+            Hasher hasher = Hashing.sha1().newHasher();
+            putAdvice(hasher, advice);
+            adviceFingerprints.add(hasher.hash().toString());
+        }
+        Collections.sort(adviceFingerprints);
+        Hasher hasher = Hashing.sha1().newHasher();
+        for (String adviceFingerprint : adviceFingerprints) {
+            putString(hasher, adviceFingerprint);
+        }
+        for (ShimType shimType : shimTypes) {
+            putString(hasher, shimType.iface().getInternalName());
+            for (String target : shimType.targets()) {
+                putString(hasher, target);
+            }
+            for (java.lang.reflect.Method shimMethod : shimType.shimMethods()) {
+                putString(hasher, shimMethod.toString());
+            }
+        }
+        for (MixinType mixinType : mixinTypes) {
+            for (String target : mixinType.targets()) {
+                putString(hasher, target);
+            }
+            for (Type iface : mixinType.interfaces()) {
+                putString(hasher, iface.getInternalName());
+            }
+            putString(hasher, mixinType.initMethodName());
+            hasher.putBytes(mixinType.implementationBytes());
+        }
+        return hasher.hash().asBytes();
+    }
+
+    private static void putAdvice(Hasher hasher, Advice advice) {
+        putString(hasher, advice.adviceType().getInternalName());
+        Pointcut pointcut = advice.pointcut();
+        putString(hasher, pointcut.className());
+        putString(hasher, pointcut.classAnnotation());
+        putString(hasher, pointcut.subTypeRestriction());
+        putString(hasher, pointcut.superTypeRestriction());
+        putString(hasher, pointcut.methodName());
+        putString(hasher, pointcut.methodAnnotation());
+        for (String methodParameterType : pointcut.methodParameterTypes()) {
+            putString(hasher, methodParameterType);
+        }
+        putString(hasher, pointcut.methodReturnType());
+        for (MethodModifier methodModifier : pointcut.methodModifiers()) {
+            putString(hasher, methodModifier.name());
+        }
+        putString(hasher, pointcut.nestingGroup());
+        hasher.putInt(pointcut.order());
+        putString(hasher, pointcut.suppressibleUsingKey());
+        putString(hasher, pointcut.suppressionKey());
+        hasher.putBoolean(pointcut.requiresTransaction());
+        Type travelerType = advice.travelerType();
+        putString(hasher, travelerType == null ? null : travelerType.getDescriptor());
+        putMethod(hasher, advice.isEnabledAdvice(), advice.isEnabledParameters());
+        putMethod(hasher, advice.onBeforeAdvice(), advice.onBeforeParameters());
+        putMethod(hasher, advice.onReturnAdvice(), advice.onReturnParameters());
+        putMethod(hasher, advice.onThrowAdvice(), advice.onThrowParameters());
+        putMethod(hasher, advice.onAfterAdvice(), advice.onAfterParameters());
+        hasher.putBoolean(advice.hasBindThreadContext());
+        hasher.putBoolean(advice.hasBindOptionalThreadContext());
+        hasher.putBoolean(advice.reweavable());
+        Advice nonBootstrapLoaderAdvice = advice.nonBootstrapLoaderAdvice();
+        if (nonBootstrapLoaderAdvice == null) {
+            hasher.putBoolean(false);
+        } else {
+            hasher.putBoolean(true);
+            putAdvice(hasher, nonBootstrapLoaderAdvice);
+        }
+    }
+
+    private static void putMethod(Hasher hasher,
+            @Nullable Method method, List<AdviceParameter> parameters) {
+        putString(hasher, method == null ? null : method.getName() + method.getDescriptor());
+        for (AdviceParameter parameter : parameters) {
+            putString(hasher, parameter.kind().name());
+            putString(hasher, parameter.type().getDescriptor());
+            hasher.putInt(parameter.argIndex());
+        }
+    }
+
+    private static void putString(Hasher hasher, @Nullable String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length());
+            hasher.putString(value, UTF_8);
+        }
+    }
+
+    private static class AdvisorsFingerprint {
+
+        private final List<Advice> advisors;
+        private final byte[] fingerprint;
+
+        private AdvisorsFingerprint(List<Advice> advisors, byte[] fingerprint) {
+            this.advisors = advisors;
+            this.fingerprint = fingerprint;
+        }
+    }
 }
@@ -89,7 +89,8 @@ class AdviceGenerator {
                 LazyDefinedClass lazyAdviceClass =
                         new AdviceGenerator(config, instrumentationId, userInstrumentation)
                                 .generate();
-                Advice advice = new AdviceBuilder(lazyAdviceClass, reweavable).build();
+                Advice advice = new AdviceBuilder(lazyAdviceClass, instrumentationId, reweavable)
+                        .build();
                 advisors.put(advice, lazyAdviceClass);
             } catch (Exception e) {
                 logger.error("error creating advice for advice config: {}", config, e);
@@ -742,10 +743,11 @@ class AdviceGenerator {
                 mv.visitLdcInsn(messageTemplate);
             }
             mv.visitVarInsn(ALOAD, 1);
+            mv.visitInsn(config.spanMessageSnapshotEagerly() ? ICONST_1 : ICONST_0);
             mv.visitMethodInsn(INVOKESTATIC,
                     "org/glowroot/instrumentation/engine/bytecode/api/Bytecode",
                     "createMessageTemplate",
-                    "(Ljava/lang/String;Lorg/glowroot/instrumentation/api/MethodInfo;)"
+                    "(Ljava/lang/String;Lorg/glowroot/instrumentation/api/MethodInfo;Z)"
                             + "Lorg/glowroot/instrumentation/engine/bytecode/api/MessageTemplate;",
                     false);
         } else {
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import org.checkerframework.checker.nullness.qual.PolyNull;
+
+import org.glowroot.instrumentation.engine.util.ConcurrentWeakInterner;
+
+// shares the names and analyzed classes that are retained by the analyzed world, since the same
+// names appear over and over (e.g. java.lang.String as a parameter type) and the same classes are
+// frequently analyzed in many sibling class loaders (e.g. the same library in many webapps)
+//
+// the interned values are held weakly, so that they are released along with the per class loader
+// maps in the analyzed world once the class loaders that they were analyzed in have been collected
+//
+// not using String.intern() since that places the strings in the permanent generation on Java 6
+class AnalyzedClassInterner {
+
+    private final ConcurrentWeakInterner<String> names = ConcurrentWeakInterner.create();
+
+    private final ConcurrentWeakInterner<AnalyzedClass> classes = ConcurrentWeakInterner.create();
+
+    @PolyNull
+    String intern(@PolyNull String name) {
+        if (name == null) {
+            return null;
+        }
+        return names.intern(name);
+    }
+
+    // only analyzed classes that do not carry any advice are shared, since equality checks on
+    // advice are expensive, and classes that carry advice are not commonly loaded in many loaders
+    AnalyzedClass intern(AnalyzedClass analyzedClass) {
+        if (!isAdviceFree(analyzedClass)) {
+            return analyzedClass;
+        }
+        return classes.intern(analyzedClass);
+    }
+
+    int getNameCount() {
+        return names.size();
+    }
+
+    int getClassCount() {
+        return classes.size();
+    }
+
+    private static boolean isAdviceFree(AnalyzedClass analyzedClass) {
+        if (!analyzedClass.shimTypes().isEmpty() || !analyzedClass.mixinTypes().isEmpty()
+                || !analyzedClass.nonReweavableMixinTypes().isEmpty()) {
+            return false;
+        }
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            if (!analyzedMethod.advisors().isEmpty()
+                    || !analyzedMethod.subTypeRestrictedAdvisors().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
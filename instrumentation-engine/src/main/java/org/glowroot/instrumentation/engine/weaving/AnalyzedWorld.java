@@ -25,10 +25,10 @@ import java.security.CodeSource;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -47,6 +47,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.instrumentation.engine.config.AdviceConfig;
+import org.glowroot.instrumentation.engine.util.ConcurrentWeakIdentityMap;
 import org.glowroot.instrumentation.engine.weaving.ClassLoaders.LazyDefinedClass;
 
 import static com.google.common.base.Charsets.UTF_8;
@@ -73,11 +74,14 @@ public class AnalyzedWorld {
     // to through another instance, e.g. Optional<ClassLoader>) so that the keys won't be cleared
     // while their associated class loaders are still being used
     //
-    // not using the much more convenient (and concurrent) guava CacheBuilder since it uses many
-    // additional classes that must then be pre-initialized since this is called from inside
+    // not using the much more convenient guava CacheBuilder since it uses many additional classes
+    // that must then be pre-initialized since this is called from inside
     // ClassFileTransformer.transform() (see PreInitializeClasses)
-    private final Map<ClassLoader, ConcurrentMap<String, AnalyzedClass>> world = Collections
-            .synchronizedMap(new WeakHashMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>());
+    //
+    // not using a synchronized WeakHashMap since this is accessed on every transform() and would
+    // then contend on a single lock when many class loaders are loading classes in parallel
+    private final ConcurrentWeakIdentityMap<ClassLoader, ConcurrentMap<String, AnalyzedClass>>
+            world = ConcurrentWeakIdentityMap.create();
 
     // the analyzed classes for the bootstrap class loader (null) have to be stored separately since
     // LoadingCache doesn't accept null keys, and using an Optional<ClassLoader> for the key makes
@@ -88,6 +92,8 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    private final AnalyzedClassInterner interner = new AnalyzedClassInterner();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -132,14 +138,95 @@ public class AnalyzedWorld {
     }
 
     public ImmutableList<ClassLoader> getClassLoaders() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.keySet());
+        return ImmutableList.copyOf(world.keys());
+    }
+
+    // instances that are shared between class loaders are only counted once
+    public MemoryUsage getMemoryUsage() {
+        List<ConcurrentMap<String, AnalyzedClass>> maps = Lists.newArrayList(getWorldValues());
+        maps.add(bootstrapLoaderWorld);
+        Set<Object> seen = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+        int analyzedClassCount = 0;
+        int distinctAnalyzedClassCount = 0;
+        int analyzedMethodCount = 0;
+        for (ConcurrentMap<String, AnalyzedClass> map : maps) {
+            for (AnalyzedClass analyzedClass : map.values()) {
+                analyzedClassCount++;
+                if (seen.add(analyzedClass)) {
+                    distinctAnalyzedClassCount++;
+                    analyzedMethodCount += analyzedClass.analyzedMethods().size();
+                }
+            }
         }
+        return ImmutableMemoryUsage.builder()
+                .classLoaderCount(maps.size() - 1)
+                .analyzedClassCount(analyzedClassCount)
+                .distinctAnalyzedClassCount(distinctAnalyzedClassCount)
+                .analyzedMethodCount(analyzedMethodCount)
+                .internedNameCount(interner.getNameCount())
+                .internedClassCount(interner.getClassCount())
+                .build();
     }
 
     void add(AnalyzedClass analyzedClass, @Nullable ClassLoader loader) {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = getAnalyzedClasses(loader);
-        loaderAnalyzedClasses.put(analyzedClass.name(), analyzedClass);
+        loaderAnalyzedClasses.put(analyzedClass.name(), interner.intern(analyzedClass));
+    }
+
+    AnalyzedClassInterner getInterner() {
+        return interner;
+    }
+
+    // unlike getAnalyzedHierarchy(), this never reads class resources or creates analyzed classes
+    @Nullable
+    AnalyzedClass getExistingAnalyzedClass(String className, @Nullable ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapLoaderWorld.get(className);
+        }
+        ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses = world.get(loader);
+        return loaderAnalyzedClasses == null ? null : loaderAnalyzedClasses.get(className);
+    }
+
+    // same as getExistingAnalyzedClass(), except that if the class has not been analyzed under the
+    // given loader, the class is looked up under the loader that defined it, which is commonly a
+    // parent loader (e.g. container or framework classes that are extended by application classes)
+    //
+    // a super type usually has not been loaded through the given loader yet at the time its sub
+    // class is being transformed, so this also walks the parent loader chain looking for the first
+    // loader that has already loaded the class
+    @Nullable
+    AnalyzedClassAndLoader getExistingAnalyzedClassFromLoaderChain(String className,
+            @Nullable ClassLoader loader) {
+        AnalyzedClass analyzedClass = getExistingAnalyzedClass(className, loader);
+        if (analyzedClass != null) {
+            return ImmutableAnalyzedClassAndLoader.builder()
+                    .analyzedClass(analyzedClass)
+                    .analyzedClassLoader(loader)
+                    .build();
+        }
+        ClassLoader currLoader = loader;
+        while (currLoader != null) {
+            Class<?> clazz;
+            try {
+                clazz = (Class<?>) findLoadedClassMethod.invoke(currLoader, className);
+            } catch (Exception e) {
+                logger.error(e.getMessage(), e);
+                return null;
+            }
+            if (clazz != null) {
+                ClassLoader definingLoader = clazz.getClassLoader();
+                analyzedClass = getExistingAnalyzedClass(className, definingLoader);
+                if (analyzedClass == null) {
+                    return null;
+                }
+                return ImmutableAnalyzedClassAndLoader.builder()
+                        .analyzedClass(analyzedClass)
+                        .analyzedClassLoader(definingLoader)
+                        .build();
+            }
+            currLoader = currLoader.getParent();
+        }
+        return null;
     }
 
     // it's ok if there are duplicates in the returned list (e.g. an interface that appears twice
@@ -197,7 +284,8 @@ public class AnalyzedWorld {
             String subClassName, ParseContext parseContext) {
         AnalyzedClassAndLoader analyzedClassAndLoader;
         try {
-            analyzedClassAndLoader = getOrCreateAnalyzedClass(className, loader, subClassName);
+            analyzedClassAndLoader = getOrCreateAnalyzedClass(className, loader, subClassName,
+                    parseContext.speculative());
         } catch (IOException e) {
             logger.error(e.getMessage(), e);
             return ImmutableList.of();
@@ -223,6 +311,24 @@ public class AnalyzedWorld {
         return superTypes;
     }
 
+    @Value.Immutable
+    public interface MemoryUsage {
+
+        int classLoaderCount();
+
+        // total across all class loaders
+        int analyzedClassCount();
+
+        // analyzed classes that are shared between class loaders are only counted once
+        int distinctAnalyzedClassCount();
+
+        int analyzedMethodCount();
+
+        int internedNameCount();
+
+        int internedClassCount();
+    }
+
     @Value.Immutable
     interface AnalyzedClassAndLoader {
 
@@ -233,7 +339,7 @@ public class AnalyzedWorld {
     }
 
     private AnalyzedClassAndLoader getOrCreateAnalyzedClass(String className,
-            @Nullable ClassLoader loader, String subClassName)
+            @Nullable ClassLoader loader, String subClassName, boolean speculative)
             throws ClassNotFoundException, IOException {
         ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses =
                 getAnalyzedClasses(loader);
@@ -244,7 +350,8 @@ public class AnalyzedWorld {
                     .analyzedClassLoader(loader)
                     .build();
         }
-        ClassLoader analyzedClassLoader = getAnalyzedLoader(className, loader, subClassName);
+        ClassLoader analyzedClassLoader =
+                getAnalyzedLoader(className, loader, subClassName, speculative);
         loaderAnalyzedClasses = getAnalyzedClasses(analyzedClassLoader);
         analyzedClass = loaderAnalyzedClasses.get(className);
         if (analyzedClass == null) {
@@ -254,7 +361,7 @@ public class AnalyzedWorld {
                         subClassName, analyzedClassLoader.getClass().getName(),
                         analyzedClassLoader.hashCode());
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
+            analyzedClass = createAnalyzedClass(className, analyzedClassLoader, speculative);
             analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
         }
         return ImmutableAnalyzedClassAndLoader.builder()
@@ -284,8 +391,8 @@ public class AnalyzedWorld {
         return classes;
     }
 
-    private AnalyzedClass createAnalyzedClass(String className, @Nullable ClassLoader loader)
-            throws ClassNotFoundException, IOException {
+    private AnalyzedClass createAnalyzedClass(String className, @Nullable ClassLoader loader,
+            boolean speculative) throws ClassNotFoundException, IOException {
         String path = ClassNames.toInternalName(className) + ".class";
         URL url;
         if (loader == null) {
@@ -314,11 +421,46 @@ public class AnalyzedWorld {
         new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         // passing noLongerNeedToWeaveMainMethods=true since not really weaving bytecode here
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
-                mixinTypes, loader, this, null, bytes, null, true);
+                mixinTypes, loader, this, null, bytes, null, true, speculative);
         classAnalyzer.analyzeMethods();
         return classAnalyzer.getAnalyzedClass();
     }
 
+    // used by SpeculativeAnalyzer to check if a class still needs to be analyzed ahead of it being
+    // loaded
+    boolean isAnalyzedOrLoaded(String className, ClassLoader loader) {
+        if (getAnalyzedClasses(loader).containsKey(className)) {
+            return true;
+        }
+        try {
+            return findLoadedClassMethod.invoke(loader, className) != null;
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+            // err on the side of not analyzing
+            return true;
+        }
+    }
+
+    // used by SpeculativeAnalyzer to analyze a class ahead of it being loaded, returns true if the
+    // class will need to be woven when it is loaded
+    //
+    // passing noLongerNeedToWeaveMainMethods=false so that a class with a main method is reported
+    // as needing to be woven regardless of when it ends up being loaded
+    boolean analyzeBeforeLoading(String className, byte[] bytes, ClassLoader loader,
+            List<Advice> advisors) throws ClassNotFoundException, IOException {
+        List<Advice> mergedAdvisors =
+                mergeInstrumentationAnnotations(advisors, bytes, loader, className);
+        ThinClassVisitor accv = new ThinClassVisitor();
+        new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), mergedAdvisors,
+                shimTypes, mixinTypes, loader, this, null, bytes, null, false, true);
+        classAnalyzer.analyzeMethods();
+        putAnalyzedClass(getAnalyzedClasses(loader), classAnalyzer.getAnalyzedClass());
+        // classes with @Instrumentation annotations are always reported as needing to be woven
+        // since their advisors are only generated when merging
+        return mergedAdvisors != advisors || classAnalyzer.isWeavingRequired();
+    }
+
     private @Nullable AnalyzedClass tryToReuseFromParentLoader(String className,
             ClassLoader originalLoader, String path, URL url) {
         ClassLoader loader = originalLoader;
@@ -401,27 +543,26 @@ public class AnalyzedWorld {
         if (loader == null) {
             return bootstrapLoaderWorld;
         } else {
-            // this synchronization is for atomicity of get/put
-            synchronized (world) {
-                ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
-                if (map == null) {
-                    map = new ConcurrentHashMap<String, AnalyzedClass>();
-                    world.put(loader, map);
+            ConcurrentMap<String, AnalyzedClass> map = world.get(loader);
+            if (map == null) {
+                map = new ConcurrentHashMap<String, AnalyzedClass>();
+                ConcurrentMap<String, AnalyzedClass> existingMap = world.putIfAbsent(loader, map);
+                if (existingMap != null) {
+                    map = existingMap;
                 }
-                return map;
             }
+            return map;
         }
     }
 
-    private ImmutableList<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
-        synchronized (world) {
-            return ImmutableList.copyOf(world.values());
-        }
+    private List<ConcurrentMap<String, AnalyzedClass>> getWorldValues() {
+        return world.values();
     }
 
-    private static AnalyzedClass putAnalyzedClass(
+    private AnalyzedClass putAnalyzedClass(
             ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
             AnalyzedClass analyzedClass) {
+        analyzedClass = interner.intern(analyzedClass);
         AnalyzedClass existingAnalyzedClass =
                 loaderAnalyzedClasses.putIfAbsent(analyzedClass.name(), analyzedClass);
         if (existingAnalyzedClass != null) {
@@ -432,7 +573,7 @@ public class AnalyzedWorld {
     }
 
     private @Nullable ClassLoader getAnalyzedLoader(String className, @Nullable ClassLoader loader,
-            String subClassName) {
+            String subClassName, boolean speculative) {
         if (loader == null) {
             return null;
         }
@@ -448,7 +589,9 @@ public class AnalyzedWorld {
         if (clazz == null) {
             logger.debug("super class {} of {} not found in loader {}@{}", className, subClassName,
                     loader.getClass().getName(), loader.hashCode());
-            if (preloadSomeSuperTypesCache != null) {
+            // speculative analysis runs ahead of class loading, and so it would record nearly every
+            // super type relationship in the jar, most of which would never be needed
+            if (preloadSomeSuperTypesCache != null && !speculative) {
                 preloadSomeSuperTypesCache.put(subClassName, className);
             }
             return loader;
@@ -620,6 +763,9 @@ public class AnalyzedWorld {
 
         abstract @Nullable CodeSource codeSource();
 
+        // true when analyzing ahead of class loading (see SpeculativeAnalyzer)
+        abstract boolean speculative();
+
         // toString() is used in logger warning construction
         @Override
         public String toString() {
@@ -35,6 +35,7 @@ import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextPlus;
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.instrumentation.engine.impl.OptionalThreadContextImpl;
 import org.glowroot.instrumentation.engine.spi.AgentSPI;
+import org.glowroot.instrumentation.engine.spi.Sampler;
 
 public class BytecodeServiceImpl implements BytecodeService {
 
@@ -47,6 +48,8 @@ public class BytecodeServiceImpl implements BytecodeService {
 
     private final AgentSPI agentSPI;
 
+    private volatile @Nullable Sampler sampler;
+
     private final List<OnEnteringMain> onEnteringMainList = Lists.newCopyOnWriteArrayList();
     private final AtomicBoolean hasRunOnEnteringMain = new AtomicBoolean();
 
@@ -73,6 +76,10 @@ public class BytecodeServiceImpl implements BytecodeService {
         onEnteringMainList.add(onEnteringMain);
     }
 
+    public void setSampler(@Nullable Sampler sampler) {
+        this.sampler = sampler;
+    }
+
     public void setOnExitingGetPlatformMBeanServer(Runnable onExitingGetPlatformMBeanServer) {
         this.onExitingGetPlatformMBeanServer = onExitingGetPlatformMBeanServer;
     }
@@ -132,8 +139,15 @@ public class BytecodeServiceImpl implements BytecodeService {
     public ThreadContextPlus createOptionalThreadContext(
             ThreadContextThreadLocal.Holder threadContextHolder, int currentNestingGroupId,
             int currentSuppressionKeyId) {
-        return new OptionalThreadContextImpl(agentSPI, threadContextHolder, currentNestingGroupId,
-                currentSuppressionKeyId);
+        return new OptionalThreadContextImpl(agentSPI, sampler, threadContextHolder,
+                currentNestingGroupId, currentSuppressionKeyId);
+    }
+
+    @Override
+    public void exitingAdviceFrame(@Nullable ThreadContextPlus threadContext) {
+        if (threadContext instanceof OptionalThreadContextImpl) {
+            ((OptionalThreadContextImpl) threadContext).exitingAdviceFrame();
+        }
     }
 
     @Override
@@ -151,6 +165,12 @@ public class BytecodeServiceImpl implements BytecodeService {
         return MessageTemplateImpl.create(template, methodInfo);
     }
 
+    @Override
+    public MessageTemplate createMessageTemplate(String template, MethodInfo methodInfo,
+            boolean snapshotEagerly) {
+        return MessageTemplateImpl.create(template, methodInfo, snapshotEagerly);
+    }
+
     @Override
     public MessageSupplier createMessageSupplier(MessageTemplate template, Object receiver,
             String methodName, @Nullable Object... args) {
@@ -70,6 +70,7 @@ class ClassAnalyzer {
     private final String className;
     private final boolean intf;
     private final @Nullable ClassLoader loader;
+    private final AnalyzedClassInterner interner;
 
     private final ImmutableAnalyzedClass.Builder analyzedClassBuilder;
     private final ImmutableList<AdviceMatcher> adviceMatchers;
@@ -96,13 +97,18 @@ class ClassAnalyzer {
     ClassAnalyzer(ThinClass thinClass, List<Advice> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld,
             @Nullable CodeSource codeSource, byte[] classBytes,
-            @Nullable Class<?> classBeingRedefined, boolean noLongerNeedToWeaveMainMethods) {
+            @Nullable Class<?> classBeingRedefined, boolean noLongerNeedToWeaveMainMethods,
+            boolean speculative) {
         this.thinClass = thinClass;
         this.loader = loader;
-        ImmutableList<String> interfaceNames = ClassNames.fromInternalNames(thinClass.interfaces());
-        className = ClassNames.fromInternalName(thinClass.name());
+        interner = analyzedWorld.getInterner();
+        List<String> interfaceNames = Lists.newArrayList();
+        for (String interfaceName : thinClass.interfaces()) {
+            interfaceNames.add(interner.intern(ClassNames.fromInternalName(interfaceName)));
+        }
+        className = interner.intern(ClassNames.fromInternalName(thinClass.name()));
         intf = Modifier.isInterface(thinClass.access());
-        String superClassName = ClassNames.fromInternalName(thinClass.superName());
+        String superClassName = interner.intern(ClassNames.fromInternalName(thinClass.superName()));
         analyzedClassBuilder = ImmutableAnalyzedClass.builder()
                 .modifiers(thinClass.access())
                 .name(className)
@@ -121,6 +127,7 @@ class ClassAnalyzer {
         ParseContext parseContext = ImmutableParseContext.builder()
                 .className(className)
                 .codeSource(codeSource)
+                .speculative(speculative)
                 .build();
         List<AnalyzedClass> interfaceAnalyzedHierarchy = Lists.newArrayList();
         // it's ok if there are duplicates in the superAnalyzedClasses list (e.g. an interface
@@ -283,11 +290,11 @@ class ClassAnalyzer {
     private List<Advice> analyzeMethod(ThinMethod thinMethod) {
         if (Modifier.isFinal(thinMethod.access()) && Modifier.isPublic(thinMethod.access())) {
             ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
-                    .name(thinMethod.name());
+                    .name(interner.intern(thinMethod.name()));
             List<Type> parameterTypes =
                     Arrays.asList(Type.getArgumentTypes(thinMethod.descriptor()));
             for (Type parameterType : parameterTypes) {
-                builder.addParameterTypes(parameterType.getClassName());
+                builder.addParameterTypes(interner.intern(parameterType.getClassName()));
             }
             analyzedClassBuilder.addPublicFinalMethods(builder.build());
         }
@@ -304,15 +311,15 @@ class ClassAnalyzer {
             return ImmutableList.of();
         }
         ImmutableAnalyzedMethod.Builder builder = ImmutableAnalyzedMethod.builder();
-        builder.name(thinMethod.name());
+        builder.name(interner.intern(thinMethod.name()));
         for (Type parameterType : parameterTypes) {
-            builder.addParameterTypes(parameterType.getClassName());
+            builder.addParameterTypes(interner.intern(parameterType.getClassName()));
         }
-        builder.returnType(returnType.getClassName())
+        builder.returnType(interner.intern(returnType.getClassName()))
                 .modifiers(thinMethod.access())
-                .signature(thinMethod.signature());
+                .signature(interner.intern(thinMethod.signature()));
         for (String exception : thinMethod.exceptions()) {
-            builder.addExceptions(ClassNames.fromInternalName(exception));
+            builder.addExceptions(interner.intern(ClassNames.fromInternalName(exception)));
         }
         List<Advice> subTypeRestrictedAdvisors = Lists.newArrayList();
         for (Iterator<Advice> i = matchingAdvisors.iterator(); i.hasNext();) {
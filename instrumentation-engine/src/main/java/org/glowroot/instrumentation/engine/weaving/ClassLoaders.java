@@ -111,11 +111,11 @@ class ClassLoaders {
         defineClassIfNotExists(lazyDefinedClass, loader, new HashSet<Type>());
     }
 
-    static void defineClass(String name, byte[] bytes, ClassLoader loader) throws Exception {
+    static Class<?> defineClass(String name, byte[] bytes, ClassLoader loader) throws Exception {
         Method defineClassMethod = ClassLoader.class.getDeclaredMethod("defineClass",
                 String.class, byte[].class, int.class, int.class);
         defineClassMethod.setAccessible(true);
-        defineClassMethod.invoke(loader, name, bytes, 0, bytes.length);
+        return (Class<?>) defineClassMethod.invoke(loader, name, bytes, 0, bytes.length);
     }
 
     static void createDirectoryOrCleanPreviousContentsWithPrefix(File dir, String prefix)
@@ -15,10 +15,6 @@
  */
 package org.glowroot.instrumentation.engine.weaving;
 
-import java.util.List;
-
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.PolyNull;
 
 public class ClassNames {
@@ -36,16 +32,4 @@ public class ClassNames {
     public static String toInternalName(String className) {
         return className.replace('.', '/');
     }
-
-    static ImmutableList<String> fromInternalNames(List<String> internalNames) {
-        if (internalNames.isEmpty()) {
-            // optimization for a common case
-            return ImmutableList.of();
-        }
-        List<String> classNames = Lists.newArrayList();
-        for (String internalName : internalNames) {
-            classNames.add(internalName.replace('/', '.'));
-        }
-        return ImmutableList.copyOf(classNames);
-    }
 }
@@ -0,0 +1,586 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.Type;
+
+import org.glowroot.instrumentation.api.weaving.Advice.Pointcut;
+import org.glowroot.instrumentation.engine.weaving.AnalyzedWorld.AnalyzedClassAndLoader;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static org.objectweb.asm.Opcodes.ACC_BRIDGE;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_MODULE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+
+// conservative prefilter that is consulted on the raw class bytes before any ASM parsing, in order
+// to quickly identify classes that cannot possibly be matched by any advisor, shim type or mixin
+// type (which is the vast majority of classes in a typical application)
+//
+// a class is only rejected when
+// * none of the keywords derived from the advisors (annotation descriptors, method names, etc)
+//   appear anywhere in its constant pool
+// * neither its name nor any of its super type names are of interest
+// * all of its super types have already been analyzed and none of them carry advice, shim types or
+//   mixin types
+//
+// everything else (including all interfaces) falls through to the full ClassAnalyzer path
+public class FastRejectFilter {
+
+    // limit on the number of super types walked before giving up and falling through
+    private static final int MAX_SUPER_TYPES = 64;
+
+    private static final String MAIN_METHOD_DESC = "([Ljava/lang/String;)V";
+
+    private final List<Advice> advisors;
+
+    // false if there is any advice for which it is not possible to derive a keyword or class name
+    // that must be present in order for it to match (e.g. advice on all methods of all classes)
+    private final boolean enabled;
+
+    private final @Nullable KeywordMatcher keywordMatcher;
+    private final ImmutableSet<String> interestingClassNames;
+    private final ImmutableList<Pattern> interestingClassNamePatterns;
+
+    private FastRejectFilter(List<Advice> advisors, boolean enabled,
+            @Nullable KeywordMatcher keywordMatcher, Set<String> interestingClassNames,
+            List<Pattern> interestingClassNamePatterns) {
+        this.advisors = advisors;
+        this.enabled = enabled;
+        this.keywordMatcher = keywordMatcher;
+        this.interestingClassNames = ImmutableSet.copyOf(interestingClassNames);
+        this.interestingClassNamePatterns = ImmutableList.copyOf(interestingClassNamePatterns);
+    }
+
+    static FastRejectFilter create(List<Advice> advisors, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        Set<String> keywords = Sets.newHashSet();
+        Set<String> interestingClassNames = Sets.newHashSet();
+        List<Pattern> interestingClassNamePatterns = Lists.newArrayList();
+        // these are special cased in ClassAnalyzer and Weaver
+        keywords.add("Ljavax/ejb/Remote;");
+        keywords.add("Ljavax/ejb/Stateless;");
+        keywords.add("Lorg/glowroot/instrumentation/annotation/api/Instrumentation$");
+        interestingClassNames.add(ClassLoader.class.getName());
+        interestingClassNames.add("org.apache.commons.daemon.support.DaemonLoader");
+        interestingClassNames
+                .add(ClassNames.fromInternalName(ImportantClassNames.JBOSS_WELD_HACK_CLASS_NAME));
+        interestingClassNames
+                .add(ClassNames.fromInternalName(ImportantClassNames.JBOSS_URL_HACK_CLASS_NAME));
+        for (ShimType shimType : shimTypes) {
+            interestingClassNames.addAll(shimType.targets());
+        }
+        for (MixinType mixinType : mixinTypes) {
+            interestingClassNames.addAll(mixinType.targets());
+        }
+        boolean enabled = true;
+        for (Advice advice : advisors) {
+            if (!addAdvice(advice, keywords, interestingClassNames,
+                    interestingClassNamePatterns)) {
+                enabled = false;
+            }
+        }
+        KeywordMatcher keywordMatcher = enabled ? KeywordMatcher.create(keywords) : null;
+        return new FastRejectFilter(advisors, enabled, keywordMatcher, interestingClassNames,
+                interestingClassNamePatterns);
+    }
+
+    List<Advice> getAdvisors() {
+        return advisors;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    // returns the analyzed class if the class does not need to be woven, or null if the class needs
+    // to go through the full analysis
+    @Nullable
+    AnalyzedClass tryReject(byte[] classBytes, @Nullable ClassLoader loader,
+            AnalyzedWorld analyzedWorld, boolean noLongerNeedToWeaveMainMethods) {
+        if (!enabled) {
+            return null;
+        }
+        try {
+            return tryRejectInternal(classBytes, loader, analyzedWorld,
+                    noLongerNeedToWeaveMainMethods);
+        } catch (RuntimeException e) {
+            // malformed class bytes, leave it to the full path to report
+            return null;
+        }
+    }
+
+    private @Nullable AnalyzedClass tryRejectInternal(byte[] b, @Nullable ClassLoader loader,
+            AnalyzedWorld analyzedWorld, boolean noLongerNeedToWeaveMainMethods) {
+        if (readInt(b, 0) != 0xCAFEBABE) {
+            return null;
+        }
+        int constantPoolCount = readUnsignedShort(b, 8);
+        // offset of each constant pool entry, just past its tag
+        int[] offsets = new int[constantPoolCount];
+        int pos = 10;
+        for (int i = 1; i < constantPoolCount; i++) {
+            int tag = b[pos];
+            offsets[i] = pos + 1;
+            switch (tag) {
+                case 1: // CONSTANT_Utf8
+                    int length = readUnsignedShort(b, pos + 1);
+                    if (keywordMatcher != null && keywordMatcher.matches(b, pos + 3, length)) {
+                        return null;
+                    }
+                    pos += 3 + length;
+                    break;
+                case 3: // CONSTANT_Integer
+                case 4: // CONSTANT_Float
+                case 9: // CONSTANT_Fieldref
+                case 10: // CONSTANT_Methodref
+                case 11: // CONSTANT_InterfaceMethodref
+                case 12: // CONSTANT_NameAndType
+                case 17: // CONSTANT_Dynamic
+                case 18: // CONSTANT_InvokeDynamic
+                    pos += 5;
+                    break;
+                case 5: // CONSTANT_Long
+                case 6: // CONSTANT_Double
+                    pos += 9;
+                    // these take up two constant pool slots
+                    i++;
+                    break;
+                case 7: // CONSTANT_Class
+                case 8: // CONSTANT_String
+                case 16: // CONSTANT_MethodType
+                case 19: // CONSTANT_Module
+                case 20: // CONSTANT_Package
+                    pos += 3;
+                    break;
+                case 15: // CONSTANT_MethodHandle
+                    pos += 4;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        int access = readUnsignedShort(b, pos);
+        if ((access & (ACC_INTERFACE | ACC_MODULE)) != 0) {
+            return null;
+        }
+        String className = readClassName(b, offsets, readUnsignedShort(b, pos + 2));
+        int superClassIndex = readUnsignedShort(b, pos + 4);
+        if (className == null || superClassIndex == 0 || isInteresting(className)) {
+            return null;
+        }
+        String superClassName = readClassName(b, offsets, superClassIndex);
+        if (superClassName == null) {
+            return null;
+        }
+        int interfaceCount = readUnsignedShort(b, pos + 6);
+        pos += 8;
+        List<String> interfaceNames = Lists.newArrayListWithCapacity(interfaceCount);
+        for (int i = 0; i < interfaceCount; i++) {
+            String interfaceName = readClassName(b, offsets, readUnsignedShort(b, pos));
+            if (interfaceName == null) {
+                return null;
+            }
+            interfaceNames.add(interfaceName);
+            pos += 2;
+        }
+        if (!isSuperTypesRejectable(superClassName, interfaceNames, loader, analyzedWorld)) {
+            return null;
+        }
+        int fieldCount = readUnsignedShort(b, pos);
+        pos += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            pos = skipAttributes(b, pos + 6);
+        }
+        int methodCount = readUnsignedShort(b, pos);
+        pos += 2;
+        // ClassAnalyzer visits bridge methods first, so the public final methods are collected in
+        // the same order here
+        List<PublicFinalMethod> bridgePublicFinalMethods = Lists.newArrayList();
+        List<PublicFinalMethod> nonBridgePublicFinalMethods = Lists.newArrayList();
+        for (int i = 0; i < methodCount; i++) {
+            int methodAccess = readUnsignedShort(b, pos);
+            if ((methodAccess & ACC_PUBLIC) != 0
+                    && (methodAccess & (ACC_FINAL | ACC_STATIC)) != 0) {
+                String name = readUtf8(b, offsets, readUnsignedShort(b, pos + 2));
+                String descriptor = readUtf8(b, offsets, readUnsignedShort(b, pos + 4));
+                if (name == null || descriptor == null) {
+                    return null;
+                }
+                if (!noLongerNeedToWeaveMainMethods && (methodAccess & ACC_STATIC) != 0
+                        && (name.equals("main") || name.startsWith("start"))
+                        && descriptor.equals(MAIN_METHOD_DESC)) {
+                    return null;
+                }
+                if ((methodAccess & ACC_FINAL) != 0) {
+                    PublicFinalMethod publicFinalMethod = createPublicFinalMethod(name, descriptor,
+                            analyzedWorld.getInterner());
+                    if ((methodAccess & ACC_BRIDGE) != 0) {
+                        bridgePublicFinalMethods.add(publicFinalMethod);
+                    } else {
+                        nonBridgePublicFinalMethods.add(publicFinalMethod);
+                    }
+                }
+            }
+            pos = skipAttributes(b, pos + 6);
+        }
+        AnalyzedClassInterner interner = analyzedWorld.getInterner();
+        ImmutableAnalyzedClass.Builder builder = ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(interner.intern(className))
+                .superName(interner.intern(superClassName));
+        for (String interfaceName : interfaceNames) {
+            builder.addInterfaceNames(interner.intern(interfaceName));
+        }
+        return builder
+                .addAllPublicFinalMethods(bridgePublicFinalMethods)
+                .addAllPublicFinalMethods(nonBridgePublicFinalMethods)
+                .ejbRemote(false)
+                .build();
+    }
+
+    private boolean isSuperTypesRejectable(String superClassName, List<String> interfaceNames,
+            @Nullable ClassLoader loader, AnalyzedWorld analyzedWorld) {
+        Deque<SuperType> remaining = new ArrayDeque<SuperType>();
+        remaining.add(new SuperType(superClassName, loader));
+        for (String interfaceName : interfaceNames) {
+            remaining.add(new SuperType(interfaceName, loader));
+        }
+        Set<String> visited = new HashSet<String>();
+        while (!remaining.isEmpty()) {
+            SuperType superType = remaining.removeFirst();
+            String name = superType.name;
+            if (!visited.add(name)) {
+                continue;
+            }
+            if (visited.size() > MAX_SUPER_TYPES || isInteresting(name)) {
+                return false;
+            }
+            if (name.equals("java.lang.Object")) {
+                continue;
+            }
+            // super types are resolved through the parent loader chain, since they are very often
+            // defined by a parent loader (e.g. servlet container or spring boot launcher loaders)
+            AnalyzedClassAndLoader analyzedClassAndLoader =
+                    analyzedWorld.getExistingAnalyzedClassFromLoaderChain(name, superType.loader);
+            if (analyzedClassAndLoader == null && superType.loader != null
+                    && name.startsWith("java.")) {
+                // java.* classes can only be defined by the bootstrap class loader (or by the
+                // platform class loader in Java 9+, in which case this lookup just misses)
+                analyzedClassAndLoader =
+                        analyzedWorld.getExistingAnalyzedClassFromLoaderChain(name, null);
+            }
+            if (analyzedClassAndLoader == null) {
+                return false;
+            }
+            AnalyzedClass analyzedClass = analyzedClassAndLoader.analyzedClass();
+            if (!isRejectable(analyzedClass)) {
+                return false;
+            }
+            ClassLoader analyzedClassLoader = analyzedClassAndLoader.analyzedClassLoader();
+            String superName = analyzedClass.superName();
+            if (superName != null) {
+                remaining.add(new SuperType(superName, analyzedClassLoader));
+            }
+            for (String interfaceName : analyzedClass.interfaceNames()) {
+                remaining.add(new SuperType(interfaceName, analyzedClassLoader));
+            }
+        }
+        return true;
+    }
+
+    private boolean isInteresting(String className) {
+        if (interestingClassNames.contains(className)) {
+            return true;
+        }
+        for (Pattern pattern : interestingClassNamePatterns) {
+            if (pattern.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRejectable(AnalyzedClass superAnalyzedClass) {
+        if (!superAnalyzedClass.shimTypes().isEmpty() || !superAnalyzedClass.mixinTypes().isEmpty()
+                || !superAnalyzedClass.nonReweavableMixinTypes().isEmpty()
+                || superAnalyzedClass.ejbRemote()) {
+            return false;
+        }
+        // analyzed methods with no advice are expected here, since all interface methods are
+        // tracked (see ClassAnalyzer.analyzeMethod())
+        for (AnalyzedMethod analyzedMethod : superAnalyzedClass.analyzedMethods()) {
+            if (!analyzedMethod.advisors().isEmpty()
+                    || !analyzedMethod.subTypeRestrictedAdvisors().isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns false if no keyword or class name can be derived for the advice
+    private static boolean addAdvice(Advice advice, Set<String> keywords,
+            Set<String> interestingClassNames, List<Pattern> interestingClassNamePatterns) {
+        Pointcut pointcut = advice.pointcut();
+        // subTypeRestriction does not need to be considered here, since the advice can only apply
+        // to subtypes of className, and the analyzed className will carry the advice (in either
+        // advisors or subTypeRestrictedAdvisors)
+        Pattern classNamePattern = advice.pointcutClassNamePattern();
+        if (classNamePattern != null) {
+            interestingClassNamePatterns.add(classNamePattern);
+            return true;
+        }
+        if (!pointcut.className().isEmpty()) {
+            interestingClassNames.add(pointcut.className());
+            return true;
+        }
+        if (!pointcut.classAnnotation().isEmpty()) {
+            return addAnnotationKeywords(pointcut.classAnnotation(),
+                    advice.pointcutClassAnnotationPattern(), keywords);
+        }
+        Pattern superTypeRestrictionPattern = advice.pointcutSuperTypeRestrictionPattern();
+        if (superTypeRestrictionPattern != null) {
+            interestingClassNamePatterns.add(superTypeRestrictionPattern);
+            return true;
+        }
+        if (!pointcut.superTypeRestriction().isEmpty()) {
+            interestingClassNames.add(pointcut.superTypeRestriction());
+            return true;
+        }
+        if (!pointcut.methodAnnotation().isEmpty()) {
+            return addAnnotationKeywords(pointcut.methodAnnotation(),
+                    advice.pointcutMethodAnnotationPattern(), keywords);
+        }
+        if (!pointcut.methodName().isEmpty()) {
+            if (advice.pointcutMethodNamePattern() == null) {
+                keywords.add(pointcut.methodName());
+                return true;
+            }
+            return addPatternKeywords(pointcut.methodName(), false, keywords);
+        }
+        return false;
+    }
+
+    private static boolean addAnnotationKeywords(String annotation, @Nullable Pattern pattern,
+            Set<String> keywords) {
+        if (pattern == null) {
+            keywords.add('L' + ClassNames.toInternalName(annotation) + ';');
+            return true;
+        }
+        return addPatternKeywords(annotation, true, keywords);
+    }
+
+    // adds the longest literal fragment of each alternative of a limited (| and *) pattern, see
+    // MaybePatterns.buildPattern()
+    private static boolean addPatternKeywords(String maybePattern, boolean className,
+            Set<String> keywords) {
+        if (maybePattern.startsWith("/") && maybePattern.endsWith("/")) {
+            // full regex, no keyword can be derived
+            return false;
+        }
+        for (String part : maybePattern.split("\\|")) {
+            String longestFragment = "";
+            for (String fragment : part.split("\\*")) {
+                if (fragment.length() > longestFragment.length()) {
+                    longestFragment = fragment;
+                }
+            }
+            if (longestFragment.isEmpty()) {
+                return false;
+            }
+            keywords.add(className ? ClassNames.toInternalName(longestFragment) : longestFragment);
+        }
+        return true;
+    }
+
+    private static PublicFinalMethod createPublicFinalMethod(String name, String descriptor,
+            AnalyzedClassInterner interner) {
+        ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
+                .name(interner.intern(name));
+        for (Type parameterType : Type.getArgumentTypes(descriptor)) {
+            builder.addParameterTypes(interner.intern(parameterType.getClassName()));
+        }
+        return builder.build();
+    }
+
+    private static int skipAttributes(byte[] b, int pos) {
+        int attributeCount = readUnsignedShort(b, pos);
+        pos += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            pos += 6 + readInt(b, pos + 2);
+        }
+        return pos;
+    }
+
+    private static @Nullable String readClassName(byte[] b, int[] offsets, int classIndex) {
+        String internalName = readUtf8(b, offsets, readUnsignedShort(b, offsets[classIndex]));
+        return internalName == null ? null : internalName.replace('/', '.');
+    }
+
+    // returns null for non-ascii strings, which are rare enough in class, method and descriptor
+    // names that they are simply left to the full path (which avoids dealing with modified utf8)
+    private static @Nullable String readUtf8(byte[] b, int[] offsets, int index) {
+        int offset = offsets[index];
+        int length = readUnsignedShort(b, offset);
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte c = b[offset + 2 + i];
+            if (c <= 0) {
+                return null;
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+
+    private static int readUnsignedShort(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 24) | ((b[pos + 1] & 0xFF) << 16)
+                | ((b[pos + 2] & 0xFF) << 8) | (b[pos + 3] & 0xFF);
+    }
+
+    private static class SuperType {
+
+        private final String name;
+        // the loader to resolve the super type from
+        private final @Nullable ClassLoader loader;
+
+        private SuperType(String name, @Nullable ClassLoader loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+    }
+
+    // Aho-Corasick automaton over the keyword bytes, compiled into a dense transition table so
+    // that each constant pool utf8 entry can be checked against all keywords in a single pass
+    private static class KeywordMatcher {
+
+        // maps each byte value to its symbol, symbol 0 is used for all bytes that do not appear in
+        // any keyword (and always transitions back to the root)
+        private final int[] symbols;
+        private final int symbolCount;
+        private final int[] transitions;
+        private final boolean[] accepting;
+
+        private KeywordMatcher(int[] symbols, int symbolCount, int[] transitions,
+                boolean[] accepting) {
+            this.symbols = symbols;
+            this.symbolCount = symbolCount;
+            this.transitions = transitions;
+            this.accepting = accepting;
+        }
+
+        private static @Nullable KeywordMatcher create(Set<String> keywords) {
+            List<byte[]> keywordBytes = Lists.newArrayList();
+            int[] symbols = new int[256];
+            int symbolCount = 1;
+            int maxStates = 1;
+            for (String keyword : keywords) {
+                byte[] bytes = keyword.getBytes(UTF_8);
+                if (bytes.length == 0) {
+                    continue;
+                }
+                keywordBytes.add(bytes);
+                for (byte c : bytes) {
+                    if (symbols[c & 0xFF] == 0) {
+                        symbols[c & 0xFF] = symbolCount++;
+                    }
+                }
+                maxStates += bytes.length;
+            }
+            if (keywordBytes.isEmpty()) {
+                return null;
+            }
+            int[] transitions = new int[maxStates * symbolCount];
+            Arrays.fill(transitions, -1);
+            boolean[] accepting = new boolean[maxStates];
+            // build the trie
+            int stateCount = 1;
+            for (byte[] bytes : keywordBytes) {
+                int state = 0;
+                for (byte c : bytes) {
+                    int i = state * symbolCount + symbols[c & 0xFF];
+                    if (transitions[i] == -1) {
+                        transitions[i] = stateCount++;
+                    }
+                    state = transitions[i];
+                }
+                accepting[state] = true;
+            }
+            // breadth first over the trie, filling in the missing transitions from the failure
+            // links (a state's failure link is always shallower, so it is already complete)
+            int[] failures = new int[stateCount];
+            int[] queue = new int[stateCount];
+            int head = 0;
+            int tail = 0;
+            for (int symbol = 0; symbol < symbolCount; symbol++) {
+                int next = transitions[symbol];
+                if (next == -1) {
+                    transitions[symbol] = 0;
+                } else {
+                    failures[next] = 0;
+                    queue[tail++] = next;
+                }
+            }
+            while (head < tail) {
+                int state = queue[head++];
+                accepting[state] |= accepting[failures[state]];
+                for (int symbol = 0; symbol < symbolCount; symbol++) {
+                    int i = state * symbolCount + symbol;
+                    int failureTransition = transitions[failures[state] * symbolCount + symbol];
+                    if (transitions[i] == -1) {
+                        transitions[i] = failureTransition;
+                    } else {
+                        failures[transitions[i]] = failureTransition;
+                        queue[tail++] = transitions[i];
+                    }
+                }
+            }
+            return new KeywordMatcher(symbols, symbolCount,
+                    Arrays.copyOf(transitions, stateCount * symbolCount),
+                    Arrays.copyOf(accepting, stateCount));
+        }
+
+        private boolean matches(byte[] b, int offset, int length) {
+            int state = 0;
+            for (int i = offset; i < offset + length; i++) {
+                state = transitions[state * symbolCount + symbols[b[i] & 0xFF]];
+                if (accepting[state]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
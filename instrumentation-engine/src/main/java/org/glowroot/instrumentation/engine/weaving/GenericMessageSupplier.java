@@ -28,36 +28,45 @@ import org.glowroot.instrumentation.engine.weaving.MessageTemplateImpl.ValuePath
 
 public class GenericMessageSupplier extends MessageSupplier {
 
+    private static final /*@Nullable*/ Object[] EMPTY = new Object[0];
+
     private final MessageTemplateImpl template;
-    private final String[] resolvedReceiverPathParts;
-    private final String[] resolvedArgPathParts;
-    private volatile String /*@MonotonicNonNull*/[] resolvedReturnValuePathParts;
+    // each element is either an immutable value (rendered lazily in getMessageText()), or a value
+    // that has already been rendered to a string (see ValuePathPart.evaluatePartLazily())
+    private final /*@Nullable*/ Object[] resolvedReceiverPathParts;
+    private final /*@Nullable*/ Object[] resolvedArgPathParts;
+    private volatile /*@Nullable*/ Object /*@MonotonicNonNull*/[] resolvedReturnValuePathParts;
     private final String methodName;
 
     public static GenericMessageSupplier create(MessageTemplateImpl template, Object receiver,
             String methodName, @Nullable Object... args) {
-        // render paths to strings immediately in case the objects are mutable
-        String[] resolvedReceiverPathParts = new String[template.getThisPathParts().size()];
+        // evaluate paths immediately in case the objects are mutable, but only render the values
+        // to strings immediately if they are mutable (or if the template snapshots eagerly)
+        boolean snapshotEagerly = template.isSnapshotEagerly();
+        /*@Nullable*/ Object[] resolvedReceiverPathParts =
+                newArray(template.getThisPathParts().size());
         int i = 0;
         for (ValuePathPart part : template.getThisPathParts()) {
-            resolvedReceiverPathParts[i++] = part.evaluatePart(receiver);
+            resolvedReceiverPathParts[i++] = evaluatePart(part, receiver, snapshotEagerly);
         }
-        String[] resolvedArgPathParts = new String[template.getArgPathParts().size()];
+        /*@Nullable*/ Object[] resolvedArgPathParts = newArray(template.getArgPathParts().size());
         i = 0;
         for (ArgPathPart part : template.getArgPathParts()) {
             if (part.getArgNumber() >= args.length) {
                 resolvedArgPathParts[i++] =
                         "<requested arg index out of bounds: " + part.getArgNumber() + ">";
             } else {
-                resolvedArgPathParts[i++] = part.evaluatePart(args[part.getArgNumber()]);
+                resolvedArgPathParts[i++] =
+                        evaluatePart(part, args[part.getArgNumber()], snapshotEagerly);
             }
         }
         return new GenericMessageSupplier(template, resolvedReceiverPathParts, resolvedArgPathParts,
                 methodName);
     }
 
-    private GenericMessageSupplier(MessageTemplateImpl template, String[] resolvedReceiverPathParts,
-            String[] resolvedArgPathParts, String methodName) {
+    private GenericMessageSupplier(MessageTemplateImpl template,
+            /*@Nullable*/ Object[] resolvedReceiverPathParts,
+            /*@Nullable*/ Object[] resolvedArgPathParts, String methodName) {
         this.template = template;
         this.resolvedReceiverPathParts = resolvedReceiverPathParts;
         this.resolvedArgPathParts = resolvedArgPathParts;
@@ -65,11 +74,12 @@ public class GenericMessageSupplier extends MessageSupplier {
     }
 
     private void setReturnValue(@Nullable Object returnValue) {
-        // render the return value to strings immediately in case it is mutable
-        String[] parts = new String[template.getReturnPathParts().size()];
+        // evaluate the return value paths immediately in case it is mutable
+        boolean snapshotEagerly = template.isSnapshotEagerly();
+        /*@Nullable*/ Object[] parts = newArray(template.getReturnPathParts().size());
         int i = 0;
         for (ValuePathPart part : template.getReturnPathParts()) {
-            parts[i++] = part.evaluatePart(returnValue);
+            parts[i++] = evaluatePart(part, returnValue, snapshotEagerly);
         }
         this.resolvedReturnValuePathParts = parts;
     }
@@ -91,6 +101,7 @@ public class GenericMessageSupplier extends MessageSupplier {
                     sb.append(((ConstantPart) part).getConstant());
                     break;
                 case THIS_PATH:
+                    // append(Object) is same as append(String.valueOf(Object))
                     sb.append(resolvedReceiverPathParts[receiverPathPartIndex++]);
                     break;
                 case ARG_PATH:
@@ -111,6 +122,19 @@ public class GenericMessageSupplier extends MessageSupplier {
         return sb.toString();
     }
 
+    private static /*@Nullable*/ Object[] newArray(int size) {
+        return size == 0 ? EMPTY : new Object[size];
+    }
+
+    private static @Nullable Object evaluatePart(ValuePathPart part, @Nullable Object base,
+            boolean snapshotEagerly) {
+        if (snapshotEagerly) {
+            return part.evaluatePart(base);
+        } else {
+            return part.evaluatePartLazily(base);
+        }
+    }
+
     public static void updateWithReturnValue(Span span, @Nullable Object returnValue) {
         GenericMessageSupplier messageSupplier = (GenericMessageSupplier) span.getMessageSupplier();
         if (messageSupplier != null) {
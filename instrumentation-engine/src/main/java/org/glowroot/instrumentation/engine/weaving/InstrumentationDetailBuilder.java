@@ -282,6 +282,7 @@ class InstrumentationDetailBuilder {
         private int order;
         private String suppressibleUsingKey = "";
         private String suppressionKey = "";
+        private boolean requiresTransaction;
 
         private PointcutAnnotationVisitor() {
             super(ASM7);
@@ -311,6 +312,8 @@ class InstrumentationDetailBuilder {
                 suppressibleUsingKey = (String) value;
             } else if ("suppressionKey".equals(name)) {
                 suppressionKey = (String) value;
+            } else if ("requiresTransaction".equals(name)) {
+                requiresTransaction = (Boolean) value;
             } else {
                 throw new IllegalStateException(
                         "Unexpected @Advice.Pointcut attribute name: " + name);
@@ -387,6 +390,10 @@ class InstrumentationDetailBuilder {
                 public String suppressionKey() {
                     return suppressionKey;
                 }
+                @Override
+                public boolean requiresTransaction() {
+                    return requiresTransaction;
+                }
             };
         }
     }
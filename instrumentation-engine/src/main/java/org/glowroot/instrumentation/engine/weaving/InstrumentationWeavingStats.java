@@ -0,0 +1,68 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// weaving time attributed to each instrumentation, where the full weaving time of a class is
+// attributed to every instrumentation that has advice woven into that class
+public class InstrumentationWeavingStats {
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<String, Stats>();
+
+    public long getWovenClassCount(String instrumentationId) {
+        Stats stats = this.stats.get(instrumentationId);
+        return stats == null ? 0 : stats.wovenClassCount.get();
+    }
+
+    public long getWeavingNanos(String instrumentationId) {
+        Stats stats = this.stats.get(instrumentationId);
+        return stats == null ? 0 : stats.weavingNanos.get();
+    }
+
+    void record(Collection<Advice> usedAdvisors, long nanos) {
+        List<String> instrumentationIds = new ArrayList<String>();
+        for (Advice usedAdvice : usedAdvisors) {
+            String instrumentationId = usedAdvice.instrumentationId();
+            if (instrumentationId != null && !instrumentationIds.contains(instrumentationId)) {
+                instrumentationIds.add(instrumentationId);
+            }
+        }
+        for (String instrumentationId : instrumentationIds) {
+            Stats stats = this.stats.get(instrumentationId);
+            if (stats == null) {
+                stats = new Stats();
+                Stats existing = this.stats.putIfAbsent(instrumentationId, stats);
+                if (existing != null) {
+                    stats = existing;
+                }
+            }
+            stats.wovenClassCount.incrementAndGet();
+            stats.weavingNanos.addAndGet(nanos);
+        }
+    }
+
+    private static class Stats {
+
+        private final AtomicLong wovenClassCount = new AtomicLong();
+        private final AtomicLong weavingNanos = new AtomicLong();
+    }
+}
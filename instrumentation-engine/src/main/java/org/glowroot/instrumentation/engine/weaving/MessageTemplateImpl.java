@@ -31,6 +31,7 @@ import org.slf4j.LoggerFactory;
 
 import org.glowroot.instrumentation.api.MethodInfo;
 import org.glowroot.instrumentation.engine.bytecode.api.MessageTemplate;
+import org.glowroot.instrumentation.engine.bytecode.api.PathAccessor;
 import org.glowroot.instrumentation.engine.util.Throwables;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -45,8 +46,16 @@ public class MessageTemplateImpl implements MessageTemplate {
     private final ImmutableList<ValuePathPart> thisPathParts;
     private final ImmutableList<ArgPathPart> argPathParts;
     private final ImmutableList<ValuePathPart> returnPathParts;
+    private final boolean snapshotEagerly;
 
     public static MessageTemplateImpl create(String template, MethodInfo methodInfo) {
+        return create(template, methodInfo, false);
+    }
+
+    // snapshotEagerly renders all path values to strings when the message supplier is created,
+    // instead of capturing immutable values by reference and rendering them lazily
+    public static MessageTemplateImpl create(String template, MethodInfo methodInfo,
+            boolean snapshotEagerly) {
         List<Part> allParts = Lists.newArrayList();
         List<ValuePathPart> thisPathParts = Lists.newArrayList();
         List<ArgPathPart> argPathParts = Lists.newArrayList();
@@ -78,15 +87,16 @@ public class MessageTemplateImpl implements MessageTemplate {
                     logger.debug(e.getMessage(), e);
                     clazz = null;
                 }
-                ValuePathPart part = new ValuePathPart(PartType.THIS_PATH, clazz, remaining);
+                ValuePathPart part = new ValuePathPart(PartType.THIS_PATH, clazz, remaining,
+                        methodInfo.getLoader());
                 allParts.add(part);
                 thisPathParts.add(part);
             } else if (base.matches("[0-9]+")) {
                 int argNumber = Integer.parseInt(base);
                 List<Class<?>> parameterTypes = methodInfo.getParameterTypes();
                 if (argNumber < parameterTypes.size()) {
-                    ArgPathPart part =
-                            new ArgPathPart(parameterTypes.get(argNumber), remaining, argNumber);
+                    ArgPathPart part = new ArgPathPart(parameterTypes.get(argNumber), remaining,
+                            argNumber, methodInfo.getLoader());
                     allParts.add(part);
                     argPathParts.add(part);
                 } else {
@@ -95,7 +105,7 @@ public class MessageTemplateImpl implements MessageTemplate {
                 }
             } else if (base.equals("_")) {
                 ValuePathPart part = new ValuePathPart(PartType.RETURN_PATH,
-                        methodInfo.getReturnType(), remaining);
+                        methodInfo.getReturnType(), remaining, methodInfo.getLoader());
                 allParts.add(part);
                 returnPathParts.add(part);
             } else if (base.equals("methodName")) {
@@ -109,15 +119,18 @@ public class MessageTemplateImpl implements MessageTemplate {
         if (curr < template.length()) {
             allParts.add(new ConstantPart(template.substring(curr)));
         }
-        return new MessageTemplateImpl(allParts, thisPathParts, argPathParts, returnPathParts);
+        return new MessageTemplateImpl(allParts, thisPathParts, argPathParts, returnPathParts,
+                snapshotEagerly);
     }
 
     private MessageTemplateImpl(List<Part> allParts, List<ValuePathPart> thisPathParts,
-            List<ArgPathPart> argPathParts, List<ValuePathPart> returnPathParts) {
+            List<ArgPathPart> argPathParts, List<ValuePathPart> returnPathParts,
+            boolean snapshotEagerly) {
         this.allParts = ImmutableList.copyOf(allParts);
         this.thisPathParts = ImmutableList.copyOf(thisPathParts);
         this.argPathParts = ImmutableList.copyOf(argPathParts);
         this.returnPathParts = ImmutableList.copyOf(returnPathParts);
+        this.snapshotEagerly = snapshotEagerly;
     }
 
     ImmutableList<Part> getAllParts() {
@@ -136,6 +149,10 @@ public class MessageTemplateImpl implements MessageTemplate {
         return returnPathParts;
     }
 
+    boolean isSnapshotEagerly() {
+        return snapshotEagerly;
+    }
+
     enum PartType {
         CONSTANT, THIS_PATH, ARG_PATH, RETURN_PATH, METHOD_NAME;
     }
@@ -175,17 +192,34 @@ public class MessageTemplateImpl implements MessageTemplate {
 
         @VisibleForTesting
         ValuePathPart(PartType partType, @Nullable Class<?> type, String pathAndFormat) {
+            this(partType, type, pathAndFormat, null);
+        }
+
+        private ValuePathPart(PartType partType, @Nullable Class<?> type, String pathAndFormat,
+                @Nullable ClassLoader loader) {
             super(partType);
-            this.pathEvaluator = PathEvaluator.create(type, pathAndFormat);
+            this.pathEvaluator = PathEvaluator.create(type, pathAndFormat, loader);
         }
 
         String evaluatePart(@Nullable Object base) {
+            return String.valueOf(evaluatePartLazily(base));
+        }
+
+        // returns either the value itself if it is immutable (so that rendering it to a string can
+        // be deferred until the message is actually needed), or otherwise the value already
+        // rendered to a string (in case it is mutable)
+        @Nullable
+        Object evaluatePartLazily(@Nullable Object base) {
             if (base == null) {
                 // this is same as String.valueOf((Object) null);
                 return "null";
             }
             try {
-                return valueOf(pathEvaluator.evaluateOnBase(base));
+                Object value = pathEvaluator.evaluateOnBase(base);
+                if (isImmutable(value)) {
+                    return value;
+                }
+                return valueOf(value);
             } catch (InvocationTargetException e) {
                 logger.debug(e.getMessage(), e);
                 return "<error evaluating: " + Throwables.getBestMessage(e) + ">";
@@ -195,6 +229,18 @@ public class MessageTemplateImpl implements MessageTemplate {
             }
         }
 
+        private static boolean isImmutable(@Nullable Object value) {
+            if (value == null || value instanceof Enum) {
+                return true;
+            }
+            Class<?> valueClass = value.getClass();
+            return valueClass == String.class || valueClass == Integer.class
+                    || valueClass == Long.class || valueClass == Boolean.class
+                    || valueClass == Double.class || valueClass == Float.class
+                    || valueClass == Short.class || valueClass == Byte.class
+                    || valueClass == Character.class;
+        }
+
         private static String valueOf(@Nullable Object value) {
             if (value == null) {
                 return String.valueOf(value);
@@ -262,8 +308,9 @@ public class MessageTemplateImpl implements MessageTemplate {
 
         private final int argNumber;
 
-        private ArgPathPart(Class<?> argClass, String propertyPath, int argNumber) {
-            super(PartType.ARG_PATH, argClass, propertyPath);
+        private ArgPathPart(Class<?> argClass, String propertyPath, int argNumber,
+                @Nullable ClassLoader loader) {
+            super(PartType.ARG_PATH, argClass, propertyPath, loader);
             this.argNumber = argNumber;
         }
 
@@ -278,11 +325,20 @@ public class MessageTemplateImpl implements MessageTemplate {
         private static final Splitter splitter = Splitter.on('.').omitEmptyStrings();
 
         private final Accessor[] accessors;
+        // generated accessor for the same path as accessors above, when possible
+        private final @Nullable PathAccessor pathAccessor;
         private final List<String> remainingPath;
         private final @Nullable String format;
         private final @Nullable String formatArg;
 
         static PathEvaluator create(@Nullable Class<?> type, String pathAndFormat) {
+            return create(type, pathAndFormat, null);
+        }
+
+        // the loader is where the generated accessor is defined, and should be the class loader of
+        // the instrumented method (null means accessors are not generated)
+        static PathEvaluator create(@Nullable Class<?> type, String pathAndFormat,
+                @Nullable ClassLoader loader) {
             String path;
             String format;
             String formatArg;
@@ -306,7 +362,8 @@ public class MessageTemplateImpl implements MessageTemplate {
             }
             List<Accessor> accessors = Lists.newArrayList();
             if (type == null) {
-                return new PathEvaluator(accessors, splitter.splitToList(path), format, formatArg);
+                return new PathEvaluator(accessors, null, splitter.splitToList(path), format,
+                        formatArg);
             }
             List<String> parts = Lists.newArrayList(splitter.split(path));
             Class<?> currType = type;
@@ -320,22 +377,42 @@ public class MessageTemplateImpl implements MessageTemplate {
                 accessors.add(accessor);
                 currType = accessor.getValueType();
             }
-            return new PathEvaluator(accessors, parts, format, formatArg);
+            PathAccessor pathAccessor =
+                    PathAccessorGenerator.getOrGenerate(type, accessors, loader);
+            return new PathEvaluator(accessors, pathAccessor, parts, format, formatArg);
         }
 
-        private PathEvaluator(List<Accessor> accessors, List<String> remainingPath,
-                @Nullable String format, @Nullable String formatArg) {
+        private PathEvaluator(List<Accessor> accessors, @Nullable PathAccessor pathAccessor,
+                List<String> remainingPath, @Nullable String format, @Nullable String formatArg) {
             this.accessors = accessors.toArray(new Accessor[accessors.size()]);
+            this.pathAccessor = pathAccessor;
             this.remainingPath = remainingPath;
             this.format = format;
             this.formatArg = formatArg;
         }
 
+        @VisibleForTesting
+        boolean isGenerated() {
+            return pathAccessor != null;
+        }
+
         @Nullable
         Object evaluateOnBase(Object base) throws Exception {
             Object curr = base;
-            for (Accessor accessor : accessors) {
-                curr = accessor.evaluate(curr);
+            if (pathAccessor == null) {
+                for (Accessor accessor : accessors) {
+                    curr = accessor.evaluate(curr);
+                    if (curr == null) {
+                        return null;
+                    }
+                }
+            } else {
+                try {
+                    curr = pathAccessor.evaluate(curr);
+                } catch (Exception e) {
+                    // wrapping to match reflection (see Accessor.evaluate())
+                    throw new InvocationTargetException(e);
+                }
                 if (curr == null) {
                     return null;
                 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.MapMaker;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.instrumentation.engine.bytecode.api.PathAccessor;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GETFIELD;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.V1_5;
+
+// generates a small class per message template path (at template creation time) that evaluates
+// the path using direct method calls and field reads, so that evaluating the path on every span
+// creation is a monomorphic call that the JIT can inline, instead of going through reflection
+//
+// the generated class is defined in the class loader of the instrumented method, in the package of
+// the class that the path is evaluated on, and is only generated when every member along the path
+// is public (and visible from that class loader), otherwise the path continues to be evaluated
+// using reflection
+class PathAccessorGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(PathAccessorGenerator.class);
+
+    private static final AtomicInteger counter = new AtomicInteger();
+
+    // weak keys in loading cache to prevent ClassLoader retention
+    private static final LoadingCache<ClassLoader, ConcurrentMap<String, PathAccessor>> cache =
+            CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .build(new CacheLoader<ClassLoader, ConcurrentMap<String, PathAccessor>>() {
+                        @Override
+                        public ConcurrentMap<String, PathAccessor> load(ClassLoader loader) {
+                            // weak values since the generated class has a strong reference to its
+                            // ClassLoader which is used as the key in the outer loading cache
+                            return new MapMaker().weakValues().makeMap();
+                        }
+                    });
+
+    private PathAccessorGenerator() {}
+
+    static @Nullable PathAccessor getOrGenerate(Class<?> type, List<Accessor> accessors,
+            @Nullable ClassLoader loader) {
+        if (loader == null || accessors.isEmpty()) {
+            // cannot define classes in the bootstrap class loader here
+            return null;
+        }
+        String key = getKey(type, accessors);
+        ConcurrentMap<String, PathAccessor> pathAccessorsForLoader =
+                cache.getUnchecked(loader);
+        PathAccessor pathAccessor = pathAccessorsForLoader.get(key);
+        if (pathAccessor != null) {
+            return pathAccessor;
+        }
+        if (!isSupported(type, accessors, loader)) {
+            return null;
+        }
+        // named after (and in the same package as) the target class, so that the generated class
+        // is easy to attribute when it shows up in a stack trace or heap dump, and so that no
+        // classes are defined in the instrumentation engine's own package inside application class
+        // loaders
+        String internalName = Type.getInternalName(type) + "$$GlowrootPathAccessor"
+                + counter.incrementAndGet();
+        try {
+            Class<?> generatedClass = ClassLoaders.defineClass(internalName.replace('/', '.'),
+                    generate(internalName, accessors), loader);
+            pathAccessor = (PathAccessor) generatedClass.newInstance();
+        } catch (Exception e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        } catch (LinkageError e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        PathAccessor existing = pathAccessorsForLoader.putIfAbsent(key, pathAccessor);
+        return existing == null ? pathAccessor : existing;
+    }
+
+    private static String getKey(Class<?> type, List<Accessor> accessors) {
+        StringBuilder sb = new StringBuilder(type.getName());
+        for (Accessor accessor : accessors) {
+            sb.append(':');
+            Member member = getMember(accessor);
+            if (member != null) {
+                sb.append(member.getDeclaringClass().getName());
+                sb.append('.');
+                sb.append(member.getName());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSupported(Class<?> type, List<Accessor> accessors,
+            ClassLoader loader) {
+        if (!isVisible(PathAccessor.class, loader)) {
+            return false;
+        }
+        if (type.getName().startsWith("java.")) {
+            // classes cannot be defined in java.* packages (see getOrGenerate() for naming)
+            return false;
+        }
+        Class<?> currType = type;
+        int size = accessors.size();
+        for (int i = 0; i < size; i++) {
+            if (currType.isPrimitive() || currType.isArray()
+                    || currType.isAssignableFrom(Object[].class)) {
+                // arrays are evaluated element by element (see Accessor.evaluate()), and the
+                // static type cannot rule out an array at runtime if it is a super type of arrays
+                return false;
+            }
+            Accessor accessor = accessors.get(i);
+            Member member = getMember(accessor);
+            if (member == null) {
+                // array length
+                return false;
+            }
+            Class<?> declaringClass = member.getDeclaringClass();
+            int modifiers = member.getModifiers();
+            if (!Modifier.isPublic(modifiers) || Modifier.isStatic(modifiers)
+                    || !Modifier.isPublic(declaringClass.getModifiers())
+                    || !isVisible(declaringClass, loader)) {
+                return false;
+            }
+            currType = accessor.getValueType();
+            if (currType == void.class || currType.isPrimitive() && i < size - 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isVisible(Class<?> clazz, ClassLoader loader) {
+        try {
+            return Class.forName(clazz.getName(), false, loader) == clazz;
+        } catch (ClassNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private static byte[] generate(String internalName, List<Accessor> accessors) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(V1_5, ACC_PUBLIC + ACC_FINAL + ACC_SUPER + ACC_SYNTHETIC, internalName, null,
+                "java/lang/Object", new String[] {Type.getInternalName(PathAccessor.class)});
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        mv = cw.visitMethod(ACC_PUBLIC, "evaluate", "(Ljava/lang/Object;)Ljava/lang/Object;", null,
+                null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        int size = accessors.size();
+        for (int i = 0; i < size; i++) {
+            Accessor accessor = accessors.get(i);
+            Method method = accessor.getMethod();
+            Class<?> valueType;
+            if (method != null) {
+                Class<?> owner = method.getDeclaringClass();
+                String ownerInternalName = Type.getInternalName(owner);
+                mv.visitTypeInsn(CHECKCAST, ownerInternalName);
+                mv.visitMethodInsn(owner.isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL,
+                        ownerInternalName, method.getName(), Type.getMethodDescriptor(method),
+                        owner.isInterface());
+                valueType = method.getReturnType();
+            } else {
+                Field field = checkNotNull(accessor.getField());
+                String ownerInternalName = Type.getInternalName(field.getDeclaringClass());
+                mv.visitTypeInsn(CHECKCAST, ownerInternalName);
+                mv.visitFieldInsn(GETFIELD, ownerInternalName, field.getName(),
+                        Type.getDescriptor(field.getType()));
+                valueType = field.getType();
+            }
+            if (valueType.isPrimitive()) {
+                // only possible for the last accessor (see isSupported())
+                box(mv, Type.getType(valueType));
+            } else if (i < size - 1) {
+                // same as PathEvaluator.evaluateOnBase(), return null as soon as null is reached
+                Label notNullLabel = new Label();
+                mv.visitInsn(DUP);
+                mv.visitJumpInsn(IFNONNULL, notNullLabel);
+                mv.visitInsn(POP);
+                mv.visitInsn(ACONST_NULL);
+                mv.visitInsn(ARETURN);
+                mv.visitLabel(notNullLabel);
+            }
+        }
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void box(MethodVisitor mv, Type primitiveType) {
+        String boxInternalName;
+        switch (primitiveType.getSort()) {
+            case Type.BOOLEAN:
+                boxInternalName = "java/lang/Boolean";
+                break;
+            case Type.CHAR:
+                boxInternalName = "java/lang/Character";
+                break;
+            case Type.BYTE:
+                boxInternalName = "java/lang/Byte";
+                break;
+            case Type.SHORT:
+                boxInternalName = "java/lang/Short";
+                break;
+            case Type.INT:
+                boxInternalName = "java/lang/Integer";
+                break;
+            case Type.FLOAT:
+                boxInternalName = "java/lang/Float";
+                break;
+            case Type.LONG:
+                boxInternalName = "java/lang/Long";
+                break;
+            case Type.DOUBLE:
+                boxInternalName = "java/lang/Double";
+                break;
+            default:
+                throw new AssertionError("Unexpected primitive type: " + primitiveType);
+        }
+        mv.visitMethodInsn(INVOKESTATIC, boxInternalName, "valueOf",
+                "(" + primitiveType.getDescriptor() + ")L" + boxInternalName + ";", false);
+    }
+
+    private static @Nullable Member getMember(Accessor accessor) {
+        Method method = accessor.getMethod();
+        if (method != null) {
+            return method;
+        }
+        return accessor.getField();
+    }
+}
@@ -15,13 +15,17 @@
  */
 package org.glowroot.instrumentation.engine.weaving;
 
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
@@ -31,6 +35,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.PeekingIterator;
 import com.google.common.collect.Sets;
@@ -42,87 +47,140 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static com.google.common.base.Charsets.UTF_8;
-import static com.google.common.base.Preconditions.checkNotNull;
 
+// the file consists of a header, followed by an open addressing (linear probing) index of record
+// offsets, followed by an append-only data region containing length-prefixed UTF-8 strings and the
+// records themselves, which refer to their type name and super type names by string offset
+//
+// the file is memory-mapped on startup, so that entries can be looked up directly in the file
+// without parsing it up front, and new entries (which are held in memory until then) are appended
+// to the file by writeToFile(), which rewrites (compacts) the file instead only when the index is
+// getting full, when the data region is mostly garbage, or when maxSize is exceeded
+//
+// existing data in a file that is mapped (by this JVM or by another JVM sharing the same tmp
+// directory) is never modified (other than setting the superseded flag), appends only write past
+// the data end of existing mappings (and then update the index slot), and compaction writes a new
+// file and renames it over the old one
+// (access times of entries read from the file are kept in memory and applied on compaction)
+//
+// the previous line-oriented text format is read if the binary file does not exist yet, and is
+// migrated to the binary format on the first writeToFile()
 public class PreloadSomeSuperTypesCache {
 
     private static final Logger logger =
             LoggerFactory.getLogger(PreloadSomeSuperTypesCache.class);
 
+    // the leading zero byte can never be confused with the previous text format
+    private static final int MAGIC = 0x00475354;
+
+    // bump whenever the file layout changes
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_TRACK_ACCESS_TIMES = 1;
+    // set on a file once it has been replaced by compaction, so that another JVM sharing the same
+    // tmp directory, which may be waiting on the lock of the replaced file, does not append to it
+    private static final int FLAG_SUPERSEDED = 2;
+
+    // magic, format version, flags, index capacity, entry count, garbage bytes, data end
+    private static final int HEADER_LENGTH = 28;
+    private static final int FLAGS_OFFSET = 8;
+    private static final int INDEX_CAPACITY_OFFSET = 12;
+    private static final int ENTRY_COUNT_OFFSET = 16;
+    private static final int GARBAGE_BYTES_OFFSET = 20;
+    private static final int DATA_END_OFFSET = 24;
+
+    // access time, type name string offset, super type name count (followed by the super type name
+    // string offsets)
+    private static final int RECORD_HEADER_LENGTH = 13;
+
+    private static final int MIN_INDEX_CAPACITY = 256;
+
+    // just to impose some memory limit
+    private static final int MAX_SUPER_TYPE_NAMES = 11;
+
     private final File file;
+    private final @Nullable File legacyTextFile;
     private final int maxSize;
 
-    private final ConcurrentMap<String, CacheValue> cache;
-    private volatile int linesInFile;
+    // entries that have not been written to the file yet
+    private final ConcurrentMap<String, CacheValue> cache = Maps.newConcurrentMap();
+    private volatile @Nullable MappedFile mappedFile;
     private volatile boolean trackAccessTimes;
 
     private final Set<String> needsToBeWritten = Sets.newConcurrentHashSet();
 
+    // access times of entries read from the file, which are applied on the next compaction
+    private final ConcurrentMap<String, Long> fileEntryAccessTimes = Maps.newConcurrentMap();
+
+    // e.g. on Windows, where a file cannot be replaced while it is memory-mapped
+    private volatile boolean replaceFailed;
+
     private final long accessTimeBackfill;
 
     private static final AtomicBoolean isWritingFile = new AtomicBoolean();
 
     public PreloadSomeSuperTypesCache(File file, int maxSize) {
+        this(file, null, maxSize);
+    }
+
+    public PreloadSomeSuperTypesCache(File file, @Nullable File legacyTextFile, int maxSize) {
         this.file = file;
+        this.legacyTextFile = legacyTextFile;
         this.maxSize = maxSize;
-
-        LoadFromFileResult result = loadFromFile(file);
-        cache = result.cache();
-        linesInFile = result.linesInFile();
-        trackAccessTimes = result.trackAccessTimes();
-
         accessTimeBackfill = System.currentTimeMillis();
-    }
-
-    void put(String typeName, String superTypeName) {
-        if (trackAccessTimes) {
-            putWithTrackAccessTimes(typeName, superTypeName);
-        } else {
-            putWithoutTrackAccessTimes(typeName, superTypeName);
+        if (file.exists()) {
+            try {
+                mappedFile = MappedFile.open(file);
+            } catch (IOException e) {
+                logger.error("error reading {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+            }
+        }
+        MappedFile mappedFile = this.mappedFile;
+        if (mappedFile != null) {
+            trackAccessTimes = mappedFile.trackAccessTimes();
+        } else if (legacyTextFile != null && legacyTextFile.exists()) {
+            loadFromLegacyTextFile(legacyTextFile);
         }
     }
 
-    private void putWithTrackAccessTimes(String typeName, String superTypeName) {
-        long accessTime = System.currentTimeMillis();
-        needsToBeWritten.add(typeName);
+    void put(String typeName, String superTypeName) {
+        long accessTime = trackAccessTimes ? System.currentTimeMillis() : 0;
         CacheValue cacheValue = cache.get(typeName);
         if (cacheValue == null) {
-            cacheValue = cache.putIfAbsent(typeName,
-                    new CacheValue(accessTime, ImmutableSet.of(superTypeName)));
-            if (cacheValue == null) {
+            ImmutableSet<String> superTypeNames = getFromFile(typeName, accessTime);
+            if (superTypeNames.contains(superTypeName)
+                    || superTypeNames.size() >= MAX_SUPER_TYPE_NAMES) {
                 return;
             }
-        }
-        cacheValue.accessTime = accessTime;
-        cacheValue.addSuperTypeName(superTypeName);
-    }
-
-    private void putWithoutTrackAccessTimes(String typeName, String superTypeName) {
-        CacheValue cacheValue = cache.get(typeName);
-        if (cacheValue == null) {
-            cacheValue =
-                    cache.putIfAbsent(typeName, new CacheValue(0, ImmutableSet.of(superTypeName)));
+            cacheValue = cache.putIfAbsent(typeName, new CacheValue(accessTime,
+                    ImmutableSet.<String>builder().addAll(superTypeNames)
+                            .add(superTypeName)
+                            .build()));
             if (cacheValue == null) {
                 needsToBeWritten.add(typeName);
                 return;
             }
         }
+        if (trackAccessTimes) {
+            cacheValue.accessTime = accessTime;
+            needsToBeWritten.add(typeName);
+        }
         if (cacheValue.addSuperTypeName(superTypeName)) {
             needsToBeWritten.add(typeName);
         }
     }
 
     Set<String> get(String typeName) {
+        long accessTime = trackAccessTimes ? System.currentTimeMillis() : 0;
         CacheValue cacheValue = cache.get(typeName);
         if (cacheValue == null) {
-            return ImmutableSet.of();
-        } else {
-            if (trackAccessTimes) {
-                cacheValue.accessTime = System.currentTimeMillis();
-                needsToBeWritten.add(typeName);
-            }
-            return cacheValue.superTypeNames;
+            return getFromFile(typeName, accessTime);
         }
+        if (trackAccessTimes) {
+            cacheValue.accessTime = accessTime;
+            needsToBeWritten.add(typeName);
+        }
+        return cacheValue.superTypeNames;
     }
 
     public void writeToFileAsync(String threadName) {
@@ -143,125 +201,187 @@ public class PreloadSomeSuperTypesCache {
         }
     }
 
-    @VisibleForTesting
-    void writeToFile() throws IOException {
-        if (linesInFile + needsToBeWritten.size() > maxSize) {
-            if (cache.size() > maxSize) {
-                truncateCache();
-                trackAccessTimes = true;
-            }
-            writeAllToFile();
-        } else {
-            appendNewLinesToFile();
-        }
-        // race condition on clearing is ok, worst case clear a few super types that were just
-        // added during writing/appending above, and will likely catch them on next JVM start
-        needsToBeWritten.clear();
-    }
-
-    private void truncateCache() {
-        int cacheSize = cache.size();
-        long[] accessTimes = new long[cacheSize];
-        Iterator<CacheValue> i = cache.values().iterator();
-        int j = 0;
-        // checking against accessTimes.length is needed in case cache is added to concurrently
-        while (i.hasNext() && j < accessTimes.length) {
-            accessTimes[j++] = i.next().accessTime;
-        }
-        Arrays.sort(accessTimes);
-        int keepCount = (maxSize * 8) / 10;
-        long threshold = accessTimes[accessTimes.length - keepCount - 1];
-        Iterator<Map.Entry<String, CacheValue>> k = cache.entrySet().iterator();
-        int removeCount = 0;
-        while (k.hasNext()) {
-            if (k.next().getValue().accessTime <= threshold) {
-                k.remove();
-                removeCount++;
-                if (cacheSize - removeCount == keepCount) {
-                    // in case there are multiple entries with accessTime equal to the threshold
-                    break;
-                }
+    // synchronous version of writeToFileAsync()
+    public void writeToFile() throws IOException {
+        Map<String, CacheValue> entries = Maps.newHashMap();
+        for (String typeName : needsToBeWritten) {
+            CacheValue cacheValue = cache.get(typeName);
+            if (cacheValue != null) {
+                entries.put(typeName, cacheValue);
             }
         }
-    }
-
-    private void writeAllToFile() throws IOException {
-        FileOutputStream fileOut = new FileOutputStream(file);
-        fileOut.getChannel().lock(); // will be released on close below
-        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fileOut, UTF_8));
+        if (entries.isEmpty()) {
+            return;
+        }
+        MappedFile updatedMappedFile;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
         try {
-            int lineCount = 0;
-            for (Map.Entry<String, CacheValue> entry : cache.entrySet()) {
-                writeLine(out, entry.getKey(), entry.getValue());
-                lineCount++;
+            FileChannel channel = raf.getChannel();
+            channel.lock(); // will be released on close below
+            MappedFile currentMappedFile = MappedFile.map(channel);
+            if (currentMappedFile != null && currentMappedFile.isSuperseded()) {
+                // another JVM sharing the same tmp directory has just replaced the file, so pick up
+                // the replacement, and append to it next time
+                mappedFile = MappedFile.open(file);
+                return;
+            }
+            if (currentMappedFile == null
+                    || currentMappedFile.needsCompaction(entries.size(), maxSize)) {
+                if (replaceFailed) {
+                    // the entries are still served from memory
+                    return;
+                }
+                updatedMappedFile = compact(currentMappedFile, entries);
+                if (updatedMappedFile == null) {
+                    return;
+                }
+            } else {
+                updatedMappedFile = currentMappedFile.append(channel, entries);
             }
-            linesInFile = lineCount;
         } finally {
-            out.close();
+            raf.close();
+        }
+        mappedFile = updatedMappedFile;
+        // race condition on removing is ok, worst case remove a few super types that were just
+        // added during writing above, and will likely catch them on next JVM start
+        for (Map.Entry<String, CacheValue> entry : entries.entrySet()) {
+            cache.remove(entry.getKey(), entry.getValue());
+            needsToBeWritten.remove(entry.getKey());
+        }
+        if (legacyTextFile != null && legacyTextFile.exists() && !legacyTextFile.delete()) {
+            logger.debug("unable to delete file: {}", legacyTextFile.getAbsolutePath());
         }
     }
 
-    private void appendNewLinesToFile() throws IOException {
-        FileOutputStream fileOut = new FileOutputStream(file, true);
-        fileOut.getChannel().lock(); // will be released on close below
-        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(fileOut, UTF_8));
-        try {
-            int lineCount = 0;
-            Iterator<String> i = needsToBeWritten.iterator();
-            while (i.hasNext()) {
-                String typeName = i.next();
-                CacheValue cacheValue = checkNotNull(cache.get(typeName));
-                writeLine(out, typeName, cacheValue);
-                lineCount++;
-            }
-            linesInFile += lineCount;
-        } finally {
-            out.close();
+    @VisibleForTesting
+    int getEntryCountInFile() {
+        MappedFile mappedFile = this.mappedFile;
+        return mappedFile == null ? 0 : mappedFile.getEntryCount();
+    }
+
+    private ImmutableSet<String> getFromFile(String typeName, long accessTime) {
+        MappedFile mappedFile = this.mappedFile;
+        if (mappedFile == null) {
+            return ImmutableSet.of();
         }
+        int record = mappedFile.find(typeName);
+        if (record == -1) {
+            return ImmutableSet.of();
+        }
+        if (accessTime != 0) {
+            // not written to the mapped file, see comment at top of class
+            fileEntryAccessTimes.put(typeName, accessTime);
+        }
+        return mappedFile.readSuperTypeNames(record);
     }
 
-    private void writeLine(BufferedWriter out, String typeName, CacheValue cacheValue)
-            throws IOException {
-        if (trackAccessTimes) {
-            long accessTime = cacheValue.accessTime;
-            if (accessTime == 0) {
-                accessTime = accessTimeBackfill;
+    // returns null if the file could not be replaced
+    private @Nullable MappedFile compact(@Nullable MappedFile currentMappedFile,
+            Map<String, CacheValue> entries) throws IOException {
+        Map<String, CacheValue> allEntries = Maps.newHashMap();
+        if (currentMappedFile != null) {
+            currentMappedFile.readAll(allEntries);
+        }
+        for (Map.Entry<String, Long> entry : fileEntryAccessTimes.entrySet()) {
+            CacheValue cacheValue = allEntries.get(entry.getKey());
+            if (cacheValue != null && entry.getValue() > cacheValue.accessTime) {
+                cacheValue.accessTime = entry.getValue();
             }
-            out.write(Long.toString(accessTime));
-            out.write(",");
         }
-        out.write(typeName);
-        for (String superTypeName : cacheValue.superTypeNames) {
-            out.write(",");
-            out.write(superTypeName);
+        for (Map.Entry<String, CacheValue> entry : entries.entrySet()) {
+            String typeName = entry.getKey();
+            CacheValue cacheValue = entry.getValue();
+            CacheValue existing = allEntries.get(typeName);
+            if (existing != null) {
+                // merge with super type names that were written by another JVM sharing the same
+                // tmp directory
+                cacheValue = new CacheValue(Math.max(cacheValue.accessTime, existing.accessTime),
+                        union(existing.superTypeNames, cacheValue.superTypeNames));
+            }
+            allEntries.put(typeName, cacheValue);
+        }
+        boolean trackAccessTimes = this.trackAccessTimes;
+        if (allEntries.size() > maxSize) {
+            allEntries = truncate(allEntries);
+            trackAccessTimes = true;
+        }
+        byte[] bytes = MappedFile.build(allEntries, trackAccessTimes, accessTimeBackfill);
+        File tmpFile = File.createTempFile(file.getName(), ".tmp",
+                file.getAbsoluteFile().getParentFile());
+        Files.write(bytes, tmpFile);
+        if (!tmpFile.renameTo(file)) {
+            // e.g. on Windows, where a file cannot be replaced while it is memory-mapped, in which
+            // case the file is left as is, since rewriting it in place would expose partially
+            // written data to existing mappings of the file (in this and other JVMs)
+            logger.debug("unable to replace file: {}", file.getAbsolutePath());
+            if (!tmpFile.delete()) {
+                logger.debug("unable to delete file: {}", tmpFile.getAbsolutePath());
+            }
+            replaceFailed = true;
+            return null;
+        }
+        if (currentMappedFile != null) {
+            currentMappedFile.markSuperseded();
         }
-        out.write("\n");
+        // race condition on clearing is ok, worst case lose a few access times that were just
+        // recorded during compaction above
+        fileEntryAccessTimes.clear();
+        this.trackAccessTimes = trackAccessTimes;
+        return MappedFile.open(file);
     }
 
-    private static LoadFromFileResult loadFromFile(File file) {
-        ConcurrentMap<String, CacheValue> cache = Maps.newConcurrentMap();
-        if (file.exists()) {
-            try {
-                return Files.readLines(file, UTF_8, new LoadFromFile(file));
-            } catch (IOException e) {
-                logger.error("error reading {}: {}", file.getAbsolutePath(), e.getMessage(), e);
-            }
+    // keeps the most recently accessed 80% of maxSize
+    private Map<String, CacheValue> truncate(Map<String, CacheValue> entries) {
+        List<Map.Entry<String, CacheValue>> list = Lists.newArrayList(entries.entrySet());
+        Collections.sort(list, new AccessTimeComparator(accessTimeBackfill));
+        int keepCount = (maxSize * 8) / 10;
+        Map<String, CacheValue> truncated = Maps.newHashMap();
+        for (Map.Entry<String, CacheValue> entry : list.subList(0, keepCount)) {
+            truncated.put(entry.getKey(), entry.getValue());
         }
-        return ImmutableLoadFromFileResult.builder()
-                .cache(cache)
-                .linesInFile(0)
-                .trackAccessTimes(false)
-                .build();
+        return truncated;
     }
 
-    @Value.Immutable
-    interface LoadFromFileResult {
+    private void loadFromLegacyTextFile(File legacyTextFile) {
+        LoadFromFileResult result;
+        try {
+            result = Files.readLines(legacyTextFile, UTF_8, new LoadFromFile(legacyTextFile));
+        } catch (IOException e) {
+            logger.error("error reading {}: {}", legacyTextFile.getAbsolutePath(), e.getMessage(),
+                    e);
+            return;
+        }
+        cache.putAll(result.cache());
+        // the entries will be migrated to the binary file on the next writeToFile()
+        needsToBeWritten.addAll(result.cache().keySet());
+        trackAccessTimes = result.trackAccessTimes();
+    }
 
-        ConcurrentMap<String, CacheValue> cache();
+    private static ImmutableSet<String> union(ImmutableSet<String> superTypeNames,
+            ImmutableSet<String> otherSuperTypeNames) {
+        if (superTypeNames.containsAll(otherSuperTypeNames)) {
+            return superTypeNames;
+        }
+        Set<String> union = Sets.newLinkedHashSet(superTypeNames);
+        for (String superTypeName : otherSuperTypeNames) {
+            if (union.size() >= MAX_SUPER_TYPE_NAMES) {
+                break;
+            }
+            union.add(superTypeName);
+        }
+        return ImmutableSet.copyOf(union);
+    }
 
-        int linesInFile();
+    // String.hashCode() is specified, so this is stable across JVMs
+    private static int hash(String typeName) {
+        int h = typeName.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        return h ^ (h >>> 13);
+    }
 
-        boolean trackAccessTimes();
+    private static int dataStart(int indexCapacity) {
+        return HEADER_LENGTH + indexCapacity * 4;
     }
 
     static class CacheValue {
@@ -279,8 +399,7 @@ public class PreloadSomeSuperTypesCache {
             if (superTypeNames.contains(superTypeName)) {
                 return false;
             }
-            if (superTypeNames.size() > 10) {
-                // just to impose some memory limit
+            if (superTypeNames.size() >= MAX_SUPER_TYPE_NAMES) {
                 return false;
             }
             synchronized (this) {
@@ -292,12 +411,381 @@ public class PreloadSomeSuperTypesCache {
         }
     }
 
+    private static class MappedFile {
+
+        // the position of this buffer is never modified, all access is either absolute or through
+        // a duplicate, so that reads can be performed concurrently without locking
+        private final MappedByteBuffer buffer;
+        private final int indexCapacity;
+        // records and strings past this point (e.g. appended by another JVM sharing the same tmp
+        // directory) are ignored, since they are outside of this mapping
+        private final int dataEnd;
+
+        private MappedFile(MappedByteBuffer buffer, int indexCapacity, int dataEnd) {
+            this.buffer = buffer;
+            this.indexCapacity = indexCapacity;
+            this.dataEnd = dataEnd;
+        }
+
+        private static @Nullable MappedFile open(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // the mapping remains valid after the file is closed
+                return map(raf.getChannel());
+            } finally {
+                raf.close();
+            }
+        }
+
+        private static @Nullable MappedFile map(FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            return wrap(channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        }
+
+        private static @Nullable MappedFile wrap(MappedByteBuffer buffer) {
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                return null;
+            }
+            int indexCapacity = buffer.getInt(INDEX_CAPACITY_OFFSET);
+            int dataEnd = buffer.getInt(DATA_END_OFFSET);
+            if (indexCapacity < MIN_INDEX_CAPACITY || Integer.bitCount(indexCapacity) != 1
+                    || indexCapacity > (buffer.capacity() - HEADER_LENGTH) / 4
+                    || dataEnd < dataStart(indexCapacity) || dataEnd > buffer.capacity()) {
+                return null;
+            }
+            return new MappedFile(buffer, indexCapacity, dataEnd);
+        }
+
+        private static byte[] build(Map<String, CacheValue> entries, boolean trackAccessTimes,
+                long accessTimeBackfill) throws IOException {
+            int indexCapacity = MIN_INDEX_CAPACITY;
+            while (indexCapacity < entries.size() * 2) {
+                indexCapacity <<= 1;
+            }
+            int dataStart = dataStart(indexCapacity);
+            int[] index = new int[indexCapacity];
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            Map<String, Integer> stringOffsets = Maps.newHashMap();
+            for (Map.Entry<String, CacheValue> entry : entries.entrySet()) {
+                String typeName = entry.getKey();
+                CacheValue cacheValue = entry.getValue();
+                long accessTime = cacheValue.accessTime;
+                if (trackAccessTimes && accessTime == 0) {
+                    accessTime = accessTimeBackfill;
+                }
+                int typeNameOffset = writeString(out, dataStart, typeName, stringOffsets);
+                ImmutableSet<String> superTypeNames = cacheValue.superTypeNames;
+                int[] superTypeNameOffsets = new int[superTypeNames.size()];
+                int i = 0;
+                for (String superTypeName : superTypeNames) {
+                    superTypeNameOffsets[i++] =
+                            writeString(out, dataStart, superTypeName, stringOffsets);
+                }
+                int record = dataStart + out.size();
+                out.writeLong(accessTime);
+                out.writeInt(typeNameOffset);
+                out.writeByte(superTypeNameOffsets.length);
+                for (int superTypeNameOffset : superTypeNameOffsets) {
+                    out.writeInt(superTypeNameOffset);
+                }
+                int mask = indexCapacity - 1;
+                int slot = hash(typeName) & mask;
+                while (index[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                index[slot] = record;
+            }
+            out.flush();
+            ByteBuffer buffer = ByteBuffer.allocate(dataStart + baos.size());
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT_VERSION);
+            buffer.putInt(trackAccessTimes ? FLAG_TRACK_ACCESS_TIMES : 0);
+            buffer.putInt(indexCapacity);
+            buffer.putInt(entries.size());
+            buffer.putInt(0);
+            buffer.putInt(dataStart + baos.size());
+            for (int record : index) {
+                buffer.putInt(record);
+            }
+            buffer.put(baos.toByteArray());
+            return buffer.array();
+        }
+
+        // class names are limited to 65535 bytes by the class file format, so the length always
+        // fits in an unsigned short
+        private static int writeString(DataOutputStream out, int dataStart, String str,
+                Map<String, Integer> stringOffsets) throws IOException {
+            Integer offset = stringOffsets.get(str);
+            if (offset != null) {
+                return offset;
+            }
+            byte[] bytes = str.getBytes(UTF_8);
+            offset = dataStart + out.size();
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            stringOffsets.put(str, offset);
+            return offset;
+        }
+
+        private boolean trackAccessTimes() {
+            return (buffer.getInt(FLAGS_OFFSET) & FLAG_TRACK_ACCESS_TIMES) != 0;
+        }
+
+        private boolean isSuperseded() {
+            return (buffer.getInt(FLAGS_OFFSET) & FLAG_SUPERSEDED) != 0;
+        }
+
+        private void markSuperseded() {
+            buffer.putInt(FLAGS_OFFSET, buffer.getInt(FLAGS_OFFSET) | FLAG_SUPERSEDED);
+        }
+
+        private int getEntryCount() {
+            return buffer.getInt(ENTRY_COUNT_OFFSET);
+        }
+
+        private boolean needsCompaction(int newEntryCount, int maxSize) {
+            // this over-counts entries that are already in the file, which is ok
+            long entryCount = (long) getEntryCount() + newEntryCount;
+            int dataLength = dataEnd - dataStart(indexCapacity);
+            return entryCount > maxSize || entryCount * 4 > indexCapacity * 3L
+                    || buffer.getInt(GARBAGE_BYTES_OFFSET) > dataLength / 2;
+        }
+
+        // returns -1 if not found
+        private int find(String typeName) {
+            int slot = findSlot(typeName, typeName.getBytes(UTF_8));
+            if (slot == -1) {
+                return -1;
+            }
+            int record = buffer.getInt(HEADER_LENGTH + slot * 4);
+            return record != 0 && isValidRecord(record) ? record : -1;
+        }
+
+        // returns the slot containing typeName, or otherwise the empty slot where it would be
+        // inserted, or -1 if the index is full
+        private int findSlot(String typeName, byte[] key) {
+            int mask = indexCapacity - 1;
+            int slot = hash(typeName) & mask;
+            for (int i = 0; i < indexCapacity; i++) {
+                int record = buffer.getInt(HEADER_LENGTH + slot * 4);
+                if (record == 0 || isValidRecord(record)
+                        && stringEquals(buffer.getInt(record + 8), key)) {
+                    return slot;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        private ImmutableSet<String> readSuperTypeNames(int record) {
+            int count = buffer.get(record + 12) & 0xff;
+            ImmutableSet.Builder<String> superTypeNames = ImmutableSet.builder();
+            for (int i = 0; i < count; i++) {
+                String superTypeName =
+                        readString(buffer.getInt(record + RECORD_HEADER_LENGTH + i * 4));
+                if (superTypeName != null) {
+                    superTypeNames.add(superTypeName);
+                }
+            }
+            return superTypeNames.build();
+        }
+
+        private void readAll(Map<String, CacheValue> entries) {
+            for (int slot = 0; slot < indexCapacity; slot++) {
+                int record = buffer.getInt(HEADER_LENGTH + slot * 4);
+                if (record == 0 || !isValidRecord(record)) {
+                    continue;
+                }
+                String typeName = readString(buffer.getInt(record + 8));
+                if (typeName != null) {
+                    entries.put(typeName,
+                            new CacheValue(buffer.getLong(record), readSuperTypeNames(record)));
+                }
+            }
+        }
+
+        // must only be called while holding the file lock, and after checking needsCompaction()
+        private MappedFile append(FileChannel channel, Map<String, CacheValue> entries)
+                throws IOException {
+            // upper bound, since UTF-8 uses at most 3 bytes per char, and strings that are already
+            // in the file are not written again
+            long appendLength = 0;
+            for (Map.Entry<String, CacheValue> entry : entries.entrySet()) {
+                ImmutableSet<String> superTypeNames = entry.getValue().superTypeNames;
+                appendLength += RECORD_HEADER_LENGTH + 4 * MAX_SUPER_TYPE_NAMES + 2
+                        + 3 * entry.getKey().length();
+                for (String superTypeName : superTypeNames) {
+                    appendLength += 2 + 3 * superTypeName.length();
+                }
+            }
+            long size = Math.max(channel.size(), dataEnd + appendLength);
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("file is too large");
+            }
+            // mapping beyond the end of the file extends the file
+            MappedByteBuffer newBuffer =
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, (int) size);
+            MappedFile target = new MappedFile(newBuffer, indexCapacity, dataEnd);
+            ByteBuffer dup = newBuffer.duplicate();
+            dup.position(dataEnd);
+            int entryCount = newBuffer.getInt(ENTRY_COUNT_OFFSET);
+            int garbageBytes = newBuffer.getInt(GARBAGE_BYTES_OFFSET);
+            Map<String, Integer> stringOffsets = Maps.newHashMap();
+            for (Map.Entry<String, CacheValue> entry : entries.entrySet()) {
+                String typeName = entry.getKey();
+                CacheValue cacheValue = entry.getValue();
+                byte[] key = typeName.getBytes(UTF_8);
+                int slot = target.findSlot(typeName, key);
+                if (slot == -1) {
+                    // not expected since needsCompaction() keeps the index at most 3/4 full
+                    continue;
+                }
+                long accessTime = cacheValue.accessTime;
+                ImmutableSet<String> superTypeNames = cacheValue.superTypeNames;
+                int typeNameOffset;
+                int existingRecord = newBuffer.getInt(HEADER_LENGTH + slot * 4);
+                if (existingRecord == 0) {
+                    Integer offset = stringOffsets.get(typeName);
+                    if (offset == null) {
+                        offset = writeString(dup, key);
+                        stringOffsets.put(typeName, offset);
+                    }
+                    typeNameOffset = offset;
+                    entryCount++;
+                } else {
+                    // merge with super type names that were appended by another JVM sharing the
+                    // same tmp directory
+                    accessTime = Math.max(accessTime, target.readAccessTime(existingRecord));
+                    superTypeNames =
+                            union(target.readSuperTypeNames(existingRecord), superTypeNames);
+                    typeNameOffset = newBuffer.getInt(existingRecord + 8);
+                    garbageBytes += RECORD_HEADER_LENGTH
+                            + 4 * (newBuffer.get(existingRecord + 12) & 0xff);
+                }
+                int[] superTypeNameOffsets = new int[superTypeNames.size()];
+                int i = 0;
+                for (String superTypeName : superTypeNames) {
+                    Integer offset = stringOffsets.get(superTypeName);
+                    if (offset == null) {
+                        // reuse the type name string if the super type has its own entry
+                        int superTypeRecord = target.find(superTypeName);
+                        if (superTypeRecord == -1) {
+                            offset = writeString(dup, superTypeName.getBytes(UTF_8));
+                        } else {
+                            offset = newBuffer.getInt(superTypeRecord + 8);
+                        }
+                        stringOffsets.put(superTypeName, offset);
+                    }
+                    superTypeNameOffsets[i++] = offset;
+                }
+                int record = dup.position();
+                dup.putLong(accessTime);
+                dup.putInt(typeNameOffset);
+                dup.put((byte) superTypeNameOffsets.length);
+                for (int superTypeNameOffset : superTypeNameOffsets) {
+                    dup.putInt(superTypeNameOffset);
+                }
+                // the index slot is written last, so that a partially written record is never read
+                newBuffer.putInt(HEADER_LENGTH + slot * 4, record);
+            }
+            newBuffer.putInt(ENTRY_COUNT_OFFSET, entryCount);
+            newBuffer.putInt(GARBAGE_BYTES_OFFSET, garbageBytes);
+            newBuffer.putInt(DATA_END_OFFSET, dup.position());
+            return new MappedFile(newBuffer, indexCapacity, dup.position());
+        }
+
+        private long readAccessTime(int record) {
+            return buffer.getLong(record);
+        }
+
+        private @Nullable String readString(int offset) {
+            if (!isValidString(offset)) {
+                return null;
+            }
+            byte[] bytes = new byte[buffer.getShort(offset) & 0xffff];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + 2);
+            dup.get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        private boolean stringEquals(int offset, byte[] key) {
+            if (!isValidString(offset) || (buffer.getShort(offset) & 0xffff) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (buffer.get(offset + 2 + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // the file is never trusted, since it is shared with other JVMs and may be corrupt
+        private boolean isValidRecord(int record) {
+            if (record < dataStart(indexCapacity) || record > dataEnd - RECORD_HEADER_LENGTH) {
+                return false;
+            }
+            int count = buffer.get(record + 12) & 0xff;
+            return count <= (dataEnd - record - RECORD_HEADER_LENGTH) / 4;
+        }
+
+        private boolean isValidString(int offset) {
+            if (offset < dataStart(indexCapacity) || offset > dataEnd - 2) {
+                return false;
+            }
+            return (buffer.getShort(offset) & 0xffff) <= dataEnd - offset - 2;
+        }
+
+        private static int writeString(ByteBuffer dup, byte[] bytes) {
+            int offset = dup.position();
+            dup.putShort((short) bytes.length);
+            dup.put(bytes);
+            return offset;
+        }
+    }
+
+    private static class AccessTimeComparator implements Comparator<Map.Entry<String, CacheValue>> {
+
+        private final long accessTimeBackfill;
+
+        private AccessTimeComparator(long accessTimeBackfill) {
+            this.accessTimeBackfill = accessTimeBackfill;
+        }
+
+        // most recently accessed first
+        @Override
+        public int compare(Map.Entry<String, CacheValue> left,
+                Map.Entry<String, CacheValue> right) {
+            long leftAccessTime = getAccessTime(left.getValue());
+            long rightAccessTime = getAccessTime(right.getValue());
+            return leftAccessTime > rightAccessTime ? -1
+                    : leftAccessTime < rightAccessTime ? 1 : 0;
+        }
+
+        private long getAccessTime(CacheValue cacheValue) {
+            long accessTime = cacheValue.accessTime;
+            return accessTime == 0 ? accessTimeBackfill : accessTime;
+        }
+    }
+
+    @Value.Immutable
+    interface LoadFromFileResult {
+
+        ConcurrentMap<String, CacheValue> cache();
+
+        boolean trackAccessTimes();
+    }
+
     private static class LoadFromFile implements LineProcessor<LoadFromFileResult> {
 
         private final File file;
         private final ConcurrentMap<String, CacheValue> cache = Maps.newConcurrentMap();
 
-        private int linesInFile;
         private @Nullable Boolean hasAccessTimes;
 
         private final Splitter splitter = Splitter.on(',').trimResults().omitEmptyStrings();
@@ -312,7 +800,6 @@ public class PreloadSomeSuperTypesCache {
         public boolean processLine(String line) {
             PeekingIterator<String> i = Iterators.peekingIterator(splitter.split(line).iterator());
             try {
-                linesInFile++;
                 if (hasAccessTimes == null) {
                     char c = i.peek().charAt(0);
                     hasAccessTimes = c >= '0' && c <= '9';
@@ -335,7 +822,6 @@ public class PreloadSomeSuperTypesCache {
         public LoadFromFileResult getResult() {
             return ImmutableLoadFromFileResult.builder()
                     .cache(cache)
-                    .linesInFile(linesInFile)
                     .trackAccessTimes(hasAccessTimes != null && hasAccessTimes)
                     .build();
         }
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Ticker;
+import com.google.common.io.Resources;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.instrumentation.engine.util.ConcurrentWeakIdentityMap;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// opt-in (see EngineModule) speculative analysis of all classes in a code source (jar or
+// directory) as soon as the first class from that code source is loaded
+//
+// the classes are analyzed on a bounded pool of background threads, which populates AnalyzedWorld
+// (so that super type resolution during ClassFileTransformer.transform() is a cache hit) and also
+// records which classes will not need to be woven, so that transform() can skip ClassReader and
+// ClassAnalyzer entirely for those classes
+public class SpeculativeAnalyzer {
+
+    private static final Logger logger = LoggerFactory.getLogger(SpeculativeAnalyzer.class);
+
+    // log startup messages using logger name "org.glowroot.instrumentation"
+    private static final Logger startupLogger =
+            LoggerFactory.getLogger("org.glowroot.instrumentation");
+
+    private final AnalyzedWorld analyzedWorld;
+    private final Supplier<List<Advice>> advisors;
+    private final Ticker ticker;
+    private final int threads;
+    private final long startTick;
+
+    private final ThreadPoolExecutor executor;
+
+    // weak keys to prevent retention of class loaders (see comments in AnalyzedWorld)
+    private final ConcurrentWeakIdentityMap<ClassLoader, LoaderState> loaderStates =
+            ConcurrentWeakIdentityMap.create();
+
+    private final AtomicInteger pendingCodeSources = new AtomicInteger();
+    private final AtomicInteger analyzedCodeSources = new AtomicInteger();
+    private final AtomicInteger analyzedClasses = new AtomicInteger();
+    private final AtomicLong analysisNanos = new AtomicLong();
+
+    private final AtomicInteger transformedClasses = new AtomicInteger();
+    private final AtomicInteger transformedClassesSkippingAnalysis = new AtomicInteger();
+    private final AtomicLong transformNanos = new AtomicLong();
+
+    private volatile long lastCaughtUpLogTick;
+
+    public SpeculativeAnalyzer(AnalyzedWorld analyzedWorld, Supplier<List<Advice>> advisors,
+            Ticker ticker, int threads) {
+        this.analyzedWorld = analyzedWorld;
+        this.advisors = advisors;
+        this.ticker = ticker;
+        this.threads = threads;
+        startTick = ticker.read();
+        lastCaughtUpLogTick = startTick - SECONDS.toNanos(10);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable);
+                        thread.setDaemon(true);
+                        thread.setName("Glowroot-Speculative-Class-Analysis-"
+                                + count.getAndIncrement());
+                        return thread;
+                    }
+                });
+        // starting the threads now so that thread creation does not occur later on inside of
+        // ClassFileTransformer.transform()
+        executor.prestartAllCoreThreads();
+    }
+
+    // called from inside ClassFileTransformer.transform(), so must be quick
+    void onCodeSource(@Nullable CodeSource codeSource, ClassLoader loader) {
+        if (codeSource == null) {
+            return;
+        }
+        URL location = codeSource.getLocation();
+        if (location == null) {
+            return;
+        }
+        LoaderState loaderState = getLoaderState(loader);
+        if (loaderState.seenLocations.putIfAbsent(location.toExternalForm(),
+                Boolean.TRUE) != null) {
+            return;
+        }
+        pendingCodeSources.getAndIncrement();
+        try {
+            executor.execute(new AnalyzeCodeSource(location, loader, loaderState));
+        } catch (RejectedExecutionException e) {
+            pendingCodeSources.getAndDecrement();
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    // called from inside ClassFileTransformer.transform(), so must be quick
+    //
+    // the recorded result is only trusted if the advisors have not changed since and the class
+    // bytes are the same as those that were analyzed (e.g. they were not modified by an earlier
+    // ClassFileTransformer)
+    boolean isWeavingNotRequired(String className, byte[] classBytes, ClassLoader loader) {
+        LoaderState loaderState = getLoaderState(loader);
+        // removing since each class is only loaded once per class loader (and retransformation
+        // does not use this)
+        Verdict verdict = loaderState.weavingNotRequired.remove(className);
+        if (verdict == null || verdict.advisors != advisors.get()
+                || verdict.length != classBytes.length
+                || verdict.hashCode != Arrays.hashCode(classBytes)) {
+            return false;
+        }
+        transformedClassesSkippingAnalysis.getAndIncrement();
+        return true;
+    }
+
+    void recordTransform(long nanos) {
+        transformedClasses.getAndIncrement();
+        transformNanos.getAndAdd(nanos);
+    }
+
+    public void logSummary(String point) {
+        startupLogger.info("speculative class analysis {}: analyzed {} classes from {} code"
+                + " sources in {} ms (summed across {} background threads), {} of {} classes"
+                + " loaded so far skipped synchronous analysis, total synchronous weaving time {}"
+                + " ms, elapsed time since weaving started {} ms", point, analyzedClasses.get(),
+                analyzedCodeSources.get(), NANOSECONDS.toMillis(analysisNanos.get()), threads,
+                transformedClassesSkippingAnalysis.get(), transformedClasses.get(),
+                NANOSECONDS.toMillis(transformNanos.get()),
+                NANOSECONDS.toMillis(ticker.read() - startTick));
+    }
+
+    // code sources tend to be seen in bursts during startup, so this limits the logging to a
+    // reasonable amount
+    private void logCaughtUp() {
+        long currTick = ticker.read();
+        if (NANOSECONDS.toSeconds(currTick - lastCaughtUpLogTick) >= 10) {
+            lastCaughtUpLogTick = currTick;
+            logSummary("caught up");
+        }
+    }
+
+    // package private for tests
+    void analyzeCodeSource(URL location, ClassLoader loader, LoaderState loaderState)
+            throws Exception {
+        long startTick = ticker.read();
+        String locationExternalForm = location.toExternalForm();
+        int count = 0;
+        for (String className : getClassNames(location)) {
+            if (analyzeClass(className, loader, loaderState, locationExternalForm)) {
+                count++;
+            }
+        }
+        analyzedCodeSources.getAndIncrement();
+        analyzedClasses.getAndAdd(count);
+        analysisNanos.getAndAdd(ticker.read() - startTick);
+        logger.debug("speculatively analyzed {} classes from {}", count, location);
+    }
+
+    // package private for tests
+    LoaderState getLoaderState(ClassLoader loader) {
+        LoaderState loaderState = loaderStates.get(loader);
+        if (loaderState == null) {
+            loaderState = new LoaderState();
+            LoaderState existingLoaderState = loaderStates.putIfAbsent(loader, loaderState);
+            if (existingLoaderState != null) {
+                loaderState = existingLoaderState;
+            }
+        }
+        return loaderState;
+    }
+
+    // className is internal name
+    private boolean analyzeClass(String className, ClassLoader loader, LoaderState loaderState,
+            String locationExternalForm) throws Exception {
+        if (className.equals(ImportantClassNames.JBOSS_WELD_HACK_CLASS_NAME)
+                || className.equals(ImportantClassNames.JBOSS_URL_HACK_CLASS_NAME)) {
+            // these are always processed by the Weaver
+            return false;
+        }
+        String name = ClassNames.fromInternalName(className);
+        if (analyzedWorld.isAnalyzedOrLoaded(name, loader)) {
+            return false;
+        }
+        String path = className + ".class";
+        URL url = loader.getResource(path);
+        if (url == null || !url.toExternalForm().contains(locationExternalForm)) {
+            // this class will not be loaded from this code source
+            return false;
+        }
+        if (isVisibleFromParentLoader(loader, path, url)) {
+            // this class will (most likely) be loaded by a parent loader, in which case it will be
+            // analyzed when that loader's code source is seen
+            return false;
+        }
+        List<Advice> currAdvisors = advisors.get();
+        byte[] bytes = Resources.toByteArray(url);
+        try {
+            if (!analyzedWorld.analyzeBeforeLoading(name, bytes, loader, currAdvisors)) {
+                loaderState.weavingNotRequired.put(className,
+                        new Verdict(currAdvisors, bytes.length, Arrays.hashCode(bytes)));
+            }
+        } catch (ClassNotFoundException e) {
+            logger.debug(e.getMessage(), e);
+            return false;
+        } catch (RuntimeException e) {
+            // e.g. ASM failing to parse the class file, this will be reported (if the class is
+            // ever loaded) by the synchronous weaving
+            logger.debug(e.getMessage(), e);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean isVisibleFromParentLoader(ClassLoader loader, String path, URL url) {
+        ClassLoader parentLoader = loader.getParent();
+        while (parentLoader != null) {
+            URL parentLoaderUrl = parentLoader.getResource(path);
+            // comparing results of URL.toExternalForm() since using URL.equals() directly
+            // performs name resolution and is a blocking operation (from the javadoc)
+            if (parentLoaderUrl != null
+                    && parentLoaderUrl.toExternalForm().equals(url.toExternalForm())) {
+                return true;
+            }
+            parentLoader = parentLoader.getParent();
+        }
+        return false;
+    }
+
+    // returns internal names
+    private static List<String> getClassNames(URL location) throws IOException {
+        List<String> classNames = new ArrayList<String>();
+        String protocol = location.getProtocol();
+        if (protocol.equals("file")) {
+            File file;
+            try {
+                file = new File(location.toURI());
+            } catch (URISyntaxException e) {
+                logger.debug(e.getMessage(), e);
+                return classNames;
+            }
+            if (file.isDirectory()) {
+                addClassNames(file, "", classNames);
+            } else if (file.isFile()) {
+                JarFile jarFile = new JarFile(file);
+                try {
+                    addClassNames(jarFile, classNames);
+                } finally {
+                    jarFile.close();
+                }
+            }
+        } else if (protocol.equals("jar")) {
+            // e.g. nested jars inside of spring boot executable jars
+            URLConnection connection = location.openConnection();
+            if (connection instanceof JarURLConnection) {
+                // not closing since the JarFile may be cached and shared with the class loader
+                JarFile jarFile = ((JarURLConnection) connection).getJarFile();
+                addClassNames(jarFile, classNames);
+            }
+        }
+        return classNames;
+    }
+
+    private static void addClassNames(File dir, String prefix, List<String> classNames) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (file.isDirectory()) {
+                addClassNames(file, prefix + name + "/", classNames);
+            } else if (isClassFile(prefix + name)) {
+                classNames.add(prefix + name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    private static void addClassNames(JarFile jarFile, List<String> classNames) {
+        Enumeration<JarEntry> entries = jarFile.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (isClassFile(name)) {
+                classNames.add(name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    private static boolean isClassFile(String path) {
+        return path.endsWith(".class") && !path.startsWith("META-INF/")
+                && !path.endsWith("module-info.class") && !path.endsWith("package-info.class");
+    }
+
+    static class LoaderState {
+
+        private final ConcurrentMap<String, Boolean> seenLocations =
+                new ConcurrentHashMap<String, Boolean>();
+
+        // keys are internal names
+        private final ConcurrentMap<String, Verdict> weavingNotRequired =
+                new ConcurrentHashMap<String, Verdict>();
+    }
+
+    private static class Verdict {
+
+        private final List<Advice> advisors;
+        private final int length;
+        private final int hashCode;
+
+        private Verdict(List<Advice> advisors, int length, int hashCode) {
+            this.advisors = advisors;
+            this.length = length;
+            this.hashCode = hashCode;
+        }
+    }
+
+    private class AnalyzeCodeSource implements Runnable {
+
+        private final URL location;
+        // weak reference so that queued analysis does not retain the class loader
+        private final WeakReference<ClassLoader> loaderRef;
+        private final LoaderState loaderState;
+
+        private AnalyzeCodeSource(URL location, ClassLoader loader, LoaderState loaderState) {
+            this.location = location;
+            this.loaderRef = new WeakReference<ClassLoader>(loader);
+            this.loaderState = loaderState;
+        }
+
+        @Override
+        public void run() {
+            try {
+                ClassLoader loader = loaderRef.get();
+                if (loader != null) {
+                    analyzeCodeSource(location, loader, loaderState);
+                }
+            } catch (Throwable t) {
+                logger.error("error analyzing {}: {}", location, t.getMessage(), t);
+            } finally {
+                if (pendingCodeSources.decrementAndGet() == 0) {
+                    logCaughtUp();
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.lang.management.MonitorInfo;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 import java.security.CodeSource;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -49,6 +50,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.instrumentation.engine.util.IterableWithSelfRemovableEntries;
 import org.glowroot.instrumentation.engine.util.IterableWithSelfRemovableEntries.SelfRemovableEntry;
 import org.glowroot.instrumentation.engine.weaving.ClassLoaders.LazyDefinedClass;
+import org.glowroot.instrumentation.engine.weaving.WovenClassCache.CacheKey;
 
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static org.objectweb.asm.Opcodes.ASM7;
@@ -76,6 +78,9 @@ public class Weaver {
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
     private final Ticker ticker;
+    private final @Nullable SpeculativeAnalyzer speculativeAnalyzer;
+    private final @Nullable WovenClassCache wovenClassCache;
+    private final @Nullable Supplier<FastRejectFilter> fastRejectFilter;
 
     private volatile boolean noLongerNeedToWeaveMainMethods;
 
@@ -84,19 +89,38 @@ public class Weaver {
     private final IterableWithSelfRemovableEntries<ActiveWeaving> activeWeavings =
             new IterableWithSelfRemovableEntries<ActiveWeaving>();
 
+    private final InstrumentationWeavingStats instrumentationWeavingStats =
+            new InstrumentationWeavingStats();
+
+    private final WeavingStats weavingStats = new WeavingStats(20);
+
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
-            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld, Ticker ticker) {
+            List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld, Ticker ticker,
+            @Nullable SpeculativeAnalyzer speculativeAnalyzer,
+            @Nullable WovenClassCache wovenClassCache,
+            @Nullable Supplier<FastRejectFilter> fastRejectFilter) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
         this.ticker = ticker;
+        this.speculativeAnalyzer = speculativeAnalyzer;
+        this.wovenClassCache = wovenClassCache;
+        this.fastRejectFilter = fastRejectFilter;
     }
 
     public void setNoLongerNeedToWeaveMainMethods() {
         noLongerNeedToWeaveMainMethods = true;
     }
 
+    public InstrumentationWeavingStats getInstrumentationWeavingStats() {
+        return instrumentationWeavingStats;
+    }
+
+    public WeavingStats getWeavingStats() {
+        return weavingStats;
+    }
+
     public boolean checkForDeadlockedActiveWeaving() {
         long currTick = ticker.read();
         List<Long> threadIds = Lists.newArrayList();
@@ -121,24 +145,53 @@ public class Weaver {
         long startTick = ticker.read();
         SelfRemovableEntry activeWeavingEntry =
                 activeWeavings.add(new ActiveWeaving(Thread.currentThread().getId(), startTick));
+        byte[] transformedBytes = null;
         try {
             logger.trace("transform(): className={}", className);
-            byte[] transformedBytes =
-                    weaveUnderTimer(classBytes, className, classBeingRedefined, codeSource, loader);
+            if (speculativeAnalyzer != null && loader != null) {
+                speculativeAnalyzer.onCodeSource(codeSource, loader);
+                if (classBeingRedefined == null && speculativeAnalyzer
+                        .isWeavingNotRequired(className, classBytes, loader)) {
+                    // already analyzed (and added to the analyzed world) in the background
+                    return null;
+                }
+            }
+            transformedBytes = weaveUnderTimer(classBytes, className, classBeingRedefined,
+                    codeSource, loader, startTick);
             if (transformedBytes != null) {
                 logger.debug("transform(): transformed {}", className);
             }
             return transformedBytes;
         } finally {
             activeWeavingEntry.remove();
+            long nanos = ticker.read() - startTick;
+            if (speculativeAnalyzer != null) {
+                speculativeAnalyzer.recordTransform(nanos);
+            }
+            weavingStats.record(className, loader, codeSource, classBytes.length,
+                    transformedBytes, nanos);
         }
     }
 
     private byte /*@Nullable*/ [] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable Class<?> classBeingRedefined, @Nullable CodeSource codeSource,
-            @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
-                classBytes, loader, className);
+            @Nullable ClassLoader loader, long startTick) {
+        List<Advice> advisors = this.advisors.get();
+        if (fastRejectFilter != null && classBeingRedefined == null) {
+            FastRejectFilter filter = fastRejectFilter.get();
+            // the filter is only valid for the advisors it was built from (the advisors may have
+            // been updated in between retrieving the two)
+            if (filter.getAdvisors() == advisors) {
+                AnalyzedClass analyzedClass = filter.tryReject(classBytes, loader, analyzedWorld,
+                        noLongerNeedToWeaveMainMethods);
+                if (analyzedClass != null) {
+                    analyzedWorld.add(analyzedClass, loader);
+                    return null;
+                }
+            }
+        }
+        advisors = analyzedWorld.mergeInstrumentationAnnotations(advisors, classBytes, loader,
+                className);
         ThinClassVisitor accv = new ThinClassVisitor();
         new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         boolean frames = accv.getMajorVersion() >= V1_6;
@@ -165,7 +218,7 @@ public class Weaver {
         }
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes, classBeingRedefined,
-                noLongerNeedToWeaveMainMethods);
+                noLongerNeedToWeaveMainMethods, false);
         try {
             classAnalyzer.analyzeMethods();
         } catch (ClassNotFoundException e) {
@@ -210,6 +263,26 @@ public class Weaver {
                 }
             }
         }
+        CacheKey cacheKey = null;
+        if (wovenClassCache != null && classBeingRedefined == null && maybeProcessedBytes == null
+                && !className.equals(DEBUG_CLASS_NAME)) {
+            cacheKey = wovenClassCache.getCacheKey(classBytes, advisors, loader,
+                    noLongerNeedToWeaveMainMethods, classAnalyzer);
+            if (cacheKey != null) {
+                byte[] cachedBytes = wovenClassCache.get(cacheKey);
+                if (cachedBytes != null) {
+                    // this is normally done at the end of the weaving pass, see
+                    // WeavingClassVisitor.visitEnd()
+                    analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+                    if (!defineAdviceClasses(cacheKey.getUsedAdvisors(), className, loader)) {
+                        return null;
+                    }
+                    instrumentationWeavingStats.record(cacheKey.getUsedAdvisors(),
+                            ticker.read() - startTick);
+                    return cachedBytes;
+                }
+            }
+        }
         ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
         WeavingClassVisitor cv = new WeavingClassVisitor(cw, loader, frames,
                 noLongerNeedToWeaveMainMethods, classAnalyzer.getAnalyzedClass(),
@@ -250,21 +323,34 @@ public class Weaver {
                 logger.warn(e.getMessage(), e);
             }
         }
-        if (loader != null) {
-            try {
-                for (Advice usedAdvice : cv.getUsedAdvisors()) {
-                    LazyDefinedClass nonBootstrapLoaderAdviceClass =
-                            usedAdvice.nonBootstrapLoaderAdviceClass();
-                    if (nonBootstrapLoaderAdviceClass != null) {
-                        ClassLoaders.defineClassIfNotExists(nonBootstrapLoaderAdviceClass, loader);
-                    }
+        if (!defineAdviceClasses(cv.getUsedAdvisors(), className, loader)) {
+            return null;
+        }
+        if (wovenClassCache != null && cacheKey != null) {
+            wovenClassCache.put(cacheKey, transformedBytes);
+        }
+        instrumentationWeavingStats.record(cv.getUsedAdvisors(), ticker.read() - startTick);
+        return transformedBytes;
+    }
+
+    private static boolean defineAdviceClasses(Collection<Advice> usedAdvisors, String className,
+            @Nullable ClassLoader loader) {
+        if (loader == null) {
+            return true;
+        }
+        try {
+            for (Advice usedAdvice : usedAdvisors) {
+                LazyDefinedClass nonBootstrapLoaderAdviceClass =
+                        usedAdvice.nonBootstrapLoaderAdviceClass();
+                if (nonBootstrapLoaderAdviceClass != null) {
+                    ClassLoaders.defineClassIfNotExists(nonBootstrapLoaderAdviceClass, loader);
                 }
-            } catch (Exception e) {
-                logger.error("unable to weave {}: {}", className, e.getMessage(), e);
-                return null;
             }
+        } catch (Exception e) {
+            logger.error("unable to weave {}: {}", className, e.getMessage(), e);
+            return false;
         }
-        return transformedBytes;
+        return true;
     }
 
     private boolean checkForDeadlockedActiveWeaving(List<Long> activeWeavingThreadIds) {
@@ -47,6 +47,7 @@ import org.glowroot.instrumentation.api.weaving.Advice.OnMethodBefore;
 import org.glowroot.instrumentation.api.weaving.Advice.OnMethodReturn;
 import org.glowroot.instrumentation.api.weaving.Advice.OnMethodThrow;
 import org.glowroot.instrumentation.api.weaving.Bind;
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming;
 import org.glowroot.instrumentation.engine.bytecode.api.Bytecode;
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextPlus;
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
@@ -68,6 +69,8 @@ class WeavingMethodVisitor extends AdviceAdapter {
 
     private static final Type bytecodeType = Type.getType(Bytecode.class);
 
+    private static final Type adviceTimingType = Type.getType(AdviceTiming.class);
+
     private static final Type parameterHolderType = Type.getType(ParameterHolder.class);
     private static final Type parameterHolderImplType = Type.getType(ParameterHolderImpl.class);
 
@@ -113,6 +116,8 @@ class WeavingMethodVisitor extends AdviceAdapter {
     private @MonotonicNonNull Integer threadContextLocal;
     private @MonotonicNonNull Integer threadContextHolderLocal;
 
+    private @MonotonicNonNull Integer adviceTimingStartTickLocal;
+
     private final List<CatchHandler> catchHandlers = Lists.newArrayList();
 
     private @MonotonicNonNull Integer returnOpcode;
@@ -144,6 +149,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         for (Advice advice : advisors) {
             if (!advice.pointcut().nestingGroup().isEmpty()
                     || !advice.pointcut().suppressionKey().isEmpty()
+                    || advice.hasBindOptionalThreadContext()
                     || advice.onAfterAdvice() != null) {
                 needsOnReturn = true;
                 needsOnThrow = true;
@@ -292,6 +298,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
                 visitOnAfterAdvice(advice, false);
             }
             resetCurrentNestingGroupIfNeeded(false);
+            exitingAdviceFrameIfNeeded(false);
             // need to call super.visitInsn() in order to avoid infinite loop
             // could call mv.visitInsn(), but that would bypass special constructor handling in
             // AdviceAdapter.visitInsn()
@@ -306,6 +313,12 @@ class WeavingMethodVisitor extends AdviceAdapter {
     private void onMethodPreEnterInternal() {
         methodStartLabel = new Label();
         visitLabel(methodStartLabel);
+        if (AdviceTiming.isEnabled() && !advisors.isEmpty()) {
+            adviceTimingStartTickLocal = newLocal(Type.LONG_TYPE);
+            // temporary initial value needed for Java 7 stack map frames
+            visitInsn(LCONST_0);
+            storeLocal(adviceTimingStartTickLocal);
+        }
         // enabled and traveler locals must be defined outside of the try block so they will be
         // accessible in the catch block
         for (Advice advice : advisors) {
@@ -362,6 +375,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
             visitLabel(catchHandlerLabel);
             visitImplicitFrame("java/lang/Throwable");
             resetCurrentNestingGroupIfNeeded(true);
+            exitingAdviceFrameIfNeeded(true);
             visitInsn(ATHROW);
         } else {
             for (CatchHandler catchHandler : Lists.reverse(catchHandlers)) {
@@ -377,6 +391,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
                     visitOnAfterAdvice(advice, true);
                 }
                 resetCurrentNestingGroupIfNeeded(true);
+                exitingAdviceFrameIfNeeded(true);
                 visitInsn(ATHROW);
             }
         }
@@ -398,7 +413,8 @@ class WeavingMethodVisitor extends AdviceAdapter {
         String suppressionKey = advice.pointcut().suppressionKey();
         boolean needThreadContextHolderLocal = !nestingGroup.isEmpty() || !suppressionKey.isEmpty()
                 || !suppressibleUsingKey.isEmpty() || advice.hasBindThreadContext()
-                || advice.hasBindOptionalThreadContext();
+                || advice.hasBindOptionalThreadContext()
+                || advice.pointcut().requiresTransaction();
         if (needThreadContextHolderLocal && threadContextHolderLocal == null) {
             // need to define thread context local var outside of any branches,
             // but also don't want to load ThreadContext if enabledLocal exists and is false
@@ -441,8 +457,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         if (isEnabledAdvice != null) {
             loadMethodParameters(advice.isEnabledParameters(), 0, null, advice.adviceType(),
                     IsEnabled.class, false, null, null, nestingGroup, suppressionKey);
-            visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
-                    isEnabledAdvice.getName(), isEnabledAdvice.getDescriptor(), false);
+            invokeAdvice(advice, isEnabledAdvice);
             if (otherEnabledFactorsDisabledEnd == null) {
                 // guaranteed to be non-null via defineLocalVars() above
                 int enabledLocal = checkNotNull(enabledLocals.get(advice));
@@ -455,7 +470,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
             checkNotNull(threadContextHolderLocal);
             checkNotNull(threadContextLocal);
             loadMaybeNullThreadContext();
-            if (advice.hasBindThreadContext() && !advice.hasBindOptionalThreadContext()) {
+            if (requiresThreadContext(advice)) {
                 // if thread context == null, then nothing to check or update, go to disabled
                 visitJumpInsn(IFNULL, otherEnabledFactorsDisabledEnd);
                 if (!nestingGroup.isEmpty()) {
@@ -614,8 +629,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
                 OnMethodBefore.class, false, parameterHolderLocals, enabledLocal,
                 advice.pointcut().nestingGroup(),
                 advice.pointcut().suppressionKey());
-        visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
-                onBeforeAdvice.getName(), onBeforeAdvice.getDescriptor(), false);
+        invokeAdvice(advice, onBeforeAdvice);
         if (travelerLocal != null) {
             storeLocal(travelerLocal);
         }
@@ -639,6 +653,25 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
+    // the advice method's arguments must already be on the stack
+    private void invokeAdvice(Advice advice, Method adviceMethod) {
+        if (adviceTimingStartTickLocal == null) {
+            visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
+                    adviceMethod.getName(), adviceMethod.getDescriptor(), false);
+            return;
+        }
+        int slotIndex = AdviceTiming.getSlot(advice.instrumentationId(),
+                advice.adviceType().getClassName());
+        mv.visitLdcInsn(slotIndex);
+        visitMethodInsn(INVOKESTATIC, adviceTimingType.getInternalName(), "start", "(I)J", false);
+        storeLocal(adviceTimingStartTickLocal);
+        visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
+                adviceMethod.getName(), adviceMethod.getDescriptor(), false);
+        mv.visitLdcInsn(slotIndex);
+        loadLocal(adviceTimingStartTickLocal);
+        visitMethodInsn(INVOKESTATIC, adviceTimingType.getInternalName(), "end", "(IJ)V", false);
+    }
+
     private void saveArgsForMethodExit() {
         for (Advice advice : advisors) {
             saveArgsForMethodExit(advice.onReturnParameters());
@@ -743,8 +776,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         } else if (onReturnAdvice.getReturnType().getSort() != Type.VOID && opcode != RETURN) {
             pop();
         }
-        visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
-                onReturnAdvice.getName(), onReturnAdvice.getDescriptor(), false);
+        invokeAdvice(advice, onReturnAdvice);
         if (onReturnAdvice.getReturnType().getSort() != Type.VOID && opcode == RETURN) {
             pop();
         }
@@ -819,8 +851,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
                     advice.adviceType(), OnMethodThrow.class, true, null, null,
                     advice.pointcut().nestingGroup(), advice.pointcut().suppressionKey(), stack);
         }
-        visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
-                onThrowAdvice.getName(), onThrowAdvice.getDescriptor(), false);
+        invokeAdvice(advice, onThrowAdvice);
         if (onThrowBlockEnd != null) {
             visitLabel(onThrowBlockEnd);
             visitImplicitFrame("java/lang/Throwable");
@@ -846,8 +877,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
                 advice.adviceType(), OnMethodAfter.class, true, null, null,
                 advice.pointcut().nestingGroup(),
                 advice.pointcut().suppressionKey());
-        visitMethodInsn(INVOKESTATIC, advice.adviceType().getInternalName(),
-                onAfterAdvice.getName(), onAfterAdvice.getDescriptor(), false);
+        invokeAdvice(advice, onAfterAdvice);
         if (onAfterBlockEnd != null) {
             visitLabel(onAfterBlockEnd);
             // either inside catch handler or inside on return block
@@ -911,6 +941,47 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
+    // only called from inside catch handler or inside on return block
+    //
+    // an incoming span that is not sampled marks the thread context holder as unsampled (so that
+    // nested incoming spans do not ask the sampler again), and that mark is cleared here when the
+    // advised method exits, instead of when the incoming span ends, since an async incoming span
+    // can end later on a different thread (or never)
+    private void exitingAdviceFrameIfNeeded(boolean insideCatchHandler) {
+        if (threadContextHolderLocal == null || threadContextLocal == null) {
+            return;
+        }
+        boolean hasBindOptionalThreadContext = false;
+        for (Advice advice : advisors) {
+            if (advice.hasBindOptionalThreadContext()) {
+                hasBindOptionalThreadContext = true;
+                break;
+            }
+        }
+        if (!hasBindOptionalThreadContext) {
+            return;
+        }
+        Label label = new Label();
+        loadLocal(threadContextHolderLocal);
+        visitJumpInsn(IFNULL, label);
+        loadLocal(threadContextHolderLocal);
+        visitMethodInsn(INVOKEVIRTUAL, fastThreadContextThreadLocalHolderType.getInternalName(),
+                "isUnsampled", "()Z", false);
+        visitJumpInsn(IFEQ, label);
+        loadLocal(threadContextLocal);
+        visitMethodInsn(INVOKESTATIC, bytecodeType.getInternalName(), "exitingAdviceFrame",
+                "(" + threadContextPlusType.getDescriptor() + ")V", false);
+        visitLabel(label);
+        // either inside catch handler or inside on return block
+        if (insideCatchHandler) {
+            visitImplicitFrame("java/lang/Throwable");
+        } else if (returnType.getSort() == Type.VOID) {
+            visitImplicitFrame();
+        } else {
+            visitImplicitFrame(convert(returnType));
+        }
+    }
+
     private void loadMethodParameters(List<AdviceParameter> parameters, int startIndex,
             @Nullable Integer travelerLocal, Type adviceType,
             Class<? extends Annotation> annotationType, boolean useSavedArgs,
@@ -1296,10 +1367,16 @@ class WeavingMethodVisitor extends AdviceAdapter {
     private static boolean hasOtherEnabledFactors(Advice advice, String nestingGroup,
             String suppressibleUsingKey) {
         return !nestingGroup.isEmpty() || !suppressibleUsingKey.isEmpty()
+                || requiresThreadContext(advice);
+    }
+
+    // advice is disabled (inline, without calling into the advice) when there is no thread context
+    static boolean requiresThreadContext(Advice advice) {
+        return advice.pointcut().requiresTransaction()
                 || (advice.hasBindThreadContext() && !advice.hasBindOptionalThreadContext());
     }
 
-    private static int getNestingGroupId(String nestingGroup) {
+    static int getNestingGroupId(String nestingGroup) {
         Integer nullableNestingGroupId = nestingGroupIds.get(nestingGroup);
         if (nullableNestingGroupId != null) {
             return nullableNestingGroupId;
@@ -1314,7 +1391,7 @@ class WeavingMethodVisitor extends AdviceAdapter {
         }
     }
 
-    private static int getSuppressionKeyId(String suppressionKey) {
+    static int getSuppressionKeyId(String suppressionKey) {
         Integer nullableSuppressionKeyId = suppressionKeyIds.get(suppressionKey);
         if (nullableSuppressionKeyId != null) {
             return nullableSuppressionKeyId;
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// statistics on the time spent in Weaver.weave(), including the slowest classes along with their
+// class loader and code source, which is useful for tuning doNotWeavePrefixes in order to reduce
+// startup time on large classpaths
+public class WeavingStats {
+
+    // log startup messages using logger name "org.glowroot.instrumentation"
+    private static final Logger startupLogger =
+            LoggerFactory.getLogger("org.glowroot.instrumentation");
+
+    // exclusive upper bounds of the histogram buckets, the last bucket has no upper bound
+    private static final long[] HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS =
+            {10, 100, 1000, 10000, 100000};
+
+    private static final Comparator<SlowClass> SLOW_CLASS_ORDERING = new Comparator<SlowClass>() {
+        @Override
+        public int compare(SlowClass left, SlowClass right) {
+            return left.nanos < right.nanos ? -1 : (left.nanos == right.nanos ? 0 : 1);
+        }
+    };
+
+    private final int maxSlowestClasses;
+
+    private final AtomicLong classCount = new AtomicLong();
+    private final AtomicLong wovenClassCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong wovenBytesIn = new AtomicLong();
+    private final AtomicLong wovenBytesOut = new AtomicLong();
+
+    private final AtomicLongArray histogram =
+            new AtomicLongArray(HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS.length + 1);
+
+    // min heap, so that the fastest of the slowest classes is the one evicted
+    // guarded by slowestClasses
+    private final PriorityQueue<SlowClass> slowestClasses;
+
+    // once the slowest classes are full, this is the fastest of them, which avoids synchronizing
+    // for the vast majority of classes
+    private volatile long slowestClassesThresholdNanos;
+
+    public WeavingStats(int maxSlowestClasses) {
+        this.maxSlowestClasses = maxSlowestClasses;
+        slowestClasses = new PriorityQueue<SlowClass>(maxSlowestClasses + 1, SLOW_CLASS_ORDERING);
+    }
+
+    public long getClassCount() {
+        return classCount.get();
+    }
+
+    public long getWovenClassCount() {
+        return wovenClassCount.get();
+    }
+
+    // classes that went through analysis (e.g. for the analyzed world), but did not need weaving
+    public long getAnalyzedOnlyClassCount() {
+        return classCount.get() - wovenClassCount.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    public long getWovenBytesIn() {
+        return wovenBytesIn.get();
+    }
+
+    public long getWovenBytesOut() {
+        return wovenBytesOut.get();
+    }
+
+    public long[] getHistogramBucketUpperBoundsMicros() {
+        return HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS.clone();
+    }
+
+    // the last bucket is for everything at or above the last upper bound
+    public long[] getHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+
+    // ordered from slowest to fastest
+    public List<SlowClass> getSlowestClasses() {
+        List<SlowClass> list;
+        synchronized (slowestClasses) {
+            list = new ArrayList<SlowClass>(slowestClasses);
+        }
+        Collections.sort(list, Collections.reverseOrder(SLOW_CLASS_ORDERING));
+        return list;
+    }
+
+    public void logSummary(String point) {
+        long[] histogram = getHistogram();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (i < HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS.length) {
+                sb.append('<');
+                appendDuration(sb, HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS[i]);
+            } else {
+                sb.append(">=");
+                appendDuration(sb, HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS[i - 1]);
+            }
+            sb.append(": ");
+            sb.append(histogram[i]);
+        }
+        startupLogger.info("weaving {}: {} classes in {} ms ({} woven, {} analyzed only), {} bytes"
+                + " in total, woven {} bytes into {} bytes, weaving time histogram [{}]", point,
+                classCount.get(), NANOSECONDS.toMillis(totalNanos.get()), wovenClassCount.get(),
+                getAnalyzedOnlyClassCount(), totalBytes.get(), wovenBytesIn.get(),
+                wovenBytesOut.get(), sb);
+        List<SlowClass> slowestClasses = getSlowestClasses();
+        if (slowestClasses.isEmpty()) {
+            return;
+        }
+        sb = new StringBuilder();
+        for (SlowClass slowClass : slowestClasses) {
+            sb.append("\n  ");
+            sb.append(NANOSECONDS.toMillis(slowClass.nanos));
+            sb.append(" ms ");
+            sb.append(slowClass.className);
+            sb.append(" (");
+            sb.append(slowClass.woven ? "woven" : "analyzed only");
+            sb.append(", class loader: ");
+            sb.append(slowClass.classLoader);
+            sb.append(", code source: ");
+            sb.append(slowClass.codeSource);
+            sb.append(')');
+        }
+        startupLogger.info("weaving {}: slowest classes:{}", point, sb);
+    }
+
+    void record(String className, @Nullable ClassLoader loader, @Nullable CodeSource codeSource,
+            int bytesIn, byte /*@Nullable*/ [] transformedBytes, long nanos) {
+        classCount.getAndIncrement();
+        totalNanos.getAndAdd(nanos);
+        totalBytes.getAndAdd(bytesIn);
+        boolean woven = transformedBytes != null;
+        if (woven) {
+            wovenClassCount.getAndIncrement();
+            wovenBytesIn.getAndAdd(bytesIn);
+            wovenBytesOut.getAndAdd(transformedBytes.length);
+        }
+        histogram.getAndIncrement(getHistogramBucket(nanos));
+        if (nanos <= slowestClassesThresholdNanos) {
+            return;
+        }
+        synchronized (slowestClasses) {
+            slowestClasses.add(new SlowClass(ClassNames.fromInternalName(className),
+                    getClassLoaderDescription(loader), getCodeSourceDescription(codeSource), woven,
+                    nanos));
+            if (slowestClasses.size() > maxSlowestClasses) {
+                slowestClasses.remove();
+                slowestClassesThresholdNanos = slowestClasses.element().nanos;
+            }
+        }
+    }
+
+    private static int getHistogramBucket(long nanos) {
+        long micros = NANOSECONDS.toMicros(nanos);
+        for (int i = 0; i < HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS.length; i++) {
+            if (micros < HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS[i]) {
+                return i;
+            }
+        }
+        return HISTOGRAM_BUCKET_UPPER_BOUNDS_MICROS.length;
+    }
+
+    private static void appendDuration(StringBuilder sb, long micros) {
+        if (micros < 1000) {
+            sb.append(micros);
+            sb.append(" us");
+        } else {
+            sb.append(MICROSECONDS.toMillis(micros));
+            sb.append(" ms");
+        }
+    }
+
+    // the class loader itself is not retained, in order to not prevent it from being collected
+    private static String getClassLoaderDescription(@Nullable ClassLoader loader) {
+        if (loader == null) {
+            return "bootstrap";
+        }
+        return loader.getClass().getName() + "@"
+                + Integer.toHexString(System.identityHashCode(loader));
+    }
+
+    private static @Nullable String getCodeSourceDescription(@Nullable CodeSource codeSource) {
+        if (codeSource == null) {
+            return null;
+        }
+        URL location = codeSource.getLocation();
+        return location == null ? null : location.toExternalForm();
+    }
+
+    public static class SlowClass {
+
+        private final String className;
+        private final String classLoader;
+        private final @Nullable String codeSource;
+        private final boolean woven;
+        private final long nanos;
+
+        private SlowClass(String className, String classLoader, @Nullable String codeSource,
+                boolean woven, long nanos) {
+            this.className = className;
+            this.classLoader = classLoader;
+            this.codeSource = codeSource;
+            this.woven = woven;
+            this.nanos = nanos;
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getClassLoader() {
+            return classLoader;
+        }
+
+        public @Nullable String getCodeSource() {
+            return codeSource;
+        }
+
+        public boolean isWoven() {
+            return woven;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+}
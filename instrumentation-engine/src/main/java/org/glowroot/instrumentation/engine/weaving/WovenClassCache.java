@@ -0,0 +1,626 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.Resources;
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Type;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.glowroot.instrumentation.api.weaving.Advice.Pointcut;
+
+import static com.google.common.base.Charsets.UTF_8;
+
+// persistent cache of woven class bytes, stored in memory-mapped append-only segment files
+//
+// the cache key is a digest over the engine fingerprint (see getEngineFingerprint()), the advisors
+// fingerprint (see AdviceCache.getAdvisorsFingerprint()), the results of class analysis that feed
+// into weaving, and the original class bytes
+//
+// class analysis is still performed on a cache hit, since the analyzed class needs to be added to
+// the analyzed world and advice classes may need to be defined in the class loader, but the weaving
+// pass (and class writing) is skipped
+public class WovenClassCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WovenClassCache.class);
+
+    // bump whenever the segment file layout or the cache key contents change
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x474c5743;
+
+    private static final int DIGEST_LENGTH = 20;
+
+    // magic, format version, engine fingerprint
+    private static final int SEGMENT_HEADER_LENGTH = 8 + DIGEST_LENGTH;
+
+    // length (written last, so that a partially written record is never read back), crc32, digest
+    private static final int RECORD_HEADER_LENGTH = 8 + DIGEST_LENGTH;
+
+    private static final String SEGMENT_FILE_NAME_PREFIX = "segment-";
+
+    private static final int SEGMENT_COUNT = 8;
+
+    // each JVM uses its own slot directory, so that several JVMs can share the same tmp directory
+    // (e.g. multiple services on the same host), and a restarted JVM will typically pick up the
+    // slot that it (or another JVM running the same application) used before
+    private static final int MAX_SLOTS = 8;
+
+    private static final String SLOT_DIR_NAME_PREFIX = "slot-";
+
+    // the code in these classes determines the woven bytes, so it is used to fingerprint the engine
+    // (there is no reliable engine version available at runtime, e.g. when running from an IDE)
+    private static final Class<?>[] ENGINE_FINGERPRINT_CLASSES =
+            {WovenClassCache.class, Weaver.class, WeavingClassVisitor.class,
+                    WeavingMethodVisitor.class, JSRInlinerClassVisitor.class,
+                    FrameDeduppingMethodVisitor.class, AdviceAdapter.class, ClassReader.class,
+                    ClassWriter.class};
+
+    private final File directory;
+    private final AdviceCache adviceCache;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final byte[] engineFingerprint;
+
+    private final ConcurrentMap<Digest, Location> index = Maps.newConcurrentMap();
+
+    private final Object lock = new Object();
+
+    // segments, lastSegmentId and disabled are guarded by lock
+    private final Deque<Segment> segments = new ArrayDeque<Segment>();
+    private long lastSegmentId;
+    private boolean disabled;
+
+    // the lock is held for the life of the JVM in order to prevent corruption from another JVM
+    // using the same slot directory
+    private final FileLock directoryLock;
+
+    public static @Nullable WovenClassCache create(File directory, AdviceCache adviceCache,
+            int maxSizeMb) {
+        long segmentSize = maxSizeMb * 1024L * 1024 / SEGMENT_COUNT;
+        try {
+            // this also initializes the SHA-1 provider up front, instead of inside of transform()
+            byte[] engineFingerprint = getEngineFingerprint();
+            if (engineFingerprint == null) {
+                logger.warn("woven class cache is disabled since the weaving engine class files"
+                        + " could not be found");
+                return null;
+            }
+            for (int i = 0; i < MAX_SLOTS; i++) {
+                try {
+                    return new WovenClassCache(new File(directory, SLOT_DIR_NAME_PREFIX + i),
+                            adviceCache, (int) Math.min(segmentSize, Integer.MAX_VALUE),
+                            SEGMENT_COUNT, engineFingerprint);
+                } catch (DirectoryInUseException e) {
+                    logger.debug(e.getMessage(), e);
+                }
+            }
+            logger.info("woven class cache is disabled since all {} slots under {} are in use by"
+                    + " other processes", MAX_SLOTS, directory.getAbsolutePath());
+            return null;
+        } catch (Exception e) {
+            logger.error("woven class cache is disabled: {}", e.getMessage(), e);
+            return null;
+        }
+    }
+
+    @VisibleForTesting
+    WovenClassCache(File directory, AdviceCache adviceCache, int segmentSize, int maxSegments,
+            byte[] engineFingerprint) throws IOException {
+        this.directory = directory;
+        this.adviceCache = adviceCache;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        this.engineFingerprint = engineFingerprint;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory.getAbsolutePath());
+        }
+        this.directoryLock = lockDirectory(directory);
+        loadSegments();
+    }
+
+    // returns null if the woven bytes for this class are not cacheable
+    @Nullable
+    CacheKey getCacheKey(byte[] classBytes, List<Advice> advisors,
+            @Nullable ClassLoader loader, boolean noLongerNeedToWeaveMainMethods,
+            ClassAnalyzer classAnalyzer) {
+        byte[] advisorsFingerprint = adviceCache.getAdvisorsFingerprint(advisors);
+        if (advisorsFingerprint == null) {
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            logger.debug(e.getMessage(), e);
+            return null;
+        }
+        digest.update(engineFingerprint);
+        digest.update(advisorsFingerprint);
+        putBoolean(digest, loader == null);
+        putBoolean(digest, noLongerNeedToWeaveMainMethods);
+        putBoolean(digest, classAnalyzer.isClassLoader());
+        Set<Advice> usedAdvisors = Sets.newHashSet();
+        for (Map.Entry<String, List<Advice>> entry : classAnalyzer.getMethodAdvisors()
+                .entrySet()) {
+            putString(digest, entry.getKey());
+            if (!putAdvisors(digest, entry.getValue(), usedAdvisors)) {
+                return null;
+            }
+        }
+        for (AnalyzedMethod analyzedMethod : classAnalyzer.getMethodsThatOnlyNowFulfillAdvice()) {
+            putString(digest, analyzedMethod.name());
+            for (String parameterType : analyzedMethod.parameterTypes()) {
+                putString(digest, parameterType);
+            }
+            putString(digest, analyzedMethod.returnType());
+            putInt(digest, analyzedMethod.modifiers());
+            putString(digest, analyzedMethod.signature());
+            for (String exception : analyzedMethod.exceptions()) {
+                putString(digest, exception);
+            }
+            if (!putAdvisors(digest, analyzedMethod.advisors(), usedAdvisors)) {
+                return null;
+            }
+        }
+        for (ShimType shimType : classAnalyzer.getMatchedShimTypes()) {
+            putString(digest, shimType.iface().getInternalName());
+        }
+        for (MixinType mixinType : classAnalyzer.getMatchedReweavableMixinTypes()) {
+            for (Type iface : mixinType.interfaces()) {
+                putString(digest, iface.getInternalName());
+            }
+        }
+        digest.update(classBytes);
+        return new CacheKey(digest.digest(), usedAdvisors);
+    }
+
+    byte /*@Nullable*/ [] get(CacheKey cacheKey) {
+        Location location = index.get(cacheKey.digest);
+        if (location == null) {
+            return null;
+        }
+        byte[] wovenBytes = location.segment.read(location.offset);
+        if (wovenBytes == null) {
+            // corrupt record (e.g. the segment file was modified outside of this JVM)
+            index.remove(cacheKey.digest, location);
+        }
+        return wovenBytes;
+    }
+
+    void put(CacheKey cacheKey, byte[] wovenBytes) {
+        if (index.containsKey(cacheKey.digest)) {
+            return;
+        }
+        int recordLength = RECORD_HEADER_LENGTH + wovenBytes.length;
+        if (recordLength > segmentSize - SEGMENT_HEADER_LENGTH) {
+            return;
+        }
+        synchronized (lock) {
+            if (disabled || index.containsKey(cacheKey.digest)) {
+                return;
+            }
+            Segment segment = segments.peekLast();
+            if (segment == null
+                    || segment.position + recordLength > segment.buffer.capacity()) {
+                segment = addSegment();
+                if (segment == null) {
+                    return;
+                }
+            }
+            int offset = segment.position;
+            segment.write(offset, cacheKey.digest, wovenBytes);
+            segment.position += recordLength;
+            index.put(cacheKey.digest, new Location(segment, offset));
+        }
+    }
+
+    @VisibleForTesting
+    void close() throws IOException {
+        synchronized (lock) {
+            disabled = true;
+            directoryLock.channel().close();
+        }
+    }
+
+    @VisibleForTesting
+    File getDirectory() {
+        return directory;
+    }
+
+    @VisibleForTesting
+    int size() {
+        return index.size();
+    }
+
+    @VisibleForTesting
+    int segmentCount() {
+        synchronized (lock) {
+            return segments.size();
+        }
+    }
+
+    private void loadSegments() {
+        List<Long> segmentIds = Lists.newArrayList();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(SEGMENT_FILE_NAME_PREFIX)) {
+                    continue;
+                }
+                try {
+                    segmentIds.add(
+                            Long.parseLong(name.substring(SEGMENT_FILE_NAME_PREFIX.length())));
+                } catch (NumberFormatException e) {
+                    logger.debug(e.getMessage(), e);
+                    deleteFile(file);
+                }
+            }
+        }
+        Collections.sort(segmentIds);
+        synchronized (lock) {
+            int skipCount = Math.max(segmentIds.size() - maxSegments, 0);
+            for (int i = 0; i < segmentIds.size(); i++) {
+                long segmentId = segmentIds.get(i);
+                File file = getSegmentFile(segmentId);
+                lastSegmentId = segmentId;
+                if (i < skipCount) {
+                    deleteFile(file);
+                    continue;
+                }
+                try {
+                    Segment segment = Segment.open(file, engineFingerprint);
+                    if (segment == null) {
+                        // written by a different engine (or format) version
+                        deleteFile(file);
+                    } else {
+                        segment.position = segment.scan(index);
+                        segments.addLast(segment);
+                    }
+                } catch (IOException e) {
+                    logger.warn("error reading {}: {}", file.getAbsolutePath(), e.getMessage(), e);
+                    deleteFile(file);
+                }
+            }
+        }
+    }
+
+    // must be called under lock
+    private @Nullable Segment addSegment() {
+        while (segments.size() >= maxSegments) {
+            evict(segments.removeFirst());
+        }
+        File file = getSegmentFile(++lastSegmentId);
+        try {
+            Segment segment = Segment.create(file, segmentSize, engineFingerprint);
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            logger.error("woven class cache is disabled, error creating {}: {}",
+                    file.getAbsolutePath(), e.getMessage(), e);
+            disabled = true;
+            return null;
+        }
+    }
+
+    private void evict(Segment segment) {
+        Iterator<Location> i = index.values().iterator();
+        while (i.hasNext()) {
+            if (i.next().segment == segment) {
+                i.remove();
+            }
+        }
+        // concurrent readers can still safely read from the mapped buffer after the file has been
+        // deleted (the buffer is only unmapped once it is garbage collected)
+        deleteFile(segment.file);
+    }
+
+    private File getSegmentFile(long segmentId) {
+        return new File(directory, SEGMENT_FILE_NAME_PREFIX + segmentId);
+    }
+
+    private static FileLock lockDirectory(File directory) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(new File(directory, "lock"), "rw");
+        FileLock directoryLock;
+        try {
+            directoryLock = raf.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by this JVM
+            directoryLock = null;
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        if (directoryLock == null) {
+            raf.close();
+            throw new DirectoryInUseException(directory);
+        }
+        return directoryLock;
+    }
+
+    private static byte /*@Nullable*/ [] getEngineFingerprint()
+            throws NoSuchAlgorithmException, IOException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        putInt(digest, FORMAT_VERSION);
+        Package pkg = Weaver.class.getPackage();
+        putString(digest, pkg == null ? null : pkg.getImplementationVersion());
+        for (Class<?> clazz : ENGINE_FINGERPRINT_CLASSES) {
+            String resourceName = clazz.getName().replace('.', '/') + ".class";
+            ClassLoader loader = clazz.getClassLoader();
+            URL url = loader == null ? ClassLoader.getSystemResource(resourceName)
+                    : loader.getResource(resourceName);
+            if (url == null) {
+                return null;
+            }
+            digest.update(Resources.toByteArray(url));
+        }
+        return digest.digest();
+    }
+
+    // returns false if the advisors make the woven bytes not cacheable
+    private static boolean putAdvisors(MessageDigest digest, List<Advice> advisors,
+            Set<Advice> usedAdvisors) {
+        for (Advice advice : advisors) {
+            if (!advice.classMetaTypes().isEmpty() || !advice.methodMetaTypes().isEmpty()) {
+                // class and method metas are woven using per-JVM generated meta holder classes
+                return false;
+            }
+            putString(digest, advice.adviceType().getInternalName());
+            // nesting group and suppression key ids are assigned in order of first use, and so
+            // can differ across JVM restarts
+            Pointcut pointcut = advice.pointcut();
+            String nestingGroup = pointcut.nestingGroup();
+            if (!nestingGroup.isEmpty()) {
+                putInt(digest, WeavingMethodVisitor.getNestingGroupId(nestingGroup));
+            }
+            String suppressibleUsingKey = pointcut.suppressibleUsingKey();
+            if (!suppressibleUsingKey.isEmpty()) {
+                putInt(digest, WeavingMethodVisitor.getSuppressionKeyId(suppressibleUsingKey));
+            }
+            String suppressionKey = pointcut.suppressionKey();
+            if (!suppressionKey.isEmpty()) {
+                putInt(digest, WeavingMethodVisitor.getSuppressionKeyId(suppressionKey));
+            }
+            usedAdvisors.add(advice);
+        }
+        return true;
+    }
+
+    private static void putString(MessageDigest digest, @Nullable String value) {
+        if (value == null) {
+            putInt(digest, -1);
+        } else {
+            byte[] bytes = value.getBytes(UTF_8);
+            putInt(digest, bytes.length);
+            digest.update(bytes);
+        }
+    }
+
+    private static void putInt(MessageDigest digest, int value) {
+        digest.update((byte) (value >>> 24));
+        digest.update((byte) (value >>> 16));
+        digest.update((byte) (value >>> 8));
+        digest.update((byte) value);
+    }
+
+    private static void putBoolean(MessageDigest digest, boolean value) {
+        digest.update((byte) (value ? 1 : 0));
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            logger.debug("unable to delete file: {}", file.getAbsolutePath());
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class DirectoryInUseException extends IOException {
+
+        private DirectoryInUseException(File directory) {
+            super("Woven class cache directory is in use by another process: "
+                    + directory.getAbsolutePath());
+        }
+    }
+
+    static class CacheKey {
+
+        private final Digest digest;
+        private final Set<Advice> usedAdvisors;
+
+        @VisibleForTesting
+        CacheKey(byte[] digest, Set<Advice> usedAdvisors) {
+            this.digest = new Digest(digest);
+            this.usedAdvisors = usedAdvisors;
+        }
+
+        Set<Advice> getUsedAdvisors() {
+            return usedAdvisors;
+        }
+    }
+
+    private static class Digest {
+
+        private final byte[] bytes;
+        private final int hashCode;
+
+        private Digest(byte[] bytes) {
+            this.bytes = bytes;
+            // the digest bytes are already uniformly distributed
+            hashCode = (bytes[0] << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8)
+                    | (bytes[3] & 0xff);
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            return obj instanceof Digest && Arrays.equals(bytes, ((Digest) obj).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static class Location {
+
+        private final Segment segment;
+        private final int offset;
+
+        private Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static class Segment {
+
+        private final File file;
+        // the position of this buffer is never modified, all access is either absolute or through
+        // a duplicate, so that reads can be performed concurrently without locking
+        private final MappedByteBuffer buffer;
+
+        // guarded by WovenClassCache.lock
+        private int position;
+
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private static Segment create(File file, int size, byte[] engineFingerprint)
+                throws IOException {
+            MappedByteBuffer buffer = map(file, size);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(8);
+            dup.put(engineFingerprint);
+            Segment segment = new Segment(file, buffer);
+            segment.position = SEGMENT_HEADER_LENGTH;
+            return segment;
+        }
+
+        private static @Nullable Segment open(File file, byte[] engineFingerprint)
+                throws IOException {
+            long length = file.length();
+            if (length < SEGMENT_HEADER_LENGTH || length > Integer.MAX_VALUE) {
+                return null;
+            }
+            MappedByteBuffer buffer = map(file, (int) length);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] fingerprint = new byte[DIGEST_LENGTH];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(8);
+            dup.get(fingerprint);
+            if (!Arrays.equals(fingerprint, engineFingerprint)) {
+                return null;
+            }
+            return new Segment(file, buffer);
+        }
+
+        private static MappedByteBuffer map(File file, int size) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                // the mapping remains valid after the file is closed
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        }
+
+        // returns the position after the last complete record
+        private int scan(ConcurrentMap<Digest, Location> index) {
+            int capacity = buffer.capacity();
+            int offset = SEGMENT_HEADER_LENGTH;
+            while (offset + RECORD_HEADER_LENGTH <= capacity) {
+                int length = buffer.getInt(offset);
+                if (length <= 0 || length > capacity - offset - RECORD_HEADER_LENGTH) {
+                    break;
+                }
+                byte[] digestBytes = new byte[DIGEST_LENGTH];
+                ByteBuffer dup = buffer.duplicate();
+                dup.position(offset + 8);
+                dup.get(digestBytes);
+                // later records win, though the same digest is not expected to be written twice
+                index.put(new Digest(digestBytes), new Location(this, offset));
+                offset += RECORD_HEADER_LENGTH + length;
+            }
+            return offset;
+        }
+
+        private void write(int offset, Digest digest, byte[] wovenBytes) {
+            CRC32 crc = new CRC32();
+            crc.update(wovenBytes);
+            buffer.putInt(offset + 4, (int) crc.getValue());
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + 8);
+            dup.put(digest.bytes);
+            dup.put(wovenBytes);
+            buffer.putInt(offset, wovenBytes.length);
+        }
+
+        private byte /*@Nullable*/ [] read(int offset) {
+            int length = buffer.getInt(offset);
+            int expectedCrc = buffer.getInt(offset + 4);
+            if (length <= 0 || length > buffer.capacity() - offset - RECORD_HEADER_LENGTH) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            ByteBuffer dup = buffer.duplicate();
+            dup.position(offset + RECORD_HEADER_LENGTH);
+            dup.get(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if ((int) crc.getValue() != expectedCrc) {
+                return null;
+            }
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.bytecode.api;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming.Slot;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceTimingTest {
+
+    @Test
+    public void shouldCountAndSampleInvocationsFromMultipleThreads() throws Exception {
+        // given
+        final int slotIndex;
+        AdviceTiming.setSampleInterval(4);
+        try {
+            slotIndex = AdviceTiming.getSlot("test", "MultipleThreadsAdvice");
+        } finally {
+            AdviceTiming.setSampleInterval(0);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Void>> futures = Lists.newArrayList();
+
+        // when
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int j = 0; j < 10000; j++) {
+                        AdviceTiming.end(slotIndex, AdviceTiming.start(slotIndex));
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        // then
+        Slot slot = AdviceTiming.getSlots().get(slotIndex);
+        assertThat(slot.getInvocationCount()).isEqualTo(80000);
+        // every 4th invocation on each thread
+        assertThat(slot.getSampledCount()).isEqualTo(20000);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.bytecode.api;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal.Holder;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal.Storage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ThreadContextThreadLocalTest {
+
+    @Test
+    public void shouldShareHolderWithinThread() {
+        for (Storage storage : Storage.values()) {
+            // given
+            ThreadContextThreadLocal threadContextThreadLocal =
+                    new ThreadContextThreadLocal(storage);
+            ThreadContextPlus threadContext = mock(ThreadContextPlus.class);
+
+            // when
+            threadContextThreadLocal.getHolder().set(threadContext);
+
+            // then
+            assertThat(threadContextThreadLocal.get()).isSameAs(threadContext);
+            assertThat(threadContextThreadLocal.getHolder().get()).isSameAs(threadContext);
+
+            // when
+            threadContextThreadLocal.getHolder().set(null);
+
+            // then
+            assertThat(threadContextThreadLocal.get()).isNull();
+        }
+    }
+
+    @Test
+    public void shouldNotShareHolderAcrossThreads() throws Exception {
+        for (Storage storage : Storage.values()) {
+            // given
+            final ThreadContextThreadLocal threadContextThreadLocal =
+                    new ThreadContextThreadLocal(storage);
+            threadContextThreadLocal.set(mock(ThreadContextPlus.class));
+            final AtomicReference<ThreadContextPlus> otherThreadContext =
+                    new AtomicReference<ThreadContextPlus>();
+
+            // when
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    otherThreadContext.set(threadContextThreadLocal.get());
+                }
+            });
+            thread.start();
+            thread.join();
+
+            // then
+            assertThat(otherThreadContext.get()).isNull();
+            threadContextThreadLocal.set(null);
+        }
+    }
+
+    @Test
+    public void shouldRegisterThreadKeyedHolderOnlyWhileItHasValue() {
+        // given
+        ThreadContextThreadLocal threadContextThreadLocal =
+                new ThreadContextThreadLocal(Storage.THREAD_KEYED_MAP);
+        ThreadContextPlus threadContext = mock(ThreadContextPlus.class);
+        Holder unregisteredHolder = threadContextThreadLocal.getHolder();
+
+        // then
+        assertThat(threadContextThreadLocal.getHolder()).isSameAs(unregisteredHolder);
+
+        // when
+        unregisteredHolder.set(threadContext);
+
+        // then
+        Holder registeredHolder = threadContextThreadLocal.getHolder();
+        assertThat(registeredHolder).isNotSameAs(unregisteredHolder);
+        assertThat(registeredHolder.get()).isSameAs(threadContext);
+        assertThat(unregisteredHolder.get()).isSameAs(threadContext);
+
+        // when
+        registeredHolder.set(null);
+
+        // then
+        assertThat(threadContextThreadLocal.getHolder()).isSameAs(unregisteredHolder);
+        assertThat(unregisteredHolder.get()).isNull();
+    }
+
+    @Test
+    public void shouldShareUnregisteredThreadKeyedHolderAcrossThreads() throws Exception {
+        // given
+        final ThreadContextThreadLocal threadContextThreadLocal =
+                new ThreadContextThreadLocal(Storage.THREAD_KEYED_MAP);
+        final AtomicReference<Holder> otherHolder = new AtomicReference<Holder>();
+
+        // when
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                otherHolder.set(threadContextThreadLocal.getHolder());
+            }
+        });
+        thread.start();
+        thread.join();
+
+        // then
+        assertThat(otherHolder.get()).isSameAs(threadContextThreadLocal.getHolder());
+    }
+
+    @Test
+    public void shouldNotRetainThreadThatExitsWithRegisteredThreadKeyedHolder() throws Exception {
+        // given
+        final ThreadContextThreadLocal threadContextThreadLocal =
+                new ThreadContextThreadLocal(Storage.THREAD_KEYED_MAP);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // exits without clearing its thread context
+                threadContextThreadLocal.set(mock(ThreadContextPlus.class));
+            }
+        });
+        WeakReference<Thread> threadRef = new WeakReference<Thread>(thread);
+
+        // when
+        thread.start();
+        thread.join();
+        thread = null;
+
+        // then
+        for (int i = 0; i < 100 && threadRef.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertThat(threadRef.get()).isNull();
+    }
+
+    @Test
+    public void shouldSeeValueSetThroughNestedThreadKeyedHolder() {
+        // given
+        ThreadContextThreadLocal threadContextThreadLocal =
+                new ThreadContextThreadLocal(Storage.THREAD_KEYED_MAP);
+        ThreadContextPlus threadContext = mock(ThreadContextPlus.class);
+        // outer frame obtains its holder outside of a transaction
+        Holder outerHolder = threadContextThreadLocal.getHolder();
+
+        // when
+        // inner frame starts a transaction
+        Holder innerHolder = threadContextThreadLocal.getHolder();
+        innerHolder.set(threadContext);
+
+        // then
+        assertThat(outerHolder.get()).isSameAs(threadContext);
+
+        // when
+        // outer frame updates the value through its own holder
+        ThreadContextPlus threadContext2 = mock(ThreadContextPlus.class);
+        outerHolder.set(threadContext2);
+
+        // then
+        assertThat(innerHolder.get()).isSameAs(threadContext2);
+        assertThat(threadContextThreadLocal.get()).isSameAs(threadContext2);
+
+        // when
+        outerHolder.set(null);
+
+        // then
+        assertThat(innerHolder.get()).isNull();
+        assertThat(threadContextThreadLocal.get()).isNull();
+        assertThat(threadContextThreadLocal.getHolder()).isSameAs(outerHolder);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.api.MessageSupplier;
+import org.glowroot.instrumentation.api.OptionalThreadContext.AlreadyInTransactionBehavior;
+import org.glowroot.instrumentation.api.Span;
+import org.glowroot.instrumentation.api.TimerName;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal.Storage;
+import org.glowroot.instrumentation.engine.spi.AgentSPI;
+import org.glowroot.instrumentation.engine.spi.Sampler;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class OptionalThreadContextImplTest {
+
+    private final MessageSupplier messageSupplier = mock(MessageSupplier.class);
+    private final TimerName timerName = mock(TimerName.class);
+    private final Object carrier = new Object();
+
+    @Test
+    public void shouldNotAskSamplerAgainForNestedIncomingSpan() {
+        shouldNotAskSamplerAgainForNestedIncomingSpan(Storage.THREAD_LOCAL);
+    }
+
+    @Test
+    public void shouldNotAskSamplerAgainForNestedIncomingSpanWithThreadKeyedMap() {
+        shouldNotAskSamplerAgainForNestedIncomingSpan(Storage.THREAD_KEYED_MAP);
+    }
+
+    @Test
+    public void shouldAskSamplerAgainAfterUnsampledAsyncIncomingSpan() {
+        shouldAskSamplerAgainAfterUnsampledAsyncIncomingSpan(Storage.THREAD_LOCAL);
+    }
+
+    @Test
+    public void shouldAskSamplerAgainAfterUnsampledAsyncIncomingSpanWithThreadKeyedMap() {
+        shouldAskSamplerAgainAfterUnsampledAsyncIncomingSpan(Storage.THREAD_KEYED_MAP);
+    }
+
+    private void shouldNotAskSamplerAgainForNestedIncomingSpan(Storage storage) {
+        // given
+        ThreadContextThreadLocal threadContextThreadLocal = new ThreadContextThreadLocal(storage);
+        AgentSPI agentSPI = mock(AgentSPI.class);
+        CountingSampler sampler = new CountingSampler(Integer.MAX_VALUE);
+
+        // when
+        OptionalThreadContextImpl outer =
+                newThreadContext(agentSPI, sampler, threadContextThreadLocal.getHolder());
+        Span outerSpan = startIncomingSpan(outer, "/abc");
+        OptionalThreadContextImpl inner =
+                newThreadContext(agentSPI, sampler, threadContextThreadLocal.getHolder());
+        startIncomingSpan(inner, "/abc").end();
+        inner.exitingAdviceFrame();
+        OptionalThreadContextImpl inner2 =
+                newThreadContext(agentSPI, sampler, threadContextThreadLocal.getHolder());
+        startIncomingSpan(inner2, "/abc").end();
+        inner2.exitingAdviceFrame();
+
+        // then
+        assertThat(threadContextThreadLocal.getHolder().isUnsampled()).isTrue();
+
+        // and when
+        outerSpan.end();
+        outer.exitingAdviceFrame();
+
+        // then
+        assertThat(sampler.count.get()).isEqualTo(1);
+        assertThat(threadContextThreadLocal.getHolder().isUnsampled()).isFalse();
+        verifyNoMoreInteractions(agentSPI);
+
+        // and when
+        OptionalThreadContextImpl next =
+                newThreadContext(agentSPI, sampler, threadContextThreadLocal.getHolder());
+        startIncomingSpan(next, "/abc").end();
+        next.exitingAdviceFrame();
+
+        // then
+        assertThat(sampler.count.get()).isEqualTo(2);
+    }
+
+    private void shouldAskSamplerAgainAfterUnsampledAsyncIncomingSpan(Storage storage) {
+        // given
+        ThreadContextThreadLocal threadContextThreadLocal = new ThreadContextThreadLocal(storage);
+        AgentSPI agentSPI = mock(AgentSPI.class);
+        CountingSampler sampler = new CountingSampler(1);
+
+        // when
+        OptionalThreadContextImpl first =
+                newThreadContext(agentSPI, sampler, threadContextThreadLocal.getHolder());
+        // async span is not ended here (it would be ended later on a different thread, if ever)
+        startIncomingSpan(first, "/abc");
+        first.exitingAdviceFrame();
+        ThreadContextThreadLocal.Holder holder = threadContextThreadLocal.getHolder();
+        OptionalThreadContextImpl second = newThreadContext(agentSPI, sampler, holder);
+        startIncomingSpan(second, "/def");
+        second.exitingAdviceFrame();
+
+        // then
+        assertThat(sampler.count.get()).isEqualTo(2);
+        verify(agentSPI).startIncomingSpan("Web", "/def", NopGetter.INSTANCE, carrier,
+                messageSupplier, timerName, holder, 0, 0);
+        verifyNoMoreInteractions(agentSPI);
+    }
+
+    // each advised method gets its own OptionalThreadContextImpl when not in a transaction, and
+    // the woven bytecode calls exitingAdviceFrame() on it when the advised method exits
+    private static OptionalThreadContextImpl newThreadContext(AgentSPI agentSPI, Sampler sampler,
+            ThreadContextThreadLocal.Holder threadContextHolder) {
+        return new OptionalThreadContextImpl(agentSPI, sampler, threadContextHolder, 0, 0);
+    }
+
+    private Span startIncomingSpan(OptionalThreadContextImpl threadContext,
+            String transactionName) {
+        return threadContext.startIncomingSpan("Web", transactionName, NopGetter.INSTANCE,
+                carrier, messageSupplier, timerName,
+                AlreadyInTransactionBehavior.CAPTURE_LOCAL_SPAN);
+    }
+
+    // rejects the first n requests and accepts the rest
+    private static class CountingSampler implements Sampler {
+
+        private final int rejectCount;
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private CountingSampler(int rejectCount) {
+            this.rejectCount = rejectCount;
+        }
+
+        @Override
+        public <C> boolean isSampled(String transactionType, String transactionName,
+                Getter<C> getter, C carrier) {
+            return count.incrementAndGet() > rejectCount;
+        }
+    }
+
+    private static class NopGetter implements Getter<Object> {
+
+        private static final NopGetter INSTANCE = new NopGetter();
+
+        @Override
+        public String get(Object carrier, String key) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.sampling;
+
+import java.util.Map;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.engine.spi.Sampler;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SamplerTest {
+
+    private static final Map<String, String> NO_HEADERS = ImmutableMap.of();
+
+    @Test
+    public void shouldSampleWithProbability() {
+        assertThat(isSampled(new ProbabilisticSampler(1), NO_HEADERS)).isTrue();
+        assertThat(isSampled(new ProbabilisticSampler(0), NO_HEADERS)).isFalse();
+    }
+
+    @Test
+    public void shouldRateLimit() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        Sampler sampler = new RateLimitingSampler(2, ticker);
+        // when then
+        assertThat(isSampled(sampler, "a")).isTrue();
+        assertThat(isSampled(sampler, "b")).isTrue();
+        assertThat(isSampled(sampler, "c")).isFalse();
+        ticker.nanos += MILLISECONDS.toNanos(500);
+        assertThat(isSampled(sampler, "a")).isTrue();
+        assertThat(isSampled(sampler, "a")).isFalse();
+    }
+
+    @Test
+    public void shouldRateLimitPerTransactionName() {
+        // given
+        FakeTicker ticker = new FakeTicker();
+        Sampler sampler = new AdaptiveSampler(1, ticker);
+        // when then
+        assertThat(isSampled(sampler, "a")).isTrue();
+        assertThat(isSampled(sampler, "a")).isFalse();
+        assertThat(isSampled(sampler, "b")).isTrue();
+        assertThat(isSampled(sampler, "b")).isFalse();
+        ticker.nanos += MILLISECONDS.toNanos(1000);
+        assertThat(isSampled(sampler, "a")).isTrue();
+        assertThat(isSampled(sampler, "b")).isTrue();
+    }
+
+    @Test
+    public void shouldRequireAllSamplers() {
+        Sampler sampler = new PropagationAwareSampler(ImmutableList.<Sampler>of(
+                new ProbabilisticSampler(1), new ProbabilisticSampler(0)));
+        assertThat(isSampled(sampler, NO_HEADERS)).isFalse();
+    }
+
+    @Test
+    public void shouldHonorPropagatedTraceparent() {
+        Sampler sampler = newNeverSampler();
+        assertThat(isSampled(sampler, ImmutableMap.of("traceparent",
+                "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01"))).isTrue();
+        assertThat(isSampled(newAlwaysSampler(), ImmutableMap.of("traceparent",
+                "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-00"))).isFalse();
+        // invalid traceparent defers to the samplers
+        assertThat(isSampled(sampler, ImmutableMap.of("traceparent", "invalid"))).isFalse();
+    }
+
+    @Test
+    public void shouldHonorPropagatedB3() {
+        Sampler sampler = newNeverSampler();
+        assertThat(isSampled(sampler, ImmutableMap.of("b3",
+                "80f198ee56343ba864fe8b2a57d3eff7-e457b5a2e4d86bd1-1-05e3ac9a4f6e3b90"))).isTrue();
+        assertThat(isSampled(sampler, ImmutableMap.of("b3", "d"))).isTrue();
+        assertThat(isSampled(newAlwaysSampler(), ImmutableMap.of("b3", "0"))).isFalse();
+        // no sampling state defers to the samplers
+        assertThat(isSampled(sampler,
+                ImmutableMap.of("b3", "80f198ee56343ba864fe8b2a57d3eff7-e457b5a2e4d86bd1")))
+                        .isFalse();
+        assertThat(isSampled(sampler, ImmutableMap.of("X-B3-Sampled", "1"))).isTrue();
+        assertThat(isSampled(sampler, ImmutableMap.of("X-B3-Flags", "1"))).isTrue();
+        assertThat(isSampled(newAlwaysSampler(), ImmutableMap.of("X-B3-Sampled", "false")))
+                .isFalse();
+    }
+
+    private static Sampler newAlwaysSampler() {
+        return new PropagationAwareSampler(ImmutableList.<Sampler>of(new ProbabilisticSampler(1)));
+    }
+
+    private static Sampler newNeverSampler() {
+        return new PropagationAwareSampler(ImmutableList.<Sampler>of(new ProbabilisticSampler(0)));
+    }
+
+    private static boolean isSampled(Sampler sampler, String transactionName) {
+        return sampler.isSampled("Web", transactionName, MapGetter.INSTANCE, NO_HEADERS);
+    }
+
+    private static boolean isSampled(Sampler sampler, Map<String, String> headers) {
+        return sampler.isSampled("Web", "/abc", MapGetter.INSTANCE, headers);
+    }
+
+    private static class MapGetter implements Getter<Map<String, String>> {
+
+        private static final MapGetter INSTANCE = new MapGetter();
+
+        @Override
+        public String get(Map<String, String> carrier, String key) {
+            return carrier.get(key);
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
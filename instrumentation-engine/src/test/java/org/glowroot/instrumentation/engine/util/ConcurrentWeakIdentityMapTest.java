@@ -0,0 +1,57 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentWeakIdentityMapTest {
+
+    @Test
+    public void shouldCompareKeysByIdentity() {
+        // given
+        ConcurrentWeakIdentityMap<String, String> map = ConcurrentWeakIdentityMap.create();
+        String key = new String("key");
+        String equalKey = new String("key");
+        // when
+        map.putIfAbsent(key, "value");
+        // then
+        assertThat(map.get(key)).isEqualTo("value");
+        assertThat(map.get(equalKey)).isNull();
+        assertThat(map.putIfAbsent(key, "other")).isEqualTo("value");
+        assertThat(map.putIfAbsent(equalKey, "other")).isNull();
+        assertThat(map.keys()).hasSize(2);
+        assertThat(map.values()).containsOnly("value", "other");
+    }
+
+    @Test
+    public void shouldExpungeClearedKeys() throws Exception {
+        // given
+        ConcurrentWeakIdentityMap<Object, String> map = ConcurrentWeakIdentityMap.create();
+        Object key = new Object();
+        map.putIfAbsent(key, "value");
+        map.putIfAbsent(new Object(), "garbage");
+        // when
+        for (int i = 0; i < 10 && map.values().size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        // then
+        assertThat(map.keys()).containsExactly(key);
+        assertThat(map.values()).containsExactly("value");
+    }
+}
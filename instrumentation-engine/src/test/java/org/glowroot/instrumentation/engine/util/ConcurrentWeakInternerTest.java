@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.util;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentWeakInternerTest {
+
+    @Test
+    public void shouldReturnSameInstanceForEqualValues() {
+        // given
+        ConcurrentWeakInterner<String> interner = ConcurrentWeakInterner.create();
+        String value = new String("value");
+        // when
+        String interned1 = interner.intern(value);
+        String interned2 = interner.intern(new String("value"));
+        // then
+        assertThat(interned1).isSameAs(value);
+        assertThat(interned2).isSameAs(value);
+        assertThat(interner.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReleaseValuesNoLongerReferenced() throws Exception {
+        // given
+        ConcurrentWeakInterner<String> interner = ConcurrentWeakInterner.create();
+        String value = new String("value");
+        interner.intern(value);
+        interner.intern(new String("garbage"));
+        // when
+        for (int i = 0; i < 10 && interner.size() > 1; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        // then
+        assertThat(interner.size()).isEqualTo(1);
+        assertThat(interner.intern(new String("value"))).isSameAs(value);
+    }
+}
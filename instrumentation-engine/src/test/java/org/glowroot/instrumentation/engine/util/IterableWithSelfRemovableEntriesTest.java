@@ -16,6 +16,10 @@
 package org.glowroot.instrumentation.engine.util;
 
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.google.common.collect.Lists;
 import org.junit.Test;
@@ -39,4 +43,70 @@ public class IterableWithSelfRemovableEntriesTest {
         }
         assertThat(collection.iterator().hasNext()).isFalse();
     }
+
+    @Test
+    public void shouldIterateOverRemainingEntries() {
+        IterableWithSelfRemovableEntries<Object> collection =
+                new IterableWithSelfRemovableEntries<Object>();
+        List<Object> elements = Lists.newArrayList();
+        List<SelfRemovableEntry> entries = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            Object element = new Object();
+            elements.add(element);
+            entries.add(collection.add(element));
+        }
+        for (int i = 0; i < 10; i += 2) {
+            entries.get(i).remove();
+        }
+        // removing twice should be harmless
+        entries.get(0).remove();
+        assertThat(collection).containsOnly(elements.get(1), elements.get(3), elements.get(5),
+                elements.get(7), elements.get(9));
+        // iterate a second time after the removed entries have been unlinked
+        assertThat(collection).containsOnly(elements.get(1), elements.get(3), elements.get(5),
+                elements.get(7), elements.get(9));
+    }
+
+    @Test
+    public void shouldAddAndRemoveConcurrently() throws Exception {
+        final IterableWithSelfRemovableEntries<Object> collection =
+                new IterableWithSelfRemovableEntries<Object>();
+        final Object longLived = new Object();
+        SelfRemovableEntry longLivedEntry = collection.add(longLived);
+        int threadCount = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        final CountDownLatch latch = new CountDownLatch(1);
+        List<Future<?>> futures = Lists.newArrayList();
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    for (int j = 0; j < 100000; j++) {
+                        SelfRemovableEntry outer = collection.add(new Object());
+                        SelfRemovableEntry inner = collection.add(new Object());
+                        if (j % 1000 == 0) {
+                            // the long lived entry must never be unlinked by mistake
+                            assertThat(collection).contains(longLived);
+                        }
+                        inner.remove();
+                        outer.remove();
+                    }
+                }
+            }));
+        }
+        latch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertThat(collection).containsExactly(longLived);
+        longLivedEntry.remove();
+        assertThat(collection.iterator().hasNext()).isFalse();
+    }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.lang.reflect.Modifier;
+import java.util.List;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.weaving.AnalyzedWorld.MemoryUsage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    private AnalyzedWorld analyzedWorld;
+
+    @Before
+    public void beforeEach() {
+        analyzedWorld = new AnalyzedWorld(Suppliers.<List<Advice>>ofInstance(
+                ImmutableList.<Advice>of()), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), false, null, null);
+    }
+
+    @Test
+    public void shouldShareAdviceFreeClassesBetweenClassLoaders() {
+        // given
+        ClassLoader loader1 = new ClassLoader() {};
+        ClassLoader loader2 = new ClassLoader() {};
+        // when
+        analyzedWorld.add(newAnalyzedClass(), loader1);
+        analyzedWorld.add(newAnalyzedClass(), loader2);
+        // then
+        MemoryUsage memoryUsage = analyzedWorld.getMemoryUsage();
+        assertThat(memoryUsage.classLoaderCount()).isEqualTo(2);
+        assertThat(memoryUsage.analyzedClassCount()).isEqualTo(2);
+        assertThat(memoryUsage.distinctAnalyzedClassCount()).isEqualTo(1);
+        assertThat(memoryUsage.analyzedMethodCount()).isEqualTo(1);
+        assertThat(analyzedWorld.getExistingAnalyzedClass("com.example.Service", loader1))
+                .isSameAs(analyzedWorld.getExistingAnalyzedClass("com.example.Service", loader2));
+    }
+
+    @Test
+    public void shouldInternNames() {
+        // given
+        AnalyzedClassInterner interner = analyzedWorld.getInterner();
+        // when
+        String name1 = interner.intern(new String("java.lang.String"));
+        String name2 = interner.intern(new String("java.lang.String"));
+        // then
+        assertThat(name1).isSameAs(name2);
+        assertThat(analyzedWorld.getMemoryUsage().internedNameCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReleaseSharedClassesWhenClassLoadersAreCollected() throws Exception {
+        // given
+        analyzedWorld.add(newAnalyzedClass(), new ClassLoader() {});
+        analyzedWorld.add(newAnalyzedClass(), new ClassLoader() {});
+        // when
+        for (int i = 0; i < 10 && analyzedWorld.getMemoryUsage().internedClassCount() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        // then
+        MemoryUsage memoryUsage = analyzedWorld.getMemoryUsage();
+        assertThat(memoryUsage.classLoaderCount()).isZero();
+        assertThat(memoryUsage.analyzedClassCount()).isZero();
+        assertThat(memoryUsage.internedClassCount()).isZero();
+        assertThat(memoryUsage.internedNameCount()).isZero();
+    }
+
+    private static AnalyzedClass newAnalyzedClass() {
+        // new string instances each time, to simulate analyzing the same class in different
+        // class loaders
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT)
+                .name(new String("com.example.Service"))
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name(new String("execute"))
+                        .addParameterTypes(new String("java.lang.String"))
+                        .returnType(new String("void"))
+                        .modifiers(Modifier.PUBLIC | Modifier.ABSTRACT)
+                        .build())
+                .ejbRemote(false)
+                .build();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.BasicAdvice;
+import org.glowroot.instrumentation.engine.weaving.targets.BasicMisc;
+import org.glowroot.instrumentation.engine.weaving.targets.SubException;
+import org.glowroot.instrumentation.engine.weaving.targets.SubSubException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FastRejectFilterTest {
+
+    private FastRejectFilter fastRejectFilter;
+    private AnalyzedWorld analyzedWorld;
+    private ClassLoader loader;
+
+    @Before
+    public void beforeEach() throws Exception {
+        List<Advice> advisors = ImmutableList.of(newAdvice(BasicAdvice.class));
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        fastRejectFilter = FastRejectFilter.create(advisors, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        analyzedWorld = new AnalyzedWorld(advisorsSupplier, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), false, null, null);
+        URL location = BasicMisc.class.getProtectionDomain().getCodeSource().getLocation();
+        loader = new URLClassLoader(new URL[] {location}, null);
+    }
+
+    @Test
+    public void shouldRejectClassWithAnalyzedSuperTypes() throws Exception {
+        // given
+        addExceptionHierarchy();
+        // when
+        AnalyzedClass analyzedClass = fastRejectFilter.tryReject(getBytes(SubException.class),
+                loader, analyzedWorld, false);
+        // then
+        assertThat(fastRejectFilter.isEnabled()).isTrue();
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.name()).isEqualTo(SubException.class.getName());
+        assertThat(analyzedClass.superName()).isEqualTo(Exception.class.getName());
+        assertThat(analyzedClass.interfaceNames()).isEmpty();
+        assertThat(analyzedClass.analyzedMethods()).isEmpty();
+    }
+
+    @Test
+    public void shouldRejectClassWithSuperTypeDefinedByParentLoader() throws Exception {
+        // given
+        addExceptionHierarchy();
+        loader.loadClass(SubException.class.getName());
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(SubException.class.getName())
+                .superName(Exception.class.getName())
+                .ejbRemote(false)
+                .build(), loader);
+        ClassLoader childLoader = new URLClassLoader(new URL[0], loader);
+        // when
+        AnalyzedClass analyzedClass = fastRejectFilter.tryReject(getBytes(SubSubException.class),
+                childLoader, analyzedWorld, false);
+        // then
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.name()).isEqualTo(SubSubException.class.getName());
+        assertThat(analyzedClass.superName()).isEqualTo(SubException.class.getName());
+    }
+
+    @Test
+    public void shouldNotRejectClassWithSuperTypeNotLoadedByParentLoader() throws Exception {
+        // given
+        addExceptionHierarchy();
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(SubException.class.getName())
+                .superName(Exception.class.getName())
+                .ejbRemote(false)
+                .build(), loader);
+        ClassLoader childLoader = new URLClassLoader(new URL[0], loader);
+        // when
+        AnalyzedClass analyzedClass = fastRejectFilter.tryReject(getBytes(SubSubException.class),
+                childLoader, analyzedWorld, false);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectClassWithSuperTypesNotYetAnalyzed() throws Exception {
+        // when
+        AnalyzedClass analyzedClass = fastRejectFilter.tryReject(getBytes(SubException.class),
+                loader, analyzedWorld, false);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectClassThatNeedsWeaving() throws Exception {
+        // given
+        addExceptionHierarchy();
+        // when
+        AnalyzedClass analyzedClass = fastRejectFilter.tryReject(getBytes(BasicMisc.class),
+                loader, analyzedWorld, false);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    @Test
+    public void shouldNotRejectMalformedClass() throws Exception {
+        // given
+        addExceptionHierarchy();
+        byte[] bytes = getBytes(SubException.class);
+        byte[] truncatedBytes = new byte[bytes.length / 2];
+        System.arraycopy(bytes, 0, truncatedBytes, 0, truncatedBytes.length);
+        // when
+        AnalyzedClass analyzedClass =
+                fastRejectFilter.tryReject(truncatedBytes, loader, analyzedWorld, false);
+        // then
+        assertThat(analyzedClass).isNull();
+    }
+
+    private void addExceptionHierarchy() {
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(Exception.class.getName())
+                .superName(Throwable.class.getName())
+                .ejbRemote(false)
+                .build(), null);
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC)
+                .name(Throwable.class.getName())
+                .superName(Object.class.getName())
+                .addInterfaceNames("java.io.Serializable")
+                .ejbRemote(false)
+                .build(), null);
+        analyzedWorld.add(ImmutableAnalyzedClass.builder()
+                .modifiers(Modifier.PUBLIC | Modifier.INTERFACE | Modifier.ABSTRACT)
+                .name("java.io.Serializable")
+                .ejbRemote(false)
+                .build(), null);
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(clazz.getResource(clazz.getSimpleName() + ".class"));
+    }
+
+    private static Advice newAdvice(Class<?> clazz) throws Exception {
+        return new AdviceBuilder(InstrumentationDetailBuilder.buildAdviceClass(clazz)).build();
+    }
+}
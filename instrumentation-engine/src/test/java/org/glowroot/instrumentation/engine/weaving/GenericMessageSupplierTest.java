@@ -177,6 +177,45 @@ public class GenericMessageSupplierTest {
         assertThat(text).isEqualTo(TestReceiver.class.getName() + ".execute(): 2");
     }
 
+    @Test
+    public void shouldRenderImmutableValuesLazily() throws Exception {
+        MessageTemplateImpl template = createMessageTemplateImpl(
+                "{{methodName}}(): {{0.count}} {{0.kind}} {{0.enabled}}", TestValuesReceiver.class,
+                "execute", HasValues.class);
+        Message message = GenericMessageSupplier
+                .create(template, new TestValuesReceiver(), "execute", new HasValues()).get();
+        String text = ((ReadableMessage) message).getText();
+        assertThat(text).isEqualTo("execute(): 3 ONE true");
+    }
+
+    @Test
+    public void shouldSnapshotMutableValue() throws Exception {
+        MessageTemplateImpl template = createMessageTemplateImpl("{{methodName}}(): {{0.mutable}}",
+                TestValuesReceiver.class, "execute", HasValues.class);
+        HasValues arg = new HasValues();
+        GenericMessageSupplier messageSupplier =
+                GenericMessageSupplier.create(template, new TestValuesReceiver(), "execute", arg);
+        arg.mutable.append(" changed");
+        String text = ((ReadableMessage) messageSupplier.get()).getText();
+        assertThat(text).isEqualTo("execute(): original");
+    }
+
+    @Test
+    public void shouldSnapshotEagerly() throws Exception {
+        Method method = TestValuesReceiver.class.getMethod("execute", HasValues.class);
+        MethodInfo methodInfo = new MethodInfoImpl("execute", method.getReturnType(),
+                Arrays.<Class<?>>asList(HasValues.class), TestValuesReceiver.class.getName(),
+                TestValuesReceiver.class.getClassLoader());
+        MessageTemplateImpl template = MessageTemplateImpl.create(
+                "{{methodName}}(): {{0.count}} {{0.kind}} {{0.mutable}}", methodInfo, true);
+        HasValues arg = new HasValues();
+        GenericMessageSupplier messageSupplier =
+                GenericMessageSupplier.create(template, new TestValuesReceiver(), "execute", arg);
+        arg.mutable.append(" changed");
+        String text = ((ReadableMessage) messageSupplier.get()).getText();
+        assertThat(text).isEqualTo("execute(): 3 ONE original");
+    }
+
     private static MessageTemplateImpl createMessageTemplateImpl(String template, Class<?> clazz,
             String methodName, Class<?>... parameterTypes) throws Exception {
         Method method = clazz.getMethod(methodName, parameterTypes);
@@ -236,4 +275,34 @@ public class GenericMessageSupplierTest {
 
         public void execute(@SuppressWarnings("unused") HasArray2 arg) {}
     }
+
+    public static class HasValues {
+
+        private final StringBuilder mutable = new StringBuilder("original");
+
+        public int getCount() {
+            return 3;
+        }
+
+        public Kind getKind() {
+            return Kind.ONE;
+        }
+
+        public boolean isEnabled() {
+            return true;
+        }
+
+        public StringBuilder getMutable() {
+            return mutable;
+        }
+    }
+
+    public enum Kind {
+        ONE, TWO
+    }
+
+    public static class TestValuesReceiver {
+
+        public void execute(@SuppressWarnings("unused") HasValues arg) {}
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.glowroot.instrumentation.engine.weaving;
 
+import java.lang.reflect.InvocationTargetException;
 import java.util.Collections;
 import java.util.List;
 
@@ -124,6 +125,92 @@ public class PathEvaluatorTest {
         assertThat(value).isEqualTo("eeeeee");
     }
 
+    @Test
+    public void shouldUseGeneratedAccessor() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(PublicA.class, "b.str.length",
+                PublicA.class.getClassLoader());
+        // when
+        int value = (Integer) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(value).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldUseGeneratedAccessorWithNull() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(PublicA.class, "nil.str",
+                PublicA.class.getClassLoader());
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(value).isNull();
+    }
+
+    @Test
+    public void shouldUseGeneratedAccessorWithRemainingPath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(PublicA.class, "b.eee",
+                PublicA.class.getClassLoader());
+        PublicA a = new PublicA();
+        a.b = new PublicE();
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(a);
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(value).isEqualTo("eeeeee");
+    }
+
+    @Test
+    public void shouldWrapExceptionFromGeneratedAccessorInTargetClassPackage() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(PublicA.class, "broken",
+                PublicA.class.getClassLoader());
+        // when
+        Throwable cause = null;
+        try {
+            pathEvaluator.evaluateOnBase(new PublicA());
+        } catch (InvocationTargetException e) {
+            cause = e.getCause();
+        }
+        // then
+        assertThat(pathEvaluator.isGenerated()).isTrue();
+        assertThat(cause).isInstanceOf(IllegalStateException.class);
+        boolean generatedFrameFound = false;
+        for (StackTraceElement element : cause.getStackTrace()) {
+            if (element.getClassName().startsWith(PublicA.class.getName() + "$$")) {
+                generatedFrameFound = true;
+            }
+        }
+        assertThat(generatedFrameFound).isTrue();
+    }
+
+    @Test
+    public void shouldNotUseGeneratedAccessorForNonPublicClass() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(SomeObject.class, "one",
+                SomeObject.class.getClassLoader());
+        // when
+        String value = (String) pathEvaluator.evaluateOnBase(new SomeObject());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isFalse();
+        assertThat(value).isEqualTo("1");
+    }
+
+    @Test
+    public void shouldNotUseGeneratedAccessorForArrayPath() throws Exception {
+        // given
+        PathEvaluator pathEvaluator = PathEvaluator.create(PublicA.class, "b.c.d",
+                PublicA.class.getClassLoader());
+        // when
+        Object[] value = (Object[]) pathEvaluator.evaluateOnBase(new PublicA());
+        // then
+        assertThat(pathEvaluator.isGenerated()).isFalse();
+        assertThat(value).hasSize(2);
+    }
+
     @Test
     public void shouldFormatByteArrayAsHex() throws Exception {
         // given
@@ -225,4 +312,35 @@ public class PathEvaluatorTest {
 
         private final String eee = "eeeeee";
     }
+
+    public static class PublicA {
+
+        public PublicB b = new PublicB();
+
+        public PublicB getNil() {
+            return null;
+        }
+
+        public String getBroken() {
+            throw new IllegalStateException("broken");
+        }
+    }
+
+    public static class PublicB {
+
+        public String getStr() {
+            return "abc";
+        }
+
+        public C[] getC() {
+            return new C[] {new C(), new C()};
+        }
+    }
+
+    public static class PublicE extends PublicB {
+
+        public String getEee() {
+            return "eeeeee";
+        }
+    }
 }
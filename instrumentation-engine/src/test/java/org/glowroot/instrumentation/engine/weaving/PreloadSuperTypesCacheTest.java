@@ -40,7 +40,8 @@ public class PreloadSuperTypesCacheTest {
         cache.writeToFile();
 
         // then
-        assertThat(Files.readLines(file, UTF_8)).hasSize(80);
+        assertThat(cache.getEntryCountInFile()).isEqualTo(80);
+        assertThat(new PreloadSomeSuperTypesCache(file, 100).getEntryCountInFile()).isEqualTo(80);
 
         // cleanup
         file.delete();
@@ -61,7 +62,8 @@ public class PreloadSuperTypesCacheTest {
         cache.writeToFile();
 
         // then
-        assertThat(Files.readLines(file, UTF_8)).hasSize(100);
+        assertThat(cache.getEntryCountInFile()).isEqualTo(100);
+        assertThat(new PreloadSomeSuperTypesCache(file, 100).getEntryCountInFile()).isEqualTo(100);
 
         // cleanup
         file.delete();
@@ -86,7 +88,8 @@ public class PreloadSuperTypesCacheTest {
         cache.writeToFile();
 
         // then
-        assertThat(Files.readLines(file, UTF_8)).hasSize(80);
+        assertThat(cache.getEntryCountInFile()).isEqualTo(80);
+        assertThat(new PreloadSomeSuperTypesCache(file, 100).getEntryCountInFile()).isEqualTo(80);
 
         // cleanup
         file.delete();
@@ -111,7 +114,102 @@ public class PreloadSuperTypesCacheTest {
         cache.writeToFile();
 
         // then
-        assertThat(Files.readLines(file, UTF_8)).hasSize(100);
+        assertThat(cache.getEntryCountInFile()).isEqualTo(100);
+        assertThat(new PreloadSomeSuperTypesCache(file, 100).getEntryCountInFile()).isEqualTo(100);
+
+        // cleanup
+        file.delete();
+    }
+
+    @Test
+    public void shouldReadBackFromFile() throws Exception {
+        // given
+        File file = File.createTempFile("test-", "");
+        PreloadSomeSuperTypesCache cache = new PreloadSomeSuperTypesCache(file, 100);
+        cache.put("abc", "xyz");
+        cache.put("abc", "xyz2");
+        cache.put("def", "xyz");
+        cache.writeToFile();
+
+        // when
+        PreloadSomeSuperTypesCache cache2 = new PreloadSomeSuperTypesCache(file, 100);
+
+        // then
+        assertThat(cache2.get("abc")).containsExactly("xyz", "xyz2");
+        assertThat(cache2.get("def")).containsExactly("xyz");
+        assertThat(cache2.get("ghi")).isEmpty();
+
+        // cleanup
+        file.delete();
+    }
+
+    @Test
+    public void shouldAppendToFile() throws Exception {
+        // given
+        File file = File.createTempFile("test-", "");
+        PreloadSomeSuperTypesCache cache = new PreloadSomeSuperTypesCache(file, 100);
+        cache.put("abc", "xyz");
+        cache.writeToFile();
+
+        // when
+        cache.put("abc", "xyz2");
+        cache.put("def", "xyz");
+        cache.writeToFile();
+
+        // then
+        assertThat(cache.getEntryCountInFile()).isEqualTo(2);
+        PreloadSomeSuperTypesCache cache2 = new PreloadSomeSuperTypesCache(file, 100);
+        assertThat(cache2.get("abc")).containsExactly("xyz", "xyz2");
+        assertThat(cache2.get("def")).containsExactly("xyz");
+
+        // cleanup
+        file.delete();
+    }
+
+    @Test
+    public void shouldNotWriteAccessTimesToMappedFile() throws Exception {
+        // given
+        File file = File.createTempFile("test-", "");
+        PreloadSomeSuperTypesCache cache = new PreloadSomeSuperTypesCache(file, 100);
+        // exceeding maxSize turns on access time tracking
+        for (int i = 0; i < 101; i++) {
+            cache.put("abc" + i, "xyz");
+        }
+        cache.writeToFile();
+        byte[] bytes = Files.toByteArray(file);
+
+        // when
+        PreloadSomeSuperTypesCache cache2 = new PreloadSomeSuperTypesCache(file, 100);
+        Thread.sleep(10);
+        for (int i = 0; i < 101; i++) {
+            cache2.get("abc" + i);
+        }
+
+        // then
+        assertThat(Files.toByteArray(file)).isEqualTo(bytes);
+
+        // cleanup
+        file.delete();
+    }
+
+    @Test
+    public void shouldMigrateFromTextFile() throws Exception {
+        // given
+        File legacyTextFile = File.createTempFile("test-", "");
+        File file = new File(legacyTextFile.getPath() + ".bin");
+        Files.write("abc,xyz,xyz2\ndef,xyz\n", legacyTextFile, UTF_8);
+        PreloadSomeSuperTypesCache cache =
+                new PreloadSomeSuperTypesCache(file, legacyTextFile, 100);
+
+        // when
+        cache.writeToFile();
+
+        // then
+        assertThat(legacyTextFile).doesNotExist();
+        PreloadSomeSuperTypesCache cache2 =
+                new PreloadSomeSuperTypesCache(file, legacyTextFile, 100);
+        assertThat(cache2.get("abc")).containsExactly("xyz", "xyz2");
+        assertThat(cache2.get("def")).containsExactly("xyz");
 
         // cleanup
         file.delete();
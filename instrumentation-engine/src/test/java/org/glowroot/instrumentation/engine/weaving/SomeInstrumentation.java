@@ -77,6 +77,33 @@ public class SomeInstrumentation {
         }
     }
 
+    @Advice.Pointcut(className = "org.glowroot.instrumentation.engine.weaving.targets.Misc",
+                     methodName = "execute1",
+                     methodParameterTypes = {},
+                     requiresTransaction = true)
+    public static class RequiresTransactionAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore() {
+            SomeInstrumentationThreadLocals.onBeforeCount.increment();
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn() {
+            SomeInstrumentationThreadLocals.onReturnCount.increment();
+        }
+
+        @Advice.OnMethodThrow
+        public static void onThrow() {
+            SomeInstrumentationThreadLocals.onThrowCount.increment();
+        }
+
+        @Advice.OnMethodAfter
+        public static void onAfter() {
+            SomeInstrumentationThreadLocals.onAfterCount.increment();
+        }
+    }
+
     @Advice.Pointcut(className = "org.glowroot.instrumentation.engine.weaving.targets.SuperBasicMisc",
                      methodName = "superBasic",
                      methodParameterTypes = {})
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.BasicAdvice;
+import org.glowroot.instrumentation.engine.weaving.targets.BasicMisc;
+import org.glowroot.instrumentation.engine.weaving.targets.SubException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SpeculativeAnalyzerTest {
+
+    private SpeculativeAnalyzer speculativeAnalyzer;
+    private ClassLoader loader;
+
+    @Before
+    public void beforeEach() throws Exception {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers
+                .<List<Advice>>ofInstance(ImmutableList.of(newAdvice(BasicAdvice.class)));
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), false, null, null);
+        speculativeAnalyzer = new SpeculativeAnalyzer(analyzedWorld, advisorsSupplier,
+                Ticker.systemTicker(), 1);
+        URL location = BasicMisc.class.getProtectionDomain().getCodeSource().getLocation();
+        loader = new URLClassLoader(new URL[] {location}, null);
+        speculativeAnalyzer.analyzeCodeSource(location, loader,
+                speculativeAnalyzer.getLoaderState(loader));
+    }
+
+    @Test
+    public void shouldSkipClassThatDoesNotNeedWeaving() throws Exception {
+        // when
+        boolean weavingNotRequired = speculativeAnalyzer.isWeavingNotRequired(
+                ClassNames.toInternalName(SubException.class.getName()),
+                getBytes(SubException.class), loader);
+        // then
+        assertThat(weavingNotRequired).isTrue();
+    }
+
+    @Test
+    public void shouldNotSkipClassThatNeedsWeaving() throws Exception {
+        // when
+        boolean weavingNotRequired = speculativeAnalyzer.isWeavingNotRequired(
+                ClassNames.toInternalName(BasicMisc.class.getName()), getBytes(BasicMisc.class),
+                loader);
+        // then
+        assertThat(weavingNotRequired).isFalse();
+    }
+
+    @Test
+    public void shouldNotSkipClassWithDifferentBytes() throws Exception {
+        // given
+        byte[] bytes = getBytes(SubException.class);
+        bytes[bytes.length - 1]++;
+        // when
+        boolean weavingNotRequired = speculativeAnalyzer.isWeavingNotRequired(
+                ClassNames.toInternalName(SubException.class.getName()), bytes, loader);
+        // then
+        assertThat(weavingNotRequired).isFalse();
+    }
+
+    private static byte[] getBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(clazz.getResource(clazz.getSimpleName() + ".class"));
+    }
+
+    private static Advice newAdvice(Class<?> clazz) throws Exception {
+        return new AdviceBuilder(InstrumentationDetailBuilder.buildAdviceClass(clazz)).build();
+    }
+}
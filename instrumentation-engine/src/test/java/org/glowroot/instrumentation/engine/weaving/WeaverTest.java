@@ -28,11 +28,19 @@ import com.google.common.collect.Lists;
 import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import org.glowroot.instrumentation.api.weaving.Advice.Pointcut;
 import org.glowroot.instrumentation.api.weaving.Mixin;
 import org.glowroot.instrumentation.api.weaving.OptionalReturn;
 import org.glowroot.instrumentation.api.weaving.Shim;
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming;
+import org.glowroot.instrumentation.engine.bytecode.api.AdviceTiming.Slot;
+import org.glowroot.instrumentation.engine.bytecode.api.BytecodeService;
+import org.glowroot.instrumentation.engine.bytecode.api.BytecodeServiceHolder;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextPlus;
+import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
 import org.glowroot.instrumentation.engine.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.AnotherAnnotationBasedAdvice;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.AnotherAnnotationBasedAdviceButWrong;
@@ -94,6 +102,7 @@ import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.NotPerfec
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.PrimitiveAdvice;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.PrimitiveWithAutoboxAdvice;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.PrimitiveWithWildcardAdvice;
+import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.RequiresTransactionAdvice;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.Shimmy;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.StaticAdvice;
 import org.glowroot.instrumentation.engine.weaving.SomeInstrumentation.SubTypeRestrictionAdvice;
@@ -146,9 +155,16 @@ import org.glowroot.instrumentation.engine.weaving.targets.ThrowMutatedParamMisc
 import org.glowroot.instrumentation.engine.weaving.targets.ThrowingMisc;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class WeaverTest {
 
+    private static final ThreadContextThreadLocal threadContextThreadLocal =
+            new ThreadContextThreadLocal();
+
+    private static boolean bytecodeServiceInitialized;
+
     @Before
     public void before() {
         SomeInstrumentationThreadLocals.resetThreadLocals();
@@ -1027,7 +1043,8 @@ public class WeaverTest {
         AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
                 ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of(), false, null, null);
         Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
-                ImmutableList.<MixinType>of(), analyzedWorld, Ticker.systemTicker());
+                ImmutableList.<MixinType>of(), analyzedWorld, Ticker.systemTicker(), null, null,
+                null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         Misc test = isolatedWeavingClassLoader.newInstance(BasicMisc.class, Misc.class);
         // when
@@ -1824,6 +1841,97 @@ public class WeaverTest {
         // do not crash with java.lang.VerifyError
     }
 
+    // ===================== requiresTransaction =====================
+
+    @Test
+    public void shouldNotExecuteAdviceRequiringTransactionOutsideTransaction() throws Exception {
+        // given
+        initBytecodeService();
+        Misc test = newWovenObject(BasicMisc.class, Misc.class, RequiresTransactionAdvice.class);
+        // when
+        test.execute1();
+        // then
+        assertThat(SomeInstrumentationThreadLocals.onBeforeCount.get()).isEqualTo(0);
+        assertThat(SomeInstrumentationThreadLocals.onReturnCount.get()).isEqualTo(0);
+        assertThat(SomeInstrumentationThreadLocals.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeInstrumentationThreadLocals.onAfterCount.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldExecuteAdviceRequiringTransactionInsideTransaction() throws Exception {
+        // given
+        initBytecodeService();
+        Misc test = newWovenObject(BasicMisc.class, Misc.class, RequiresTransactionAdvice.class);
+        // when
+        threadContextThreadLocal.set(mock(ThreadContextPlus.class));
+        try {
+            test.execute1();
+        } finally {
+            threadContextThreadLocal.set(null);
+        }
+        // then
+        assertThat(SomeInstrumentationThreadLocals.onBeforeCount.get()).isEqualTo(1);
+        assertThat(SomeInstrumentationThreadLocals.onReturnCount.get()).isEqualTo(1);
+        assertThat(SomeInstrumentationThreadLocals.onThrowCount.get()).isEqualTo(0);
+        assertThat(SomeInstrumentationThreadLocals.onAfterCount.get()).isEqualTo(1);
+    }
+
+    // ===================== advice timing =====================
+
+    @Test
+    public void shouldTimeAdvice() throws Exception {
+        // given
+        Misc test;
+        Misc throwingTest;
+        AdviceTiming.setSampleInterval(1);
+        try {
+            test = newWovenObject(BasicMisc.class, Misc.class, BasicAdvice.class);
+            throwingTest = newWovenObject(ThrowingMisc.class, Misc.class, BasicAdvice.class);
+        } finally {
+            AdviceTiming.setSampleInterval(0);
+        }
+        // when
+        test.execute1();
+        try {
+            throwingTest.execute1();
+        } catch (Throwable t) {
+        }
+        // then
+        assertThat(SomeInstrumentationThreadLocals.onBeforeCount.get()).isEqualTo(2);
+        assertThat(SomeInstrumentationThreadLocals.onReturnCount.get()).isEqualTo(1);
+        assertThat(SomeInstrumentationThreadLocals.onThrowCount.get()).isEqualTo(1);
+        assertThat(SomeInstrumentationThreadLocals.onAfterCount.get()).isEqualTo(2);
+        Slot slot = null;
+        for (Slot s : AdviceTiming.getSlots()) {
+            if (s.getAdviceClassName().equals(BasicAdvice.class.getName())) {
+                slot = s;
+            }
+        }
+        assertThat(slot).isNotNull();
+        // @Advice.IsEnabled, @Advice.OnMethodBefore, @Advice.OnMethodReturn or
+        // @Advice.OnMethodThrow, and @Advice.OnMethodAfter, for each of the two executions
+        assertThat(slot.getInvocationCount()).isEqualTo(8);
+        assertThat(slot.getSampledCount()).isEqualTo(8);
+        assertThat(slot.getEstimatedNanos()).isEqualTo(slot.getSampledNanos());
+    }
+
+    // the bytecode service is only bound once (when the Bytecode class is initialized)
+    private static synchronized void initBytecodeService() {
+        if (bytecodeServiceInitialized) {
+            return;
+        }
+        BytecodeService bytecodeService = mock(BytecodeService.class);
+        when(bytecodeService.getCurrentThreadContextHolder())
+                .thenAnswer(new Answer<ThreadContextThreadLocal.Holder>() {
+                    @Override
+                    public ThreadContextThreadLocal.Holder answer(InvocationOnMock invocation) {
+                        return threadContextThreadLocal.getHolder();
+                    }
+                });
+        BytecodeServiceHolder.set(bytecodeService);
+        bytecodeServiceInitialized = true;
+    }
+
     public static <S, T extends S> S newWovenObject(Class<T> implClass, Class<S> bridgeClass,
             Class<?> adviceOrShimOrMixinClass, Class<?>... extraBridgeClasses) throws Exception {
         // SomeInstrumentationThreadLocals is passed as bridgeable so that the static thread locals
@@ -1853,7 +1961,7 @@ public class WeaverTest {
         AnalyzedWorld analyzedWorld =
                 new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, false, null, null);
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                Ticker.systemTicker());
+                Ticker.systemTicker(), null, null, null);
         isolatedWeavingClassLoader.setWeaver(weaver);
         return isolatedWeavingClassLoader.newInstance(implClass, bridgeClass);
     }
@@ -1888,7 +1996,7 @@ public class WeaverTest {
         AnalyzedWorld analyzedWorld =
                 new AnalyzedWorld(advisorsSupplier, shimTypes, mixinTypes, false, null, null);
         Weaver weaver = new Weaver(advisorsSupplier, shimTypes, mixinTypes, analyzedWorld,
-                Ticker.systemTicker());
+                Ticker.systemTicker(), null, null, null);
         isolatedWeavingClassLoader.setWeaver(weaver);
 
         String className = toBeDefinedImplClass.getType().getClassName();
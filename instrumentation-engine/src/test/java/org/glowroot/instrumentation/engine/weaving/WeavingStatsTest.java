@@ -0,0 +1,90 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.weaving.WeavingStats.SlowClass;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WeavingStatsTest {
+
+    @Test
+    public void shouldRecordCountsAndBytes() {
+        // given
+        WeavingStats weavingStats = new WeavingStats(10);
+        // when
+        weavingStats.record("a/A", null, null, 100, null, 1000);
+        weavingStats.record("a/B", null, null, 200, new byte[250], 2000);
+        weavingStats.record("a/C", null, null, 300, new byte[400], 3000);
+        // then
+        assertThat(weavingStats.getClassCount()).isEqualTo(3);
+        assertThat(weavingStats.getWovenClassCount()).isEqualTo(2);
+        assertThat(weavingStats.getAnalyzedOnlyClassCount()).isEqualTo(1);
+        assertThat(weavingStats.getTotalNanos()).isEqualTo(6000);
+        assertThat(weavingStats.getTotalBytes()).isEqualTo(600);
+        assertThat(weavingStats.getWovenBytesIn()).isEqualTo(500);
+        assertThat(weavingStats.getWovenBytesOut()).isEqualTo(650);
+    }
+
+    @Test
+    public void shouldRecordHistogram() {
+        // given
+        WeavingStats weavingStats = new WeavingStats(10);
+        // when
+        weavingStats.record("a/A", null, null, 100, null, MICROSECONDS.toNanos(5));
+        weavingStats.record("a/B", null, null, 100, null, MICROSECONDS.toNanos(10));
+        weavingStats.record("a/C", null, null, 100, null, MICROSECONDS.toNanos(500));
+        weavingStats.record("a/D", null, null, 100, null, MILLISECONDS.toNanos(50));
+        weavingStats.record("a/E", null, null, 100, null, MILLISECONDS.toNanos(500));
+        // then
+        assertThat(weavingStats.getHistogramBucketUpperBoundsMicros())
+                .containsExactly(10, 100, 1000, 10000, 100000);
+        assertThat(weavingStats.getHistogram()).containsExactly(1, 1, 1, 0, 1, 1);
+    }
+
+    @Test
+    public void shouldKeepSlowestClasses() {
+        // given
+        WeavingStats weavingStats = new WeavingStats(3);
+        // when
+        weavingStats.record("a/A", null, null, 100, null, 4000);
+        weavingStats.record("a/B", null, null, 100, new byte[100], 1000);
+        weavingStats.record("a/C", null, null, 100, null, 5000);
+        weavingStats.record("a/D", null, null, 100, null, 2000);
+        weavingStats.record("a/E", getClass().getClassLoader(),
+                getClass().getProtectionDomain().getCodeSource(), 100, new byte[100], 3000);
+        // then
+        List<SlowClass> slowestClasses = weavingStats.getSlowestClasses();
+        assertThat(slowestClasses).hasSize(3);
+        assertThat(slowestClasses.get(0).getClassName()).isEqualTo("a.C");
+        assertThat(slowestClasses.get(0).getNanos()).isEqualTo(5000);
+        assertThat(slowestClasses.get(0).isWoven()).isFalse();
+        assertThat(slowestClasses.get(0).getClassLoader()).isEqualTo("bootstrap");
+        assertThat(slowestClasses.get(0).getCodeSource()).isNull();
+        assertThat(slowestClasses.get(1).getClassName()).isEqualTo("a.A");
+        assertThat(slowestClasses.get(2).getClassName()).isEqualTo("a.E");
+        assertThat(slowestClasses.get(2).isWoven()).isTrue();
+        assertThat(slowestClasses.get(2).getClassLoader())
+                .startsWith(getClass().getClassLoader().getClass().getName() + "@");
+        assertThat(slowestClasses.get(2).getCodeSource()).isNotNull();
+    }
+}
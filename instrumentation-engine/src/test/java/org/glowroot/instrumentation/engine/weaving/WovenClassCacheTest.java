@@ -0,0 +1,166 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.engine.weaving;
+
+import java.io.File;
+import java.util.Arrays;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.engine.config.AdviceConfig;
+import org.glowroot.instrumentation.engine.config.InstrumentationDescriptor;
+import org.glowroot.instrumentation.engine.weaving.WovenClassCache.CacheKey;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class WovenClassCacheTest {
+
+    private static final byte[] ENGINE_FINGERPRINT = new byte[20];
+
+    private File directory;
+    private AdviceCache adviceCache;
+
+    @Before
+    public void beforeEach() throws Exception {
+        directory = Files.createTempDir();
+        adviceCache = new AdviceCache(ImmutableList.<InstrumentationDescriptor>of(),
+                ImmutableList.<AdviceConfig>of(), null, ImmutableList.<String>of(), directory);
+    }
+
+    @After
+    public void afterEach() {
+        deleteRecursively(directory);
+    }
+
+    @Test
+    public void shouldReadBackAfterRestart() throws Exception {
+        // given
+        WovenClassCache cache =
+                new WovenClassCache(directory, adviceCache, 1024, 4, ENGINE_FINGERPRINT);
+        cache.put(newCacheKey(1), newBytes(1, 100));
+        cache.put(newCacheKey(2), newBytes(2, 100));
+        cache.close();
+
+        // when
+        cache = new WovenClassCache(directory, adviceCache, 1024, 4, ENGINE_FINGERPRINT);
+
+        // then
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get(newCacheKey(1))).isEqualTo(newBytes(1, 100));
+        assertThat(cache.get(newCacheKey(2))).isEqualTo(newBytes(2, 100));
+        assertThat(cache.get(newCacheKey(3))).isNull();
+        cache.close();
+    }
+
+    @Test
+    public void shouldEvictOldestSegment() throws Exception {
+        // given
+        WovenClassCache cache =
+                new WovenClassCache(directory, adviceCache, 1024, 2, ENGINE_FINGERPRINT);
+
+        // when
+        // each segment fits 3 records
+        for (int i = 0; i < 7; i++) {
+            cache.put(newCacheKey(i), newBytes(i, 250));
+        }
+
+        // then
+        assertThat(cache.segmentCount()).isEqualTo(2);
+        assertThat(cache.size()).isEqualTo(4);
+        assertThat(cache.get(newCacheKey(0))).isNull();
+        assertThat(cache.get(newCacheKey(2))).isNull();
+        assertThat(cache.get(newCacheKey(3))).isEqualTo(newBytes(3, 250));
+        assertThat(cache.get(newCacheKey(6))).isEqualTo(newBytes(6, 250));
+        cache.close();
+    }
+
+    @Test
+    public void shouldInvalidateOnDifferentEngineFingerprint() throws Exception {
+        // given
+        WovenClassCache cache =
+                new WovenClassCache(directory, adviceCache, 1024, 4, ENGINE_FINGERPRINT);
+        cache.put(newCacheKey(1), newBytes(1, 100));
+        cache.close();
+        byte[] otherEngineFingerprint = new byte[20];
+        otherEngineFingerprint[0] = 1;
+
+        // when
+        cache = new WovenClassCache(directory, adviceCache, 1024, 4, otherEngineFingerprint);
+
+        // then
+        assertThat(cache.size()).isZero();
+        assertThat(cache.get(newCacheKey(1))).isNull();
+        cache.close();
+    }
+
+    @Test
+    public void shouldNotCacheRecordLargerThanSegment() throws Exception {
+        // given
+        WovenClassCache cache =
+                new WovenClassCache(directory, adviceCache, 1024, 4, ENGINE_FINGERPRINT);
+
+        // when
+        cache.put(newCacheKey(1), newBytes(1, 1024));
+
+        // then
+        assertThat(cache.size()).isZero();
+        assertThat(cache.segmentCount()).isZero();
+        cache.close();
+    }
+
+    @Test
+    public void shouldUseSeparateSlotWhenDirectoryIsInUse() throws Exception {
+        // given
+        WovenClassCache cache = WovenClassCache.create(directory, adviceCache, 1);
+
+        // when
+        WovenClassCache otherCache = WovenClassCache.create(directory, adviceCache, 1);
+
+        // then
+        assertThat(cache).isNotNull();
+        assertThat(otherCache).isNotNull();
+        assertThat(otherCache.getDirectory()).isNotEqualTo(cache.getDirectory());
+        cache.close();
+        otherCache.close();
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static CacheKey newCacheKey(int num) {
+        byte[] digest = new byte[20];
+        Arrays.fill(digest, (byte) num);
+        return new CacheKey(digest, ImmutableSet.<Advice>of());
+    }
+
+    private static byte[] newBytes(int num, int length) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) num);
+        return bytes;
+    }
+}
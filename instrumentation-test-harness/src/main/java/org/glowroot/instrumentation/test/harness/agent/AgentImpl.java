@@ -62,4 +62,9 @@ class AgentImpl implements AgentSPI {
 
     @Override
     public void captureLoggerSpan(MessageSupplier messageSupplier, @Nullable Throwable throwable) {}
+
+    @Override
+    public boolean isCapturingLoggerSpans() {
+        return false;
+    }
 }
@@ -19,6 +19,7 @@ import com.google.common.base.Throwables;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 import org.glowroot.instrumentation.engine.bytecode.api.ThreadContextThreadLocal;
+import org.glowroot.instrumentation.engine.init.EngineModule;
 import org.glowroot.instrumentation.test.harness.IncomingSpan;
 
 import static com.google.common.base.Preconditions.checkNotNull;
@@ -28,7 +29,7 @@ import static com.google.common.base.Preconditions.checkNotNull;
 public class Global {
 
     private static final ThreadContextThreadLocal threadContextThreadLocal =
-            new ThreadContextThreadLocal();
+            EngineModule.createThreadContextThreadLocal();
 
     private static volatile @Nullable TraceReporter traceReporter;
 
@@ -51,6 +52,10 @@ public class Global {
         }
     }
 
+    public static void flushTraces() throws Exception {
+        checkNotNull(traceReporter).flush();
+    }
+
     public static void setTraceReporter(TraceReporter traceReporter) {
         Global.traceReporter = traceReporter;
     }
@@ -78,6 +78,12 @@ public class MainEntryPoint {
         Global.setTraceReporter(new TraceReporter(collectorPort));
     }
 
+    // traces are reported asynchronously, this waits until all traces that have been completed so
+    // far have been received by the trace collector
+    public static void flushTraces() throws Exception {
+        Global.flushTraces();
+    }
+
     public static void resetInstrumentationProperties() {
         checkNotNull(configServiceFactory).resetConfig();
     }
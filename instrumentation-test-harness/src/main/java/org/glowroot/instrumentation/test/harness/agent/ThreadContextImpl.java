@@ -171,6 +171,11 @@ public class ThreadContextImpl implements ThreadContextPlus {
         addChildSpan(new LoggerSpanImpl(messageSupplier, throwable));
     }
 
+    @Override
+    public boolean isCapturingLoggerSpans() {
+        return true;
+    }
+
     @Override
     public TimerImpl startTimer(TimerName timerName) {
         return TimerImpl.create((TimerNameImpl) timerName, System.nanoTime(), currTimerStack);
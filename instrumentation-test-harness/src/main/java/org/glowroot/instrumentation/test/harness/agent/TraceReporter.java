@@ -15,27 +15,142 @@
  */
 package org.glowroot.instrumentation.test.harness.agent;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.instrumentation.test.harness.IncomingSpan;
 
+// sends completed traces to the TraceCollector from a background thread, so that the application
+// thread that completes a trace does not wait on a socket round trip
+//
+// traces are batched (everything that is queued up is written before flushing the socket), and
+// flush() provides an explicit point at which everything reported so far has been received by the
+// collector
 public class TraceReporter {
 
+    private static final Logger logger = LoggerFactory.getLogger(TraceReporter.class);
+
+    // bounded so that a load test which produces traces faster than they can be sent is slowed
+    // down instead of running out of memory
+    private static final int MAX_QUEUE_SIZE = 10000;
+
     private final Socket socket;
-    private final ObjectOutputStream out;
-    private final ObjectInputStream in;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    // items are either IncomingSpan or FlushRequest
+    private final BlockingQueue<Object> queue = new LinkedBlockingQueue<Object>(MAX_QUEUE_SIZE);
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private final DataOutputStream bufferOut = new DataOutputStream(buffer);
+
+    private volatile @Nullable Throwable failure;
+
+    private int nextFlushId;
 
     TraceReporter(int port) throws IOException {
         socket = new Socket("localhost", port);
-        out = new ObjectOutputStream(socket.getOutputStream());
-        in = new ObjectInputStream(socket.getInputStream());
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runInternal();
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                    failure = t;
+                    // release anyone waiting on a flush
+                    Object item;
+                    while ((item = queue.poll()) != null) {
+                        if (item instanceof FlushRequest) {
+                            ((FlushRequest) item).latch.countDown();
+                        }
+                    }
+                }
+            }
+        });
+        thread.setName("Glowroot-Test-Harness-Trace-Reporter");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     public void send(IncomingSpan incomingSpan) throws Exception {
-        out.writeObject(incomingSpan);
-        in.readObject();
+        checkNoFailure();
+        queue.put(incomingSpan);
+    }
+
+    // blocks until everything sent prior to this call has been received by the collector
+    public void flush() throws Exception {
+        checkNoFailure();
+        FlushRequest flushRequest = new FlushRequest();
+        queue.put(flushRequest);
+        if (!flushRequest.latch.await(60, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Timed out waiting for trace collector");
+        }
+        checkNoFailure();
+    }
+
+    private void runInternal() throws Exception {
+        List<Object> batch = new ArrayList<Object>();
+        while (true) {
+            batch.add(queue.take());
+            queue.drainTo(batch);
+            for (Object item : batch) {
+                if (item instanceof IncomingSpan) {
+                    write((IncomingSpan) item);
+                } else {
+                    flush((FlushRequest) item);
+                }
+            }
+            out.flush();
+            batch.clear();
+        }
+    }
+
+    private void write(IncomingSpan incomingSpan) throws IOException {
+        buffer.reset();
+        TraceWireFormat.writeIncomingSpan(incomingSpan, bufferOut);
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    private void flush(FlushRequest flushRequest) throws IOException {
+        int flushId = nextFlushId++;
+        out.writeInt(TraceWireFormat.FLUSH_MARKER);
+        out.writeInt(flushId);
+        out.flush();
+        int ackFlushId = in.readInt();
+        if (ackFlushId != flushId) {
+            throw new IllegalStateException(
+                    "Unexpected flush id from trace collector: " + ackFlushId);
+        }
+        flushRequest.latch.countDown();
+    }
+
+    private void checkNoFailure() {
+        Throwable failure = this.failure;
+        if (failure != null) {
+            throw new IllegalStateException("Trace reporter failed", failure);
+        }
+    }
+
+    private static class FlushRequest {
+        private final CountDownLatch latch = new CountDownLatch(1);
     }
 }
@@ -0,0 +1,492 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.test.harness.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import org.glowroot.instrumentation.test.harness.ImmutableIncomingSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableIncomingSpanError;
+import org.glowroot.instrumentation.test.harness.ImmutableLocalSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableLoggerSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableOutgoingSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableThrowableInfo;
+import org.glowroot.instrumentation.test.harness.ImmutableTimer;
+import org.glowroot.instrumentation.test.harness.IncomingSpan;
+import org.glowroot.instrumentation.test.harness.IncomingSpan.IncomingSpanError;
+import org.glowroot.instrumentation.test.harness.IncomingSpan.Timer;
+import org.glowroot.instrumentation.test.harness.LocalSpan;
+import org.glowroot.instrumentation.test.harness.LoggerSpan;
+import org.glowroot.instrumentation.test.harness.OutgoingSpan;
+import org.glowroot.instrumentation.test.harness.Span;
+import org.glowroot.instrumentation.test.harness.ThrowableInfo;
+
+// wire format between TraceReporter and TraceCollector
+//
+// the stream is a sequence of records, each starting with an int:
+// * a positive int is the length of an encoded IncomingSpan that follows
+// * FLUSH_MARKER is followed by an int flush id, which the collector echoes back once it has
+//   received everything before it
+//
+// this is much more compact (and much cheaper to produce) than java serialization of the
+// immutables, which writes out full class descriptors for every span type
+public class TraceWireFormat {
+
+    public static final int FLUSH_MARKER = -1;
+
+    private static final byte LOCAL_SPAN = 1;
+    private static final byte OUTGOING_SPAN = 2;
+    private static final byte LOGGER_SPAN = 3;
+
+    private static final byte NULL_VALUE = 0;
+    private static final byte STRING_VALUE = 1;
+    private static final byte BOOLEAN_VALUE = 2;
+    private static final byte INT_VALUE = 3;
+    private static final byte LONG_VALUE = 4;
+    private static final byte DOUBLE_VALUE = 5;
+    private static final byte MAP_VALUE = 6;
+    private static final byte LIST_VALUE = 7;
+    private static final byte SET_VALUE = 8;
+    // anything else falls back to java serialization
+    private static final byte SERIALIZED_VALUE = 9;
+
+    private TraceWireFormat() {}
+
+    public static void writeIncomingSpan(IncomingSpan incomingSpan, DataOutput out)
+            throws IOException {
+        writeSpanCommon(incomingSpan, out);
+        out.writeUTF(incomingSpan.transactionType());
+        out.writeUTF(incomingSpan.transactionName());
+        IncomingSpanError error = incomingSpan.error();
+        out.writeBoolean(error != null);
+        if (error != null) {
+            writeNullableString(error.message(), out);
+            writeNullableThrowableInfo(error.exception(), out);
+        }
+        out.writeUTF(incomingSpan.user());
+        writeTimer(incomingSpan.mainThreadTimer(), out);
+        writeTimers(incomingSpan.auxThreadTimers(), out);
+        writeTimers(incomingSpan.asyncTimers(), out);
+        writeChildSpans(incomingSpan.childSpans(), out);
+        out.writeBoolean(incomingSpan.resourceLeakDetected());
+        out.writeBoolean(incomingSpan.resourceLeakDetectedWithLocation());
+    }
+
+    public static IncomingSpan readIncomingSpan(DataInput in, ClassLoader loader)
+            throws IOException {
+        ImmutableIncomingSpan.Builder builder = ImmutableIncomingSpan.builder();
+        builder.totalNanos(in.readLong())
+                .message(readString(in));
+        setDetail(builder, readDetail(in, loader));
+        builder.locationStackTraceMillis(readNullableLong(in))
+                .transactionType(in.readUTF())
+                .transactionName(in.readUTF());
+        if (in.readBoolean()) {
+            builder.error(ImmutableIncomingSpanError.builder()
+                    .message(readNullableString(in))
+                    .exception(readNullableThrowableInfo(in, loader))
+                    .build());
+        }
+        builder.user(in.readUTF())
+                .mainThreadTimer(readTimer(in))
+                .addAllAuxThreadTimers(readTimers(in))
+                .addAllAsyncTimers(readTimers(in))
+                .addAllChildSpans(readChildSpans(in, loader))
+                .resourceLeakDetected(in.readBoolean())
+                .resourceLeakDetectedWithLocation(in.readBoolean());
+        return builder.build();
+    }
+
+    private static void writeSpanCommon(Span span, DataOutput out) throws IOException {
+        out.writeLong(span.totalNanos());
+        writeString(span.message(), out);
+        writeDetail(span.detail(), out);
+        writeNullableLong(span.locationStackTraceMillis(), out);
+    }
+
+    private static void writeChildSpans(List<Span> spans, DataOutput out) throws IOException {
+        out.writeInt(spans.size());
+        for (Span span : spans) {
+            if (span instanceof LocalSpan) {
+                LocalSpan localSpan = (LocalSpan) span;
+                out.writeByte(LOCAL_SPAN);
+                writeSpanCommon(localSpan, out);
+                writeNullableThrowableInfo(localSpan.exception(), out);
+                writeChildSpans(localSpan.childSpans(), out);
+            } else if (span instanceof OutgoingSpan) {
+                OutgoingSpan outgoingSpan = (OutgoingSpan) span;
+                out.writeByte(OUTGOING_SPAN);
+                writeSpanCommon(outgoingSpan, out);
+                out.writeUTF(outgoingSpan.type());
+                out.writeUTF(outgoingSpan.dest());
+                writeNullableThrowableInfo(outgoingSpan.exception(), out);
+            } else if (span instanceof LoggerSpan) {
+                LoggerSpan loggerSpan = (LoggerSpan) span;
+                out.writeByte(LOGGER_SPAN);
+                writeSpanCommon(loggerSpan, out);
+                writeNullableThrowableInfo(loggerSpan.throwable(), out);
+            } else {
+                throw new IllegalStateException("Unexpected span type: " + span.getClass());
+            }
+        }
+    }
+
+    private static List<Span> readChildSpans(DataInput in, ClassLoader loader)
+            throws IOException {
+        int size = in.readInt();
+        List<Span> spans = new ArrayList<Span>(size);
+        for (int i = 0; i < size; i++) {
+            byte spanType = in.readByte();
+            long totalNanos = in.readLong();
+            String message = readString(in);
+            Map<String, /*@Nullable*/ Object> detail = readDetail(in, loader);
+            Long locationStackTraceMillis = readNullableLong(in);
+            if (spanType == LOCAL_SPAN) {
+                ImmutableLocalSpan.Builder builder = ImmutableLocalSpan.builder()
+                        .totalNanos(totalNanos)
+                        .message(message);
+                setDetail(builder, detail);
+                spans.add(builder.locationStackTraceMillis(locationStackTraceMillis)
+                        .exception(readNullableThrowableInfo(in, loader))
+                        .addAllChildSpans(readChildSpans(in, loader))
+                        .build());
+            } else if (spanType == OUTGOING_SPAN) {
+                ImmutableOutgoingSpan.Builder builder = ImmutableOutgoingSpan.builder()
+                        .totalNanos(totalNanos)
+                        .message(message);
+                setDetail(builder, detail);
+                spans.add(builder.locationStackTraceMillis(locationStackTraceMillis)
+                        .type(in.readUTF())
+                        .dest(in.readUTF())
+                        .exception(readNullableThrowableInfo(in, loader))
+                        .build());
+            } else if (spanType == LOGGER_SPAN) {
+                ImmutableLoggerSpan.Builder builder = ImmutableLoggerSpan.builder()
+                        .totalNanos(totalNanos)
+                        .message(message);
+                setDetail(builder, detail);
+                spans.add(builder.locationStackTraceMillis(locationStackTraceMillis)
+                        .throwable(readNullableThrowableInfo(in, loader))
+                        .build());
+            } else {
+                throw new IOException("Unexpected span type: " + spanType);
+            }
+        }
+        return spans;
+    }
+
+    private static void writeTimers(List<Timer> timers, DataOutput out) throws IOException {
+        out.writeInt(timers.size());
+        for (Timer timer : timers) {
+            writeTimer(timer, out);
+        }
+    }
+
+    private static List<Timer> readTimers(DataInput in) throws IOException {
+        int size = in.readInt();
+        List<Timer> timers = new ArrayList<Timer>(size);
+        for (int i = 0; i < size; i++) {
+            timers.add(readTimer(in));
+        }
+        return timers;
+    }
+
+    private static void writeTimer(Timer timer, DataOutput out) throws IOException {
+        out.writeUTF(timer.name());
+        out.writeBoolean(timer.extended());
+        out.writeLong(timer.totalNanos());
+        out.writeLong(timer.count());
+        writeTimers(timer.childTimers(), out);
+    }
+
+    private static Timer readTimer(DataInput in) throws IOException {
+        return ImmutableTimer.builder()
+                .name(in.readUTF())
+                .extended(in.readBoolean())
+                .totalNanos(in.readLong())
+                .count(in.readLong())
+                .addAllChildTimers(readTimers(in))
+                .build();
+    }
+
+    private static void writeNullableThrowableInfo(@Nullable ThrowableInfo throwableInfo,
+            DataOutput out) throws IOException {
+        out.writeBoolean(throwableInfo != null);
+        if (throwableInfo == null) {
+            return;
+        }
+        out.writeUTF(throwableInfo.type().getName());
+        writeNullableString(throwableInfo.message(), out);
+        StackTraceElement[] stackTrace = throwableInfo.stackTrace();
+        out.writeInt(stackTrace.length);
+        for (StackTraceElement element : stackTrace) {
+            out.writeUTF(element.getClassName());
+            out.writeUTF(element.getMethodName());
+            writeNullableString(element.getFileName(), out);
+            out.writeInt(element.getLineNumber());
+        }
+        writeNullableThrowableInfo(throwableInfo.cause(), out);
+    }
+
+    private static @Nullable ThrowableInfo readNullableThrowableInfo(DataInput in,
+            ClassLoader loader) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        String typeName = in.readUTF();
+        Class<?> type;
+        try {
+            type = Class.forName(typeName, false, loader);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        String message = readNullableString(in);
+        StackTraceElement[] stackTrace = new StackTraceElement[in.readInt()];
+        for (int i = 0; i < stackTrace.length; i++) {
+            stackTrace[i] = new StackTraceElement(in.readUTF(), in.readUTF(),
+                    readNullableString(in), in.readInt());
+        }
+        return ImmutableThrowableInfo.builder()
+                .type(type)
+                .message(message)
+                .stackTrace(stackTrace)
+                .cause(readNullableThrowableInfo(in, loader))
+                .build();
+    }
+
+    private static void writeDetail(Map<String, ? extends /*@Nullable*/ Object> detail,
+            DataOutput out) throws IOException {
+        out.writeInt(detail.size());
+        for (Map.Entry<String, ? extends /*@Nullable*/ Object> entry : detail.entrySet()) {
+            out.writeUTF(entry.getKey());
+            writeValue(entry.getValue(), out);
+        }
+    }
+
+    private static Map<String, /*@Nullable*/ Object> readDetail(DataInput in, ClassLoader loader)
+            throws IOException {
+        int size = in.readInt();
+        Map<String, /*@Nullable*/ Object> detail =
+                new LinkedHashMap<String, /*@Nullable*/ Object>(size * 2);
+        for (int i = 0; i < size; i++) {
+            detail.put(in.readUTF(), readValue(in, loader));
+        }
+        return detail;
+    }
+
+    private static void writeValue(@Nullable Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_VALUE);
+        } else if (value instanceof String) {
+            out.writeByte(STRING_VALUE);
+            writeString((String) value, out);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_VALUE);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INT_VALUE);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_VALUE);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_VALUE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof Map) {
+            out.writeByte(MAP_VALUE);
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.writeInt(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeValue(entry.getKey(), out);
+                writeValue(entry.getValue(), out);
+            }
+        } else if (value instanceof List) {
+            out.writeByte(LIST_VALUE);
+            writeCollection((List<?>) value, out);
+        } else if (value instanceof Set) {
+            out.writeByte(SET_VALUE);
+            writeCollection((Set<?>) value, out);
+        } else {
+            out.writeByte(SERIALIZED_VALUE);
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeObject(value);
+            oos.close();
+            byte[] bytes = baos.toByteArray();
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static @Nullable Object readValue(DataInput in, ClassLoader loader)
+            throws IOException {
+        byte valueType = in.readByte();
+        switch (valueType) {
+            case NULL_VALUE:
+                return null;
+            case STRING_VALUE:
+                return readString(in);
+            case BOOLEAN_VALUE:
+                return in.readBoolean();
+            case INT_VALUE:
+                return in.readInt();
+            case LONG_VALUE:
+                return in.readLong();
+            case DOUBLE_VALUE:
+                return in.readDouble();
+            case MAP_VALUE:
+                int size = in.readInt();
+                Map</*@Nullable*/ Object, /*@Nullable*/ Object> map =
+                        new LinkedHashMap</*@Nullable*/ Object, /*@Nullable*/ Object>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    map.put(readValue(in, loader), readValue(in, loader));
+                }
+                return map;
+            case LIST_VALUE:
+                return readCollection(in, loader, new ArrayList</*@Nullable*/ Object>());
+            case SET_VALUE:
+                return readCollection(in, loader, new LinkedHashSet</*@Nullable*/ Object>());
+            case SERIALIZED_VALUE:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                ObjectInputStream ois = new ObjectInputStreamWithLoader(
+                        new ByteArrayInputStream(bytes), loader);
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                } finally {
+                    ois.close();
+                }
+            default:
+                throw new IOException("Unexpected value type: " + valueType);
+        }
+    }
+
+    private static void writeCollection(Collection<?> collection, DataOutput out)
+            throws IOException {
+        out.writeInt(collection.size());
+        for (Object item : collection) {
+            writeValue(item, out);
+        }
+    }
+
+    private static <T extends Collection</*@Nullable*/ Object>> T readCollection(DataInput in,
+            ClassLoader loader, T collection) throws IOException {
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            collection.add(readValue(in, loader));
+        }
+        return collection;
+    }
+
+    // DataOutput.writeUTF() is limited to 65535 encoded bytes, which is not enough for some
+    // messages and detail values (e.g. large query text)
+    private static void writeString(String value, DataOutput out) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    private static void writeNullableString(@Nullable String value, DataOutput out)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            writeString(value, out);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInput in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    private static void writeNullableLong(@Nullable Long value, DataOutput out)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static @Nullable Long readNullableLong(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readLong() : null;
+    }
+
+    // this suppression is needed for checker framework because the immutables method signature
+    // takes Map<String, ? extends Object> instead of/ Map<String, ? extends /*@Nullable*/ Object>
+    @SuppressWarnings("argument.type.incompatible")
+    private static void setDetail(ImmutableIncomingSpan.Builder builder, Map<String, ?> detail) {
+        builder.detail(detail);
+    }
+
+    @SuppressWarnings("argument.type.incompatible")
+    private static void setDetail(ImmutableLocalSpan.Builder builder, Map<String, ?> detail) {
+        builder.detail(detail);
+    }
+
+    @SuppressWarnings("argument.type.incompatible")
+    private static void setDetail(ImmutableOutgoingSpan.Builder builder, Map<String, ?> detail) {
+        builder.detail(detail);
+    }
+
+    @SuppressWarnings("argument.type.incompatible")
+    private static void setDetail(ImmutableLoggerSpan.Builder builder, Map<String, ?> detail) {
+        builder.detail(detail);
+    }
+
+    private static class ObjectInputStreamWithLoader extends ObjectInputStream {
+
+        private final ClassLoader loader;
+
+        private ObjectInputStreamWithLoader(ByteArrayInputStream in, ClassLoader loader)
+                throws IOException {
+            super(in);
+            this.loader = loader;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc)
+                throws IOException, ClassNotFoundException {
+            try {
+                return Class.forName(desc.getName(), false, loader);
+            } catch (ClassNotFoundException e) {
+                // e.g. primitive types
+                return super.resolveClass(desc);
+            }
+        }
+    }
+}
@@ -122,6 +122,7 @@ class JavaagentServer {
         Class<?> appClass = Class.forName(appClassName, true, ClassLoader.getSystemClassLoader());
         AppUnderTest app = (AppUnderTest) appClass.getConstructor().newInstance();
         app.executeApp(args);
+        MainEntryPoint.flushTraces();
     }
 
     private void kill() {
@@ -156,6 +156,7 @@ public class LocalContainer implements Container {
             executingAppThread = null;
             Thread.currentThread().setContextClassLoader(previousContextClassLoader);
         }
+        MainEntryPoint.flushTraces();
     }
 
     private static Object transfer(Object obj, ClassLoader loader) throws Exception {
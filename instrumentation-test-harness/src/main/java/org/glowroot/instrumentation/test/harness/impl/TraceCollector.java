@@ -15,9 +15,11 @@
  */
 package org.glowroot.instrumentation.test.harness.impl;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.List;
@@ -32,6 +34,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.instrumentation.test.harness.IncomingSpan;
+import org.glowroot.instrumentation.test.harness.agent.TraceWireFormat;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
@@ -62,11 +65,26 @@ class TraceCollector {
             public void run() {
                 try {
                     Socket socket = serverSocket.accept();
-                    ObjectInputStream in = new ObjectInputStream(socket.getInputStream());
-                    ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+                    DataInputStream in =
+                            new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    ClassLoader loader = TraceCollector.class.getClassLoader();
+                    byte[] bytes = new byte[8192];
                     while (!closed) {
-                        incomingSpans.add((IncomingSpan) in.readObject());
-                        out.writeObject("ok");
+                        int length = in.readInt();
+                        if (length == TraceWireFormat.FLUSH_MARKER) {
+                            // everything sent prior to the flush marker has been received
+                            out.writeInt(in.readInt());
+                            out.flush();
+                            continue;
+                        }
+                        if (length > bytes.length) {
+                            bytes = new byte[length];
+                        }
+                        in.readFully(bytes, 0, length);
+                        incomingSpans.add(TraceWireFormat.readIncomingSpan(
+                                new DataInputStream(new ByteArrayInputStream(bytes, 0, length)),
+                                checkNotNull(loader)));
                     }
                 } catch (Throwable t) {
                     if (!closed) {
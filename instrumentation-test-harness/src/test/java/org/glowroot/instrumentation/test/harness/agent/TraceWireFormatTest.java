@@ -0,0 +1,213 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.test.harness.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.test.harness.ImmutableIncomingSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableIncomingSpanError;
+import org.glowroot.instrumentation.test.harness.ImmutableLocalSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableLoggerSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableOutgoingSpan;
+import org.glowroot.instrumentation.test.harness.ImmutableTimer;
+import org.glowroot.instrumentation.test.harness.IncomingSpan;
+import org.glowroot.instrumentation.test.harness.IncomingSpan.Timer;
+import org.glowroot.instrumentation.test.harness.LocalSpan;
+import org.glowroot.instrumentation.test.harness.LoggerSpan;
+import org.glowroot.instrumentation.test.harness.OutgoingSpan;
+import org.glowroot.instrumentation.test.harness.Span;
+import org.glowroot.instrumentation.test.harness.ThrowableInfo;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TraceWireFormatTest {
+
+    @Test
+    public void shouldRoundTripEachSpanKind() throws Exception {
+        // given
+        LoggerSpan loggerSpan = ImmutableLoggerSpan.builder()
+                .totalNanos(1)
+                .message("logger")
+                .putDetail("Level", "WARN")
+                .throwable(ThrowableInfo.create(new IllegalStateException("abc")))
+                .build();
+        OutgoingSpan outgoingSpan = ImmutableOutgoingSpan.builder()
+                .totalNanos(2)
+                .message("outgoing")
+                .locationStackTraceMillis(22L)
+                .type("HTTP")
+                .dest("localhost:8080")
+                .exception(ThrowableInfo.create(new IOException("xyz")))
+                .build();
+        LocalSpan localSpan = ImmutableLocalSpan.builder()
+                .totalNanos(3)
+                .message("local")
+                .addChildSpans(outgoingSpan, loggerSpan)
+                .build();
+        IncomingSpan incomingSpan = ImmutableIncomingSpan.builder()
+                .totalNanos(4)
+                .message("incoming")
+                .transactionType("Web")
+                .transactionName("/abc")
+                .error(ImmutableIncomingSpanError.builder()
+                        .message("error")
+                        .build())
+                .user("user")
+                .mainThreadTimer(ImmutableTimer.builder()
+                        .name("main")
+                        .extended(false)
+                        .totalNanos(5)
+                        .count(1)
+                        .addChildTimers(createTimer("child"))
+                        .build())
+                .addAuxThreadTimers(createTimer("aux"))
+                .addAsyncTimers(createTimer("async"))
+                .addChildSpans(localSpan)
+                .resourceLeakDetected(true)
+                .resourceLeakDetectedWithLocation(false)
+                .build();
+
+        // when
+        IncomingSpan roundTripped = roundTrip(incomingSpan);
+
+        // then
+        assertThat(roundTripped).isEqualTo(incomingSpan);
+        List<Span> childSpans = roundTripped.childSpans();
+        assertThat(childSpans.get(0)).isInstanceOf(LocalSpan.class);
+        List<Span> grandchildSpans = ((LocalSpan) childSpans.get(0)).childSpans();
+        assertThat(grandchildSpans.get(0)).isInstanceOf(OutgoingSpan.class);
+        assertThat(grandchildSpans.get(1)).isInstanceOf(LoggerSpan.class);
+    }
+
+    @Test
+    public void shouldRoundTripEachDetailValueType() throws Exception {
+        // given
+        Map<String, Object> nestedMap = new LinkedHashMap<String, Object>();
+        nestedMap.put("a", 1);
+        nestedMap.put("b", null);
+        List<Object> list = new ArrayList<Object>();
+        list.add("x");
+        list.add(2L);
+        list.add(null);
+        Set<Object> set = new LinkedHashSet<Object>();
+        set.add("y");
+        set.add(false);
+        Map<String, Object> detail = new LinkedHashMap<String, Object>();
+        detail.put("null", null);
+        detail.put("string", "abc");
+        detail.put("large string", Strings.repeat("abcdefghij", 10000));
+        detail.put("boolean", true);
+        detail.put("int", 123);
+        detail.put("long", 1234567890123L);
+        detail.put("double", 1.5);
+        detail.put("map", nestedMap);
+        detail.put("list", list);
+        detail.put("set", set);
+        detail.put("serialized", new BigDecimal("12.34"));
+        IncomingSpan incomingSpan = createIncomingSpanBuilder()
+                .detail(detail)
+                .build();
+
+        // when
+        IncomingSpan roundTripped = roundTrip(incomingSpan);
+
+        // then
+        assertThat(roundTripped.detail()).isEqualTo(detail);
+        assertThat(roundTripped.detail().get("int")).isInstanceOf(Integer.class);
+        assertThat(roundTripped.detail().get("long")).isInstanceOf(Long.class);
+        assertThat(roundTripped.detail().get("list")).isInstanceOf(List.class);
+        assertThat(roundTripped.detail().get("set")).isInstanceOf(Set.class);
+        assertThat(roundTripped.detail().get("serialized")).isInstanceOf(BigDecimal.class);
+    }
+
+    @Test
+    public void shouldRoundTripNestedThrowableCauses() throws Exception {
+        // given
+        Exception exception = new IllegalStateException("outer",
+                new IOException(new IllegalArgumentException("inner")));
+        IncomingSpan incomingSpan = createIncomingSpanBuilder()
+                .error(ImmutableIncomingSpanError.builder()
+                        .exception(ThrowableInfo.create(exception))
+                        .build())
+                .build();
+
+        // when
+        IncomingSpan roundTripped = roundTrip(incomingSpan);
+
+        // then
+        assertThat(roundTripped).isEqualTo(incomingSpan);
+        ThrowableInfo throwableInfo = roundTripped.error().exception();
+        assertThat(throwableInfo.type()).isEqualTo(IllegalStateException.class);
+        assertThat(throwableInfo.message()).isEqualTo("outer");
+        assertThat(throwableInfo.stackTrace()).isEqualTo(exception.getStackTrace());
+        ThrowableInfo cause = throwableInfo.cause();
+        assertThat(cause.type()).isEqualTo(IOException.class);
+        assertThat(cause.message()).isEqualTo(IllegalArgumentException.class.getName() + ": inner");
+        ThrowableInfo rootCause = cause.cause();
+        assertThat(rootCause.type()).isEqualTo(IllegalArgumentException.class);
+        assertThat(rootCause.message()).isEqualTo("inner");
+        assertThat(rootCause.cause()).isNull();
+        assertThat(roundTripped.error().message()).isNull();
+    }
+
+    private static IncomingSpan roundTrip(IncomingSpan incomingSpan) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        TraceWireFormat.writeIncomingSpan(incomingSpan, out);
+        out.close();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        IncomingSpan roundTripped = TraceWireFormat.readIncomingSpan(in,
+                TraceWireFormatTest.class.getClassLoader());
+        // the whole record should have been consumed
+        assertThat(in.read()).isEqualTo(-1);
+        return roundTripped;
+    }
+
+    private static ImmutableIncomingSpan.Builder createIncomingSpanBuilder() {
+        return ImmutableIncomingSpan.builder()
+                .totalNanos(1)
+                .message("incoming")
+                .transactionType("Web")
+                .transactionName("/abc")
+                .user("")
+                .mainThreadTimer(createTimer("main"))
+                .resourceLeakDetected(false)
+                .resourceLeakDetectedWithLocation(false);
+    }
+
+    private static Timer createTimer(String name) {
+        return ImmutableTimer.builder()
+                .name(name)
+                .extended(true)
+                .totalNanos(10)
+                .count(2)
+                .build();
+    }
+}
@@ -0,0 +1,261 @@
+/**
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.test.matrix;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// runs matrix cells concurrently, each in its own working copy of the base dir so that concurrent
+// maven builds of the same module don't clobber each other's target directory, and passes library
+// versions as -D property overrides instead of rewriting the module pom.xml files
+class ParallelRunner {
+
+    private final File baseDir;
+    private final File workDir;
+    private final File logDir;
+
+    private final ExecutorService executor;
+
+    // working copies are created lazily, so there are never more than parallelism of them
+    private final BlockingQueue<File> workingCopies = new LinkedBlockingQueue<File>();
+    private int workingCopyCount;
+
+    // library version overrides accumulate per module, the same way they would accumulate in the
+    // module pom.xml when running serially
+    private final Map<String, Map<String, String>> libVersions = Maps.newHashMap();
+
+    // report entries are either String (log lines) or Cell, kept in submission order so that the
+    // consolidated report reads the same as the serial one regardless of completion order
+    private final List<Object> reportEntries = Lists.newArrayList();
+    private final List<Future<?>> futures = Lists.newArrayList();
+
+    ParallelRunner(File baseDir, File workDir, int parallelism) {
+        this.baseDir = baseDir;
+        this.workDir = workDir;
+        logDir = new File(workDir, "logs");
+        executor = Executors.newFixedThreadPool(parallelism);
+    }
+
+    void setLibVersion(String modulePath, String property, String version) {
+        Map<String, String> moduleLibVersions = libVersions.get(modulePath);
+        if (moduleLibVersions == null) {
+            moduleLibVersions = Maps.newLinkedHashMap();
+            libVersions.put(modulePath, moduleLibVersions);
+        }
+        moduleLibVersions.put(property, version);
+        log(property + " : " + version);
+    }
+
+    Map<String, String> getLibVersions(String modulePath) {
+        Map<String, String> moduleLibVersions = libVersions.get(modulePath);
+        if (moduleLibVersions == null) {
+            return ImmutableMap.of();
+        }
+        return ImmutableMap.copyOf(moduleLibVersions);
+    }
+
+    void log(String message) {
+        System.out.println(message);
+        reportEntries.add(message);
+    }
+
+    void submit(String modulePath, JavaVersion javaVersion, List<String> command,
+            String mavenJavaHome) {
+        int index = futures.size() + 1;
+        String name = String.format("%04d-%s-%s", index, modulePath.replace('/', '-'),
+                javaVersion.name().toLowerCase());
+        Cell cell = new Cell(name, javaVersion, command, mavenJavaHome);
+        reportEntries.add(cell);
+        futures.add(executor.submit(cell));
+    }
+
+    void awaitCompletion(PrintWriter report) throws Exception {
+        try {
+            for (Future<?> future : futures) {
+                // cells record their own failures, so this only waits for completion
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+        int failures = 0;
+        long totalMillis = 0;
+        for (Object entry : reportEntries) {
+            if (entry instanceof Cell) {
+                Cell cell = (Cell) entry;
+                report.println(cell.javaVersion + " " + (cell.exit == 0 ? "PASS" : "FAIL") + " "
+                        + formatDuration(cell.durationMillis) + " " + cell.logFile.getPath());
+                if (cell.exit != 0) {
+                    failures++;
+                }
+                totalMillis += cell.durationMillis;
+            } else {
+                report.println(entry);
+            }
+        }
+        report.println();
+        report.println(futures.size() + " cells, " + failures + " failed, "
+                + formatDuration(totalMillis) + " total build time");
+    }
+
+    private File takeWorkingCopy() throws IOException {
+        File workingCopy = workingCopies.poll();
+        if (workingCopy != null) {
+            return workingCopy;
+        }
+        synchronized (this) {
+            workingCopy = new File(workDir, "copy-" + ++workingCopyCount);
+        }
+        System.out.println("creating working copy: " + workingCopy);
+        deleteRecursively(workingCopy);
+        copyRecursively(baseDir, workingCopy);
+        return workingCopy;
+    }
+
+    private void copyRecursively(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            String name = from.getName();
+            if (name.equals("target") || name.equals(".git")
+                    || from.getCanonicalFile().equals(workDir.getCanonicalFile())) {
+                return;
+            }
+            if (!to.mkdirs()) {
+                throw new IOException("Could not create directory: " + to);
+            }
+            for (File file : checkNotNull(from.listFiles())) {
+                copyRecursively(file, new File(to, file.getName()));
+            }
+        } else {
+            Files.copy(from, to);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        if (file.isDirectory()) {
+            for (File child : checkNotNull(file.listFiles())) {
+                deleteRecursively(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete: " + file);
+        }
+    }
+
+    private static String formatDuration(long millis) {
+        long seconds = MILLISECONDS.toSeconds(millis);
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+
+    private class Cell implements Callable<Void> {
+
+        private final JavaVersion javaVersion;
+        private final List<String> command;
+        private final String mavenJavaHome;
+        private final File logFile;
+
+        private volatile int exit = -1;
+        private volatile long durationMillis;
+
+        private Cell(String name, JavaVersion javaVersion, List<String> command,
+                String mavenJavaHome) {
+            this.javaVersion = javaVersion;
+            this.command = command;
+            this.mavenJavaHome = mavenJavaHome;
+            logFile = new File(logDir, name + ".log");
+        }
+
+        @Override
+        public Void call() {
+            try {
+                File workingCopy = takeWorkingCopy();
+                try {
+                    run(workingCopy);
+                } finally {
+                    workingCopies.add(workingCopy);
+                }
+            } catch (Throwable t) {
+                // a failure in one cell must not prevent the remaining cells from being reported
+                exit = -1;
+                logFailure(t);
+            }
+            return null;
+        }
+
+        private void run(File workingCopy) throws Exception {
+            ProcessBuilder processBuilder = new ProcessBuilder(command);
+            processBuilder.redirectErrorStream(true);
+            processBuilder.directory(workingCopy);
+            processBuilder.environment().put("JAVA_HOME", mavenJavaHome);
+            logDir.mkdirs();
+            OutputStream out = new FileOutputStream(logFile);
+            long startTime = System.currentTimeMillis();
+            try {
+                out.write((Joiner.on(' ').join(command) + "\n\n").getBytes());
+                Process process = processBuilder.start();
+                InputStream in = checkNotNull(process.getInputStream());
+                // the process output is fully consumed on this thread before waitFor()
+                new Util.ConsoleOutputPipe(in, out).run();
+                exit = process.waitFor();
+            } finally {
+                durationMillis = System.currentTimeMillis() - startTime;
+                out.close();
+            }
+            System.out.println(logFile.getName() + " " + (exit == 0 ? "PASS" : "FAIL") + " "
+                    + formatDuration(durationMillis));
+        }
+
+        private void logFailure(Throwable t) {
+            System.out.println(logFile.getName() + " FAIL " + t);
+            logDir.mkdirs();
+            try {
+                // append, so that any process output already written to the log is kept
+                PrintStream out = new PrintStream(new FileOutputStream(logFile, true));
+                try {
+                    out.println();
+                    t.printStackTrace(out);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.test.matrix;
+
+// runs RunAll (or RunShort when passed "short") with matrix cells executing concurrently, bounded by
+// -Dparallelism (defaults to the number of available processors)
+public class RunParallel {
+
+    public static void main(String[] args) throws Exception {
+        Util.startParallel();
+        if (args.length == 1 && args[0].equals("short")) {
+            RunShort.main(new String[0]);
+        } else {
+            RunAll.main(new String[0]);
+        }
+        Util.awaitParallel();
+    }
+}
@@ -22,6 +22,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -40,8 +41,15 @@ class Util {
     private static final String BASE_DIR = System.getProperty("base.dir", ".");
     private static final String MVN = System.getProperty("mvn", "mvn");
 
+    private static final String WORK_DIR =
+            System.getProperty("work.dir", BASE_DIR + "/target/test-matrix");
+    private static final int PARALLELISM =
+            Integer.getInteger("parallelism", Runtime.getRuntime().availableProcessors());
+
     private static PrintWriter report;
 
+    private static @Nullable ParallelRunner parallelRunner;
+
     static {
         try {
             report = new PrintWriter(Files.newWriter(new File("report.txt"), UTF_8), true);
@@ -50,8 +58,21 @@ class Util {
         }
     }
 
+    static void startParallel() {
+        parallelRunner = new ParallelRunner(new File(BASE_DIR), new File(WORK_DIR), PARALLELISM);
+    }
+
+    static void awaitParallel() throws Exception {
+        checkNotNull(parallelRunner).awaitCompletion(report);
+        parallelRunner = null;
+    }
+
     static void updateLibVersion(String modulePath, String property, String version)
             throws IOException {
+        if (parallelRunner != null) {
+            parallelRunner.setLibVersion(modulePath, property, version);
+            return;
+        }
         File pomFile = new File(BASE_DIR + "/" + modulePath + "/pom.xml");
         String pom = Files.toString(pomFile, UTF_8);
         pom = pom.replaceAll("<" + property + ">.*",
@@ -62,6 +83,10 @@ class Util {
     }
 
     static void log(String message) {
+        if (parallelRunner != null) {
+            parallelRunner.log(message);
+            return;
+        }
         System.out.println(message);
         report.println(message);
     }
@@ -104,8 +129,6 @@ class Util {
 
     private static void runTest(String modulePath, @Nullable String test, JavaVersion javaVersion,
             String... profiles) throws Exception {
-        System.out.println(javaVersion);
-        report.println(javaVersion);
         List<String> command = Lists.newArrayList();
         command.add(MVN);
         command.add("-P");
@@ -129,6 +152,14 @@ class Util {
         for (String propertyArg : propertyArgs) {
             command.add(propertyArg);
         }
+        if (parallelRunner != null) {
+            // module pom.xml files are shared by all working copies, so library versions are
+            // passed as property overrides instead
+            for (Map.Entry<String, String> entry : parallelRunner.getLibVersions(modulePath)
+                    .entrySet()) {
+                command.add("-D" + entry.getKey() + "=" + entry.getValue());
+            }
+        }
         command.add("-pl");
         command.add(modulePath);
         command.add("-Djvm=" + javaVersion.getJavaHome() + File.separator + "bin" + File.separator
@@ -155,15 +186,23 @@ class Util {
         }
         command.add("clean"); // using profile above "clean-test-classes-only"
         command.add("verify");
-        ProcessBuilder processBuilder = new ProcessBuilder(command);
-        processBuilder.redirectErrorStream(true);
-        processBuilder.directory(new File(BASE_DIR));
+        String mavenJavaHome;
         if (javaVersion == JavaVersion.JAVA6) {
             // maven requires Java 7+
-            processBuilder.environment().put("JAVA_HOME", JavaVersion.JAVA7.getJavaHome());
+            mavenJavaHome = JavaVersion.JAVA7.getJavaHome();
         } else {
-            processBuilder.environment().put("JAVA_HOME", javaVersion.getJavaHome());
+            mavenJavaHome = javaVersion.getJavaHome();
+        }
+        if (parallelRunner != null) {
+            parallelRunner.submit(modulePath, javaVersion, command, mavenJavaHome);
+            return;
         }
+        System.out.println(javaVersion);
+        report.println(javaVersion);
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectErrorStream(true);
+        processBuilder.directory(new File(BASE_DIR));
+        processBuilder.environment().put("JAVA_HOME", mavenJavaHome);
         System.out.println("\n\n" + Joiner.on(' ').join(command) + "\n\n");
         Process process = processBuilder.start();
         InputStream in = checkNotNull(process.getInputStream());
@@ -180,12 +219,12 @@ class Util {
         System.out.println("\n\n");
     }
 
-    private static class ConsoleOutputPipe implements Runnable {
+    static class ConsoleOutputPipe implements Runnable {
 
         private final InputStream in;
         private final OutputStream out;
 
-        private ConsoleOutputPipe(InputStream in, OutputStream out) {
+        ConsoleOutputPipe(InputStream in, OutputStream out) {
             this.in = in;
             this.out = out;
         }
@@ -287,6 +287,97 @@ public class ExecutorInstrumentation {
         }
     }
 
+    // this is the constructor that Thread.ofPlatform() uses directly (Java 19+), the public
+    // constructors delegate to it, but are already handled above under the same nesting group
+    @Advice.Pointcut(className = "java.lang.Thread",
+                     methodName = "<init>",
+                     methodParameterTypes = {"java.lang.ThreadGroup", "java.lang.String", "int",
+                             "java.lang.Runnable", ".."},
+                     nestingGroup = "executor-execute")
+    public static class ThreadInitWithCharacteristicsAdvice {
+
+        // cannot use @Bind.This in @Advice.OnMethodBefore of a constructor (at least not in
+        // OpenJ9, and for good reason since receiver is not initialized before call to super)
+        @Advice.OnMethodBefore
+        public static boolean onBefore(
+                @Bind.Special boolean enabled,
+                @Bind.Argument(3) ParameterHolder<Runnable> runnableHolder,
+                ThreadContext context) {
+
+            if (enabled) {
+                return onThreadInitCommon(runnableHolder, context);
+            } else {
+                return false;
+            }
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.Enter boolean alreadyHandled,
+                @Bind.This Thread thread,
+                ThreadContext context) {
+
+            if (!alreadyHandled && thread instanceof RunnableEtcMixin) {
+                onBeforeCommon((RunnableEtcMixin) thread, context);
+            }
+        }
+    }
+
+    // virtual threads (Java 21+) do not go through any of the Thread constructors above, and this
+    // covers all of the ways to create them, e.g. Thread.ofVirtual(), Thread.startVirtualThread()
+    // and Executors.newVirtualThreadPerTaskExecutor()
+    //
+    // the runnable is captured instead of the virtual thread itself since java.lang.Thread is
+    // loaded before the class file transformer is added to the jvm, and so VirtualThread cannot
+    // pick up the RunnableEtcMixin from it
+    @Advice.Pointcut(className = "java.lang.VirtualThread",
+                     methodName = "<init>",
+                     methodParameterTypes = {"java.util.concurrent.Executor", "java.lang.String",
+                             "int", "java.lang.Runnable"},
+                     nestingGroup = "executor-execute")
+    public static class VirtualThreadInitAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore(
+                @Bind.Argument(3) ParameterHolder<Runnable> runnableHolder,
+                ThreadContext context) {
+
+            onThreadInitCommon(runnableHolder, context);
+        }
+    }
+
+    // the nesting group suppresses the virtual thread advice above when the subtask's thread is
+    // created, so that only a single auxiliary thread context is created per subtask
+    @Advice.Pointcut(className = "java.util.concurrent.StructuredTaskScope",
+                     methodName = "fork",
+                     methodParameterTypes = {"java.util.concurrent.Callable"},
+                     nestingGroup = "executor-execute")
+    public static class StructuredTaskScopeForkCallableAdvice {
+
+        @Advice.OnMethodBefore
+        public static <T> void onBefore(
+                @Bind.Argument(0) ParameterHolder<Callable<T>> callableHolder,
+                ThreadContext context) {
+
+            onBeforeWithCallableHolder(callableHolder, context);
+        }
+    }
+
+    @Advice.Pointcut(className = "java.util.concurrent.StructuredTaskScope",
+                     methodName = "fork",
+                     methodParameterTypes = {"java.lang.Runnable"},
+                     nestingGroup = "executor-execute")
+    public static class StructuredTaskScopeForkRunnableAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore(
+                @Bind.Argument(0) ParameterHolder<Runnable> runnableHolder,
+                ThreadContext context) {
+
+            onBeforeWithRunnableHolder(runnableHolder, context);
+        }
+    }
+
     @Advice.Pointcut(className = "com.google.common.util.concurrent.ListenableFuture",
                      methodName = "addListener",
                      methodParameterTypes = {"java.lang.Runnable", "java.util.concurrent.Executor"},
@@ -653,7 +744,7 @@ public class ExecutorInstrumentation {
             return;
         } else if (runnable instanceof RunnableEtcMixin) {
             onBeforeCommon((RunnableEtcMixin) runnable, context);
-        } else if (runnable != null && runnable.getClass().getName().contains("$$Lambda$")) {
+        } else if (isLambda(runnable)) {
             wrapRunnable(runnableHolder, context);
         }
     }
@@ -663,7 +754,7 @@ public class ExecutorInstrumentation {
         Callable<T> callable = callableHolder.get();
         if (callable instanceof RunnableEtcMixin) {
             onBeforeCommon((RunnableEtcMixin) callable, context);
-        } else if (callable != null && callable.getClass().getName().contains("$$Lambda$")) {
+        } else if (isLambda(callable)) {
             wrapCallable(callableHolder, context);
         }
     }
@@ -681,7 +772,7 @@ public class ExecutorInstrumentation {
             if (runnable instanceof RunnableEtcMixin) {
                 onBeforeCommon((RunnableEtcMixin) runnable, context);
                 return true;
-            } else if (runnable != null && runnable.getClass().getName().contains("$$Lambda$")) {
+            } else if (isLambda(runnable)) {
                 wrapRunnable(runnableHolder, context);
                 return true;
             }
@@ -689,6 +780,12 @@ public class ExecutorInstrumentation {
         return false;
     }
 
+    // prior to Java 21 lambda class names look like Foo$$Lambda$14/0x0000000800066840, since Java
+    // 21 they look like Foo$$Lambda/0x0000000800066840
+    private static boolean isLambda(@Nullable Object task) {
+        return task != null && task.getClass().getName().contains("$$Lambda");
+    }
+
     private static void onBeforeCommon(RunnableEtcMixin runnableEtc, ThreadContext context) {
         RunnableEtcMixin runnableMixin = runnableEtc;
         AuxThreadContext auxContext = context.createAuxThreadContext();
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.executor;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.test.harness.AppUnderTest;
+import org.glowroot.instrumentation.test.harness.Container;
+import org.glowroot.instrumentation.test.harness.IncomingSpan;
+import org.glowroot.instrumentation.test.harness.Span;
+import org.glowroot.instrumentation.test.harness.TestSpans;
+import org.glowroot.instrumentation.test.harness.TransactionMarker;
+import org.glowroot.instrumentation.test.harness.impl.JavaagentContainer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.glowroot.instrumentation.test.harness.util.HarnessAssertions.assertSingleLocalSpanMessage;
+
+public class CompletableFutureIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        // that implement Executor and ForkJoinTask
+        container = JavaagentContainer.create();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.resetAfterEachTest();
+    }
+
+    @Test
+    public void shouldCaptureAsyncHops() throws Exception {
+        // when
+        IncomingSpan incomingSpan = container.execute(DoAsyncHops.class);
+
+        // then
+        assertThat(incomingSpan.auxThreadTimers()).hasSize(3);
+        for (IncomingSpan.Timer auxThreadTimer : incomingSpan.auxThreadTimers()) {
+            assertThat(auxThreadTimer.name()).isEqualTo("auxiliary thread");
+            assertThat(auxThreadTimer.count()).isEqualTo(1);
+            assertThat(auxThreadTimer.totalNanos()).isGreaterThan(MILLISECONDS.toNanos(50));
+            assertThat(auxThreadTimer.childTimers()).hasSize(1);
+            IncomingSpan.Timer childTimer = auxThreadTimer.childTimers().get(0);
+            assertThat(childTimer.name()).isEqualTo("test local span");
+            assertThat(childTimer.count()).isEqualTo(1);
+        }
+
+        List<Span> spans = incomingSpan.childSpans();
+        assertThat(spans).hasSize(3);
+        for (Span span : spans) {
+            assertSingleLocalSpanMessage(span).isEqualTo("test local span");
+        }
+    }
+
+    // each async stage is dispatched to the default async pool (the common ForkJoinPool, or a
+    // thread per task when its parallelism is 1)
+    public static class DoAsyncHops implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            CompletableFuture.runAsync(new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            }).thenRunAsync(new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            }).thenRunAsync(new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            }).get();
+        }
+    }
+}
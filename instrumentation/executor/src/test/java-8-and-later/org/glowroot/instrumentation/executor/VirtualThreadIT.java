@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.executor;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.instrumentation.test.harness.AppUnderTest;
+import org.glowroot.instrumentation.test.harness.Container;
+import org.glowroot.instrumentation.test.harness.IncomingSpan;
+import org.glowroot.instrumentation.test.harness.Span;
+import org.glowroot.instrumentation.test.harness.TestSpans;
+import org.glowroot.instrumentation.test.harness.TransactionMarker;
+import org.glowroot.instrumentation.test.harness.impl.JavaagentContainer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.glowroot.instrumentation.test.harness.util.HarnessAssertions.assertSingleLocalSpanMessage;
+import static org.junit.Assume.assumeTrue;
+
+// virtual threads are only available in Java 21+, so they are accessed via reflection
+public class VirtualThreadIT {
+
+    private static Container container;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // tests only work with javaagent container because they need to weave bootstrap classes
+        container = JavaagentContainer.create();
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        container.close();
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        container.resetAfterEachTest();
+    }
+
+    @Test
+    public void shouldCaptureStartVirtualThread() throws Exception {
+        assumeTrue(isVirtualThreadSupported());
+        // when
+        IncomingSpan incomingSpan = container.execute(DoStartVirtualThread.class);
+        // then
+        checkIncomingSpan(incomingSpan);
+    }
+
+    @Test
+    public void shouldCaptureVirtualThreadPerTaskExecutor() throws Exception {
+        assumeTrue(isVirtualThreadSupported());
+        // when
+        IncomingSpan incomingSpan = container.execute(DoSubmitToVirtualThreadPerTaskExecutor.class);
+        // then
+        checkIncomingSpan(incomingSpan);
+    }
+
+    private static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("startVirtualThread", Runnable.class);
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static void checkIncomingSpan(IncomingSpan incomingSpan) {
+        assertThat(incomingSpan.auxThreadTimers()).hasSize(3);
+        for (IncomingSpan.Timer auxThreadTimer : incomingSpan.auxThreadTimers()) {
+            assertThat(auxThreadTimer.name()).isEqualTo("auxiliary thread");
+            assertThat(auxThreadTimer.count()).isEqualTo(1);
+            assertThat(auxThreadTimer.totalNanos()).isGreaterThan(MILLISECONDS.toNanos(50));
+            assertThat(auxThreadTimer.childTimers()).hasSize(1);
+            IncomingSpan.Timer childTimer = auxThreadTimer.childTimers().get(0);
+            assertThat(childTimer.name()).isEqualTo("test local span");
+            assertThat(childTimer.count()).isEqualTo(1);
+        }
+
+        List<Span> spans = incomingSpan.childSpans();
+        assertThat(spans).hasSize(3);
+        for (Span span : spans) {
+            assertSingleLocalSpanMessage(span).isEqualTo("test local span");
+        }
+    }
+
+    public static class DoStartVirtualThread implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            Method startVirtualThread =
+                    Thread.class.getMethod("startVirtualThread", Runnable.class);
+            Thread thread1 = (Thread) startVirtualThread.invoke(null, new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            });
+            Thread thread2 = (Thread) startVirtualThread.invoke(null, new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            });
+            // lambdas are wrapped instead of using the mixin
+            Thread thread3 = (Thread) startVirtualThread.invoke(null,
+                    (Runnable) () -> TestSpans.createLocalSpan(100));
+            thread1.join();
+            thread2.join();
+            thread3.join();
+        }
+    }
+
+    public static class DoSubmitToVirtualThreadPerTaskExecutor
+            implements AppUnderTest, TransactionMarker {
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ExecutorService executor = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            Future<?> future1 = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            });
+            Future<?> future2 = executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    TestSpans.createLocalSpan(100);
+                }
+            });
+            // lambdas are wrapped instead of using the mixin
+            Future<?> future3 = executor.submit((Runnable) () -> TestSpans.createLocalSpan(100));
+            future1.get();
+            future2.get();
+            future3.get();
+            executor.shutdown();
+            executor.awaitTermination(10, SECONDS);
+        }
+    }
+}
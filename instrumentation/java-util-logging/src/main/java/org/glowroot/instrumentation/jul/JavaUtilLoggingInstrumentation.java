@@ -105,8 +105,12 @@ public class JavaUtilLoggingInstrumentation {
         }
     }
 
-    private static Timer onBeforeCommon(LogRecord record, Level level,
+    private static @Nullable Timer onBeforeCommon(LogRecord record, Level level,
             OptionalThreadContext context) {
+        if (!context.isCapturingLoggerSpans()) {
+            // no logger span can be captured, so the message does not need to be formatted
+            return null;
+        }
         // cannot check Logger.getFilter().isLoggable(LogRecord) because the Filter object
         // could be stateful and might alter its state (e.g.
         // com.sun.mail.util.logging.DurationFilter)
@@ -475,6 +475,28 @@ public class JavaUtilLoggingIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testLogOutsideTransaction() throws Exception {
+        // when
+        // (the app throws if the log message is formatted outside of the transaction)
+        container.executeNoExpectedTrace(ShouldLogOutsideTransaction.class);
+    }
+
+    @Test
+    public void testLogFormatsMessageBeforeReturning() throws Exception {
+        // when
+        // (the app throws if the log message is not formatted before the log call returns)
+        IncomingSpan incomingSpan = container.execute(ShouldFormatLogMessageBeforeReturning.class);
+
+        // then
+        Iterator<Span> i = incomingSpan.childSpans().iterator();
+
+        LoggerSpan loggerSpan = (LoggerSpan) i.next();
+        assertThat(loggerSpan.message()).isEqualTo("abc_counted");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     public static class ShouldLog implements AppUnderTest, TransactionMarker {
 
         private static final Logger logger = Logger.getLogger(ShouldLog.class.getName());
@@ -684,4 +706,60 @@ public class JavaUtilLoggingIT {
             logger.log(new LogRecord(Level.SEVERE, "efg__"));
         }
     }
+
+    public static class ShouldLogOutsideTransaction implements AppUnderTest {
+
+        private static final Logger logger = createLoggerWithoutHandlers(
+                ShouldLogOutsideTransaction.class.getName());
+
+        @Override
+        public void executeApp(Serializable... args) {
+            ToStringCounter counter = new ToStringCounter();
+            logger.log(Level.WARNING, "abc_{0}", counter);
+            if (counter.count != 0) {
+                throw new IllegalStateException(
+                        "Log message was formatted outside of a transaction");
+            }
+        }
+    }
+
+    public static class ShouldFormatLogMessageBeforeReturning
+            implements AppUnderTest, TransactionMarker {
+
+        private static final Logger logger = createLoggerWithoutHandlers(
+                ShouldFormatLogMessageBeforeReturning.class.getName());
+
+        @Override
+        public void executeApp(Serializable... args) {
+            transactionMarker();
+        }
+
+        @Override
+        public void transactionMarker() {
+            ToStringCounter counter = new ToStringCounter();
+            logger.log(Level.WARNING, "abc_{0}", counter);
+            if (counter.count != 1) {
+                throw new IllegalStateException("Log message was formatted " + counter.count
+                        + " times before the log call returned");
+            }
+        }
+    }
+
+    // no handlers, so only the instrumentation can format the log message
+    private static Logger createLoggerWithoutHandlers(String name) {
+        Logger logger = Logger.getLogger(name);
+        logger.setUseParentHandlers(false);
+        return logger;
+    }
+
+    private static class ToStringCounter {
+
+        private int count;
+
+        @Override
+        public String toString() {
+            count++;
+            return "counted";
+        }
+    }
 }
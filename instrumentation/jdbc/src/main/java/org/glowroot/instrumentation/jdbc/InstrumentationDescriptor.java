@@ -22,6 +22,12 @@ import org.glowroot.instrumentation.api.Descriptor.PropertyType;
                                          type = PropertyType.LIST,
                                          label = "Do not capture bind parameters for these queries",
                                          description = "List of regular expressions. If a query matches one or more of these regular expressions then its jdbc bind parameters will NOT be captured when it is executed as a PreparedStatement, even if the query matches one or more of the regular expressions in the \"capture\" list above."),
+                    @Descriptor.Property(
+                                         name = "normalizeQueryText",
+                                         type = PropertyType.BOOLEAN,
+                                         label = "Normalize query text",
+                                         checkboxLabel = "Replace literals in query text and collapse IN lists",
+                                         description = "Replace string and numeric literals in the query text with ? and collapse IN lists of ? down to a single ?, so that queries which only differ by their inlined literals (e.g. ad-hoc Statement executions and ORM-generated IN lists) are grouped together. Bind parameters are still captured as they were set, and IN lists are not collapsed for prepared statements while bind parameters are being captured, so that the captured bind parameters still line up with the ? in the query text. The normalized query text is cached per distinct query text."),
                     @Descriptor.Property(
                                          name = "captureResultSetNavigate",
                                          type = PropertyType.BOOLEAN,
@@ -32,6 +38,11 @@ import org.glowroot.instrumentation.api.Descriptor.PropertyType;
                                          label = "ResultSet navigation",
                                          checkboxLabel = "Capture timings for ResultSet navigation",
                                          description = "Capture timings for executions of ResultSet.next()/previous()/relative()/etc to read the next record in a result set. This defaults to true since the timing for this timer is a good indication of jdbc fetch size issues and database latency, but it can be disabled if it is common to return millions of records and the overhead of System.nanoTime() becomes relevant."),
+                    @Descriptor.Property(
+                                         name = "resultSetNavigateSampleInterval",
+                                         type = PropertyType.STRING,
+                                         label = "ResultSet navigation sample interval",
+                                         description = "An integer. When greater than 1 (call it N), ResultSet.next() is timed for the first N rows of each result set, and after that only every Nth ResultSet.next() is timed. The timed calls are recorded under a separate \"jdbc result set navigate (sampled)\" timer instead of the jdbc query timer, and the total navigation time is extrapolated from the timed calls and reported in the query detail as resultSetNavigateEstimatedMillis. Row counts are always exact. This reduces the overhead of System.nanoTime() when it is common to return millions of records, without giving up ResultSet navigation timings altogether. An empty value or a value of 1 times every ResultSet.next() as part of the jdbc query timer."),
                     @Descriptor.Property(
                                          name = "captureResultSetGet",
                                          type = PropertyType.BOOLEAN,
@@ -21,13 +21,18 @@ import java.util.concurrent.atomic.AtomicBoolean;
 import org.glowroot.instrumentation.api.Agent;
 import org.glowroot.instrumentation.api.Logger;
 import org.glowroot.instrumentation.api.QuerySpan;
+import org.glowroot.instrumentation.api.ThreadContext;
 import org.glowroot.instrumentation.api.Timer;
+import org.glowroot.instrumentation.api.TimerName;
 import org.glowroot.instrumentation.api.checker.NonNull;
+import org.glowroot.instrumentation.api.checker.Nullable;
 import org.glowroot.instrumentation.api.config.BooleanProperty;
 import org.glowroot.instrumentation.api.config.ConfigService;
 import org.glowroot.instrumentation.api.weaving.Advice;
 import org.glowroot.instrumentation.api.weaving.Bind;
 import org.glowroot.instrumentation.jdbc.StatementInstrumentation.HasStatementMirrorMixin;
+import org.glowroot.instrumentation.jdbc.boot.JdbcInstrumentationProperties;
+import org.glowroot.instrumentation.jdbc.boot.ResultSetNavigateStats;
 import org.glowroot.instrumentation.jdbc.boot.StatementMirror;
 
 public class ResultSetInstrumentation {
@@ -36,6 +41,12 @@ public class ResultSetInstrumentation {
 
     private static final ConfigService configService = Agent.getConfigService("jdbc");
 
+    // when resultSetNavigateSampleInterval is greater than one, the timed ResultSet.next() calls
+    // are recorded under this timer instead of extending the jdbc query timer, so that the jdbc
+    // query timer is never understated and the partial navigation timings are clearly labeled
+    private static final TimerName SAMPLED_NAVIGATE_TIMER_NAME =
+            Agent.getTimerName("jdbc result set navigate (sampled)");
+
     private static final BooleanProperty captureResultSetNavigate =
             configService.getBooleanProperty("captureResultSetNavigate");
 
@@ -57,9 +68,27 @@ public class ResultSetInstrumentation {
         }
 
         @Advice.OnMethodBefore
-        public static Timer onBefore(@Bind.This HasStatementMirrorMixin resultSet) {
+        public static @Nullable Timer onBefore(@Bind.This HasStatementMirrorMixin resultSet,
+                ThreadContext context) {
 
-            return onBeforeCommon(resultSet);
+            int sampleInterval = JdbcInstrumentationProperties.resultSetNavigateSampleInterval();
+            if (sampleInterval <= 1) {
+                return onBeforeCommon(resultSet);
+            }
+            @SuppressWarnings("nullness") // just checked above in isEnabledCommon()
+            @NonNull
+            StatementMirror mirror = resultSet.glowroot$getStatementMirror();
+
+            @SuppressWarnings("nullness") // just checked above in isEnabledCommon()
+            @NonNull
+            QuerySpan lastQuerySpan = mirror.getLastQuerySpan();
+            ResultSetNavigateStats stats =
+                    mirror.getOrCreateResultSetNavigateStats(lastQuerySpan, sampleInterval);
+            if (stats.startNavigate()) {
+                return context.startTimer(SAMPLED_NAVIGATE_TIMER_NAME);
+            } else {
+                return null;
+            }
         }
 
         @Advice.OnMethodReturn
@@ -84,11 +113,29 @@ public class ResultSetInstrumentation {
                 lastQuerySpan.incrementCurrRow();
             } else {
                 lastQuerySpan.rowNavigationAttempted();
+                ResultSetNavigateStats stats = mirror.getResultSetNavigateStats();
+                if (stats != null) {
+                    stats.publishEstimate();
+                }
             }
         }
 
         @Advice.OnMethodAfter
-        public static void onAfter(@Bind.Enter Timer timer) {
+        public static void onAfter(@Bind.Enter @Nullable Timer timer,
+                @Bind.This HasStatementMirrorMixin resultSet) {
+
+            if (timer == null) {
+                // skipped by resultSetNavigateSampleInterval
+                return;
+            }
+            if (JdbcInstrumentationProperties.resultSetNavigateSampleInterval() > 1) {
+                StatementMirror mirror = resultSet.glowroot$getStatementMirror();
+                ResultSetNavigateStats stats =
+                        mirror == null ? null : mirror.getResultSetNavigateStats();
+                if (stats != null) {
+                    stats.endNavigate();
+                }
+            }
             timer.stop();
         }
     }
@@ -20,6 +20,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -48,6 +49,7 @@ import org.glowroot.instrumentation.jdbc.boot.PreparedStatementMessageSupplier;
 import org.glowroot.instrumentation.jdbc.boot.PreparedStatementMirror;
 import org.glowroot.instrumentation.jdbc.boot.PreparedStatementMirror.ByteArrayParameterValue;
 import org.glowroot.instrumentation.jdbc.boot.PreparedStatementMirror.StreamingParameterValue;
+import org.glowroot.instrumentation.jdbc.boot.QueryTextNormalizer;
 import org.glowroot.instrumentation.jdbc.boot.StatementMessageSupplier;
 import org.glowroot.instrumentation.jdbc.boot.StatementMirror;
 
@@ -74,6 +76,8 @@ public class StatementInstrumentation {
 
     private static boolean captureBindParameters;
 
+    private static boolean normalizeQueryText;
+
     private static final AtomicBoolean explainPlanExceptionLogged = new AtomicBoolean();
 
     private static final AtomicBoolean explainPlanMultipleRowsLogged = new AtomicBoolean();
@@ -84,6 +88,8 @@ public class StatementInstrumentation {
             public void onChange() {
                 captureBindParameters = !configService
                         .getListProperty("captureBindParametersIncludes").value().isEmpty();
+                normalizeQueryText =
+                        configService.getBooleanProperty("normalizeQueryText").value();
             }
         });
     }
@@ -128,9 +134,8 @@ public class StatementInstrumentation {
     // ================= Parameter Binding =================
 
     @Advice.Pointcut(className = "java.sql.PreparedStatement",
-                     methodName = "setArray|setBigDecimal"
-                             + "|setBoolean|setByte|setDate|setDouble|setFloat|setInt|setLong|setNString"
-                             + "|setRef|setRowId|setShort|setString|setTime|setTimestamp|setURL",
+                     methodName = "setArray|setBigDecimal|setByte|setDate|setNString|setRef"
+                             + "|setRowId|setString|setTime|setTimestamp|setURL",
                      methodParameterTypes = {"int", "*", ".."})
     public static class SetXAdvice {
 
@@ -154,6 +159,158 @@ public class StatementInstrumentation {
         }
     }
 
+    // primitive parameters are bound unboxed so that they are not boxed (and allocated) until the
+    // query is captured
+    @Advice.Pointcut(className = "java.sql.PreparedStatement",
+                     methodName = "setBoolean",
+                     methodParameterTypes = {"int", "boolean"})
+    public static class SetBooleanAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+
+            return captureBindParameters;
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.This HasStatementMirrorMixin preparedStatement,
+                @Bind.Argument(0) int parameterIndex,
+                @Bind.Argument(1) boolean x) {
+
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setBooleanParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Advice.Pointcut(className = "java.sql.PreparedStatement",
+                     methodName = "setShort",
+                     methodParameterTypes = {"int", "short"})
+    public static class SetShortAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+
+            return captureBindParameters;
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.This HasStatementMirrorMixin preparedStatement,
+                @Bind.Argument(0) int parameterIndex,
+                @Bind.Argument(1) short x) {
+
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setShortParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Advice.Pointcut(className = "java.sql.PreparedStatement",
+                     methodName = "setInt",
+                     methodParameterTypes = {"int", "int"})
+    public static class SetIntAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+
+            return captureBindParameters;
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.This HasStatementMirrorMixin preparedStatement,
+                @Bind.Argument(0) int parameterIndex,
+                @Bind.Argument(1) int x) {
+
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setIntParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Advice.Pointcut(className = "java.sql.PreparedStatement",
+                     methodName = "setLong",
+                     methodParameterTypes = {"int", "long"})
+    public static class SetLongAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+
+            return captureBindParameters;
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.This HasStatementMirrorMixin preparedStatement,
+                @Bind.Argument(0) int parameterIndex,
+                @Bind.Argument(1) long x) {
+
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setLongParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Advice.Pointcut(className = "java.sql.PreparedStatement",
+                     methodName = "setFloat",
+                     methodParameterTypes = {"int", "float"})
+    public static class SetFloatAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+
+            return captureBindParameters;
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.This HasStatementMirrorMixin preparedStatement,
+                @Bind.Argument(0) int parameterIndex,
+                @Bind.Argument(1) float x) {
+
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setFloatParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
+    @Advice.Pointcut(className = "java.sql.PreparedStatement",
+                     methodName = "setDouble",
+                     methodParameterTypes = {"int", "double"})
+    public static class SetDoubleAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+
+            return captureBindParameters;
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.This HasStatementMirrorMixin preparedStatement,
+                @Bind.Argument(0) int parameterIndex,
+                @Bind.Argument(1) double x) {
+
+            PreparedStatementMirror mirror =
+                    (PreparedStatementMirror) preparedStatement.glowroot$getStatementMirror();
+            if (mirror != null) {
+                mirror.setDoubleParameterValue(parameterIndex, x);
+            }
+        }
+    }
+
     @Advice.Pointcut(className = "java.sql.PreparedStatement",
                      methodName = "setAsciiStream|setBinaryStream|setBlob|setCharacterStream|setClob"
                              + "|setNCharacterStream|setNClob|setSQLXML|setUnicodeStream",
@@ -761,7 +918,9 @@ public class StatementInstrumentation {
             // this shouldn't happen since just checked hasStatementMirror() above
             return null;
         }
-        QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, mirror.getDest(), sql,
+        String queryText =
+                normalizeQueryText ? QueryTextNormalizer.getNormalized(sql, true) : sql;
+        QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, mirror.getDest(), queryText,
                 messageSupplier, QUERY_TIMER_NAME);
         mirror.setLastQuerySpan(querySpan);
         return querySpan;
@@ -779,10 +938,14 @@ public class StatementInstrumentation {
         if (captureBindParameters) {
             messageSupplier =
                     new PreparedStatementMessageSupplier(mirror.getParameters(), queryText);
+        } else if (JdbcInstrumentationProperties.resultSetNavigateSampleInterval() > 1) {
+            // so that the estimated result set navigation time can still be attached
+            messageSupplier = new PreparedStatementMessageSupplier(null, queryText);
         } else {
             messageSupplier = QueryMessageSupplier.create();
         }
-        QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, mirror.getDest(), queryText,
+        QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, mirror.getDest(),
+                normalizeQueryText ? mirror.getNormalizedSql(!captureBindParameters) : queryText,
                 messageSupplier, QUERY_TIMER_NAME);
         mirror.setLastQuerySpan(querySpan);
         return querySpan;
@@ -791,6 +954,13 @@ public class StatementInstrumentation {
     private static QuerySpan onBeforeBatchStatement(StatementMirror mirror, ThreadContext context) {
 
         List<String> batchedSql = mirror.getBatchedSql();
+        if (normalizeQueryText) {
+            List<String> normalizedBatchedSql = new ArrayList<String>(batchedSql.size());
+            for (String sql : batchedSql) {
+                normalizedBatchedSql.add(QueryTextNormalizer.getNormalized(sql, true));
+            }
+            batchedSql = normalizedBatchedSql;
+        }
         String concatenated;
         if (batchedSql.isEmpty()) {
             concatenated = "[empty batch statement]";
@@ -834,7 +1004,8 @@ public class StatementInstrumentation {
         } else {
             messageSupplier = new BatchPreparedStatementMessageSupplier2(batchCount);
         }
-        QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, mirror.getDest(), queryText,
+        QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, mirror.getDest(),
+                normalizeQueryText ? mirror.getNormalizedSql(!captureBindParameters) : queryText,
                 batchCount, messageSupplier, QUERY_TIMER_NAME);
         mirror.setLastQuerySpan(querySpan);
         mirror.clearBatch();
@@ -15,20 +15,18 @@
  */
 package org.glowroot.instrumentation.jdbc.boot;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import org.glowroot.instrumentation.api.QueryMessageSupplier;
 
 public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier {
 
-    private final List<BindParameterList> batchedParameters;
+    private final BatchedBindParameters batchedParameters;
     private final int batchCount;
 
-    public BatchPreparedStatementMessageSupplier(List<BindParameterList> batchedParameters,
+    public BatchPreparedStatementMessageSupplier(BatchedBindParameters batchedParameters,
             int batchCount) {
         this.batchedParameters = batchedParameters;
         this.batchCount = batchCount;
@@ -41,17 +39,8 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
         } else {
             Map<String, Object> details = new HashMap<String, Object>(2);
             details.put("batchCount", batchCount);
-            details.put("parameters", getParameters());
+            details.put("parameters", batchedParameters.toDetailLists());
             return details;
         }
     }
-
-    private List<List</*@Nullable*/ Object>> getParameters() {
-        List<List</*@Nullable*/ Object>> parameters =
-                new ArrayList<List</*@Nullable*/ Object>>(batchedParameters.size());
-        for (BindParameterList oneParameters : batchedParameters) {
-            parameters.add(oneParameters.toDetailList());
-        }
-        return parameters;
-    }
 }
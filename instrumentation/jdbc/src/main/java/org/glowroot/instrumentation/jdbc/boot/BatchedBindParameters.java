@@ -0,0 +1,110 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.jdbc.boot;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.glowroot.instrumentation.api.checker.Nullable;
+
+// stores the bind parameters of all batch rows contiguously, so that adding a batch row only
+// copies the row's values (into arrays that grow like ArrayList), instead of retaining a separate
+// BindParameterList per batch row, which would then need to be copied as soon as the next row's
+// parameters are set
+public class BatchedBindParameters {
+
+    // shared read-only instance, never passed to add()
+    static final BatchedBindParameters EMPTY = new BatchedBindParameters(0, 0);
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private @Nullable Object[] parameters;
+    private byte[] types;
+    private long[] primitives;
+    private int size;
+
+    private int[] rowEnds;
+    private int rowCount;
+
+    // the expected sizes are from the previous batch on the same prepared statement (or zero), so
+    // that repeatedly executing same-sized batches does not grow (and copy) the arrays each time
+    static BatchedBindParameters create(int expectedParameterCount, int expectedRowCount) {
+        return new BatchedBindParameters(Math.max(expectedParameterCount, INITIAL_CAPACITY),
+                Math.max(expectedRowCount, INITIAL_CAPACITY));
+    }
+
+    private BatchedBindParameters(int parameterCapacity, int rowCapacity) {
+        parameters = new Object[parameterCapacity];
+        types = new byte[parameterCapacity];
+        primitives = new long[parameterCapacity];
+        rowEnds = new int[rowCapacity];
+    }
+
+    void add(BindParameterList row) {
+        int rowSize = row.size();
+        ensureCapacity(size + rowSize);
+        row.copyTo(parameters, types, primitives, size);
+        size += rowSize;
+        if (rowCount == rowEnds.length) {
+            rowEnds = Arrays.copyOf(rowEnds, rowCount + (rowCount >> 1));
+        }
+        rowEnds[rowCount++] = size;
+    }
+
+    public boolean isEmpty() {
+        return rowCount == 0;
+    }
+
+    int getParameterCount() {
+        return size;
+    }
+
+    int getRowCount() {
+        return rowCount;
+    }
+
+    List<List</*@Nullable*/ Object>> toDetailLists() {
+        List<List</*@Nullable*/ Object>> detailLists =
+                new ArrayList<List</*@Nullable*/ Object>>(rowCount);
+        int rowStart = 0;
+        for (int i = 0; i < rowCount; i++) {
+            int rowEnd = rowEnds[i];
+            List</*@Nullable*/ Object> detailList =
+                    new ArrayList</*@Nullable*/ Object>(rowEnd - rowStart);
+            for (int j = rowStart; j < rowEnd; j++) {
+                detailList.add(BindParameterList.toDetail(types[j], primitives[j], parameters[j]));
+            }
+            detailLists.add(detailList);
+            rowStart = rowEnd;
+        }
+        return detailLists;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        int capacity = parameters.length;
+        if (minCapacity > capacity) {
+            // using same capacity increase formula as ArrayList
+            capacity = capacity + (capacity >> 1);
+            if (minCapacity > capacity) {
+                capacity = minCapacity;
+            }
+            parameters = Arrays.copyOf(parameters, capacity);
+            types = Arrays.copyOf(types, capacity);
+            primitives = Arrays.copyOf(primitives, capacity);
+        }
+    }
+}
@@ -22,20 +22,37 @@ import java.util.List;
 import org.glowroot.instrumentation.api.checker.Nullable;
 
 // micro-optimized list for bind parameters
+//
+// primitive bind parameters are stored unboxed (in the primitives array, with float and double
+// stored as raw bits, and with the type recorded in the types array), and are only boxed when the
+// detail list is built, which only happens if the query is captured
 public class BindParameterList {
 
+    static final byte OBJECT = 0;
+    static final byte BOOLEAN = 1;
+    static final byte SHORT = 2;
+    static final byte INT = 3;
+    static final byte LONG = 4;
+    static final byte FLOAT = 5;
+    static final byte DOUBLE = 6;
+
     private @Nullable Object[] parameters;
+    // types and primitives are only allocated once the first primitive parameter is set
+    private byte /*@Nullable*/ [] types;
+    private long /*@Nullable*/ [] primitives;
     private int size;
 
     public static BindParameterList copyOf(BindParameterList bindParameterList) {
-        return new BindParameterList(bindParameterList.parameters, bindParameterList.size);
+        return new BindParameterList(bindParameterList.parameters, bindParameterList.types,
+                bindParameterList.primitives, bindParameterList.size);
     }
 
     public BindParameterList(int capacity) {
         parameters = new Object[capacity];
     }
 
-    private BindParameterList(@Nullable Object[] parameters, int size) {
+    private BindParameterList(@Nullable Object[] parameters, byte /*@Nullable*/ [] types,
+            long /*@Nullable*/ [] primitives, int size) {
         if (parameters.length == size) {
             this.parameters = parameters.clone();
         } else {
@@ -44,24 +61,44 @@ public class BindParameterList {
             this.parameters = new Object[size];
             System.arraycopy(parameters, 0, this.parameters, 0, size);
         }
+        if (types != null && primitives != null) {
+            this.types = Arrays.copyOf(types, size);
+            this.primitives = Arrays.copyOf(primitives, size);
+        }
         this.size = size;
     }
 
     public void set(int i, @Nullable Object parameter) {
-        int capacity = parameters.length;
-        if (i >= capacity) {
-            // using same capacity increase formula as ArrayList
-            capacity = capacity + (capacity >> 1);
-            if (i >= capacity) {
-                capacity = i + 1;
-            }
-            parameters = Arrays.copyOf(parameters, capacity);
-        }
+        ensureCapacity(i);
         parameters[i] = parameter;
-        int newSize = i + 1;
-        if (newSize > size) {
-            size = newSize;
+        if (types != null) {
+            types[i] = OBJECT;
         }
+        updateSize(i);
+    }
+
+    public void setBoolean(int i, boolean parameter) {
+        setPrimitive(i, BOOLEAN, parameter ? 1 : 0);
+    }
+
+    public void setShort(int i, short parameter) {
+        setPrimitive(i, SHORT, parameter);
+    }
+
+    public void setInt(int i, int parameter) {
+        setPrimitive(i, INT, parameter);
+    }
+
+    public void setLong(int i, long parameter) {
+        setPrimitive(i, LONG, parameter);
+    }
+
+    public void setFloat(int i, float parameter) {
+        setPrimitive(i, FLOAT, Float.floatToRawIntBits(parameter));
+    }
+
+    public void setDouble(int i, double parameter) {
+        setPrimitive(i, DOUBLE, Double.doubleToRawLongBits(parameter));
     }
 
     public int size() {
@@ -73,17 +110,14 @@ public class BindParameterList {
     }
 
     List</*@Nullable*/ Object> toDetailList() {
-        List</*@Nullable*/ Object> detailList = new ArrayList</*@Nullable*/ Object>();
-        for (int i = 0; i < size; i++) {
-            Object parameter = parameters[i];
-            if (parameter instanceof String) {
-                detailList.add(parameter);
-            } else if (parameter instanceof Number) {
-                detailList.add(parameter);
-            } else if (parameter == null) {
-                detailList.add(null);
-            } else {
-                detailList.add(String.valueOf(parameter));
+        List</*@Nullable*/ Object> detailList = new ArrayList</*@Nullable*/ Object>(size);
+        if (types == null || primitives == null) {
+            for (int i = 0; i < size; i++) {
+                detailList.add(toDetail(parameters[i]));
+            }
+        } else {
+            for (int i = 0; i < size; i++) {
+                detailList.add(toDetail(types[i], primitives[i], parameters[i]));
             }
         }
         return detailList;
@@ -91,6 +125,86 @@ public class BindParameterList {
 
     public void clear() {
         Arrays.fill(parameters, null);
+        if (types != null) {
+            Arrays.fill(types, OBJECT);
+        }
         size = 0;
     }
+
+    // used by BatchedBindParameters to copy a batch row without allocating
+    void copyTo(@Nullable Object[] toParameters, byte[] toTypes, long[] toPrimitives, int offset) {
+        System.arraycopy(parameters, 0, toParameters, offset, size);
+        if (types == null || primitives == null) {
+            Arrays.fill(toTypes, offset, offset + size, OBJECT);
+        } else {
+            System.arraycopy(types, 0, toTypes, offset, size);
+            System.arraycopy(primitives, 0, toPrimitives, offset, size);
+        }
+    }
+
+    static @Nullable Object toDetail(byte type, long primitive, @Nullable Object parameter) {
+        switch (type) {
+            case BOOLEAN:
+                return Boolean.toString(primitive != 0);
+            case SHORT:
+                return (short) primitive;
+            case INT:
+                return (int) primitive;
+            case LONG:
+                return primitive;
+            case FLOAT:
+                return Float.intBitsToFloat((int) primitive);
+            case DOUBLE:
+                return Double.longBitsToDouble(primitive);
+            default:
+                return toDetail(parameter);
+        }
+    }
+
+    private static @Nullable Object toDetail(@Nullable Object parameter) {
+        if (parameter instanceof String) {
+            return parameter;
+        } else if (parameter instanceof Number) {
+            return parameter;
+        } else if (parameter == null) {
+            return null;
+        } else {
+            return String.valueOf(parameter);
+        }
+    }
+
+    private void setPrimitive(int i, byte type, long primitive) {
+        ensureCapacity(i);
+        if (types == null || primitives == null) {
+            types = new byte[parameters.length];
+            primitives = new long[parameters.length];
+        }
+        parameters[i] = null;
+        types[i] = type;
+        primitives[i] = primitive;
+        updateSize(i);
+    }
+
+    private void ensureCapacity(int i) {
+        int capacity = parameters.length;
+        if (i >= capacity) {
+            // using same capacity increase formula as ArrayList
+            capacity = capacity + (capacity >> 1);
+            if (i >= capacity) {
+                capacity = i + 1;
+            }
+            parameters = Arrays.copyOf(parameters, capacity);
+            if (types != null && primitives != null) {
+                types = Arrays.copyOf(types, capacity);
+                primitives = Arrays.copyOf(primitives, capacity);
+            }
+        }
+    }
+
+    private void updateSize(int i) {
+        int newSize = i + 1;
+        if (newSize > size) {
+            size = newSize;
+        }
+    }
 }
@@ -22,6 +22,7 @@ import java.util.Map;
 import java.util.Set;
 
 import org.glowroot.instrumentation.api.Agent;
+import org.glowroot.instrumentation.api.Logger;
 import org.glowroot.instrumentation.api.config.ConfigListener;
 import org.glowroot.instrumentation.api.config.ConfigService;
 import org.glowroot.instrumentation.api.util.ImmutableMap;
@@ -31,12 +32,15 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 // this is public so it can be called from other instrumentation
 public class JdbcInstrumentationProperties {
 
+    private static final Logger logger = Logger.getLogger(JdbcInstrumentationProperties.class);
+
     private static final ConfigService configService = Agent.getConfigService("jdbc");
 
     // visibility should be provided by memoryBarrier in
     // org.glowroot.instrumentation.api.config.ConfigService
     private static long stackTraceThresholdNanos;
     private static long explainPlanThresholdNanos;
+    private static int resultSetNavigateSampleInterval;
 
     private static volatile Map<String, Set<Integer>> displayBinaryParameterAsHex =
             Collections.emptyMap();
@@ -47,6 +51,7 @@ public class JdbcInstrumentationProperties {
             public void onChange() {
                 stackTraceThresholdNanos = getThresholdNanos("stackTraceThresholdMillis");
                 explainPlanThresholdNanos = getThresholdNanos("explainPlanThresholdMillis");
+                resultSetNavigateSampleInterval = getSampleInterval();
             }
         });
     }
@@ -80,6 +85,11 @@ public class JdbcInstrumentationProperties {
         return explainPlanThresholdNanos;
     }
 
+    // a value of 1 means every ResultSet navigation call is timed
+    public static int resultSetNavigateSampleInterval() {
+        return resultSetNavigateSampleInterval;
+    }
+
     public static boolean displayBinaryParameterAsHex(String sql, int parameterIndex) {
         Set<Integer> set = displayBinaryParameterAsHex.get(sql);
         return set != null && set.contains(parameterIndex);
@@ -89,4 +99,19 @@ public class JdbcInstrumentationProperties {
         Double value = configService.getDoubleProperty(name).value();
         return value == null ? Long.MAX_VALUE : MILLISECONDS.toNanos(value.intValue());
     }
+
+    private static int getSampleInterval() {
+        String value =
+                configService.getStringProperty("resultSetNavigateSampleInterval").value().trim();
+        if (value.isEmpty()) {
+            return 1;
+        }
+        try {
+            return Math.max(Integer.parseInt(value), 1);
+        } catch (NumberFormatException e) {
+            logger.warn("invalid resultSetNavigateSampleInterval (expecting an integer): {}",
+                    value);
+            return 1;
+        }
+    }
 }
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.jdbc.boot;
+
+import java.util.Map;
+
+import org.glowroot.instrumentation.api.QueryMessageSupplier;
+import org.glowroot.instrumentation.api.checker.Nullable;
+
+// base class for query message suppliers of queries that can return a result set, so that the
+// estimated result set navigation time can be attached after the query has been executed
+public abstract class JdbcQueryMessageSupplier extends QueryMessageSupplier {
+
+    private volatile @Nullable ResultSetNavigateStats resultSetNavigateStats;
+
+    void setResultSetNavigateStats(ResultSetNavigateStats resultSetNavigateStats) {
+        this.resultSetNavigateStats = resultSetNavigateStats;
+    }
+
+    protected Map<String, ?> addResultSetNavigateEstimate(Map<String, ?> detail) {
+        ResultSetNavigateStats resultSetNavigateStats = this.resultSetNavigateStats;
+        if (resultSetNavigateStats == null) {
+            return detail;
+        }
+        return resultSetNavigateStats.addTo(detail);
+    }
+}
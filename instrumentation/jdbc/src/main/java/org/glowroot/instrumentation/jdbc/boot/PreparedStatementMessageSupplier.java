@@ -24,13 +24,12 @@ import java.util.regex.PatternSyntaxException;
 
 import org.glowroot.instrumentation.api.Agent;
 import org.glowroot.instrumentation.api.Logger;
-import org.glowroot.instrumentation.api.QueryMessageSupplier;
 import org.glowroot.instrumentation.api.checker.Nullable;
 import org.glowroot.instrumentation.api.config.ConfigListener;
 import org.glowroot.instrumentation.api.config.ConfigService;
 import org.glowroot.instrumentation.api.util.ImmutableList;
 
-public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
+public class PreparedStatementMessageSupplier extends JdbcQueryMessageSupplier {
 
     private static final Logger logger = Logger.getLogger(PreparedStatementMessageSupplier.class);
 
@@ -78,11 +77,12 @@ public class PreparedStatementMessageSupplier extends QueryMessageSupplier {
     }
 
     @Override
-    public Map<String, List</*@Nullable*/ Object>> get() {
+    public Map<String, ?> get() {
         if (parameters != null && !parameters.isEmpty() && captureBindParameters()) {
-            return Collections.singletonMap("parameters", parameters.toDetailList());
+            return addResultSetNavigateEstimate(
+                    Collections.singletonMap("parameters", parameters.toDetailList()));
         } else {
-            return Collections.emptyMap();
+            return addResultSetNavigateEstimate(Collections.<String, Object>emptyMap());
         }
     }
 
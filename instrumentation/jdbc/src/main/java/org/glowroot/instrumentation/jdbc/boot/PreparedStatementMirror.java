@@ -15,10 +15,6 @@
  */
 package org.glowroot.instrumentation.jdbc.boot;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
 import org.glowroot.instrumentation.api.checker.Nullable;
 
 // used to capture and mirror the state of prepared statements since the underlying
@@ -30,14 +26,20 @@ public class PreparedStatementMirror extends StatementMirror {
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
     private final String sql;
+    // ok for this field to be non-volatile since worst case another thread normalizes it again
+    private @Nullable String normalizedSql;
+    private boolean normalizedSqlCollapsesInLists;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
     private BindParameterList parameters;
     private boolean parametersShared;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private @Nullable List<BindParameterList> batchedParameters;
+    private @Nullable BatchedBindParameters batchedParameters;
     private int batchCount;
+    // sizes of the previous batch, used to presize the next one
+    private int lastBatchedParameterCount;
+    private int lastBatchedRowCount;
 
     public PreparedStatementMirror(String dest, String sql) {
         super(dest);
@@ -48,18 +50,20 @@ public class PreparedStatementMirror extends StatementMirror {
 
     public void addBatch() {
         // synchronization isn't an issue here as this method is called only by the monitored thread
-        if (batchedParameters == null) {
-            batchedParameters = new ArrayList<BindParameterList>();
-        }
         if (batchCount++ < CAPTURED_BATCH_COUNT_LIMIT) {
+            if (batchedParameters == null) {
+                batchedParameters = BatchedBindParameters.create(lastBatchedParameterCount,
+                        lastBatchedRowCount);
+            }
+            // the row's values are copied, so parameters can continue to be reused (without
+            // copying) for the next row
             batchedParameters.add(parameters);
-            parametersShared = true;
         }
     }
 
-    public List<BindParameterList> getBatchedParameters() {
+    public BatchedBindParameters getBatchedParameters() {
         if (batchedParameters == null) {
-            return Collections.emptyList();
+            return BatchedBindParameters.EMPTY;
         } else {
             return batchedParameters;
         }
@@ -74,6 +78,18 @@ public class PreparedStatementMirror extends StatementMirror {
         return sql;
     }
 
+    // the normalized sql is held here so that executing the same prepared statement repeatedly
+    // does not need to look up (and hash) the sql in the QueryTextNormalizer cache each time
+    public String getNormalizedSql(boolean collapseInLists) {
+        String normalizedSql = this.normalizedSql;
+        if (normalizedSql == null || normalizedSqlCollapsesInLists != collapseInLists) {
+            normalizedSql = QueryTextNormalizer.getNormalized(sql, collapseInLists);
+            this.normalizedSql = normalizedSql;
+            normalizedSqlCollapsesInLists = collapseInLists;
+        }
+        return normalizedSql;
+    }
+
     public int getBatchCount() {
         return batchCount;
     }
@@ -87,6 +103,48 @@ public class PreparedStatementMirror extends StatementMirror {
         parameters.set(parameterIndex - 1, object);
     }
 
+    public void setBooleanParameterValue(int parameterIndex, boolean x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setBoolean(parameterIndex - 1, x);
+    }
+
+    public void setShortParameterValue(int parameterIndex, short x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setShort(parameterIndex - 1, x);
+    }
+
+    public void setIntParameterValue(int parameterIndex, int x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setInt(parameterIndex - 1, x);
+    }
+
+    public void setLongParameterValue(int parameterIndex, long x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setLong(parameterIndex - 1, x);
+    }
+
+    public void setFloatParameterValue(int parameterIndex, float x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setFloat(parameterIndex - 1, x);
+    }
+
+    public void setDoubleParameterValue(int parameterIndex, double x) {
+        if (parametersShared) {
+            copyParameters();
+        }
+        parameters.setDouble(parameterIndex - 1, x);
+    }
+
     private void copyParameters() {
         parameters = BindParameterList.copyOf(parameters);
         parametersShared = false;
@@ -109,7 +167,11 @@ public class PreparedStatementMirror extends StatementMirror {
         } else {
             parameters.clear();
         }
-        batchedParameters = null;
+        if (batchedParameters != null) {
+            lastBatchedParameterCount = batchedParameters.getParameterCount();
+            lastBatchedRowCount = batchedParameters.getRowCount();
+            batchedParameters = null;
+        }
         batchCount = 0;
     }
 
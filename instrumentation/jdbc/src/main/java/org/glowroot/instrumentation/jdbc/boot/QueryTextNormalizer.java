@@ -0,0 +1,301 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.jdbc.boot;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.glowroot.instrumentation.api.checker.Nullable;
+
+// replaces literals in query text with "?" and collapses IN lists of "?" down to a single "?", so
+// that queries which only differ by their inlined literals (e.g. ad-hoc Statement executions, or
+// ORM-generated IN lists) end up with the same query text
+//
+// this class must be public since it is referenced from bytecode inside other packages
+public class QueryTextNormalizer {
+
+    // the cache is split into segments (each with its own lock) to reduce contention
+    private static final int CACHE_SEGMENT_COUNT = 16;
+
+    // each segment is a segmented LRU, new query text goes into the probationary part and is only
+    // promoted to the protected part when it is looked up again, so that a flood of one-off query
+    // text (which is common when literals are inlined) cannot evict the query text that repeats
+    private static final int CACHE_PROBATIONARY_SIZE = 64;
+    private static final int CACHE_PROTECTED_SIZE = 192;
+
+    // very long query text is still normalized, but not cached, to bound the cache memory
+    private static final int MAX_CACHED_QUERY_TEXT_LENGTH = 8192;
+
+    private static final Pattern IN_LIST_PATTERN =
+            Pattern.compile("(\\b[iI][nN]\\s*\\()\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\)");
+
+    private static final CacheSegment[] cacheSegments = new CacheSegment[CACHE_SEGMENT_COUNT];
+
+    static {
+        for (int i = 0; i < CACHE_SEGMENT_COUNT; i++) {
+            cacheSegments[i] = new CacheSegment();
+        }
+    }
+
+    private QueryTextNormalizer() {}
+
+    // IN lists should not be collapsed when bind parameters are captured, since then the captured
+    // bind parameters would no longer line up with the "?" in the query text
+    public static String getNormalized(String queryText, boolean collapseInLists) {
+        if (queryText.length() > MAX_CACHED_QUERY_TEXT_LENGTH) {
+            return normalize(queryText, collapseInLists);
+        }
+        int hash = queryText.hashCode();
+        CacheSegment segment = cacheSegments[(hash ^ (hash >>> 16)) & (CACHE_SEGMENT_COUNT - 1)];
+        Normalized normalized;
+        synchronized (segment) {
+            normalized = segment.get(queryText);
+        }
+        if (normalized == null) {
+            // normalizing outside of the lock, worst case two threads normalize the same query text
+            String literalsReplaced = replaceLiterals(queryText);
+            normalized = new Normalized(literalsReplaced,
+                    collapseInLists(queryText, literalsReplaced));
+            synchronized (segment) {
+                segment.put(queryText, normalized);
+            }
+        }
+        return collapseInLists ? normalized.inListsCollapsed : normalized.literalsReplaced;
+    }
+
+    // returns the same instance if there is nothing to normalize
+    static String normalize(String queryText) {
+        return normalize(queryText, true);
+    }
+
+    private static String normalize(String queryText, boolean collapseInLists) {
+        String literalsReplaced = replaceLiterals(queryText);
+        return collapseInLists ? collapseInLists(queryText, literalsReplaced) : literalsReplaced;
+    }
+
+    // returns the same instance if there are no literals
+    //
+    // quotes are first matched using standard sql escaping (doubled quotes only), and if they do
+    // not balance, then matched again also treating backslash as an escape (e.g. MySQL default), and
+    // if they still do not balance, the query text is returned unchanged, since otherwise a
+    // misplaced literal boundary could swallow the rest of the query text and collapse unrelated
+    // queries into the same query text
+    private static String replaceLiterals(String queryText) {
+        String literalsReplaced = replaceLiterals(queryText, false);
+        if (literalsReplaced == null) {
+            literalsReplaced = replaceLiterals(queryText, true);
+        }
+        return literalsReplaced == null ? queryText : literalsReplaced;
+    }
+
+    // returns null if the quotes do not balance
+    private static @Nullable String replaceLiterals(String queryText, boolean backslashEscapes) {
+        int length = queryText.length();
+        StringBuilder sb = new StringBuilder(length);
+        boolean literalReplaced = false;
+        int i = 0;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\'') {
+                i = skipQuoted(queryText, i, '\'', backslashEscapes);
+                if (i == -1) {
+                    return null;
+                }
+                sb.append('?');
+                literalReplaced = true;
+            } else if (isEscapeStringStart(queryText, i)) {
+                // postgres escape string constant (E'...'), which always uses backslash escapes
+                i = skipQuoted(queryText, i + 1, '\'', true);
+                if (i == -1) {
+                    return null;
+                }
+                sb.append('?');
+                literalReplaced = true;
+            } else if (c == '"' || c == '`') {
+                int end = skipQuoted(queryText, i, c, backslashEscapes && c == '"');
+                if (end == -1) {
+                    return null;
+                }
+                sb.append(queryText, i, end);
+                i = end;
+            } else if (c == '-' && i + 1 < length && queryText.charAt(i + 1) == '-') {
+                int end = queryText.indexOf('\n', i);
+                end = end == -1 ? length : end;
+                sb.append(queryText, i, end);
+                i = end;
+            } else if (c == '/' && i + 1 < length && queryText.charAt(i + 1) == '*') {
+                int end = queryText.indexOf("*/", i + 2);
+                end = end == -1 ? length : end + 2;
+                sb.append(queryText, i, end);
+                i = end;
+            } else if (isNumberStart(queryText, i)) {
+                i = skipNumber(queryText, i);
+                sb.append('?');
+                literalReplaced = true;
+            } else {
+                sb.append(c);
+                i++;
+            }
+        }
+        return literalReplaced ? sb.toString() : queryText;
+    }
+
+    // returns the original query text instance if there is nothing to normalize
+    private static String collapseInLists(String queryText, String literalsReplaced) {
+        if (literalsReplaced.indexOf('?') == -1) {
+            return literalsReplaced;
+        }
+        String collapsed = IN_LIST_PATTERN.matcher(literalsReplaced).replaceAll("$1?)");
+        return collapsed.equals(queryText) ? queryText : collapsed;
+    }
+
+    // returns the index after the closing quote (doubled quotes are treated as escaped quotes), or
+    // -1 if there is no closing quote
+    private static int skipQuoted(String queryText, int start, char quote,
+            boolean backslashEscapes) {
+        int length = queryText.length();
+        int i = start + 1;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\\' && backslashEscapes) {
+                i += 2;
+            } else if (c == quote) {
+                if (i + 1 < length && queryText.charAt(i + 1) == quote) {
+                    i += 2;
+                } else {
+                    return i + 1;
+                }
+            } else {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isEscapeStringStart(String queryText, int i) {
+        char c = queryText.charAt(i);
+        return (c == 'E' || c == 'e') && i + 1 < queryText.length()
+                && queryText.charAt(i + 1) == '\''
+                && (i == 0 || !Character.isJavaIdentifierPart(queryText.charAt(i - 1)));
+    }
+
+    private static boolean isNumberStart(String queryText, int i) {
+        char c = queryText.charAt(i);
+        boolean numberStart = Character.isDigit(c) || c == '.' && i + 1 < queryText.length()
+                && Character.isDigit(queryText.charAt(i + 1));
+        if (!numberStart) {
+            return false;
+        }
+        // digits that are part of an identifier (e.g. table1 or $1) are not literals
+        return i == 0 || !Character.isJavaIdentifierPart(queryText.charAt(i - 1))
+                && queryText.charAt(i - 1) != '.';
+    }
+
+    // returns the index after the number, which can be an integer, decimal, exponential or hex
+    private static int skipNumber(String queryText, int start) {
+        int length = queryText.length();
+        int i = start;
+        if (queryText.charAt(i) == '0' && i + 1 < length
+                && (queryText.charAt(i + 1) == 'x' || queryText.charAt(i + 1) == 'X')) {
+            i += 2;
+            while (i < length && Character.digit(queryText.charAt(i), 16) != -1) {
+                i++;
+            }
+            return i;
+        }
+        while (i < length && (Character.isDigit(queryText.charAt(i))
+                || queryText.charAt(i) == '.')) {
+            i++;
+        }
+        if (i < length && (queryText.charAt(i) == 'e' || queryText.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (queryText.charAt(j) == '+' || queryText.charAt(j) == '-')) {
+                j++;
+            }
+            if (j < length && Character.isDigit(queryText.charAt(j))) {
+                i = j;
+                while (i < length && Character.isDigit(queryText.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+
+    private static class Normalized {
+
+        private final String literalsReplaced;
+        private final String inListsCollapsed;
+
+        private Normalized(String literalsReplaced, String inListsCollapsed) {
+            this.literalsReplaced = literalsReplaced;
+            this.inListsCollapsed = inListsCollapsed;
+        }
+    }
+
+    // not thread safe, access is synchronized on the segment
+    private static class CacheSegment {
+
+        private final LruMap probationary = new LruMap(CACHE_PROBATIONARY_SIZE);
+        private final LruMap protectedEntries = new LruMap(CACHE_PROTECTED_SIZE);
+
+        private @Nullable Normalized get(String queryText) {
+            Normalized normalized = protectedEntries.get(queryText);
+            if (normalized != null) {
+                return normalized;
+            }
+            normalized = probationary.remove(queryText);
+            if (normalized == null) {
+                return null;
+            }
+            // second hit, promote to the protected part, demoting its least recently used entry
+            // back to the probationary part if the protected part is full
+            if (protectedEntries.size() >= CACHE_PROTECTED_SIZE) {
+                Iterator<Map.Entry<String, Normalized>> i =
+                        protectedEntries.entrySet().iterator();
+                Map.Entry<String, Normalized> eldest = i.next();
+                i.remove();
+                probationary.put(eldest.getKey(), eldest.getValue());
+            }
+            protectedEntries.put(queryText, normalized);
+            return normalized;
+        }
+
+        private void put(String queryText, Normalized normalized) {
+            if (!protectedEntries.containsKey(queryText)) {
+                probationary.put(queryText, normalized);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class LruMap extends LinkedHashMap<String, Normalized> {
+
+        private final int maxSize;
+
+        private LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Normalized> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.jdbc.boot;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+// used when the resultSetNavigateSampleInterval property is greater than one, in which case every
+// ResultSet.next() is timed until the row count reaches the sample interval, after which only
+// every Nth ResultSet.next() is timed, and the total navigation time is extrapolated from the timed
+// calls
+//
+// this class must be public since it is referenced from bytecode inside other packages
+public class ResultSetNavigateStats {
+
+    private final int sampleInterval;
+
+    // ok for these fields to be non-volatile since they are only updated by a single thread while
+    // that thread is navigating the result set
+    private long navigateCount;
+    private long sampledCount;
+    private long sampledNanos;
+    private long sampleStartTick;
+    private boolean sampling;
+
+    // this field is read by the thread capturing the trace, -1 means that no calls have been
+    // skipped yet, in which case the query timer itself is exact
+    private volatile long estimatedNanos = -1;
+
+    public ResultSetNavigateStats(int sampleInterval) {
+        this.sampleInterval = sampleInterval;
+    }
+
+    public boolean startNavigate() {
+        long count = ++navigateCount;
+        if (count > sampleInterval && count % sampleInterval != 0) {
+            return false;
+        }
+        sampling = true;
+        sampleStartTick = System.nanoTime();
+        return true;
+    }
+
+    public void endNavigate() {
+        if (!sampling) {
+            return;
+        }
+        sampledNanos += System.nanoTime() - sampleStartTick;
+        sampledCount++;
+        sampling = false;
+        publishEstimate();
+    }
+
+    // called at the end of the result set so that the estimate includes any trailing calls that
+    // were not timed
+    public void publishEstimate() {
+        if (navigateCount > sampledCount && sampledCount > 0) {
+            // using double to avoid overflow of sampledNanos * navigateCount
+            estimatedNanos = (long) (sampledNanos * ((double) navigateCount / sampledCount));
+        }
+    }
+
+    Map<String, ?> addTo(Map<String, ?> detail) {
+        long estimatedNanos = this.estimatedNanos;
+        if (estimatedNanos == -1) {
+            return detail;
+        }
+        Map<String, Object> detailWithEstimate = new HashMap<String, Object>(detail);
+        detailWithEstimate.put("resultSetNavigateEstimatedMillis",
+                estimatedNanos / (double) MILLISECONDS.toNanos(1));
+        return detailWithEstimate;
+    }
+}
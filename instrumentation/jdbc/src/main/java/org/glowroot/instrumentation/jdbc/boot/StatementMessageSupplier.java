@@ -18,10 +18,9 @@ package org.glowroot.instrumentation.jdbc.boot;
 import java.util.Collections;
 import java.util.Map;
 
-import org.glowroot.instrumentation.api.QueryMessageSupplier;
 import org.glowroot.instrumentation.api.checker.Nullable;
 
-public class StatementMessageSupplier extends QueryMessageSupplier {
+public class StatementMessageSupplier extends JdbcQueryMessageSupplier {
 
     // either String or Map<String, String>
     private volatile @Nullable Object explainPlan;
@@ -33,9 +32,10 @@ public class StatementMessageSupplier extends QueryMessageSupplier {
     @Override
     public Map<String, ?> get() {
         if (explainPlan == null) {
-            return Collections.emptyMap();
+            return addResultSetNavigateEstimate(Collections.<String, Object>emptyMap());
         } else {
-            return Collections.singletonMap("explainPlan", explainPlan);
+            return addResultSetNavigateEstimate(
+                    Collections.singletonMap("explainPlan", explainPlan));
         }
     }
 }
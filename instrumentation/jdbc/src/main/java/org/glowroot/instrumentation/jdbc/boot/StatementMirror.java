@@ -40,6 +40,10 @@ public class StatementMirror {
     // while that thread is adding batches into the statement and executing it
     private @Nullable QuerySpan lastQuerySpan;
 
+    // ok for this field to be non-volatile since it is only temporary storage for a single thread
+    // while that thread is navigating the result set of the last query
+    private @Nullable ResultSetNavigateStats resultSetNavigateStats;
+
     public StatementMirror(String dest) {
         this.dest = dest;
     }
@@ -71,6 +75,7 @@ public class StatementMirror {
 
     public void setLastQuerySpan(QuerySpan lastQuerySpan) {
         this.lastQuerySpan = lastQuerySpan;
+        resultSetNavigateStats = null;
     }
 
     public @Nullable QuerySpan getLastQuerySpan() {
@@ -79,5 +84,23 @@ public class StatementMirror {
 
     public void clearLastQuerySpan() {
         lastQuerySpan = null;
+        resultSetNavigateStats = null;
+    }
+
+    public ResultSetNavigateStats getOrCreateResultSetNavigateStats(QuerySpan lastQuerySpan,
+            int sampleInterval) {
+        if (resultSetNavigateStats == null) {
+            resultSetNavigateStats = new ResultSetNavigateStats(sampleInterval);
+            Object messageSupplier = lastQuerySpan.getMessageSupplier();
+            if (messageSupplier instanceof JdbcQueryMessageSupplier) {
+                ((JdbcQueryMessageSupplier) messageSupplier)
+                        .setResultSetNavigateStats(resultSetNavigateStats);
+            }
+        }
+        return resultSetNavigateStats;
+    }
+
+    public @Nullable ResultSetNavigateStats getResultSetNavigateStats() {
+        return resultSetNavigateStats;
     }
 }
@@ -60,6 +60,10 @@ public class PreparedStatementIT {
             ImmutableList.of("SELECT MAX(LOB) FROM INFORMATION_SCHEMA.LOB_MAP",
                     "SELECT MAX(ID) FROM INFORMATION_SCHEMA.LOBS");
 
+    private static final String PRIMITIVES_SQL = "select * from employee where id <> ? and id <> ?"
+            + " and id <> ? and id <> ? and id <> ? and id <> ? and case when ? then 1 else 0 end"
+            + " <> 2";
+
     private static Container container;
 
     @BeforeClass
@@ -294,6 +298,29 @@ public class PreparedStatementIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testPreparedStatementWithPrimitives() throws Exception {
+        // given
+        container.setInstrumentationProperty(INSTRUMENTATION_ID, "captureBindParametersIncludes",
+                ImmutableList.of(".*"));
+
+        // when
+        IncomingSpan incomingSpan = container.execute(ExecutePreparedStatementWithPrimitives.class,
+                Connections.getConnectionType());
+
+        // then
+        Iterator<Span> i = incomingSpan.childSpans().iterator();
+
+        OutgoingSpan outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.type()).isEqualTo("SQL");
+        assertThat(outgoingSpan.dest()).isEqualTo(Connections.getDest());
+        assertThat(outgoingSpan.message()).isEqualTo(PRIMITIVES_SQL);
+        assertThat(outgoingSpan.detail()).containsEntry("parameters",
+                Arrays.<Object>asList(1, 2L, (short) 3, 4.5, 5.5f, (byte) 6, true));
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testPreparedStatementWithBinary() throws Exception {
         // given
@@ -763,6 +790,39 @@ public class PreparedStatementIT {
         }
     }
 
+    public static class ExecutePreparedStatementWithPrimitives
+            implements AppUnderTest, TransactionMarker {
+
+        private Connection connection;
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            connection = Connections.createConnection((ConnectionType) args[0]);
+            try {
+                transactionMarker();
+            } finally {
+                Connections.closeConnection(connection);
+            }
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            PreparedStatement preparedStatement = connection.prepareStatement(PRIMITIVES_SQL);
+            try {
+                preparedStatement.setInt(1, 1);
+                preparedStatement.setLong(2, 2);
+                preparedStatement.setShort(3, (short) 3);
+                preparedStatement.setDouble(4, 4.5);
+                preparedStatement.setFloat(5, 5.5f);
+                preparedStatement.setByte(6, (byte) 6);
+                preparedStatement.setBoolean(7, true);
+                preparedStatement.execute();
+            } finally {
+                preparedStatement.close();
+            }
+        }
+    }
+
     public static class ExecutePreparedStatementWithBinary
             implements AppUnderTest, TransactionMarker {
 
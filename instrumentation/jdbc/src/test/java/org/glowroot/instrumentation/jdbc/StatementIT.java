@@ -21,7 +21,9 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
+import java.util.List;
 
+import com.google.common.collect.Lists;
 import org.apache.commons.dbcp.DelegatingConnection;
 import org.apache.commons.dbcp.DelegatingStatement;
 import org.junit.After;
@@ -117,6 +119,27 @@ public class StatementIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testNormalizeQueryText() throws Exception {
+        // given
+        container.setInstrumentationProperty("jdbc", "normalizeQueryText", true);
+
+        // when
+        IncomingSpan incomingSpan =
+                container.execute(ExecuteStatementUpdate.class, Connections.getConnectionType());
+
+        // then
+        Iterator<Span> i = incomingSpan.childSpans().iterator();
+
+        OutgoingSpan outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.type()).isEqualTo("SQL");
+        assertThat(outgoingSpan.dest()).isEqualTo(Connections.getDest());
+        assertThat(outgoingSpan.message()).isEqualTo("update employee set name = ?");
+        assertThat(outgoingSpan.detail()).containsEntry("rows", 3L);
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void testNullStatement() throws Exception {
         // when
@@ -317,6 +340,37 @@ public class StatementIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void testResultSetNavigateSampling() throws Exception {
+        // given
+        container.setInstrumentationProperty("jdbc", "resultSetNavigateSampleInterval", "2");
+
+        // when
+        IncomingSpan incomingSpan = container.execute(ExecuteStatementAndIterateOverResults.class,
+                Connections.getConnectionType());
+
+        // then
+        Iterator<Span> i = incomingSpan.childSpans().iterator();
+
+        OutgoingSpan outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.type()).isEqualTo("SQL");
+        assertThat(outgoingSpan.dest()).isEqualTo(Connections.getDest());
+        assertThat(outgoingSpan.message()).isEqualTo("select * from employee");
+        assertThat(outgoingSpan.detail()).doesNotContainKey("parameters");
+        // row count is still exact even though the third ResultSet.next() is not timed
+        assertThat(outgoingSpan.detail()).containsEntry("rows", 3L);
+        assertThat(outgoingSpan.detail()).containsKey("resultSetNavigateEstimatedMillis");
+
+        assertThat(i.hasNext()).isFalse();
+
+        // the timed calls are not folded into the jdbc query timer
+        List<String> timerNames = Lists.newArrayList();
+        for (IncomingSpan.Timer timer : incomingSpan.mainThreadTimer().childTimers()) {
+            timerNames.add(timer.name());
+        }
+        assertThat(timerNames).contains("jdbc query", "jdbc result set navigate (sampled)");
+    }
+
     public static class ExecuteStatementAndIterateOverResults
             implements AppUnderTest, TransactionMarker {
 
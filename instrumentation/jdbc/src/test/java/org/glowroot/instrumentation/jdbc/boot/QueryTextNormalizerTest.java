@@ -0,0 +1,112 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.jdbc.boot;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextNormalizerTest {
+
+    @Test
+    public void shouldReplaceLiterals() {
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from employee where name = 'john o''doe' and id = 12"))
+                        .isEqualTo("select * from employee where name = ? and id = ?");
+        assertThat(QueryTextNormalizer.normalize(
+                "update t set a = -1.5, b = .5, c = 1e-3, d = 0x1F where e = 2"))
+                        .isEqualTo("update t set a = -?, b = ?, c = ?, d = ? where e = ?");
+    }
+
+    @Test
+    public void shouldReplaceLiteralsWithBackslashEscapes() {
+        // mysql default
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from employee where name = 'it\\'s' and id = 12"))
+                        .isEqualTo("select * from employee where name = ? and id = ?");
+        // postgres escape string constant
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from employee where name = E'it\\'s' and id = 12"))
+                        .isEqualTo("select * from employee where name = ? and id = ?");
+        // standard sql, where backslash is not an escape
+        assertThat(QueryTextNormalizer.normalize(
+                "select * from file where path = 'c:\\' and id = 12"))
+                        .isEqualTo("select * from file where path = ? and id = ?");
+    }
+
+    @Test
+    public void shouldNotReplaceLiteralsWhenQuotesDoNotBalance() {
+        String queryText = "select * from employee where name = 'it''s and id = 12";
+        assertThat(QueryTextNormalizer.normalize(queryText)).isSameAs(queryText);
+        assertThat(QueryTextNormalizer.getNormalized(queryText, true)).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldNotReplaceIdentifiersOrComments() {
+        String queryText = "select t1.col2, \"col 3\", `col4` from table1 t1 /* 5 */"
+                + " where t1.x = $1 -- 'y'";
+        assertThat(QueryTextNormalizer.normalize(queryText)).isSameAs(queryText);
+    }
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(QueryTextNormalizer.normalize("select * from t where id in (1, 2, 3)"))
+                .isEqualTo("select * from t where id in (?)");
+        assertThat(QueryTextNormalizer.normalize("select * from t where id IN(?,?,?) and x = ?"))
+                .isEqualTo("select * from t where id IN(?) and x = ?");
+        assertThat(QueryTextNormalizer.normalize("select * from t where id in (?, 'a', ?)"))
+                .isEqualTo("select * from t where id in (?)");
+    }
+
+    @Test
+    public void shouldNotCollapseNonInLists() {
+        assertThat(QueryTextNormalizer.normalize("insert into t (a, b) values (?, ?)"))
+                .isEqualTo("insert into t (a, b) values (?, ?)");
+        assertThat(QueryTextNormalizer.normalize("select * from t where x = coin(?, ?)"))
+                .isEqualTo("select * from t where x = coin(?, ?)");
+    }
+
+    @Test
+    public void shouldCacheNormalizedQueryText() {
+        String queryText = "select * from employee where id = 42";
+        String normalized = QueryTextNormalizer.getNormalized(queryText, true);
+        assertThat(normalized).isEqualTo("select * from employee where id = ?");
+        assertThat(QueryTextNormalizer.getNormalized(new String(queryText), true))
+                .isSameAs(normalized);
+    }
+
+    @Test
+    public void shouldNotCollapseInListsWhenRequested() {
+        String queryText = "select * from t where id in (?, ?, ?) and x = 1";
+        assertThat(QueryTextNormalizer.getNormalized(queryText, false))
+                .isEqualTo("select * from t where id in (?, ?, ?) and x = ?");
+        assertThat(QueryTextNormalizer.getNormalized(queryText, true))
+                .isEqualTo("select * from t where id in (?) and x = ?");
+    }
+
+    @Test
+    public void shouldKeepRepeatedQueryTextCachedDuringFloodOfOneOffQueryText() {
+        String queryText = "select * from employee where name = 'repeated'";
+        QueryTextNormalizer.getNormalized(queryText, true);
+        String normalized = QueryTextNormalizer.getNormalized(new String(queryText), true);
+        for (int i = 0; i < 100000; i++) {
+            QueryTextNormalizer.getNormalized("select * from employee where name = 'x" + i + "'",
+                    true);
+        }
+        assertThat(QueryTextNormalizer.getNormalized(new String(queryText), true))
+                .isSameAs(normalized);
+    }
+}
@@ -16,18 +16,25 @@
 package org.glowroot.instrumentation.kafka;
 
 import java.io.UnsupportedEncodingException;
+import java.util.Set;
+import java.util.TreeSet;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.header.Header;
 
 import org.glowroot.instrumentation.api.Agent;
 import org.glowroot.instrumentation.api.Getter;
+import org.glowroot.instrumentation.api.Message;
 import org.glowroot.instrumentation.api.MessageSupplier;
 import org.glowroot.instrumentation.api.OptionalThreadContext;
 import org.glowroot.instrumentation.api.OptionalThreadContext.AlreadyInTransactionBehavior;
 import org.glowroot.instrumentation.api.Span;
 import org.glowroot.instrumentation.api.TimerName;
 import org.glowroot.instrumentation.api.checker.Nullable;
+import org.glowroot.instrumentation.api.config.BooleanProperty;
+import org.glowroot.instrumentation.api.util.FastThreadLocal;
 import org.glowroot.instrumentation.api.weaving.Advice;
 import org.glowroot.instrumentation.api.weaving.Bind;
 import org.glowroot.instrumentation.kafka.boot.VersionClassMeta;
@@ -35,9 +42,19 @@ import org.glowroot.instrumentation.kafka.boot.VersionClassMeta;
 public class ConsumerInstrumentation {
 
     private static final TimerName TIMER_NAME = Agent.getTimerName("kafka consumer");
+    private static final TimerName POLL_TIMER_NAME = Agent.getTimerName("kafka poll");
 
     private static final Getter<ConsumerRecord<?, ?>> GETTER = new ConsumerRecordGetter();
     private static final Getter<ConsumerRecord<?, ?>> NOP_GETTER = new NopGetter();
+    private static final Getter<ConsumerRecords<?, ?>> NOP_RECORDS_GETTER = new NopRecordsGetter();
+
+    private static final BooleanProperty captureTransactionPerPoll =
+            Agent.getConfigService("kafka").getBooleanProperty("captureTransactionPerPoll");
+
+    // the transaction that was started for the batch of records returned by the last poll on this
+    // thread, which is ended on the next poll (or close)
+    private static final FastThreadLocal</*@Nullable*/ Span> pollTransactionSpan =
+            new FastThreadLocal</*@Nullable*/ Span>();
 
     @Advice.Pointcut(className = "org.springframework.kafka.listener.GenericMessageListener",
                      subTypeRestriction = "org.springframework.kafka.listener.MessageListener",
@@ -88,6 +105,191 @@ public class ConsumerInstrumentation {
         }
     }
 
+    @Advice.Pointcut(className = "org.apache.kafka.clients.consumer.KafkaConsumer",
+                     methodName = "poll",
+                     methodParameterTypes = {"long"},
+                     nestingGroup = "kafka-poll")
+    public static class PollAdvice {
+
+        @Advice.OnMethodBefore
+        public static @Nullable PollTraveler onBefore(OptionalThreadContext context) {
+
+            return onBeforePoll(context);
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.Return @Nullable ConsumerRecords<?, ?> records,
+                @Bind.Enter @Nullable PollTraveler traveler,
+                OptionalThreadContext context) {
+
+            onReturnPoll(records, traveler, context);
+        }
+
+        @Advice.OnMethodThrow
+        public static void onThrow(
+                @Bind.Thrown Throwable t,
+                @Bind.Enter @Nullable PollTraveler traveler) {
+
+            onThrowPoll(t, traveler);
+        }
+    }
+
+    // Kafka 2.0+
+    @Advice.Pointcut(className = "org.apache.kafka.clients.consumer.KafkaConsumer",
+                     methodName = "poll",
+                     methodParameterTypes = {"java.time.Duration"},
+                     nestingGroup = "kafka-poll")
+    public static class PollWithDurationAdvice {
+
+        @Advice.OnMethodBefore
+        public static @Nullable PollTraveler onBefore(OptionalThreadContext context) {
+
+            return onBeforePoll(context);
+        }
+
+        @Advice.OnMethodReturn
+        public static void onReturn(
+                @Bind.Return @Nullable ConsumerRecords<?, ?> records,
+                @Bind.Enter @Nullable PollTraveler traveler,
+                OptionalThreadContext context) {
+
+            onReturnPoll(records, traveler, context);
+        }
+
+        @Advice.OnMethodThrow
+        public static void onThrow(
+                @Bind.Thrown Throwable t,
+                @Bind.Enter @Nullable PollTraveler traveler) {
+
+            onThrowPoll(t, traveler);
+        }
+    }
+
+    @Advice.Pointcut(className = "org.apache.kafka.clients.consumer.KafkaConsumer",
+                     methodName = "close",
+                     methodParameterTypes = {".."},
+                     nestingGroup = "kafka-close")
+    public static class CloseAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore() {
+
+            endPollTransaction();
+        }
+    }
+
+    private static @Nullable PollTraveler onBeforePoll(OptionalThreadContext context) {
+        // this needs to happen first, since otherwise the poll would be captured inside of the
+        // previous batch's transaction
+        endPollTransaction();
+        if (context.isInTransaction()) {
+            PollMessageSupplier messageSupplier = new PollMessageSupplier();
+            Span span = context.startLocalSpan(messageSupplier, POLL_TIMER_NAME);
+            return new PollTraveler(span, messageSupplier);
+        } else if (captureTransactionPerPoll.value()) {
+            return new PollTraveler(null, null);
+        } else {
+            return null;
+        }
+    }
+
+    private static void onReturnPoll(@Nullable ConsumerRecords<?, ?> records,
+            @Nullable PollTraveler traveler, OptionalThreadContext context) {
+        if (traveler == null) {
+            return;
+        }
+        int count = records == null ? 0 : records.count();
+        Span localSpan = traveler.localSpan;
+        PollMessageSupplier messageSupplier = traveler.messageSupplier;
+        if (localSpan != null && messageSupplier != null) {
+            messageSupplier.setCount(count);
+            localSpan.end();
+            return;
+        }
+        if (records == null || count == 0 || context.isInTransaction()) {
+            return;
+        }
+        // the transaction covers the processing of the batch of records, which is the time
+        // between this poll returning and the next poll, so the poll itself is only reported in
+        // the message
+        long pollMillis = (System.nanoTime() - traveler.startNanoTime) / 1000000;
+        String topics = getTopics(records);
+        // records in the same batch can belong to different traces, so nothing is propagated
+        Span span = context.startIncomingSpan("Background", "Kafka consumer: " + topics,
+                NOP_RECORDS_GETTER, records,
+                MessageSupplier.create("kafka poll: {} => {} (poll took {} milliseconds)", topics,
+                        Integer.toString(count), Long.toString(pollMillis)),
+                TIMER_NAME, AlreadyInTransactionBehavior.DO_NOTHING);
+        pollTransactionSpan.set(span);
+    }
+
+    private static void onThrowPoll(Throwable t, @Nullable PollTraveler traveler) {
+        if (traveler == null) {
+            return;
+        }
+        Span localSpan = traveler.localSpan;
+        if (localSpan != null) {
+            localSpan.endWithError(t);
+        }
+    }
+
+    private static void endPollTransaction() {
+        FastThreadLocal.Holder</*@Nullable*/ Span> holder = pollTransactionSpan.getHolder();
+        Span span = holder.get();
+        if (span != null) {
+            holder.set(null);
+            span.end();
+        }
+    }
+
+    private static String getTopics(ConsumerRecords<?, ?> records) {
+        Set<TopicPartition> partitions = records.partitions();
+        if (partitions.size() == 1) {
+            return partitions.iterator().next().topic();
+        }
+        Set<String> topics = new TreeSet<String>();
+        for (TopicPartition partition : partitions) {
+            topics.add(partition.topic());
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String topic : topics) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(topic);
+        }
+        return sb.toString();
+    }
+
+    public static class PollTraveler {
+
+        private final @Nullable Span localSpan;
+        private final @Nullable PollMessageSupplier messageSupplier;
+        private final long startNanoTime;
+
+        private PollTraveler(@Nullable Span localSpan,
+                @Nullable PollMessageSupplier messageSupplier) {
+            this.localSpan = localSpan;
+            this.messageSupplier = messageSupplier;
+            startNanoTime = System.nanoTime();
+        }
+    }
+
+    private static class PollMessageSupplier extends MessageSupplier {
+
+        private volatile int count;
+
+        private void setCount(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public Message get() {
+            return Message.create("kafka poll => " + count);
+        }
+    }
+
     private static class ConsumerRecordGetter implements Getter<ConsumerRecord<?, ?>> {
 
         @Override
@@ -113,4 +315,12 @@ public class ConsumerInstrumentation {
             return null;
         }
     }
+
+    private static class NopRecordsGetter implements Getter<ConsumerRecords<?, ?>> {
+
+        @Override
+        public @Nullable String get(ConsumerRecords<?, ?> carrier, String key) {
+            return null;
+        }
+    }
 }
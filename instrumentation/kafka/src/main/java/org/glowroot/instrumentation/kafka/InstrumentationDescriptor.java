@@ -1,22 +1,23 @@
 package org.glowroot.instrumentation.kafka;
 
 import org.glowroot.instrumentation.api.Descriptor;
-import org.glowroot.instrumentation.api.Descriptor.CaptureKind;
+import org.glowroot.instrumentation.api.Descriptor.PropertyType;
 
 @Descriptor(
             id = "kafka",
             name = "Kafka",
-            advice = {
-                    @Descriptor.Advice(
-                                       className = "org.apache.kafka.clients.consumer.KafkaConsumer",
-                                       methodName = "poll",
-                                       methodParameterTypes = {
-                                               "long"
-                                       },
-                                       nestingGroup = "kafka-poll",
-                                       captureKind = CaptureKind.LOCAL_SPAN,
-                                       spanMessageTemplate = "kafka poll => {{_.count}}",
-                                       timerName = "kafka poll")
+            properties = {
+                    @Descriptor.Property(
+                                         name = "captureTransactionPerPoll",
+                                         type = PropertyType.BOOLEAN,
+                                         label = "Transaction per poll",
+                                         checkboxLabel = "Capture a transaction for each batch of records returned by KafkaConsumer.poll()",
+                                         description = "When a poll that is not already inside of a transaction returns records, a transaction is started that lasts until the next poll (or close) on the same thread, so that the processing of plain poll loops is captured (one transaction per batch, not per record). This should not be used together with listener containers (e.g. Spring Kafka) since the listener invocations would then be captured inside of the batch transaction."),
+                    @Descriptor.Property(
+                                         name = "producerSendSummaryIntervalMillis",
+                                         type = PropertyType.DOUBLE,
+                                         label = "Producer send summary interval (millis)",
+                                         description = "When set, KafkaProducer.send() no longer captures a span per record, instead a single summary span per topic is captured for each interval, which reports the number of records sent during that interval (the time spent in send() is still captured by the \"kafka send\" timer). This is for high-volume producers, but note that trace context is not propagated to the records, and callbacks are not run in the context of the transaction.")
             },
             classes = {
                     ProducerInstrumentation.class,
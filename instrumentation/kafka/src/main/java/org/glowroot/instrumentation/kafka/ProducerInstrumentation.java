@@ -25,11 +25,16 @@ import org.glowroot.instrumentation.api.AsyncSpan;
 import org.glowroot.instrumentation.api.MessageSupplier;
 import org.glowroot.instrumentation.api.ParameterHolder;
 import org.glowroot.instrumentation.api.Setter;
+import org.glowroot.instrumentation.api.Span;
 import org.glowroot.instrumentation.api.ThreadContext;
+import org.glowroot.instrumentation.api.Timer;
 import org.glowroot.instrumentation.api.TimerName;
 import org.glowroot.instrumentation.api.checker.Nullable;
+import org.glowroot.instrumentation.api.config.DoubleProperty;
+import org.glowroot.instrumentation.api.util.FastThreadLocal;
 import org.glowroot.instrumentation.api.weaving.Advice;
 import org.glowroot.instrumentation.api.weaving.Bind;
+import org.glowroot.instrumentation.kafka.SendSummaries.SendSummary;
 import org.glowroot.instrumentation.kafka.boot.VersionClassMeta;
 
 public class ProducerInstrumentation {
@@ -39,6 +44,17 @@ public class ProducerInstrumentation {
     private static final Setter<ProducerRecord<?, ?>> SETTER = new ProducerRecordSetter();
     private static final Setter<ProducerRecord<?, ?>> NOP_SETTER = new NopSetter();
 
+    private static final DoubleProperty sendSummaryIntervalMillis = Agent.getConfigService("kafka")
+            .getDoubleProperty("producerSendSummaryIntervalMillis");
+
+    private static final FastThreadLocal<SendSummaries> sendSummaries =
+            new FastThreadLocal<SendSummaries>() {
+                @Override
+                protected SendSummaries initialValue() {
+                    return new SendSummaries();
+                }
+            };
+
     @Advice.Pointcut(className = "org.apache.kafka.clients.producer.KafkaProducer",
                      methodName = "send",
                      methodParameterTypes = {"org.apache.kafka.clients.producer.ProducerRecord",
@@ -46,6 +62,11 @@ public class ProducerInstrumentation {
                      nestingGroup = "kafka-send")
     public static class SendAdvice {
 
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+            return sendSummaryIntervalMillis.value() == null;
+        }
+
         @Advice.OnMethodBefore
         public static @Nullable AsyncSpan onBefore(
                 @Bind.Argument(0) @Nullable ProducerRecord<?, ?> record,
@@ -94,6 +115,70 @@ public class ProducerInstrumentation {
         }
     }
 
+    // avoids the span, the callback wrapper and the auxiliary thread context per record, at the
+    // cost of not propagating the trace context to the records
+    @Advice.Pointcut(className = "org.apache.kafka.clients.producer.KafkaProducer",
+                     methodName = "send",
+                     methodParameterTypes = {"org.apache.kafka.clients.producer.ProducerRecord",
+                             "org.apache.kafka.clients.producer.Callback"},
+                     nestingGroup = "kafka-send")
+    public static class SummarizedSendAdvice {
+
+        @Advice.IsEnabled
+        public static boolean isEnabled() {
+            return sendSummaryIntervalMillis.value() != null;
+        }
+
+        @Advice.OnMethodBefore
+        public static @Nullable Timer onBefore(
+                @Bind.Argument(0) @Nullable ProducerRecord<?, ?> record,
+                ThreadContext context) {
+
+            if (record == null) {
+                return null;
+            }
+            Double intervalMillis = sendSummaryIntervalMillis.value();
+            if (intervalMillis == null) {
+                // this is unlikely (since checked in @Advice.IsEnabled) but possible under
+                // concurrency
+                return null;
+            }
+            String topic = record.topic();
+            if (topic == null) {
+                topic = "";
+            }
+            SendSummary summary = sendSummaries.get().getSummary(context, topic,
+                    (long) (intervalMillis * 1000000));
+            if (summary.incrementAndGetCount() == 1) {
+                // first send of the interval is captured as the summary span
+                return new SpanTimer(context.startLocalSpan(summary, TIMER_NAME));
+            }
+            return context.startTimer(TIMER_NAME);
+        }
+
+        @Advice.OnMethodAfter
+        public static void onAfter(@Bind.Enter @Nullable Timer timer) {
+
+            if (timer != null) {
+                timer.stop();
+            }
+        }
+    }
+
+    private static class SpanTimer implements Timer {
+
+        private final Span span;
+
+        private SpanTimer(Span span) {
+            this.span = span;
+        }
+
+        @Override
+        public void stop() {
+            span.end();
+        }
+    }
+
     private static class ProducerRecordSetter implements Setter<ProducerRecord<?, ?>> {
 
         @Override
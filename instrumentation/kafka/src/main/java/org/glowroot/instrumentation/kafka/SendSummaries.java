@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.kafka;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.glowroot.instrumentation.api.Message;
+import org.glowroot.instrumentation.api.MessageSupplier;
+import org.glowroot.instrumentation.api.ThreadContext;
+import org.glowroot.instrumentation.api.checker.Nullable;
+
+// per thread, so no synchronization is needed
+class SendSummaries {
+
+    // weak reference so that the transaction is not retained after it completes
+    private @Nullable WeakReference<ThreadContext> contextRef;
+
+    private final Map<String, SendSummary> summaries = new HashMap<String, SendSummary>();
+
+    // returns the summary for the current interval, a new summary is returned (with count zero)
+    // each time a new interval starts, or when the thread context has changed
+    SendSummary getSummary(ThreadContext context, String topic, long intervalNanos) {
+        WeakReference<ThreadContext> contextRef = this.contextRef;
+        if (contextRef == null || contextRef.get() != context) {
+            summaries.clear();
+            this.contextRef = new WeakReference<ThreadContext>(context);
+        }
+        long currNanoTime = System.nanoTime();
+        SendSummary summary = summaries.get(topic);
+        if (summary == null || currNanoTime - summary.startNanoTime >= intervalNanos) {
+            summary = new SendSummary(topic, currNanoTime);
+            summaries.put(topic, summary);
+        }
+        return summary;
+    }
+
+    // the message is not built until the trace is captured, so it reflects all of the sends
+    // during the interval, even though the summary span ends after the first send
+    static class SendSummary extends MessageSupplier {
+
+        private final String topic;
+        private final long startNanoTime;
+
+        // only updated by the sending thread, but read by the thread that captures the trace
+        private volatile int count;
+
+        private SendSummary(String topic, long startNanoTime) {
+            this.topic = topic;
+            this.startNanoTime = startNanoTime;
+        }
+
+        int incrementAndGetCount() {
+            return ++count;
+        }
+
+        @Override
+        public Message get() {
+            return Message.create("kafka send: {} => {} records", topic, Integer.toString(count));
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package org.glowroot.instrumentation.kafka;
 
 import java.io.Serializable;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
@@ -43,10 +44,12 @@ import org.glowroot.instrumentation.test.harness.Container;
 import org.glowroot.instrumentation.test.harness.Containers;
 import org.glowroot.instrumentation.test.harness.IncomingSpan;
 import org.glowroot.instrumentation.test.harness.Span;
+import org.glowroot.instrumentation.test.harness.TestSpans;
 import org.glowroot.instrumentation.test.harness.TransactionMarker;
 
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.glowroot.instrumentation.test.harness.util.HarnessAssertions.assertSingleLocalSpanMessage;
 import static org.glowroot.instrumentation.test.harness.util.HarnessAssertions.assertSingleOutgoingSpanMessage;
 
 public class KafkaIT {
@@ -96,6 +99,50 @@ public class KafkaIT {
         assertThat(spans.get(spans.size() - 1).message()).isEqualTo("kafka poll => 1");
     }
 
+    @Test
+    public void shouldPollWithDuration() throws Exception {
+        // when
+        IncomingSpan incomingSpan = container.execute(PollRecordWithDuration.class, kafkaPort);
+
+        // then
+        List<Span> spans = incomingSpan.childSpans();
+
+        for (int i = 0; i < spans.size() - 1; i++) {
+            assertThat(spans.get(i).message()).isEqualTo("kafka poll => 0");
+        }
+
+        assertThat(spans.get(spans.size() - 1).message()).isEqualTo("kafka poll => 1");
+    }
+
+    @Test
+    public void shouldCaptureTransactionPerPoll() throws Exception {
+        // given
+        container.setInstrumentationProperty("kafka", "captureTransactionPerPoll", true);
+
+        // when
+        IncomingSpan incomingSpan =
+                container.executeForType(PollRecordOutsideTransaction.class, "Background",
+                        kafkaPort);
+
+        // then
+        assertThat(incomingSpan.transactionName()).isEqualTo("Kafka consumer: demo-batch");
+        assertThat(incomingSpan.message()).startsWith("kafka poll: demo-batch => 2 (poll took ");
+        assertSingleLocalSpanMessage(incomingSpan).isEqualTo("test local span");
+    }
+
+    @Test
+    public void shouldSendSummarized() throws Exception {
+        // given
+        container.setInstrumentationProperty("kafka", "producerSendSummaryIntervalMillis",
+                60000.0);
+
+        // when
+        IncomingSpan incomingSpan = container.execute(SendRecords.class, kafkaPort);
+
+        // then
+        assertSingleLocalSpanMessage(incomingSpan).isEqualTo("kafka send: demo => 3 records");
+    }
+
     public static class SendRecord implements AppUnderTest, TransactionMarker {
 
         private Producer<Long, String> producer;
@@ -138,7 +185,7 @@ public class KafkaIT {
             producer.send(record).get();
             producer.close();
 
-            consumer = createConsumer(kafkaPort);
+            consumer = createConsumer(kafkaPort, "demo", "consumerGroup1");
             transactionMarker();
             consumer.close();
         }
@@ -157,10 +204,11 @@ public class KafkaIT {
             consumer.commitAsync();
         }
 
-        private static Consumer<Long, String> createConsumer(int kafkaPort) {
+        private static Consumer<Long, String> createConsumer(int kafkaPort, String topic,
+                String groupId) {
             Properties props = new Properties();
             props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, "127.0.0.1:" + kafkaPort);
-            props.put(ConsumerConfig.GROUP_ID_CONFIG, "consumerGroup1");
+            props.put(ConsumerConfig.GROUP_ID_CONFIG, groupId);
             props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG,
                     LongDeserializer.class.getName());
             props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG,
@@ -168,8 +216,85 @@ public class KafkaIT {
             props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
             props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
             Consumer<Long, String> consumer = new KafkaConsumer<Long, String>(props);
-            consumer.subscribe(Collections.singletonList("demo"));
+            consumer.subscribe(Collections.singletonList(topic));
             return consumer;
         }
     }
+
+    public static class SendRecords implements AppUnderTest, TransactionMarker {
+
+        private Producer<Long, String> producer;
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            producer = SendRecord.createProducer((Integer) args[0]);
+            transactionMarker();
+            producer.close();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            for (int i = 0; i < 3; i++) {
+                producer.send(new ProducerRecord<Long, String>("demo", "message")).get();
+            }
+        }
+    }
+
+    public static class PollRecordWithDuration implements AppUnderTest, TransactionMarker {
+
+        private Consumer<Long, String> consumer;
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            Integer kafkaPort = (Integer) args[0];
+            Producer<Long, String> producer = SendRecord.createProducer(kafkaPort);
+            producer.send(new ProducerRecord<Long, String>("demo-duration", "message")).get();
+            producer.close();
+
+            consumer = PollRecord.createConsumer(kafkaPort, "demo-duration", "consumerGroup2");
+            transactionMarker();
+            consumer.close();
+        }
+
+        @Override
+        public void transactionMarker() throws Exception {
+            ConsumerRecords<Long, String> consumerRecords =
+                    consumer.poll(Duration.ofMillis(100));
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            while (consumerRecords.count() == 0 && stopwatch.elapsed(SECONDS) < 5) {
+                consumerRecords = consumer.poll(Duration.ofMillis(100));
+            }
+            if (consumerRecords.count() == 0) {
+                throw new IllegalStateException("Record not found");
+            }
+            consumer.commitAsync();
+        }
+    }
+
+    public static class PollRecordOutsideTransaction implements AppUnderTest {
+
+        @Override
+        public void executeApp(Serializable... args) throws Exception {
+            Integer kafkaPort = (Integer) args[0];
+            Producer<Long, String> producer = SendRecord.createProducer(kafkaPort);
+            producer.send(new ProducerRecord<Long, String>("demo-batch", "message1")).get();
+            producer.send(new ProducerRecord<Long, String>("demo-batch", "message2")).get();
+            producer.close();
+
+            Consumer<Long, String> consumer =
+                    PollRecord.createConsumer(kafkaPort, "demo-batch", "consumerGroup3");
+            ConsumerRecords<Long, String> consumerRecords = consumer.poll(Duration.ofMillis(100));
+            Stopwatch stopwatch = Stopwatch.createStarted();
+            while (consumerRecords.count() < 2 && stopwatch.elapsed(SECONDS) < 5) {
+                consumerRecords = consumer.poll(Duration.ofMillis(100));
+            }
+            if (consumerRecords.count() < 2) {
+                throw new IllegalStateException("Records not found");
+            }
+            // processing of the batch is captured in the transaction that was started by the poll
+            TestSpans.createLocalSpan();
+            // the transaction is ended by close
+            consumer.close();
+        }
+    }
 }
@@ -47,13 +47,17 @@ public class Log4j1xInstrumentation {
         }
 
         @Advice.OnMethodBefore
-        public static Timer onBefore(
+        public static @Nullable Timer onBefore(
                 @Bind.This Category logger,
                 @Bind.Argument(1) @Nullable Priority level,
                 @Bind.Argument(2) @Nullable Object message,
                 @Bind.Argument(3) @Nullable Throwable t,
                 OptionalThreadContext context) {
 
+            if (!context.isCapturingLoggerSpans()) {
+                // no logger span can be captured, so the message does not need to be formatted
+                return null;
+            }
             String messageText = String.valueOf(message);
             int lvl = level == null ? 0 : level.toInt();
             if (LoggerInstrumentationProperties.markTraceAsError(lvl >= Log4j1xLevel.ERROR,
@@ -66,9 +70,11 @@ public class Log4j1xInstrumentation {
         }
 
         @Advice.OnMethodAfter
-        public static void onAfter(@Bind.Enter Timer timer) {
+        public static void onAfter(@Bind.Enter @Nullable Timer timer) {
 
-            timer.stop();
+            if (timer != null) {
+                timer.stop();
+            }
         }
     }
 }
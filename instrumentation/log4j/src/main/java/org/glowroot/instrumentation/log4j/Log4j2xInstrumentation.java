@@ -50,13 +50,17 @@ public class Log4j2xInstrumentation {
         }
 
         @Advice.OnMethodBefore
-        public static Timer onBefore(
+        public static @Nullable Timer onBefore(
                 @Bind.This Logger logger,
                 @Bind.Argument(1) @Nullable Level level,
                 @Bind.Argument(3) @Nullable Message message,
                 @Bind.Argument(4) @Nullable Throwable t,
                 OptionalThreadContext context) {
 
+            if (!context.isCapturingLoggerSpans()) {
+                // no logger span can be captured, so the message does not need to be formatted
+                return null;
+            }
             String formattedMessage =
                     message == null ? "" : nullToEmpty(message.getFormattedMessage());
             int lvl = level == null ? 0 : level.intLevel();
@@ -70,9 +74,11 @@ public class Log4j2xInstrumentation {
         }
 
         @Advice.OnMethodAfter
-        public static void onAfter(@Bind.Enter Timer timer) {
+        public static void onAfter(@Bind.Enter @Nullable Timer timer) {
 
-            timer.stop();
+            if (timer != null) {
+                timer.stop();
+            }
         }
     }
 
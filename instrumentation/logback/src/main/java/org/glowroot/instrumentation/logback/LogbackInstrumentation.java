@@ -56,6 +56,10 @@ public class LogbackInstrumentation {
                 @Bind.Argument(0) ILoggingEvent loggingEvent,
                 OptionalThreadContext context) {
 
+            if (!context.isCapturingLoggerSpans()) {
+                // no logger span can be captured, so the message does not need to be formatted
+                return null;
+            }
             String formattedMessage = nullToEmpty(loggingEvent.getFormattedMessage());
             Level level = loggingEvent.getLevel();
             int lvl = level == null ? 0 : level.toInt();
@@ -108,6 +112,10 @@ public class LogbackInstrumentation {
                 @Bind.ClassMeta LoggingEventInvoker invoker,
                 OptionalThreadContext context) {
 
+            if (!context.isCapturingLoggerSpans()) {
+                // no logger span can be captured, so the message does not need to be formatted
+                return null;
+            }
             String formattedMessage = invoker.getFormattedMessage(loggingEvent);
             Level level = loggingEvent.getLevel();
             int lvl = level == null ? 0 : level.toInt();
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.mongodb;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+// caches the masked filter text by the shape of the filter (field names and nesting, but not
+// values), since applications typically issue a small number of distinct filter shapes, and
+// building the masked BsonDocument and rendering it to json is much more expensive than walking
+// the filter to compute its shape
+class MaskedFilterCache {
+
+    private static final BsonString MASK_VALUE = new BsonString("?");
+
+    // the cache is split into segments (each with its own lock) to reduce contention
+    private static final int CACHE_SEGMENT_COUNT = 16;
+    private static final int CACHE_SEGMENT_SIZE = 64;
+
+    // very large filters (e.g. long $in lists) are still masked, but not cached, to bound the cache
+    // memory
+    private static final int MAX_CACHED_SHAPE_LENGTH = 8192;
+
+    private static final LruSegment[] cacheSegments = new LruSegment[CACHE_SEGMENT_COUNT];
+
+    static {
+        for (int i = 0; i < CACHE_SEGMENT_COUNT; i++) {
+            cacheSegments[i] = new LruSegment();
+        }
+    }
+
+    private MaskedFilterCache() {}
+
+    static String getMaskedFilter(BsonDocument filter) {
+        StringBuilder sb = new StringBuilder();
+        appendShape(filter, sb);
+        if (sb.length() > MAX_CACHED_SHAPE_LENGTH) {
+            return maskFilter(filter).toString();
+        }
+        String shape = sb.toString();
+        int hash = shape.hashCode();
+        LruSegment segment = cacheSegments[(hash ^ (hash >>> 16)) & (CACHE_SEGMENT_COUNT - 1)];
+        String maskedFilter;
+        synchronized (segment) {
+            maskedFilter = segment.get(shape);
+        }
+        if (maskedFilter == null) {
+            // masking outside of the lock, worst case two threads mask the same filter shape
+            maskedFilter = maskFilter(filter).toString();
+            synchronized (segment) {
+                segment.put(shape, maskedFilter);
+            }
+        }
+        return maskedFilter;
+    }
+
+    // field names are length-prefixed so that distinct shapes can never produce the same string
+    private static void appendShape(BsonValue value, StringBuilder sb) {
+        if (value instanceof BsonDocument) {
+            sb.append('{');
+            for (Entry<String, BsonValue> entry : ((BsonDocument) value).entrySet()) {
+                String key = entry.getKey();
+                sb.append(key.length());
+                sb.append(':');
+                sb.append(key);
+                appendShape(entry.getValue(), sb);
+            }
+            sb.append('}');
+        } else if (value instanceof BsonArray) {
+            sb.append('[');
+            for (BsonValue val : (BsonArray) value) {
+                appendShape(val, sb);
+            }
+            sb.append(']');
+        } else {
+            sb.append('?');
+        }
+    }
+
+    private static BsonValue maskFilter(BsonValue value) {
+        if (value instanceof BsonDocument) {
+            BsonDocument dest = new BsonDocument();
+            for (Entry<String, BsonValue> entry : ((BsonDocument) value).entrySet()) {
+                dest.append(entry.getKey(), maskFilter(entry.getValue()));
+            }
+            return dest;
+        } else if (value instanceof BsonArray) {
+            BsonArray dest = new BsonArray();
+            for (BsonValue val : (BsonArray) value) {
+                dest.add(maskFilter(val));
+            }
+            return dest;
+        } else {
+            return MASK_VALUE;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class LruSegment extends LinkedHashMap<String, String> {
+
+        private LruSegment() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > CACHE_SEGMENT_SIZE;
+        }
+    }
+}
@@ -17,17 +17,12 @@ package org.glowroot.instrumentation.mongodb;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
 
 import com.mongodb.event.CommandFailedEvent;
 import com.mongodb.event.CommandListener;
 import com.mongodb.event.CommandStartedEvent;
 import com.mongodb.event.CommandSucceededEvent;
-import org.bson.BsonArray;
 import org.bson.BsonDocument;
-import org.bson.BsonString;
 import org.bson.BsonValue;
 
 import org.glowroot.instrumentation.api.Agent;
@@ -40,6 +35,7 @@ import org.glowroot.instrumentation.api.config.ConfigListener;
 import org.glowroot.instrumentation.api.config.ConfigService;
 import org.glowroot.instrumentation.api.weaving.Advice;
 import org.glowroot.instrumentation.api.weaving.Bind;
+import org.glowroot.instrumentation.api.weaving.Mixin;
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
@@ -84,15 +80,60 @@ public class MongoDbInstrumentation {
         }
     }
 
-    public static class InstrumentationCommandListener implements CommandListener {
+    // the driver only has a single command in flight on a connection at a time, so the connection
+    // description (which is a single instance per connection) can hold the query span between
+    // commandStarted() and commandSucceeded()/commandFailed()
+    //
+    // the fields need to be volatile since the async driver can complete the command on a different
+    // thread from the one that started it
+    @Mixin("com.mongodb.connection.ConnectionDescription")
+    public static class ConnectionDescriptionImpl implements ConnectionDescriptionMixin {
+
+        private transient volatile int glowroot$requestId;
+
+        private transient volatile @Nullable QuerySpan glowroot$querySpan;
+
+        @Override
+        public @Nullable QuerySpan glowroot$takeQuerySpan(int requestId) {
+            QuerySpan querySpan = glowroot$querySpan;
+            if (querySpan == null || glowroot$requestId != requestId) {
+                return null;
+            }
+            glowroot$querySpan = null;
+            return querySpan;
+        }
+
+        @Override
+        public void glowroot$setQuerySpan(int requestId, QuerySpan querySpan) {
+            glowroot$requestId = requestId;
+            glowroot$querySpan = querySpan;
+        }
+    }
 
-        private static final BsonString MASK_VALUE = new BsonString("?");
+    // the interface is public so that it is available to the woven classes
+    public interface ConnectionDescriptionMixin {
 
-        private final Map<Integer, QuerySpan> querySpans =
-                new ConcurrentHashMap<Integer, QuerySpan>();
+        @Nullable
+        QuerySpan glowroot$takeQuerySpan(int requestId);
+
+        void glowroot$setQuerySpan(int requestId, QuerySpan querySpan);
+    }
+
+    public static class InstrumentationCommandListener implements CommandListener {
 
         @Override
         public void commandStarted(CommandStartedEvent event) {
+            ThreadContext context = Agent.getThreadContext();
+            if (context == null) {
+                // no need to build the command text
+                return;
+            }
+            Object connectionDescription = event.getConnectionDescription();
+            if (!(connectionDescription instanceof ConnectionDescriptionMixin)) {
+                // ConnectionDescription was loaded before the instrumentation was in place, so
+                // there is nowhere to hold the query span until the command completes
+                return;
+            }
             String commandName = event.getCommandName();
             BsonDocument command = event.getCommand();
 
@@ -117,22 +158,20 @@ public class MongoDbInstrumentation {
                 if (filter != null && filter instanceof BsonDocument
                         && !((BsonDocument) filter).isEmpty()) {
                     text.append(' ');
-                    BsonValue maskedFilter = maskFilter(filter);
-                    text.append(maskedFilter.toString());
+                    text.append(MaskedFilterCache.getMaskedFilter((BsonDocument) filter));
                 }
             }
 
-            ThreadContext context = Agent.getThreadContext();
-            if (context != null) {
-                QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, "", text.toString(),
-                        QueryMessageSupplier.create(), TIMER_NAME);
-                querySpans.put(event.getRequestId(), querySpan);
-            }
+            QuerySpan querySpan = context.startQuerySpan(QUERY_TYPE, "", text.toString(),
+                    QueryMessageSupplier.create(), TIMER_NAME);
+            ((ConnectionDescriptionMixin) connectionDescription)
+                    .glowroot$setQuerySpan(event.getRequestId(), querySpan);
         }
 
         @Override
         public void commandSucceeded(CommandSucceededEvent event) {
-            QuerySpan querySpan = querySpans.remove(event.getRequestId());
+            QuerySpan querySpan = takeQuerySpan(event.getConnectionDescription(),
+                    event.getRequestId());
             if (querySpan != null) {
                 querySpan.endWithLocationStackTrace(stackTraceThresholdNanos);
             }
@@ -140,27 +179,20 @@ public class MongoDbInstrumentation {
 
         @Override
         public void commandFailed(CommandFailedEvent event) {
-            QuerySpan querySpan = querySpans.remove(event.getRequestId());
+            QuerySpan querySpan = takeQuerySpan(event.getConnectionDescription(),
+                    event.getRequestId());
             if (querySpan != null) {
                 querySpan.endWithError(event.getThrowable());
             }
         }
 
-        private static BsonValue maskFilter(BsonValue value) {
-            if (value instanceof BsonDocument) {
-                BsonDocument dest = new BsonDocument();
-                for (Entry<String, BsonValue> entry : ((BsonDocument) value).entrySet()) {
-                    dest.append(entry.getKey(), maskFilter(entry.getValue()));
-                }
-                return dest;
-            } else if (value instanceof BsonArray) {
-                BsonArray dest = new BsonArray();
-                for (BsonValue val : (BsonArray) value) {
-                    dest.add(maskFilter(val));
-                }
-                return dest;
+        private static @Nullable QuerySpan takeQuerySpan(@Nullable Object connectionDescription,
+                int requestId) {
+            if (connectionDescription instanceof ConnectionDescriptionMixin) {
+                return ((ConnectionDescriptionMixin) connectionDescription)
+                        .glowroot$takeQuerySpan(requestId);
             } else {
-                return MASK_VALUE;
+                return null;
             }
         }
     }
@@ -155,6 +155,32 @@ public class MongoDbIT {
         assertThat(i.hasNext()).isFalse();
     }
 
+    @Test
+    public void shouldCaptureFindsWithSameFilterShape() throws Exception {
+        // when
+        IncomingSpan incomingSpan =
+                container.execute(ExecuteFindsWithSameFilterShape.class, mongoPort);
+
+        // then
+        Iterator<Span> i = incomingSpan.childSpans().iterator();
+
+        OutgoingSpan outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.type()).isEqualTo("MongoDB");
+        String message = outgoingSpan.message();
+        if (!message.equals("find testdb.test {\"$or\": [{\"test1\": \"?\"},"
+                + " {\"test3\": {\"$in\": [\"?\", \"?\"]}}]}")) {
+            // versions 3.7.0 through 3.9.x have extra spaces
+            assertThat(message).isEqualTo("find testdb.test { \"$or\" : [{ \"test1\" : \"?\" },"
+                    + " { \"test3\" : { \"$in\" : [\"?\", \"?\"] } }] }");
+        }
+
+        outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.type()).isEqualTo("MongoDB");
+        assertThat(outgoingSpan.message()).isEqualTo(message);
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
     @Test
     public void shouldCaptureFindAndGetMoreRecords() throws Exception {
         // when
@@ -273,6 +299,27 @@ public class MongoDbIT {
         }
     }
 
+    public static class ExecuteFindsWithSameFilterShape extends DoMongoDB {
+
+        @Override
+        public void transactionMarker() throws InterruptedException {
+            MongoDatabase database = mongoClient.getDatabase("testdb");
+            MongoCollection<Document> collection = database.getCollection("test");
+            find(collection, "test2", "test4", "test5");
+            find(collection, "test6", "test7", "test8");
+        }
+
+        private static void find(MongoCollection<Document> collection, String test1,
+                String test3a, String test3b) {
+            Document filter = new Document("$or", ImmutableList.of(new Document("test1", test1),
+                    new Document("test3", new Document("$in", ImmutableList.of(test3a, test3b)))));
+            MongoCursor<Document> i = collection.find(filter).iterator();
+            while (i.hasNext()) {
+                i.next();
+            }
+        }
+    }
+
     public static class ExecuteFindAndGetMoreRecords extends DoMongoDB {
 
         @Override
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.instrumentation.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.glowroot.instrumentation.api.Message;
+import org.glowroot.instrumentation.api.MessageSupplier;
+import org.glowroot.instrumentation.api.ThreadContext;
+import org.glowroot.instrumentation.api.checker.Nullable;
+
+// commands that have been written to a connection but whose replies have not yet been read
+//
+// one instance per connection, and jedis connections are not thread safe, so no synchronization
+// is needed
+public class CommandBatch {
+
+    private static final String PIPELINE = "PIPELINE";
+
+    private @Nullable String host;
+    private int port;
+    private @Nullable String hostAndPort;
+
+    // the thread context that sent the pending commands, so that pending commands are never
+    // attributed to a different transaction (e.g. when a pooled connection is returned with unread
+    // replies and then borrowed by a different request), this is cleared along with the pending
+    // commands on the next reply read (whether or not in a transaction), send or disconnect
+    private @Nullable ThreadContext owner;
+
+    private @Nullable String firstCommand;
+    private int count;
+    private long bytes;
+
+    // only allocated once there is more than one command in the batch
+    private @Nullable Map<String, Counter> commandCounts;
+
+    String getHostAndPort(@Nullable String host, int port) {
+        String hostAndPort = this.hostAndPort;
+        if (hostAndPort == null || port != this.port || !equal(host, this.host)) {
+            hostAndPort = host + ":" + port;
+            this.host = host;
+            this.port = port;
+            this.hostAndPort = hostAndPort;
+        }
+        return hostAndPort;
+    }
+
+    void add(String command, long bytes, ThreadContext context) {
+        if (count != 0 && owner != context) {
+            // the pending commands were sent by a different thread context, and so their replies
+            // (if they are ever read) cannot be attributed to this one
+            clear();
+        }
+        if (count == 0) {
+            owner = context;
+            firstCommand = command;
+        } else {
+            Map<String, Counter> commandCounts = this.commandCounts;
+            if (commandCounts == null) {
+                commandCounts = new LinkedHashMap<String, Counter>();
+                commandCounts.put(nullToEmpty(firstCommand), new Counter());
+                this.commandCounts = commandCounts;
+            }
+            Counter counter = commandCounts.get(command);
+            if (counter == null) {
+                commandCounts.put(command, new Counter());
+            } else {
+                counter.value++;
+            }
+        }
+        count++;
+        this.bytes += bytes;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    boolean isOwnedBy(ThreadContext context) {
+        return owner == context;
+    }
+
+    String getSpanText() {
+        return count == 1 ? nullToEmpty(firstCommand) : PIPELINE;
+    }
+
+    // hands off the pending commands to the returned message supplier and clears the batch
+    MessageSupplier flush(String hostAndPort) {
+        MessageSupplier messageSupplier;
+        Map<String, Counter> commandCounts = this.commandCounts;
+        if (commandCounts == null) {
+            messageSupplier = MessageSupplier.create("redis {} {}", hostAndPort, firstCommand);
+        } else {
+            messageSupplier =
+                    new PipelineMessageSupplier(hostAndPort, count, commandCounts, bytes);
+        }
+        clear();
+        return messageSupplier;
+    }
+
+    void clear() {
+        owner = null;
+        firstCommand = null;
+        count = 0;
+        bytes = 0;
+        commandCounts = null;
+    }
+
+    private static boolean equal(@Nullable String a, @Nullable String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static String nullToEmpty(@Nullable String string) {
+        return string == null ? "" : string;
+    }
+
+    private static class Counter {
+        private int value = 1;
+    }
+
+    // the message (including the per-command histogram) is not built until the trace is captured
+    private static class PipelineMessageSupplier extends MessageSupplier {
+
+        private final String hostAndPort;
+        private final int count;
+        private final Map<String, Counter> commandCounts;
+        private final long bytes;
+
+        private PipelineMessageSupplier(String hostAndPort, int count,
+                Map<String, Counter> commandCounts, long bytes) {
+            this.hostAndPort = hostAndPort;
+            this.count = count;
+            this.commandCounts = commandCounts;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public Message get() {
+            StringBuilder sb = new StringBuilder();
+            boolean first = true;
+            for (Map.Entry<String, Counter> entry : commandCounts.entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                sb.append(entry.getKey());
+                sb.append(" x");
+                sb.append(entry.getValue().value);
+                first = false;
+            }
+            return Message.create("redis {} " + PIPELINE + " {} commands ({}), {} bytes",
+                    hostAndPort, Integer.toString(count), sb.toString(), Long.toString(bytes));
+        }
+    }
+}
@@ -19,6 +19,7 @@ import redis.clients.jedis.Connection;
 
 import org.glowroot.instrumentation.api.Agent;
 import org.glowroot.instrumentation.api.MessageSupplier;
+import org.glowroot.instrumentation.api.OptionalThreadContext;
 import org.glowroot.instrumentation.api.Setter;
 import org.glowroot.instrumentation.api.Span;
 import org.glowroot.instrumentation.api.ThreadContext;
@@ -26,6 +27,7 @@ import org.glowroot.instrumentation.api.TimerName;
 import org.glowroot.instrumentation.api.checker.Nullable;
 import org.glowroot.instrumentation.api.weaving.Advice;
 import org.glowroot.instrumentation.api.weaving.Bind;
+import org.glowroot.instrumentation.api.weaving.Mixin;
 
 public class RedisInstrumentation {
 
@@ -35,37 +37,197 @@ public class RedisInstrumentation {
 
     private static final Object CARRIER = new Object();
 
+    // jedis connections are not thread safe, so the app/framework must provide visibility when a
+    // connection is passed across threads and so the field does not need to be volatile
+    @Mixin("redis.clients.jedis.Connection")
+    public static class ConnectionImpl implements ConnectionMixin {
+
+        private transient @Nullable CommandBatch glowroot$commandBatch;
+
+        @Override
+        public CommandBatch glowroot$getCommandBatch() {
+            CommandBatch commandBatch = glowroot$commandBatch;
+            if (commandBatch == null) {
+                commandBatch = new CommandBatch();
+                glowroot$commandBatch = commandBatch;
+            }
+            return commandBatch;
+        }
+    }
+
+    // the interface is public so that it is available to the woven classes
+    public interface ConnectionMixin {
+
+        CommandBatch glowroot$getCommandBatch();
+    }
+
+    // commands are only recorded here, the span is started once the replies are read (see
+    // ReadReplyAdvice below), so that a pipeline or multi/exec block is captured as a single span
+    // per flush instead of one span per command
     @Advice.Pointcut(className = "redis.clients.jedis.Connection",
                      methodName = "sendCommand",
-                     methodParameterTypes = {"*", ".."},
+                     methodParameterTypes = {"*"},
                      nestingGroup = "redis")
     public static class SendCommandAdvice {
 
         @Advice.OnMethodBefore
-        public static Span onBefore(
+        public static void onBefore(
+                @Bind.This ConnectionMixin connection,
+                @Bind.Argument(0) Object command,
+                ThreadContext context) {
+
+            connection.glowroot$getCommandBatch().add(getCommandName(command), 0, context);
+        }
+
+        @Advice.OnMethodThrow
+        public static void onThrow(
+                @Bind.Thrown Throwable t,
+                @Bind.This Connection connection,
+                @Bind.Argument(0) Object command,
+                ThreadContext context) {
+
+            onSendThrow(t, connection, command, context);
+        }
+    }
+
+    @Advice.Pointcut(className = "redis.clients.jedis.Connection",
+                     methodName = "sendCommand",
+                     methodParameterTypes = {"*", "java.lang.String[]"},
+                     nestingGroup = "redis")
+    public static class SendStringCommandAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore(
+                @Bind.This ConnectionMixin connection,
+                @Bind.Argument(0) Object command,
+                @Bind.Argument(1) @Nullable String /*@Nullable*/ [] args,
+                ThreadContext context) {
+
+            String cmd = getCommandName(command);
+            // char count is used as an approximation of the encoded byte count, which avoids
+            // encoding the arguments a second time
+            long bytes = cmd.length();
+            if (args != null) {
+                for (String arg : args) {
+                    if (arg != null) {
+                        bytes += arg.length();
+                    }
+                }
+            }
+            connection.glowroot$getCommandBatch().add(cmd, bytes, context);
+        }
+
+        @Advice.OnMethodThrow
+        public static void onThrow(
+                @Bind.Thrown Throwable t,
                 @Bind.This Connection connection,
                 @Bind.Argument(0) Object command,
                 ThreadContext context) {
 
-            String cmd = nullToEmpty(command.toString());
-            return context.startOutgoingSpan("Redis", cmd, SETTER, CARRIER,
-                    MessageSupplier.create("redis {}:{} {}", connection.getHost(),
-                            Integer.toString(connection.getPort()), cmd),
+            onSendThrow(t, connection, command, context);
+        }
+    }
+
+    @Advice.Pointcut(className = "redis.clients.jedis.Connection",
+                     methodName = "sendCommand",
+                     methodParameterTypes = {"*", "byte[][]"},
+                     nestingGroup = "redis")
+    public static class SendBinaryCommandAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore(
+                @Bind.This ConnectionMixin connection,
+                @Bind.Argument(0) Object command,
+                @Bind.Argument(1) byte /*@Nullable*/ [] /*@Nullable*/ [] args,
+                ThreadContext context) {
+
+            String cmd = getCommandName(command);
+            long bytes = cmd.length();
+            if (args != null) {
+                for (byte[] arg : args) {
+                    if (arg != null) {
+                        bytes += arg.length;
+                    }
+                }
+            }
+            connection.glowroot$getCommandBatch().add(cmd, bytes, context);
+        }
+
+        @Advice.OnMethodThrow
+        public static void onThrow(
+                @Bind.Thrown Throwable t,
+                @Bind.This Connection connection,
+                @Bind.Argument(0) Object command,
+                ThreadContext context) {
+
+            onSendThrow(t, connection, command, context);
+        }
+    }
+
+    // the reply methods flush the output stream before reading, so this is where the pending
+    // commands actually go over the wire (the few that read without flushing are either nested
+    // inside one that does, or are used by pub/sub loops where there are no pending commands)
+    @Advice.Pointcut(className = "redis.clients.jedis.Connection",
+                     methodName = "get*Reply|getOne|getMany|getAll",
+                     methodParameterTypes = {".."},
+                     nestingGroup = "redis-reply")
+    public static class ReadReplyAdvice {
+
+        // binds OptionalThreadContext so that this also runs when the replies are read after the
+        // transaction has ended, in which case the pending commands (and the finished transaction's
+        // thread context) are released here instead of being retained by the connection
+        @Advice.OnMethodBefore
+        public static @Nullable Span onBefore(
+                @Bind.This Connection connection,
+                OptionalThreadContext context) {
+
+            CommandBatch commandBatch = ((ConnectionMixin) connection).glowroot$getCommandBatch();
+            if (commandBatch.isEmpty()) {
+                return null;
+            }
+            if (!commandBatch.isOwnedBy(context)) {
+                // the pending commands were sent by a different thread context (or the replies
+                // are being read outside of a transaction)
+                commandBatch.clear();
+                return null;
+            }
+            String text = commandBatch.getSpanText();
+            MessageSupplier messageSupplier = commandBatch.flush(
+                    commandBatch.getHostAndPort(connection.getHost(), connection.getPort()));
+            return context.startOutgoingSpan("Redis", text, SETTER, CARRIER, messageSupplier,
                     TIMER_NAME);
         }
 
         @Advice.OnMethodReturn
-        public static void onReturn(@Bind.Enter Span span) {
+        public static void onReturn(@Bind.Enter @Nullable Span span) {
 
-            span.end();
+            if (span != null) {
+                span.end();
+            }
         }
 
         @Advice.OnMethodThrow
         public static void onThrow(
                 @Bind.Thrown Throwable t,
-                @Bind.Enter Span span) {
+                @Bind.Enter @Nullable Span span) {
 
-            span.endWithError(t);
+            if (span != null) {
+                span.endWithError(t);
+            }
+        }
+    }
+
+    // commands that were sent but never read (e.g. the connection was broken) must not be
+    // attributed to the next command if the connection is re-established
+    @Advice.Pointcut(className = "redis.clients.jedis.Connection",
+                     methodName = "disconnect",
+                     methodParameterTypes = {})
+    public static class DisconnectAdvice {
+
+        @Advice.OnMethodBefore
+        public static void onBefore(@Bind.This ConnectionMixin connection) {
+
+            connection.glowroot$getCommandBatch().clear();
         }
     }
 
@@ -78,10 +240,10 @@ public class RedisInstrumentation {
         @Advice.OnMethodBefore
         public static Span onBefore(@Bind.This Connection connection, ThreadContext context) {
 
+            String hostAndPort = ((ConnectionMixin) connection).glowroot$getCommandBatch()
+                    .getHostAndPort(connection.getHost(), connection.getPort());
             return context.startOutgoingSpan("Redis", "CONNECT", SETTER, CARRIER,
-                    MessageSupplier.create("redis {}:{} CONNECT", connection.getHost(),
-                            Integer.toString(connection.getPort())),
-                    TIMER_NAME);
+                    MessageSupplier.create("redis {} CONNECT", hostAndPort), TIMER_NAME);
         }
 
         @Advice.OnMethodReturn
@@ -99,8 +261,22 @@ public class RedisInstrumentation {
         }
     }
 
-    private static String nullToEmpty(@Nullable String string) {
-        return string == null ? "" : string;
+    private static void onSendThrow(Throwable t, Connection connection, Object command,
+            ThreadContext context) {
+        CommandBatch commandBatch = ((ConnectionMixin) connection).glowroot$getCommandBatch();
+        // the failed command (and any commands pending ahead of it) will never get a reply
+        commandBatch.clear();
+        String cmd = getCommandName(command);
+        context.startOutgoingSpan("Redis", cmd, SETTER, CARRIER,
+                MessageSupplier.create("redis {} {}",
+                        commandBatch.getHostAndPort(connection.getHost(), connection.getPort()),
+                        cmd),
+                TIMER_NAME).endWithError(t);
+    }
+
+    private static String getCommandName(Object command) {
+        String cmd = command.toString();
+        return cmd == null ? "" : cmd;
     }
 
     private static class NopSetter implements Setter<Object> {
@@ -16,19 +16,26 @@
 package org.glowroot.instrumentation.redis;
 
 import java.io.Serializable;
+import java.util.Iterator;
 
 import org.junit.After;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
 
 import org.glowroot.instrumentation.test.harness.AppUnderTest;
 import org.glowroot.instrumentation.test.harness.Container;
 import org.glowroot.instrumentation.test.harness.Containers;
 import org.glowroot.instrumentation.test.harness.IncomingSpan;
+import org.glowroot.instrumentation.test.harness.OutgoingSpan;
+import org.glowroot.instrumentation.test.harness.Span;
 import org.glowroot.instrumentation.test.harness.TransactionMarker;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.glowroot.instrumentation.test.harness.util.HarnessAssertions.assertSingleOutgoingSpanMessage;
 
 public class ConnectionIT {
@@ -86,6 +93,43 @@ public class ConnectionIT {
         assertSingleOutgoingSpanMessage(incomingSpan).matches("redis localhost:[0-9]+ PING");
     }
 
+    @Test
+    public void shouldTracePipeline() throws Exception {
+        // when
+        IncomingSpan incomingSpan = container.execute(JedisPipeline.class);
+
+        // then
+        assertSingleOutgoingSpanMessage(incomingSpan).matches(
+                "redis localhost:[0-9]+ PIPELINE 3 commands \\(SET x2, GET x1\\), 28 bytes");
+    }
+
+    @Test
+    public void shouldTraceMultiExec() throws Exception {
+        // when
+        IncomingSpan incomingSpan = container.execute(JedisMultiExec.class);
+
+        // then
+        Iterator<Span> i = incomingSpan.childSpans().iterator();
+
+        OutgoingSpan outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.message()).matches("redis localhost:[0-9]+ MULTI");
+
+        outgoingSpan = (OutgoingSpan) i.next();
+        assertThat(outgoingSpan.message()).matches(
+                "redis localhost:[0-9]+ PIPELINE 3 commands \\(SET x2, EXEC x1\\), [0-9]+ bytes");
+
+        assertThat(i.hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldNotAttributeCommandsSentOutsideTransaction() throws Exception {
+        // when
+        IncomingSpan incomingSpan = container.execute(JedisCommandSentOutsideTransaction.class);
+
+        // then
+        assertSingleOutgoingSpanMessage(incomingSpan).matches("redis localhost:[0-9]+ GET");
+    }
+
     private abstract static class JedisBase implements AppUnderTest, TransactionMarker {
 
         private RedisMockServer redisMockServer;
@@ -96,10 +140,13 @@ public class ConnectionIT {
         public void executeApp(Serializable... args) throws Exception {
             redisMockServer = new RedisMockServer();
             jedis = new Jedis("localhost", redisMockServer.getPort());
+            beforeTransactionMarker();
             transactionMarker();
             redisMockServer.close();
         }
 
+        protected void beforeTransactionMarker() {}
+
         protected Jedis getJedis() {
             return jedis;
         }
@@ -136,4 +183,44 @@ public class ConnectionIT {
             getJedis().ping();
         }
     }
+
+    public static class JedisPipeline extends JedisBase implements TransactionMarker {
+
+        @Override
+        public void transactionMarker() {
+            Pipeline pipeline = getJedis().pipelined();
+            pipeline.set("key", "value");
+            pipeline.set("key", "value");
+            pipeline.get("key");
+            pipeline.sync();
+        }
+    }
+
+    public static class JedisMultiExec extends JedisBase implements TransactionMarker {
+
+        @Override
+        public void transactionMarker() {
+            Transaction transaction = getJedis().multi();
+            transaction.set("key", "value");
+            transaction.set("key", "value");
+            transaction.exec();
+        }
+    }
+
+    public static class JedisCommandSentOutsideTransaction extends JedisBase
+            implements TransactionMarker {
+
+        @Override
+        protected void beforeTransactionMarker() {
+            // sent, but the reply is not read until inside the transaction
+            getJedis().getClient().set("key", "value");
+        }
+
+        @Override
+        public void transactionMarker() {
+            Client client = getJedis().getClient();
+            client.get("key");
+            client.getAll();
+        }
+    }
 }
@@ -21,6 +21,8 @@ import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -101,10 +103,31 @@ class RedisMockServer implements Runnable {
             OutputStream socketOut = socket.getOutputStream();
             int nBytes;
             while ((nBytes = socketIn.read(request)) != -1) {
-                String command = new String(request, 0, nBytes, "UTF-8").replaceAll("\r\n", " ");
-                String response = getResponse(command);
-                socketOut.write(response.getBytes());
+                // pipelined commands can arrive in a single read
+                StringBuilder response = new StringBuilder();
+                for (String command : splitCommands(new String(request, 0, nBytes, "UTF-8"))) {
+                    response.append(getResponse(command));
+                }
+                socketOut.write(response.toString().getBytes());
+            }
+        }
+
+        private List<String> splitCommands(String request) {
+            List<String> commands = new ArrayList<String>();
+            String[] lines = request.split("\r\n");
+            int i = 0;
+            while (i < lines.length) {
+                // each command is "*<n>" followed by n pairs of "$<len>" and the argument
+                int end = Math.min(i + 1 + 2 * Integer.parseInt(lines[i].substring(1)),
+                        lines.length);
+                StringBuilder command = new StringBuilder();
+                for (; i < end; i++) {
+                    command.append(lines[i]);
+                    command.append(' ');
+                }
+                commands.add(command.toString());
             }
+            return commands;
         }
 
         private String getResponse(String command) {
@@ -114,6 +137,8 @@ class RedisMockServer implements Runnable {
                 return "$5\r\nvalue\r\n";
             } else if (command.equals("*3 $3 SET $3 key $5 value ")) {
                 return "+OK\r\n";
+            } else if (command.equals("*1 $4 EXEC ")) {
+                return "*0\r\n";
             } else {
                 return "+OK\r\n";
             }